@@ -14,6 +14,7 @@ import org.voltdb.client.Client;
 import org.voltdb.client.ClientResponse;
 import org.voltdb.client.ClientStatusListener;
 import org.voltdb.client.NoConnectionsException;
+import org.voltdb.client.NullCallback;
 import org.voltdb.client.ProcCallException;
 import org.voltdb.client.ProcedureCallback;
 
@@ -160,6 +161,20 @@ public class BlockingClient extends Semaphore implements Client {
         return this.inner.callProcedure(callback, expectedSerializedSize, procName, hints, parameters);
     }
 
+    /* (non-Javadoc)
+     * @see org.voltdb.client.Client#callProcedures(org.voltdb.client.ProcedureCallback[], java.lang.String[], java.lang.Object[][])
+     */
+    @Override
+    public boolean callProcedures(ProcedureCallback[] callbacks, String[] procNames, Object[][] parameters) throws IOException,
+            NoConnectionsException {
+        ProcedureCallback blockingCallbacks[] = new ProcedureCallback[procNames.length];
+        for (int i = 0; i < blockingCallbacks.length; i++) {
+            ProcedureCallback callback = (callbacks[i] != null ? callbacks[i] : new NullCallback());
+            blockingCallbacks[i] = new BlockingCallback(procNames[i], callback);
+        } // FOR
+        return this.inner.callProcedures(blockingCallbacks, procNames, parameters);
+    }
+
     /* (non-Javadoc)
      * @see org.voltdb.client.Client#close()
      */
@@ -51,6 +51,9 @@ public abstract class AbstractDirectedGraph<V extends AbstractVertex, E extends
     public int getGraphId() {
         return this.inner.getGraphId();
     }
+    public void setGraphId(int id) {
+        this.inner.setGraphId(id);
+    }
     public Set<V> getDescendants(V vertex) {
         return (this.inner.getDescendants(vertex));
     }
@@ -125,6 +125,10 @@ public class BatchPlanner {
     private final BatchPlan cache_singlePartitionPlans[];
     private Map<Statement, Map<PlanFragment, PartitionSet>> cache_singlePartitionFragmentPartitions;
 
+    // MULTI-PARTITION PLAN CACHE
+    private final Map<PlanShape, BatchPlan> cache_multiPartitionPlans;
+    private final PlanShape cache_multiPartitionProbe;
+
     // PROFILING
     private BatchPlannerProfiler profiler;
 
@@ -197,6 +201,36 @@ public class BatchPlanner {
         }
     } // END CLASS
 
+    /**
+     * Cache key for multi-partition BatchPlans. Two BatchPlans have the same shape
+     * if they have the same base partition and each of their PlanFragments will
+     * execute on the same partitions. The statement sequence is always the same
+     * because each BatchPlanner only handles one batch of SQLStmts.
+     */
+    protected static class PlanShape {
+        private BatchPlan plan;
+        private int hash_code;
+
+        private PlanShape set(BatchPlan plan) {
+            this.plan = plan;
+            this.hash_code = plan.computeShapeHashCode();
+            return (this);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof PlanShape))
+                return (false);
+            PlanShape other = (PlanShape) obj;
+            return (this.hash_code == other.hash_code && this.plan.hasSameShape(other.plan));
+        }
+
+        @Override
+        public int hashCode() {
+            return (this.hash_code);
+        }
+    } // END CLASS
+
     // ----------------------------------------------------------------------------
     // BATCH PLAN
     // ----------------------------------------------------------------------------
@@ -253,6 +287,13 @@ public class BatchPlanner {
          */
         protected boolean all_singlepartitioned = true;
 
+        /**
+         * The WorkFragment builders for a cached multi-partition plan without
+         * their SQLStmt counters. These are cloned every time that we need to
+         * create WorkFragments for a new txn.
+         */
+        private List<WorkFragment.Builder> fragment_templates;
+
         /** check if all local fragment work is non-transactional **/
         // protected boolean localFragsAreNonTransactional = true;
 
@@ -313,6 +354,40 @@ public class BatchPlanner {
             return (this);
         }
 
+        /**
+         * Compute the hash code of the partitions that each PlanFragment
+         * in this plan will execute on.
+         */
+        private int computeShapeHashCode() {
+            int hash = this.base_partition;
+            for (int stmt_index = 0; stmt_index < this.frag_list.length; stmt_index++) {
+                hash = 31 * hash + (this.singlepartition_bitmap[stmt_index] ? 1 : 0);
+                for (PlanFragment catalog_frag : this.frag_list[stmt_index]) {
+                    hash = 31 * hash + this.frag_partitions[stmt_index].get(catalog_frag).hashCode();
+                } // FOR
+            } // FOR
+            return (hash);
+        }
+
+        /**
+         * Returns true if all of the PlanFragments in the given plan will execute
+         * on the same partitions as the PlanFragments in this plan.
+         */
+        private boolean hasSameShape(BatchPlan other) {
+            if (this.base_partition != other.base_partition)
+                return (false);
+            if (Arrays.equals(this.singlepartition_bitmap, other.singlepartition_bitmap) == false)
+                return (false);
+            for (int stmt_index = 0; stmt_index < this.frag_list.length; stmt_index++) {
+                for (PlanFragment catalog_frag : this.frag_list[stmt_index]) {
+                    PartitionSet p0 = this.frag_partitions[stmt_index].get(catalog_frag);
+                    PartitionSet p1 = other.frag_partitions[stmt_index].get(catalog_frag);
+                    if (p0.equals(p1) == false) return (false);
+                } // FOR
+            } // FOR
+            return (true);
+        }
+
         protected BatchPlanner getPlanner() {
             return (BatchPlanner.this);
         }
@@ -481,6 +556,20 @@ public class BatchPlanner {
         this.cache_isSinglePartition = (hstore_conf.site.planner_caching ? new boolean[this.batchSize] : null);
         this.cache_fastLookups = (hstore_conf.site.planner_caching ? new int[this.batchSize][] : null);
         this.cache_singlePartitionPlans = (hstore_conf.site.planner_caching ? new BatchPlan[this.catalogContext.numberOfPartitions] : null);
+        if (hstore_conf.site.planner_caching && hstore_conf.site.planner_caching_multipartition_size > 0) {
+            final int max_size = hstore_conf.site.planner_caching_multipartition_size;
+            this.cache_multiPartitionPlans = new LinkedHashMap<PlanShape, BatchPlan>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<PlanShape, BatchPlan> eldest) {
+                    return (this.size() > max_size);
+                }
+            };
+            this.cache_multiPartitionProbe = new PlanShape();
+        } else {
+            this.cache_multiPartitionPlans = null;
+            this.cache_multiPartitionProbe = null;
+        }
         int nonReplicatedStmtCnt = 0;
         for (int i = 0; i < this.batchSize; i++) {
             this.catalog_stmts[i] = batchStmts[i].getStatement();
@@ -944,6 +1033,26 @@ public class BatchPlanner {
             }
         } // FOR (Statement)
 
+        // OPTIMIZATION: Check whether we have already built a multi-partition BatchPlan
+        // that executes its PlanFragments on the same partitions as this one.
+        // If so, then we can reuse it and skip building the plan graph and WorkFragments
+        if (mispredict_h == null &&
+            this.cache_multiPartitionPlans != null &&
+            this.plan.isSingledPartitionedAndLocal() == false) {
+            BatchPlan cached = this.cache_multiPartitionPlans.get(this.cache_multiPartitionProbe.set(this.plan));
+            this.cache_multiPartitionProbe.plan = null;
+            if (cached != null) {
+                if (debug.val)
+                    LOG.debug(String.format("[#%d] Using cached multi-partition BatchPlan at partition #%02d: %s",
+                              txn_id, base_partition, Arrays.toString(plan.stmt_partitions)));
+                if (hstore_conf.site.planner_profiling && profiler != null) {
+                    profiler.plan_time.stop();
+                    profiler.cached.incrementAndGet();
+                }
+                return (cached);
+            }
+        }
+
         // Check whether we have an existing graph exists for this batch
         // configuration
         // This is the only place where we need to synchronize
@@ -980,6 +1089,19 @@ public class BatchPlanner {
             this.plan = new BatchPlan(hstore_conf.site.planner_max_round_size);
             return this.cache_singlePartitionPlans[base_partition];
         }
+        // Likewise, if this is a multi-partition plan, then we'll add it to our cache
+        // of multi-partition plans. The oldest plan will get evicted if the cache is full
+        else if (this.cache_multiPartitionPlans != null &&
+                 this.plan.isSingledPartitionedAndLocal() == false) {
+            BatchPlan cached = this.plan;
+            cached.cached = true;
+            this.cache_multiPartitionPlans.put(new PlanShape().set(cached), cached);
+            this.plan = new BatchPlan(hstore_conf.site.planner_max_round_size);
+            if (debug.val)
+                LOG.debug(String.format("Created cached multi-partition BatchPlan for txn #%d [cacheSize=%d]:\n%s",
+                          txn_id, this.cache_multiPartitionPlans.size(), cached.toString()));
+            return (cached);
+        }
 
         if (debug.val)
             LOG.debug(String.format("Created BatchPlan for txn #%d:\n%s", txn_id, this.plan.toString()));
@@ -1009,6 +1131,26 @@ public class BatchPlanner {
             		  "[txn_id=#%d, base_partition=%d]",
                       txn_id, plan.base_partition));
 
+        // OPTIMIZATION: If this is a cached multi-partition plan, then we just need to
+        // clone its WorkFragments and fill in the txn's SQLStmt counters
+        if (plan.fragment_templates != null) {
+            for (WorkFragment.Builder template : plan.fragment_templates) {
+                WorkFragment.Builder builder = template.clone();
+                for (int i = 0, cnt = builder.getStmtIndexCount(); i < cnt; i++) {
+                    builder.addStmtCounter(stmtCounters[builder.getStmtIndex(i)]);
+                } // FOR
+                builder.setPrefetch(this.prefetch);
+                builders.add(builder);
+            } // FOR
+            if (debug.val)
+                LOG.debug(String.format("Created %d WorkFragment(s) for txn #%d from cached BatchPlan",
+                          plan.fragment_templates.size(), txn_id));
+            if (hstore_conf.site.planner_profiling && profiler != null)
+                profiler.fragment_time.stop();
+            return;
+        }
+        final int first_builder = builders.size();
+
         // 2013-05-14: I feel like that we could probably cache this somehow...
         for (PlanVertex v : plan.graph.sorted_vertices) {
             int stmt_index = v.stmt_index;
@@ -1123,6 +1265,15 @@ public class BatchPlanner {
             } // PARTITION
         } // ROUND
         assert (builders.size() > 0) : "Failed to generate any WorkFragments in this BatchPlan for txn #" + txn_id;
+
+        // If this plan is cached, then we'll keep a copy of its WorkFragments
+        // without the txn's SQLStmt counters so that we can reuse them
+        if (plan.cached && plan.isSingledPartitionedAndLocal() == false) {
+            plan.fragment_templates = new ArrayList<WorkFragment.Builder>(builders.size() - first_builder);
+            for (int i = first_builder, cnt = builders.size(); i < cnt; i++) {
+                plan.fragment_templates.add(builders.get(i).clone().clearStmtCounter());
+            } // FOR
+        }
         if (debug.val)
             LOG.debug("Created " + builders.size() + " WorkFragment(s) for txn #" + txn_id);
         if (hstore_conf.site.planner_profiling && profiler != null)
@@ -1253,7 +1404,10 @@ public class BatchPlanner {
         public BatchPlan getCachedSinglePartitionPlan(int stmt_index) {
             return (cache_singlePartitionPlans[stmt_index]);
         }
-        
+        public int getCachedMultiPartitionPlanCount() {
+            return (cache_multiPartitionPlans != null ? cache_multiPartitionPlans.size() : 0);
+        }
+
     }
     
     private Debug cachedDebugContext;
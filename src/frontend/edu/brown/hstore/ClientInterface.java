@@ -48,6 +48,7 @@ import org.voltdb.utils.DBBPool.BBContainer;
 import org.voltdb.utils.DeferredSerialization;
 
 import edu.brown.hstore.conf.HStoreConf;
+import edu.brown.hstore.util.ClientResponseBatcher;
 import edu.brown.interfaces.Configurable;
 import edu.brown.interfaces.Shutdownable;
 import edu.brown.logging.LoggerUtil;
@@ -381,7 +382,8 @@ public class ClientInterface implements Shutdownable, Configurable {
                              "): wire protocol violation (timeout reading authentication strings).");
                 return null;
             }
-            message.flip().position(1);//skip version
+            message.flip();
+            final byte clientVersion = message.get();
             FastDeserializer fds = new FastDeserializer(message);
             @SuppressWarnings("unused")
             final String service = fds.readString();
@@ -393,11 +395,19 @@ public class ClientInterface implements Shutdownable, Configurable {
             /*
              * Create an input handler.
              */
-            InputHandler handler = new ClientInputHandler(socket.socket().getInetAddress().getHostName());
+            ClientInputHandler handler = new ClientInputHandler(socket.socket().getInetAddress().getHostName());
             byte buildString[] = HStore.getVersionString().getBytes("UTF-8");
             responseBuffer = ByteBuffer.allocate(34 + buildString.length);
             responseBuffer.putInt(30 + buildString.length);//message length
-            responseBuffer.put((byte)0);//version
+            
+            // Only compress the messages on this connection if both sides want to
+            byte responseVersion = 0;
+            if ((clientVersion & VoltProtocolHandler.LOGIN_COMPRESSION_FLAG) != 0 &&
+                hstore_site.getHStoreConf().site.network_client_compression) {
+                handler.setCompression(true);
+                responseVersion |= VoltProtocolHandler.LOGIN_COMPRESSION_FLAG;
+            }
+            responseBuffer.put(responseVersion);//version
 
             //Send positive response
             responseBuffer.put((byte)0);
@@ -425,6 +435,7 @@ public class ClientInterface implements Shutdownable, Configurable {
 
         private Connection m_connection;
         private final String m_hostname;
+        private ClientResponseBatcher m_responseBatcher;
 
         /**
          *
@@ -438,6 +449,14 @@ public class ClientInterface implements Shutdownable, Configurable {
             return (m_hostname);
         }
         
+        /**
+         * Returns the ClientResponseBatcher for this connection.
+         * This will be null if response batching is disabled.
+         */
+        public ClientResponseBatcher getResponseBatcher() {
+            return (m_responseBatcher);
+        }
+        
         @Override
         public int getMaxRead() {
             if (hasDTXNBackPressure) {
@@ -462,6 +481,11 @@ public class ClientInterface implements Shutdownable, Configurable {
         @Override
         public void started(final Connection c) {
             m_connection = c;
+            HStoreConf hstore_conf = hstore_site.getHStoreConf();
+            if (hstore_conf.site.network_response_batching) {
+                int compressionThreshold = (hasCompression() ? hstore_conf.global.network_compression_threshold : -1);
+                m_responseBatcher = new ClientResponseBatcher(c, getExpectedOutgoingMessageSize(), compressionThreshold);
+            }
         }
 
         @Override
@@ -11,6 +11,7 @@ import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
@@ -28,6 +29,7 @@ import org.voltdb.exceptions.ServerFaultException;
 import org.voltdb.messaging.FastSerializer;
 import org.voltdb.utils.EstTime;
 import org.voltdb.utils.Pair;
+import org.voltdb.utils.VoltTableUtil;
 
 import com.google.protobuf.ByteString;
 import com.google.protobuf.RpcCallback;
@@ -98,6 +100,7 @@ import edu.brown.hstore.util.TransactionCounter;
 import edu.brown.interfaces.Shutdownable;
 import edu.brown.logging.LoggerUtil;
 import edu.brown.logging.LoggerUtil.LoggerBoolean;
+import edu.brown.protorpc.MultiNIOEventLoop;
 import edu.brown.protorpc.NIOEventLoop;
 import edu.brown.protorpc.ProtoRpcChannel;
 import edu.brown.protorpc.ProtoRpcController;
@@ -136,7 +139,7 @@ public class HStoreCoordinator implements Shutdownable {
     private final Thread listener_thread;
     private final ProtoServer listener;
     private final HStoreService remoteService;
-    private final NIOEventLoop eventLoop = new NIOEventLoop();
+    private final NIOEventLoop eventLoop;
     
     private Shutdownable.ShutdownState state = ShutdownState.INITIALIZED;
     
@@ -303,8 +306,36 @@ public class HStoreCoordinator implements Shutdownable {
         // Incoming RPC Handler
         this.remoteService = this.initHStoreService();
         
+        // Event Loop
+        // If we have more than one thread, then we'll spread the connections
+        // to the remote sites across them
+        if (hstore_conf.site.network_eventloop_threads > 1) {
+            ThreadFactory factory = new ThreadFactory() {
+                private int counter = 0;
+                @Override
+                public Thread newThread(final Runnable r) {
+                    String name = HStoreThreadManager.getThreadName(hstore_site,
+                                                                    HStoreConstants.THREAD_NAME_COORDINATOR,
+                                                                    Integer.toString(this.counter++));
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            hstore_site.getThreadManager().registerProcessingThread();
+                            r.run();
+                        }
+                    }, name);
+                }
+            };
+            this.eventLoop = new MultiNIOEventLoop(hstore_conf.site.network_eventloop_threads, factory);
+        } else {
+            this.eventLoop = new NIOEventLoop();
+        }
+        
         // This listener thread will process incoming messages
         this.listener = new ProtoServer(this.eventLoop);
+        if (hstore_conf.site.network_rpc_batching) {
+            this.listener.setWriteBatching(hstore_conf.site.network_rpc_batch_bytes);
+        }
         
         // Special dispatcher threads to handle incoming requests
         // These are used so that we can process messages in a different thread than the main HStoreCoordinator thread
@@ -563,6 +594,9 @@ public class HStoreCoordinator implements Shutdownable {
             assert channels.length == destinations.size();
             for (int i = 0; i < channels.length; i++) {
                 Pair<Integer, InetSocketAddress> p = destinations.get(i);
+                if (hstore_conf.site.network_rpc_batching) {
+                    channels[i].setWriteBatching(hstore_conf.site.network_rpc_batch_bytes);
+                }
                 this.channels[p.getFirst()] = HStoreService.newStub(channels[i]);
             } // FOR
             
@@ -1215,15 +1249,15 @@ public class HStoreCoordinator implements Shutdownable {
                     continue;
                 }
                 ByteString bs = null;
-                byte bytes[] = null;
                 try {
-                    bytes = ByteBuffer.wrap(FastSerializer.serialize(vt)).array();
-                    bs = ByteString.copyFrom(bytes); 
-                    if (debug.val)
+                    bs = VoltTableUtil.toByteString(vt);
+                    if (debug.val) {
+                        byte bytes[] = bs.toByteArray();
                         LOG.debug(String.format("%s - Outbound data for partition #%d " +
                         		  "[RowCount=%d / MD5=%s / Length=%d]",
                                   ts, catalog_part.getId(),
                                   vt.getRowCount(), StringUtil.md5sum(bytes), bytes.length));
+                    }
                 } catch (Exception ex) {
                     String msg = String.format("Unexpected error when serializing %s data for partition %d",
                                                ts, catalog_part.getId());
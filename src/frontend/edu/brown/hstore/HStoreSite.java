@@ -100,15 +100,20 @@ import edu.brown.hstore.callbacks.LocalFinishCallback;
 import edu.brown.hstore.callbacks.LocalInitQueueCallback;
 import edu.brown.hstore.callbacks.PartitionCountingCallback;
 import edu.brown.hstore.callbacks.RedirectCallback;
+import edu.brown.hstore.cmdlog.CommandLogReader;
+import edu.brown.hstore.cmdlog.CommandLogReplayer;
 import edu.brown.hstore.cmdlog.CommandLogWriter;
 import edu.brown.hstore.conf.HStoreConf;
 import edu.brown.hstore.estimators.EstimatorState;
 import edu.brown.hstore.estimators.TransactionEstimator;
+import edu.brown.hstore.estimators.markov.MarkovEstimator;
+import edu.brown.hstore.estimators.markov.MarkovModelLearner;
 import edu.brown.hstore.estimators.remote.RemoteEstimator;
 import edu.brown.hstore.estimators.remote.RemoteEstimatorState;
 import edu.brown.hstore.internal.SetDistributedTxnMessage;
 import edu.brown.hstore.stats.AntiCacheManagerProfilerStats;
 import edu.brown.hstore.stats.BatchPlannerProfilerStats;
+import edu.brown.hstore.stats.BufferPoolStats;
 import edu.brown.hstore.stats.MarkovEstimatorProfilerStats;
 import edu.brown.hstore.stats.PartitionExecutorProfilerStats;
 import edu.brown.hstore.stats.SiteProfilerStats;
@@ -323,6 +328,12 @@ public class HStoreSite implements VoltProcedureListener.Handler, Shutdownable,
     private List<TransactionPostProcessor> postProcessors = null;
     private BlockingQueue<Object[]> postProcessorQueue = null;
     
+    /**
+     * MarkovModelLearner Thread
+     * Updates the MarkovGraphs for the local MarkovEstimators in the background
+     */
+    private MarkovModelLearner markovLearner = null;
+    
     /**
      * Transaction Handle Cleaner
      */
@@ -637,7 +648,11 @@ public class HStoreSite implements VoltProcedureListener.Handler, Shutdownable,
         // NETWORK SETUP
         // -------------------------------
         
-        this.voltNetwork = new VoltNetwork(this);
+        if (hstore_conf.site.network_incoming_selectors > 1) {
+            this.voltNetwork = new VoltNetwork(this, hstore_conf.site.network_incoming_selectors);
+        } else {
+            this.voltNetwork = new VoltNetwork(this);
+        }
         this.clientInterface = new ClientInterface(this, this.catalog_site.getProc_port());
         
         // -------------------------------
@@ -737,6 +752,22 @@ public class HStoreSite implements VoltProcedureListener.Handler, Shutdownable,
                 t.start();    
             } // FOR
         }
+        // MarkovModelLearner
+        if (hstore_conf.site.markov_enable &&
+            hstore_conf.site.markov_learning_enable &&
+            hstore_conf.site.markov_learning_async) {
+            this.markovLearner = new MarkovModelLearner(this);
+            for (int partition : this.local_partitions.values()) {
+                TransactionEstimator t_estimator = this.getPartitionExecutor(partition).getTransactionEstimator();
+                if (t_estimator instanceof MarkovEstimator) {
+                    ((MarkovEstimator)t_estimator).setModelLearner(this.markovLearner);
+                }
+            } // FOR
+            t = new Thread(this.threadManager.getThreadGroup(ThreadGroupType.PROCESSING), this.markovLearner);
+            t.setDaemon(true);
+            t.setUncaughtExceptionHandler(this.exceptionHandler);
+            t.start();
+        }
         
         // Then we need to start all of the PartitionExecutor in threads
         if (debug.val)
@@ -900,6 +931,10 @@ public class HStoreSite implements VoltProcedureListener.Handler, Shutdownable,
         statsSource = new BatchPlannerProfilerStats(this, this.catalogContext);
         this.statsAgent.registerStatsSource(SysProcSelector.PLANNERPROFILER, 0, statsSource);
         
+        // BUFFER POOL
+        statsSource = new BufferPoolStats(this);
+        this.statsAgent.registerStatsSource(SysProcSelector.BUFFERPOOL, 0, statsSource);
+        
     }
     
     // -------------------------------
@@ -1613,7 +1648,18 @@ public class HStoreSite implements VoltProcedureListener.Handler, Shutdownable,
         LOG.warn("Logical : recovery at site with min id :" + this.site_id);
                 
         //XXX Load snapshot using @SnapshotRestore
-        //XXX Load command log and redo all entires
+        
+        // Load command log and redo all entries
+        if (hstore_conf.site.commandlog_replay_file != null) {
+            List<CommandLogReader> readers = new ArrayList<CommandLogReader>();
+            for (String file : hstore_conf.site.commandlog_replay_file.split(",")) {
+                String path = FileUtil.realpath(file.trim());
+                LOG.warn("Logical : replaying command log " + path + " at site :" + this.site_id);
+                readers.add(new CommandLogReader(path));
+            } // FOR
+            CommandLogReplayer replayer = new CommandLogReplayer(this, readers, hstore_conf.site.commandlog_replay_threads);
+            replayer.replay();
+        }
      
         LOG.warn("Logical : recovery completed on site with min id :" + this.site_id);
     }
@@ -1656,6 +1702,9 @@ public class HStoreSite implements VoltProcedureListener.Handler, Shutdownable,
                 tpp.prepareShutdown(false);
             } // FOR
         }
+        if (this.markovLearner != null) {
+            this.markovLearner.prepareShutdown(false);
+        }
         
         if (this.mr_helper != null) {
             this.mr_helper.prepareShutdown(error);
@@ -1766,6 +1815,9 @@ public class HStoreSite implements VoltProcedureListener.Handler, Shutdownable,
                 tpp.shutdown();
             } // FOR
         }
+        if (this.markovLearner != null) {
+            this.markovLearner.shutdown();
+        }
         
         // Tell anybody that wants to know that we're going down
         if (trace.val) LOG.trace("Notifying " + this.shutdown_observable.countObservers() + " observers that we're shutting down");
@@ -1815,7 +1867,13 @@ public class HStoreSite implements VoltProcedureListener.Handler, Shutdownable,
     
     protected void invocationQueue(ByteBuffer buffer, ClientInputHandler handler, Connection c) {
         int messageSize = buffer.capacity();
-        RpcCallback<ClientResponseImpl> callback = new ClientResponseCallback(this.clientInterface, c, messageSize);
+        RpcCallback<ClientResponseImpl> callback = null;
+        if (handler.getResponseBatcher() != null) {
+            callback = new ClientResponseCallback(this.clientInterface, handler.getResponseBatcher(), c, messageSize);
+        } else {
+            int compressionThreshold = (handler.hasCompression() ? hstore_conf.global.network_compression_threshold : -1);
+            callback = new ClientResponseCallback(this.clientInterface, c, messageSize, compressionThreshold);
+        }
         this.clientInterface.increaseBackpressure(messageSize);
         
         if (this.preProcessorQueue != null) {
@@ -2137,6 +2195,10 @@ public class HStoreSite implements VoltProcedureListener.Handler, Shutdownable,
                       ts.getBasePartition(), ts.getClientHandle()));
         
         if (ts.isPredictSinglePartition()) {
+            // Skip the lock queue if nobody else needs this partition
+            if (hstore_conf.site.queue_fastlane && this.txnQueueManager.fastLaneInsert(ts)) {
+                return;
+            }
             this.transactionInit(ts);
         }
         else {
@@ -112,6 +112,7 @@ public class HStoreThreadManager {
         HStoreConstants.THREAD_NAME_QUEUE_RESTART,
         HStoreConstants.THREAD_NAME_TXNCLEANER,
         HStoreConstants.THREAD_NAME_POSTPROCESSOR,
+        HStoreConstants.THREAD_NAME_MARKOVLEARNER,
     };
     
     // ----------------------------------------------------------------------------
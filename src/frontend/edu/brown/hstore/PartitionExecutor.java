@@ -58,6 +58,7 @@ import java.util.Map.Entry;
 import java.util.Queue;
 import java.util.TreeSet;
 import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
@@ -106,6 +107,7 @@ import org.voltdb.types.AntiCacheDBType;
 import org.voltdb.types.SpecExecSchedulerPolicyType;
 import org.voltdb.types.SpeculationConflictCheckerType;
 import org.voltdb.types.SpeculationType;
+import org.voltdb.types.WorkQueueWaitStrategyType;
 import org.voltdb.utils.DBBPool;
 import org.voltdb.utils.DBBPool.BBContainer;
 import org.voltdb.utils.Encoder;
@@ -162,6 +164,7 @@ import edu.brown.hstore.txns.RemoteTransaction;
 import edu.brown.hstore.util.ArrayCache.IntArrayCache;
 import edu.brown.hstore.util.ArrayCache.LongArrayCache;
 import edu.brown.hstore.util.ParameterSetArrayCache;
+import edu.brown.hstore.util.QueryCache;
 import edu.brown.hstore.util.TransactionCounter;
 import edu.brown.hstore.util.TransactionUndoTokenComparator;
 import edu.brown.hstore.util.TransactionWorkRequestBuilder;
@@ -303,6 +306,12 @@ public class PartitionExecutor implements Runnable, Configurable, Shutdownable {
     private PartitionLockQueue lockQueue;
     private DependencyTracker depTracker;
     
+    /**
+     * Cache of the results of read-only queries executed at this partition.
+     * This will be null if ${site.exec_query_cache} is disabled.
+     */
+    private QueryCache queryCache = null;
+    
     // ----------------------------------------------------------------------------
     // Work Queue
     // ----------------------------------------------------------------------------
@@ -312,9 +321,10 @@ public class PartitionExecutor implements Runnable, Configurable, Shutdownable {
      * The entries may be either InitiateTaskMessages (i.e., start a stored procedure) or
      * WorkFragment (i.e., execute some fragments on behalf of another transaction)
      * We will use this special wrapper around the PartitionExecutorQueue that can determine
-     * whether this partition is overloaded and therefore new requests should be throttled
+     * whether this partition is overloaded and therefore new requests should be throttled.
+     * If ${site.exec_work_queue_ring} is enabled, then this will be a PartitionMessageRingQueue.
      */
-    private final PartitionMessageQueue work_queue;
+    private final BlockingQueue<InternalMessage> work_queue;
     
     // ----------------------------------------------------------------------------
     // Internal Execution State
@@ -341,6 +351,14 @@ public class PartitionExecutor implements Runnable, Configurable, Shutdownable {
     private AbstractTransaction currentDtxn = null;
     private String lastDtxnDebug = null;
     
+    /**
+     * Whether this partition currently has a distributed txn. This is the same as
+     * checking whether currentDtxn is not null, except that it is safe to
+     * read from other threads. The TransactionQueueManager uses this to decide
+     * whether it can send single-partition txns directly to our work queue.
+     */
+    private volatile boolean hasCurrentDtxn = false;
+    
     /**
      * The current VoltProcedure handle that is executing at this partition
      * This will be set to null as soon as the VoltProcedure.run() method completes
@@ -535,6 +553,11 @@ public class PartitionExecutor implements Runnable, Configurable, Shutdownable {
     private final ParameterSet[] tmp_def_params = new ParameterSet[1];
     private LocalTransaction tmp_def_txn;
     
+    /**
+     * Reusable PartitionSet for computeDonePartitions()
+     */
+    private final PartitionSet tmp_estDonePartitions = new PartitionSet();
+    
     // ----------------------------------------------------------------------------
     // INTERNAL CLASSES
     // ----------------------------------------------------------------------------
@@ -755,7 +778,21 @@ public class PartitionExecutor implements Runnable, Configurable, Shutdownable {
                              final PartitionEstimator p_estimator,
                              final TransactionEstimator t_estimator) {
         this.hstore_conf = HStoreConf.singleton();
-        this.work_queue = new PartitionMessageQueue();
+        if (hstore_conf.site.exec_work_queue_ring) {
+            WorkQueueWaitStrategyType waitStrategy = WorkQueueWaitStrategyType.get(hstore_conf.site.exec_work_queue_wait);
+            if (waitStrategy == null) {
+                LOG.warn(String.format("Invalid %s '%s'. Using %s",
+                         WorkQueueWaitStrategyType.class.getSimpleName(),
+                         hstore_conf.site.exec_work_queue_wait, WorkQueueWaitStrategyType.PARK));
+                waitStrategy = WorkQueueWaitStrategyType.PARK;
+            }
+            this.work_queue = new PartitionMessageRingQueue(hstore_conf.site.exec_work_queue_ring_size, waitStrategy);
+        } else {
+            this.work_queue = new PartitionMessageQueue();
+        }
+        if (hstore_conf.site.exec_query_cache) {
+            this.queryCache = new QueryCache(hstore_conf.site.exec_query_cache_size, 1);
+        }
         this.backend_target = target;
         this.catalogContext = catalogContext;
         this.partition = catalogContext.getPartitionById(partitionId);
@@ -1361,11 +1398,18 @@ public class PartitionExecutor implements Runnable, Configurable, Shutdownable {
                 
                 // Ok now that that's out of the way, let's run this baby...
                 specTxn.setSpeculative(specType);
-                if (hstore_conf.site.exec_profiling) profiler.specexec_time.start();
+                long allocMarker = -1;
+                if (hstore_conf.site.exec_profiling) {
+                    profiler.specexec_time.start();
+                    allocMarker = PartitionExecutorProfiler.getThreadAllocatedBytes(this.self.getId());
+                }
                 try {
                     this.executeTransaction(specTxn);
                 } finally {
-                    if (hstore_conf.site.exec_profiling) profiler.specexec_time.stopIfStarted();
+                    if (hstore_conf.site.exec_profiling) {
+                        profiler.specexec_time.stopIfStarted();
+                        profiler.addAllocatedBytes(this.self.getId(), allocMarker);
+                    }
                 }
             }
 //            else if (trace.val) {
@@ -1483,11 +1527,18 @@ public class PartitionExecutor implements Runnable, Configurable, Shutdownable {
         // -------------------------------
         if (work instanceof StartTxnMessage) {
             if (hstore_conf.site.specexec_enable && ts.isPredictSinglePartition()) this.specExecScheduler.reset();
-            if (hstore_conf.site.exec_profiling) profiler.txn_time.start();
+            long allocMarker = -1;
+            if (hstore_conf.site.exec_profiling) {
+                profiler.txn_time.start();
+                allocMarker = PartitionExecutorProfiler.getThreadAllocatedBytes(this.self.getId());
+            }
             try {
                 this.executeTransaction((LocalTransaction)ts);
             } finally {
-                if (hstore_conf.site.exec_profiling) profiler.txn_time.stopIfStarted();
+                if (hstore_conf.site.exec_profiling) {
+                    profiler.txn_time.stopIfStarted();
+                    profiler.addAllocatedBytes(this.self.getId(), allocMarker);
+                }
             }
         }
         // -------------------------------
@@ -1592,6 +1643,13 @@ public class PartitionExecutor implements Runnable, Configurable, Shutdownable {
     public final Thread getExecutionThread() {
         return (this.self);
     }
+    /**
+     * Returns true if this partition has a distributed txn that is currently
+     * holding its lock. This is safe to call from any thread.
+     */
+    public final boolean hasCurrentDtxn() {
+        return (this.hasCurrentDtxn);
+    }
     public final HsqlBackend getHsqlBackend() {
         return (this.hsql);
     }
@@ -2057,6 +2115,7 @@ public class PartitionExecutor implements Runnable, Configurable, Shutdownable {
         // Check whether we should check for speculative txns to execute whenever this
         // dtxn is idle at this partition
         this.currentDtxn = ts;
+        this.hasCurrentDtxn = true;
         if (hstore_conf.site.specexec_enable && ts.isSysProc() == false && this.specExecScheduler.isDisabled() == false) {
             this.specExecIgnoreCurrent = this.specExecChecker.shouldIgnoreTransaction(ts);
         } else {
@@ -2082,6 +2141,7 @@ public class PartitionExecutor implements Runnable, Configurable, Shutdownable {
             LOG.debug(String.format("Resetting current DTXN for partition %d to null [previous=%s]",
                       this.partitionId, this.lastDtxnDebug));
         this.currentDtxn = null;
+        this.hasCurrentDtxn = false;
     }
 
     /**
@@ -2195,10 +2255,11 @@ public class PartitionExecutor implements Runnable, Configurable, Shutdownable {
     public void queueSetPartitionLock(AbstractTransaction ts) {
         assert(ts.isInitialized()) : "Unexpected uninitialized transaction: " + ts;
         SetDistributedTxnMessage work = ts.getSetDistributedTxnMessage();
-        boolean success = this.work_queue.offer(work);
-        assert(success) :
-            String.format("Failed to queue %s at partition %d for %s",
-                          work, this.partitionId, ts);
+        if (this.work_queue.offer(work) == false) {
+            String msg = String.format("Failed to queue %s at partition %d for %s",
+                                       work, this.partitionId, ts);
+            throw new ServerFaultException(msg, ts.getTransactionId());
+        }
         if (debug.val)
             LOG.debug(String.format("%s - Added %s to front of partition %d " +
                       "work queue [size=%d]",
@@ -2217,10 +2278,11 @@ public class PartitionExecutor implements Runnable, Configurable, Shutdownable {
     public void queueWork(AbstractTransaction ts, WorkFragment fragment) {
         assert(ts.isInitialized()) : "Unexpected uninitialized transaction: " + ts;
         WorkFragmentMessage work = ts.getWorkFragmentMessage(fragment);
-        boolean success = this.work_queue.offer(work); // , true);
-        assert(success) :
-            String.format("Failed to queue %s at partition %d for %s",
-                          work, this.partitionId, ts);
+        if (this.work_queue.offer(work) == false) {
+            String msg = String.format("Failed to queue %s at partition %d for %s",
+                                       work, this.partitionId, ts);
+            throw new ServerFaultException(msg, ts.getTransactionId());
+        }
         ts.markQueuedWork(this.partitionId);
         if (debug.val)
             LOG.debug(String.format("%s - Added %s to partition %d " +
@@ -2252,10 +2314,11 @@ public class PartitionExecutor implements Runnable, Configurable, Shutdownable {
         assert(callback.isInitialized()) : "Uninitialized callback: " + ts;
         
         PrepareTxnMessage work = new PrepareTxnMessage(ts, callback);
-        boolean success = this.work_queue.offer(work);
-        assert(success) :
-            String.format("Failed to queue %s at partition %d for %s",
-                          work, this.partitionId, ts);
+        if (this.work_queue.offer(work) == false) {
+            String msg = String.format("Failed to queue %s at partition %d for %s",
+                                       work, this.partitionId, ts);
+            throw new ServerFaultException(msg, ts.getTransactionId());
+        }
         if (debug.val)
             LOG.debug(String.format("%s - Added %s to partition %d " +
                       "work queue [size=%d]",
@@ -2272,10 +2335,11 @@ public class PartitionExecutor implements Runnable, Configurable, Shutdownable {
     public void queueFinish(AbstractTransaction ts, Status status) {
         assert(ts.isInitialized()) : "Unexpected uninitialized transaction: " + ts;
         FinishTxnMessage work = ts.getFinishTxnMessage(status);
-        boolean success = this.work_queue.offer(work); // , true);
-        assert(success) :
-            String.format("Failed to queue %s at partition %d for %s",
-                          work, this.partitionId, ts);
+        if (this.work_queue.offer(work) == false) {
+            String msg = String.format("Failed to queue %s at partition %d for %s",
+                                       work, this.partitionId, ts);
+            throw new ServerFaultException(msg, ts.getTransactionId());
+        }
         if (debug.val)
             LOG.debug(String.format("%s - Added %s to partition %d " +
                       "work queue [size=%d]",
@@ -2315,8 +2379,15 @@ public class PartitionExecutor implements Runnable, Configurable, Shutdownable {
                       "[currentDtxn=%s, queueSize=%d, mode=%s]",
                       work.getClass().getSimpleName(), ts.getProcedure().getName(), this.partitionId,
                       this.currentDtxn, this.work_queue.size(), this.currentExecMode));
-        boolean success = this.work_queue.offer(work); // , force);
-        if (debug.val && force && success == false) {
+        boolean success;
+        if (force && this.work_queue instanceof PartitionMessageRingQueue) {
+            // The ring queue is bounded, but the txns that we are not allowed to
+            // throttle have to get in just like they would with the PartitionMessageQueue
+            success = ((PartitionMessageRingQueue)this.work_queue).offer(work, true);
+        } else {
+            success = this.work_queue.offer(work);
+        }
+        if (force && success == false) {
             String msg = String.format("Failed to add %s even though force flag was true!", ts);
             throw new ServerFaultException(msg, ts.getTransactionId());
         }
@@ -2342,11 +2413,26 @@ public class PartitionExecutor implements Runnable, Configurable, Shutdownable {
             LOG.debug(String.format("Processing WorkResult for %s on partition %d [srcPartition=%d, deps=%d]",
                       ts, this.partitionId, result.getPartitionId(), result.getDepDataCount()));
         
+        // If this partition got the last WorkFragment for this txn, then the WorkResult
+        // is also its 2PC:PREPARE vote. A non-OK status without an error means that the 
+        // partition could not prepare, so we'll leave it for the regular prepare round.
+        boolean prepareVote = false;
+        if (hstore_conf.site.exec_early_prepare_vote && result.hasError() == false &&
+                ts.getLastFragmentPartitions().contains(result.getPartitionId())) {
+            prepareVote = true;
+            if (result.getStatus() == Status.OK) {
+                if (debug.val)
+                    LOG.debug(String.format("%s - Got early 2PC:PREPARE vote from partition %d",
+                              ts, result.getPartitionId()));
+                ts.getPrepareCallback().run(result.getPartitionId());
+            }
+        }
+        
         // If the Fragment failed to execute, then we need to abort the Transaction
         // Note that we have to do this before we add the responses to the TransactionState so that
         // we can be sure that the VoltProcedure knows about the problem when it wakes the stored 
         // procedure back up
-        if (result.getStatus() != Status.OK) {
+        if (result.getStatus() != Status.OK && prepareVote == false) {
             if (trace.val)
                 LOG.trace(String.format("Received non-success response %s from partition %d for %s",
                           result.getStatus(), result.getPartitionId(), ts));
@@ -2503,7 +2589,12 @@ public class PartitionExecutor implements Runnable, Configurable, Shutdownable {
                 // HACK: If we are currently under DISABLED mode when we get this, then we just 
                 // need to block the transaction and return back to the queue. This is easier than 
                 // having to set all sorts of crazy locks
-                if (this.currentExecMode == ExecutionMode.DISABLED || hstore_conf.site.specexec_enable == false) {
+                // We also have to block it if it came from the work queue rather than the 
+                // SpecExecScheduler (e.g., from the single-partition fast lane), since nobody
+                // checked whether it was safe to speculatively execute it.
+                if (this.currentExecMode == ExecutionMode.DISABLED ||
+                        hstore_conf.site.specexec_enable == false ||
+                        ts.isSpeculative() == false) {
                     if (debug.val)
                         LOG.debug(String.format("%s - Blocking single-partition %s until dtxn finishes [mode=%s]",
                                   this.currentDtxn, ts, this.currentExecMode));
@@ -2954,6 +3045,16 @@ public class PartitionExecutor implements Runnable, Configurable, Shutdownable {
             }
             WorkResult response = this.buildWorkResult((RemoteTransaction)ts, result, status, error);
             assert(response != null);
+            
+            // If this is the last WorkFragment that we will get for this txn, then we
+            // will prepare it right now so that our WorkResult also serves as our
+            // 2PC:PREPARE vote. If we can't prepare, then we will send back the WorkResult
+            // with the prepare status (but no error) and let the base partition's regular
+            // TransactionPrepareRequest take care of it.
+            if (hstore_conf.site.exec_early_prepare_vote && status == Status.OK && fragment.getLastFragment()) {
+                callback.run(this.prepareWorkResult((RemoteTransaction)ts, response));
+                return;
+            }
             callback.run(response);
         }
         
@@ -2963,21 +3064,50 @@ public class PartitionExecutor implements Runnable, Configurable, Shutdownable {
             if (debug.val)
                 LOG.debug(String.format("%s - Invoking early 2PC:PREPARE at partition %d",
                           ts, this.partitionId));
-            PartitionCountingCallback<? extends AbstractTransaction> callback = ts.getPrepareCallback();
-            
-            // If we are at a remote site, then we have to be careful here.
-            // We don't actually have the real callback that the RemotePrepareCallback needs.
-            // So that we have to use a null callback that doesn't actually do anything. The 
-            // RemotePrepareCallback will make sure that we mark the partition as prepared.
-            if (ts instanceof RemoteTransaction) {
-                PartitionSet partitions = catalogContext.getPartitionSetSingleton(this.partitionId);
-                RpcCallback<TransactionPrepareResponse> origCallback = NullCallback.getInstance(); 
-                ((RemotePrepareCallback)callback).init((RemoteTransaction)ts, partitions, origCallback);
-            }
-            this.queuePrepare(ts, callback);
+            this.queuePrepare(ts, this.initEarlyPrepareCallback(ts));
         }
     }
     
+    /**
+     * Prepare the given txn at this partition so that the WorkResult for its last
+     * WorkFragment also serves as our 2PC:PREPARE vote. If the txn can't be prepared,
+     * then the returned WorkResult will have the prepare status but no error.
+     * @param ts
+     * @param response
+     * @return
+     */
+    private WorkResult prepareWorkResult(RemoteTransaction ts, WorkResult response) {
+        if (debug.val)
+            LOG.debug(String.format("%s - Invoking early 2PC:PREPARE vote at partition %d",
+                      ts, this.partitionId));
+        Status status = this.prepareTransaction(ts, this.initEarlyPrepareCallback(ts));
+        if (status != Status.OK) {
+            response = response.toBuilder().setStatus(status).build();
+        }
+        return (response);
+    }
+    
+    /**
+     * Get the prepare callback to use for an early 2PC:PREPARE of the given txn
+     * at this partition.
+     * @param ts
+     * @return
+     */
+    private PartitionCountingCallback<? extends AbstractTransaction> initEarlyPrepareCallback(AbstractTransaction ts) {
+        PartitionCountingCallback<? extends AbstractTransaction> callback = ts.getPrepareCallback();
+        
+        // If we are at a remote site, then we have to be careful here.
+        // We don't actually have the real callback that the RemotePrepareCallback needs.
+        // So that we have to use a null callback that doesn't actually do anything. The 
+        // RemotePrepareCallback will make sure that we mark the partition as prepared.
+        if (ts instanceof RemoteTransaction) {
+            PartitionSet partitions = catalogContext.getPartitionSetSingleton(this.partitionId);
+            RpcCallback<TransactionPrepareResponse> origCallback = NullCallback.getInstance(); 
+            ((RemotePrepareCallback)callback).init((RemoteTransaction)ts, partitions, origCallback);
+        }
+        return (callback);
+    }
+    
     /**
      * Executes a WorkFragment on behalf of some remote site and returns the
      * resulting DependencySet
@@ -3148,6 +3278,8 @@ public class PartitionExecutor implements Runnable, Configurable, Shutdownable {
         }
         
         ts.markExecNotReadOnly(this.partitionId);
+        // We don't know what the sysproc is going to do, so we can't trust any cached results
+        if (this.queryCache != null) this.queryCache.clearGlobalCache();
         DependencySet result = null;
         try {
             result = volt_proc.executePlanFragment(ts.getTransactionId(),
@@ -3243,9 +3375,43 @@ public class PartitionExecutor implements Runnable, Configurable, Shutdownable {
                     if (tableIds != null) ts.markTableIdsWritten(this.partitionId, tableIds);
                 }
             }
+            if (fragReadOnly == false && this.queryCache != null) {
+                this.queryCache.markTablesWritten(catalogContext.getWriteTableIds(Long.valueOf(fragmentIds[i])));
+            }
             readonly = readonly && fragReadOnly;
         }
         
+        // Check whether we can use the results from our QueryCache instead of going down
+        // into the EE. We only do this for non-speculative single-partition txns, since
+        // they are the only ones that don't need read/write sets down in the EE.
+        boolean useQueryCache = (this.queryCache != null && readonly &&
+                                 speculative == false && singlePartition &&
+                                 (input_deps == null || input_deps.isEmpty()));
+        if (useQueryCache) {
+            for (int i = 0; i < batchSize; i++) {
+                if (input_depIds[i] != HStoreConstants.NULL_DEPENDENCY_ID) {
+                    useQueryCache = false;
+                    break;
+                }
+            } // FOR
+        }
+        if (useQueryCache) {
+            VoltTable cachedResults[] = new VoltTable[batchSize];
+            for (int i = 0; i < batchSize; i++) {
+                cachedResults[i] = this.queryCache.getGlobalQueryResult(fragmentIds[i], parameterSets[i]);
+                if (cachedResults[i] == null) {
+                    cachedResults = null;
+                    break;
+                }
+            } // FOR
+            if (cachedResults != null) {
+                if (debug.val)
+                    LOG.debug(String.format("%s - Using cached results for fragments %s at partition %d",
+                              ts, Arrays.toString(fragmentIds), this.partitionId));
+                return (new DependencySet(Arrays.copyOf(output_depIds, batchSize), cachedResults));
+            }
+        }
+        
         // Enable read/write set tracking
         if (hstore_conf.site.exec_readwrite_tracking && ts.hasExecutedWork(this.partitionId) == false) {
             if (trace.val)
@@ -3323,6 +3489,16 @@ public class PartitionExecutor implements Runnable, Configurable, Shutdownable {
             }
         }
         
+        // Store the results in our QueryCache so that the next txn can use them
+        if (useQueryCache && result != null && result.dependencies.length == batchSize) {
+            for (int i = 0; i < batchSize; i++) {
+                this.queryCache.addGlobalQueryResult(fragmentIds[i],
+                                                     parameterSets[i],
+                                                     catalogContext.getReadTableIds(Long.valueOf(fragmentIds[i])),
+                                                     result.dependencies[i]);
+            } // FOR
+        }
+        
         // *********************************** DEBUG ***********************************
         if (debug.val) {
             if (result != null) {
@@ -3360,6 +3536,7 @@ public class PartitionExecutor implements Runnable, Configurable, Shutdownable {
             LOG.debug(String.format("Loading %d row(s) into %s [txnId=%d]",
                       data.getRowCount(), table.getName(), ts.getTransactionId()));
         ts.markExecutedWork(this.partitionId);
+        if (this.queryCache != null) this.queryCache.markTablesWritten(new int[]{ table.getRelativeIndex() });
         this.ee.loadTable(table.getRelativeIndex(), data,
                           ts.getTransactionId(),
                           this.lastCommittedTxnId.longValue(),
@@ -3380,6 +3557,7 @@ public class PartitionExecutor implements Runnable, Configurable, Shutdownable {
         if (debug.val)
             LOG.debug(String.format("Loading %d row(s) into %s [txnId=%d]",
                       data.getRowCount(), table.getName(), txnId));
+        if (this.queryCache != null) this.queryCache.markTablesWritten(new int[]{ table.getRelativeIndex() });
         this.ee.loadTable(table.getRelativeIndex(),
                           data,
                           txnId.longValue(),
@@ -3610,10 +3788,10 @@ public class PartitionExecutor implements Runnable, Configurable, Shutdownable {
         if (status == Status.OK) {
             for (int i = 0, cnt = result.size(); i < cnt; i++) {
                 builder.addDepId(result.depIds[i]);
-                this.fs.clear();
                 try {
-                    result.dependencies[i].writeExternal(this.fs);
-                    ByteString bs = ByteString.copyFrom(this.fs.getBBContainer().b);
+                    // Copy the table's buffer straight into the ByteString
+                    // rather than serializing it into our FastSerializer first
+                    ByteString bs = VoltTableUtil.toByteString(result.dependencies[i]);
                     builder.addDepData(bs);
                 } catch (Exception ex) {
                     throw new ServerFaultException(String.format("Failed to serialize output dependency %d for %s", result.depIds[i], ts), ex);
@@ -3622,7 +3800,6 @@ public class PartitionExecutor implements Runnable, Configurable, Shutdownable {
                     LOG.trace(String.format("%s - Serialized Output Dependency %d\n%s",
                               ts, result.depIds[i], result.dependencies[i]));  
             } // FOR
-            this.fs.getBBContainer().discard();
         }
         
         return (builder.build());
@@ -3821,7 +3998,9 @@ public class PartitionExecutor implements Runnable, Configurable, Shutdownable {
         // If the finalTask flag is set to true, then the new done partitions
         // is every partition that this txn has locked
         if (finalTask) {
-            estDonePartitions = new PartitionSet(touchedPartitions);
+            estDonePartitions = this.tmp_estDonePartitions;
+            estDonePartitions.clear();
+            estDonePartitions.addAll(touchedPartitions);
         }
         // Otherwise, we'll rely on the transaction's current estimate to figure it out.
         else {
@@ -4180,6 +4359,9 @@ public class PartitionExecutor implements Runnable, Configurable, Shutdownable {
                             LOG.debug(String.format("%s - Setting last fragment flag in %s for partition %d",
                                       ts, WorkFragment.class.getSimpleName(), partition));
                         fragmentBuilder.setLastFragment(true);
+                        if (hstore_conf.site.exec_early_prepare_vote && is_localSite == false) {
+                            ts.getLastFragmentPartitions().add(partition);
+                        }
                     }
                     
                     if (first == false || this.depTracker.addWorkFragment(ts, fragmentBuilder, batchParams)) {
@@ -4591,10 +4773,18 @@ public class PartitionExecutor implements Runnable, Configurable, Shutdownable {
         assert(ts.isMarkedFinished(this.partitionId) == false) :
             String.format("Trying to prepare %s again after it was already finished at partition %d", ts, this.partitionId);
         
-        Status status = Status.OK; 
+        Status status = ts.getPrepareFailedStatus(this.partitionId);
         
+        // If we already failed to prepare this txn at this partition (e.g., in an
+        // early 2PC:PREPARE vote), then we'll just send back the same status
+        if (status != null) {
+            if (debug.val)
+                LOG.debug(String.format("%s - Already failed 2PC:PREPARE at partition %d [%s]",
+                          ts, this.partitionId, status));
+        }
         // Skip if we've already invoked prepared for this txn at this partition
-        if (ts.isMarkedPrepared(this.partitionId) == false) {
+        else if (ts.isMarkedPrepared(this.partitionId) == false) {
+            status = Status.OK;
             if (debug.val)
                 LOG.debug(String.format("%s - Preparing to commit txn at partition %d [specBlocked=%d]",
                           ts, this.partitionId, this.specExecBlocked.size()));
@@ -4645,8 +4835,10 @@ public class PartitionExecutor implements Runnable, Configurable, Shutdownable {
         }
         // It's ok if they try to prepare the txn twice. That might just mean that they never
         // got the acknowledgement back in time if they tried to send an early commit message.
-        else if (debug.val) {
-            LOG.debug(String.format("%s - Already marked 2PC:PREPARE at partition %d", ts, this.partitionId));
+        else {
+            if (debug.val)
+                LOG.debug(String.format("%s - Already marked 2PC:PREPARE at partition %d", ts, this.partitionId));
+            status = Status.OK;
         }
 
         // IMPORTANT
@@ -4667,6 +4859,7 @@ public class PartitionExecutor implements Runnable, Configurable, Shutdownable {
             if (debug.val)
                 LOG.debug(String.format("%s - Aborting txn from partition %d [%s]",
                           ts, this.partitionId, status));
+            ts.markPrepareFailed(this.partitionId, status);
             callback.abort(this.partitionId, status);
         }
         
@@ -4811,6 +5004,8 @@ public class PartitionExecutor implements Runnable, Configurable, Shutdownable {
                                   this.lastCommittedTxnId, this.lastCommittedUndoToken, this.currentDtxn,
                                   (ts instanceof LocalTransaction ? " - " + ((LocalTransaction)ts).getSpeculationType() : ""));
                 this.ee.undoUndoToken(undoToken);
+                // The rollback could have changed any table that the txn wrote to
+                if (this.queryCache != null) this.queryCache.clearGlobalCache();
             }
             if (needs_profiling) ((LocalTransaction)ts).profiler.stopPostEE();
         }
@@ -4941,6 +5136,9 @@ public class PartitionExecutor implements Runnable, Configurable, Shutdownable {
                         
                     } // FOR
                     
+                    this.specExecScheduler.noteSpeculativeResults(toCommit.size(),
+                                                                  toAbortBefore.size() + toAbortAfter.size());
+                    
                     // (1) Process all of the aborting txns that need to come *before* 
                     //     we abort the dtxn
                     if (toAbortBefore.isEmpty() == false)
@@ -5000,6 +5198,7 @@ public class PartitionExecutor implements Runnable, Configurable, Shutdownable {
                     // Now make sure that all of the speculative txns are processed without 
                     // committing (since we just committed any change that they could have made
                     // up above).
+                    this.specExecScheduler.noteSpeculativeResults(this.specExecBlocked.size(), 0);
                     LocalTransaction spec_ts = null;
                     while ((spec_ts = this.specExecBlocked.pollFirst()) != null) {
                         ClientResponseImpl spec_cr = spec_ts.getClientResponse();
@@ -5168,7 +5367,10 @@ public class PartitionExecutor implements Runnable, Configurable, Shutdownable {
     }
     
     private void blockTransaction(LocalTransaction ts) {
-        this.blockTransaction(new StartTxnMessage(ts));
+        // Reuse the txn's cached StartTxnMessage instead of allocating a new one.
+        // This is safe because we only get here after the txn's original
+        // StartTxnMessage was already removed from the work queue
+        this.blockTransaction(ts.getStartTxnMessage());
     }
 
     /**
@@ -5376,6 +5578,24 @@ public class PartitionExecutor implements Runnable, Configurable, Shutdownable {
                      partitionId));
             setSpecExecChecker(checker);
         }
+        /**
+         * Add a txn to the list of speculative txns that are waiting for the
+         * current dtxn to finish. This should only be used for testing
+         * @param ts
+         */
+        protected void addBlockedSpecExecTxn(LocalTransaction ts) {
+            PartitionExecutor.this.specExecBlocked.add(ts);
+        }
+        protected void processWorkResult(LocalTransaction ts, WorkResult result) {
+            PartitionExecutor.this.processWorkResult(ts, result);
+        }
+        protected WorkResult prepareWorkResult(RemoteTransaction ts, WorkResult response) {
+            return (PartitionExecutor.this.prepareWorkResult(ts, response));
+        }
+        protected Status prepareTransaction(AbstractTransaction ts,
+                                            PartitionCountingCallback<? extends AbstractTransaction> callback) {
+            return (PartitionExecutor.this.prepareTransaction(ts, callback));
+        }
     }
     
     private Debug cachedDebugContext;
@@ -4,7 +4,9 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.log4j.Logger;
@@ -12,6 +14,7 @@ import org.voltdb.TransactionIdManager;
 
 import edu.brown.hstore.conf.HStoreConf;
 import edu.brown.hstore.txns.AbstractTransaction;
+import edu.brown.hstore.util.SkipListQueue;
 import edu.brown.hstore.util.ThrottlingQueue;
 import edu.brown.interfaces.DebugContext;
 import edu.brown.logging.LoggerUtil;
@@ -31,6 +34,11 @@ import edu.brown.utils.StringUtil;
  *
  * <p>This class manages all that state.</p>
  * 
+ * <p>If the queue is created in lock-free mode (see ${site.queue_lockfree}), then
+ * the txns are stored in a SkipListQueue and the threads that insert or remove
+ * txns never acquire a lock. They only update the last safe txn id with a CAS
+ * and then mark the queue state as dirty. The queue state is then recomputed
+ * lazily by the single thread that polls the queue (i.e., the PartitionExecutor).</p>
  */
 public class PartitionLockQueue extends ThrottlingQueue<AbstractTransaction> {
     protected static final Logger LOG = Logger.getLogger(PartitionLockQueue.class);
@@ -64,26 +72,49 @@ public class PartitionLockQueue extends ThrottlingQueue<AbstractTransaction> {
     private final int partitionId;
     private int maxWaitTime;
     
+    /**
+     * If this flag is true, then we will never acquire the lock
+     * when adding or removing txns from the queue.
+     */
+    private final boolean lockFree;
+    
     private final ReentrantLock lock = new ReentrantLock(true);
     private final Condition isReady = lock.newCondition();
     
+    /**
+     * Lock-free Mode: Set to true whenever another thread modifies the
+     * queue and the polling thread needs to recompute the queue state.
+     */
+    private volatile boolean dirty = false;
+    
+    /**
+     * Lock-free Mode: Set to true whenever another thread removes
+     * the txn at the head of the queue.
+     */
+    private volatile boolean dirtyHead = false;
+    
+    /**
+     * Lock-free Mode: The thread that is blocked in take().
+     */
+    private volatile Thread waiter = null;
+    
     /**
      * This is the timestamp (in milliseconds) when we can unblock
      * the next transaction in the queue.
      * <B>Note:</B> Do not manipulate this outside of a synchronized block.
      */
-    private long blockTimestamp = NULL_BLOCK_TIMESTAMP;
+    private volatile long blockTimestamp = NULL_BLOCK_TIMESTAMP;
 
     /**
      * The current state of the queue
      * <B>Note:</B> Do not manipulate this outside of a synchronized block.
      */
-    private QueueState state = QueueState.BLOCKED_EMPTY;
+    private volatile QueueState state = QueueState.BLOCKED_EMPTY;
     
     private long txnsPopped = 0;
     private Long lastSeenTxnId = -1l;
-    private Long lastSafeTxnId = -1l;
-    private Long lastTxnPopped = -1l;
+    private final AtomicLong lastSafeTxnId = new AtomicLong(-1l);
+    private volatile Long lastTxnPopped = -1l;
     
     private final PartitionLockQueueProfiler profiler;
     
@@ -100,10 +131,26 @@ public class PartitionLockQueue extends ThrottlingQueue<AbstractTransaction> {
      * @param hstore_site
      */
     public PartitionLockQueue(int partitionId, int maxWaitTime, int throttle_threshold, double throttle_release) {
-        super(new PriorityBlockingQueue<AbstractTransaction>(), throttle_threshold, throttle_release);
+        this(partitionId, maxWaitTime, throttle_threshold, throttle_release, false);
+    }
+    
+    /**
+     * Constructor
+     * @param partitionId
+     * @param maxWaitTime
+     * @param throttle_threshold
+     * @param throttle_release
+     * @param lockFree If true, then the queue will be backed by a SkipListQueue and
+     *                 only the thread that polls the queue will update its state.
+     */
+    public PartitionLockQueue(int partitionId, int maxWaitTime, int throttle_threshold, double throttle_release, boolean lockFree) {
+        super((lockFree ? new SkipListQueue<AbstractTransaction>() :
+                          new PriorityBlockingQueue<AbstractTransaction>()),
+              throttle_threshold, throttle_release);
         
         this.partitionId = partitionId;
         this.maxWaitTime = maxWaitTime;
+        this.lockFree = lockFree;
         
         if (HStoreConf.singleton().site.queue_profiling) {
             this.profiler = new PartitionLockQueueProfiler();
@@ -133,6 +180,14 @@ public class PartitionLockQueue extends ThrottlingQueue<AbstractTransaction> {
         return (this.lastTxnPopped);
     }
     
+    /**
+     * Returns true if this queue does not acquire a lock when
+     * txns are added or removed.
+     */
+    public boolean isLockFree() {
+        return (this.lockFree);
+    }
+    
     // ----------------------------------------------------------------------------
     // POLL/TAKE METHODS
     // ----------------------------------------------------------------------------
@@ -144,6 +199,7 @@ public class PartitionLockQueue extends ThrottlingQueue<AbstractTransaction> {
      */
     @Override
     public AbstractTransaction poll() {
+        if (this.lockFree) return (this.pollLockFree());
         AbstractTransaction retval = null;
         
         if (trace.val)
@@ -187,6 +243,7 @@ public class PartitionLockQueue extends ThrottlingQueue<AbstractTransaction> {
      * @throws InterruptedException
      */
     public AbstractTransaction take() throws InterruptedException {
+        if (this.lockFree) return (this.takeLockFree());
         AbstractTransaction retval = null;
         
         // Ok now here is the tricky part. We don't have a txn that is 
@@ -308,7 +365,9 @@ public class PartitionLockQueue extends ThrottlingQueue<AbstractTransaction> {
         if (this.state == QueueState.UNBLOCKED) {
             // assert(checkQueueState(false) == QueueState.UNBLOCKED);
             retval = super.peek();
-            assert(retval != null);
+            // In lock-free mode somebody could have removed the txn
+            // out from under us, so we can't be sure that it's not null
+            assert(retval != null || this.lockFree);
         }
         if (debug.val)
             LOG.debug(String.format("Partition %d :: peek() -> %s", this.partitionId, retval));
@@ -333,7 +392,10 @@ public class PartitionLockQueue extends ThrottlingQueue<AbstractTransaction> {
         if (debug.val)
             LOG.debug(String.format("Partition %d :: offer(%s) -> %s", this.partitionId, ts, retval));
 
-        if (retval) {
+        if (retval && this.lockFree) {
+            this.markDirty(false);
+        }
+        else if (retval) {
             if (trace.val)
                 LOG.trace(String.format("Partition %d :: Attempting to acquire lock", this.partitionId));
             this.lock.lock();
@@ -363,6 +425,15 @@ public class PartitionLockQueue extends ThrottlingQueue<AbstractTransaction> {
         AbstractTransaction txn = (AbstractTransaction)obj;
         boolean retval;
         
+        if (this.lockFree) {
+            boolean reset = txn.equals(super.peek());
+            retval = super.remove(txn);
+            if (debug.val)
+                LOG.debug(String.format("Partition %d :: remove(%s) -> %s", this.partitionId, txn, retval));
+            if (retval) this.markDirty(reset);
+            return (retval);
+        }
+        
         if (trace.val)
             LOG.trace(String.format("Partition %d :: Attempting to acquire lock", this.partitionId));
         this.lock.lock();
@@ -399,6 +470,7 @@ public class PartitionLockQueue extends ThrottlingQueue<AbstractTransaction> {
                       this.partitionId, txnId));
 
         this.lastSeenTxnId = txnId;
+        if (this.lockFree) return (this.noteTransactionRecievedLockFree(txnId));
         if (trace.val) {
             LOG.trace(String.format("Partition %d :: SET lastSeenTxnId = %d",
                       this.partitionId, this.lastSeenTxnId));
@@ -415,17 +487,17 @@ public class PartitionLockQueue extends ThrottlingQueue<AbstractTransaction> {
             
             // We always need to check whether this new txnId is less than our next safe txnID
             // If it is, then we know that we need to replace it.
-            if (txnId.compareTo(this.lastSafeTxnId) < 0) {
+            if (txnId.longValue() < this.lastSafeTxnId.get()) {
                 // 2013-01-15
                 // Instead of calling checkQueueState() here, we'll 
                 // just change the state real quickly. This should be ok because
                 // then we'll immediately insert this new txn into the queue
                 // and then update the queue state then.
                 this.state = QueueState.BLOCKED_ORDERING;
-                this.lastSafeTxnId = txnId;
+                this.lastSafeTxnId.set(txnId.longValue());
                 if (trace.val)
                         LOG.trace(String.format("Partition %d :: SET lastSafeTxnId = %d",
-                                  this.partitionId, this.lastSafeTxnId));
+                                  this.partitionId, this.lastSafeTxnId.get()));
 
                 // Since we know that we just replaced the last safeTxnId, we 
                 // need to check our queue state to update ourselves
@@ -436,7 +508,179 @@ public class PartitionLockQueue extends ThrottlingQueue<AbstractTransaction> {
                 LOG.trace(String.format("Partition %d :: Releasing lock", this.partitionId));
             this.lock.unlock();
         } // SYNCH
-        return (this.lastSafeTxnId);
+        return (this.lastSafeTxnId.get());
+    }
+
+    /**
+     * Mark the given txn as released from this queue without it ever being added to it.
+     * This is only allowed if the queue is empty and no txn with a greater id has
+     * already been released. Otherwise the txn has to wait in the queue like everyone else.
+     * Once this returns true, any txn with a smaller id that is noted afterwards
+     * will get back this txn id from noteTransactionRecievedAndReturnLastSafeTxnId()
+     * and will be rejected.
+     * <B>Note:</B> This is not supported if the queue is lock-free.
+     * @param txnId
+     * @return
+     */
+    public boolean noteTransactionReleased(Long txnId) {
+        assert(txnId != null);
+        if (this.lockFree) return (false);
+
+        this.lock.lock();
+        try {
+            if (super.isEmpty() == false || this.lastTxnPopped.compareTo(txnId) > 0) {
+                return (false);
+            }
+            if (debug.val)
+                LOG.debug(String.format("Partition %d :: Releasing txn #%d without queuing it",
+                          this.partitionId, txnId));
+            this.lastSeenTxnId = txnId;
+            this.lastTxnPopped = txnId;
+            this.txnsPopped++;
+        } finally {
+            this.lock.unlock();
+        } // SYNCH
+        return (true);
+    }
+
+    // ----------------------------------------------------------------------------
+    // LOCK-FREE METHODS
+    // ----------------------------------------------------------------------------
+    
+    /**
+     * Tell the polling thread that it needs to recompute the queue state
+     * the next time that it polls the queue.
+     * @param removedHead Set to true if the txn at the head of the queue was removed.
+     */
+    private void markDirty(boolean removedHead) {
+        if (removedHead) this.dirtyHead = true;
+        this.dirty = true;
+        Thread t = this.waiter;
+        if (t != null) LockSupport.unpark(t);
+    }
+    
+    /**
+     * Recompute the queue state if another thread modified the queue.
+     * <B>Note:</B> This must only be called by the polling thread.
+     */
+    private QueueState refreshQueueState() {
+        boolean afterRemoval = this.dirtyHead;
+        this.dirtyHead = false;
+        this.dirty = false;
+        return (this.checkQueueState(afterRemoval));
+    }
+    
+    /**
+     * Lock-free version of noteTransactionRecievedAndReturnLastSafeTxnId()
+     * We lower the last safe txn id with a CAS and then check whether the
+     * polling thread released a larger txn in the meantime. The polling thread
+     * does the opposite check after it pops a txn, so at least one of us
+     * will see the other's update.
+     * @param txnId
+     * @return
+     */
+    private Long noteTransactionRecievedLockFree(Long txnId) {
+        long id = txnId.longValue();
+        Long popped = this.lastTxnPopped;
+        if (popped.longValue() > id) {
+            if (debug.val)
+                LOG.warn(String.format("Partition %d :: Txn ordering deadlock --> LastTxn:%d / NewTxn:%d",
+                         this.partitionId, popped, txnId));
+            return (popped);
+        }
+        
+        long safe;
+        while (id < (safe = this.lastSafeTxnId.get())) {
+            if (this.lastSafeTxnId.compareAndSet(safe, id)) {
+                if (trace.val)
+                    LOG.trace(String.format("Partition %d :: SET lastSafeTxnId = %d",
+                              this.partitionId, id));
+                this.markDirty(false);
+                break;
+            }
+        } // WHILE
+        
+        popped = this.lastTxnPopped;
+        if (popped.longValue() > id) return (popped);
+        return (this.lastSafeTxnId.get());
+    }
+    
+    /**
+     * Lock-free version of poll()
+     * <B>Note:</B> This must only be called by the polling thread.
+     */
+    private AbstractTransaction pollLockFree() {
+        if (this.dirty || this.state == QueueState.BLOCKED_SAFETY || this.state == QueueState.BLOCKED_ORDERING) {
+            this.refreshQueueState();
+        }
+        if (this.state != QueueState.UNBLOCKED) return (null);
+        
+        AbstractTransaction retval = super.poll();
+        if (retval != null) {
+            Long prevPopped = this.lastTxnPopped;
+            this.lastTxnPopped = retval.getTransactionId();
+            
+            // Somebody lowered the last safe txn id after we computed
+            // our state. We have to put this txn back and wait for the 
+            // new one to get added to the queue.
+            if (retval.getTransactionId().longValue() > this.lastSafeTxnId.get()) {
+                if (debug.val)
+                    LOG.debug(String.format("Partition %d :: Reinserting %s because lastSafeTxnId changed [%d]",
+                              this.partitionId, retval, this.lastSafeTxnId.get()));
+                this.lastTxnPopped = prevPopped;
+                super.offer(retval, true);
+                this.dirty = true;
+                return (null);
+            }
+            if (debug.val)
+                LOG.debug(String.format("Partition %d :: poll() -> %s",
+                          this.partitionId, retval));
+            this.txnsPopped++;
+        }
+        // call this again to prime the next txn
+        this.checkQueueState(true);
+        return (retval);
+    }
+    
+    /**
+     * Lock-free version of take()
+     * Instead of waiting on a Condition, we park the thread until either
+     * the next txn's block time has passed or another thread modifies the queue.
+     * <B>Note:</B> This must only be called by the polling thread.
+     */
+    private AbstractTransaction takeLockFree() throws InterruptedException {
+        AbstractTransaction retval = null;
+        this.waiter = Thread.currentThread();
+        try {
+            while ((retval = this.pollLockFree()) == null) {
+                if (Thread.interrupted()) throw new InterruptedException();
+                if (this.dirty) continue;
+                
+                QueueState s = this.state;
+                if (s == QueueState.BLOCKED_EMPTY) {
+                    if (debug.val)
+                        LOG.debug(String.format("Partition %d :: take() -> " +
+                                  "Blocking because queue is empty", this.partitionId));
+                    LockSupport.park(this);
+                }
+                else {
+                    long waitTime = (s == QueueState.BLOCKED_ORDERING ? this.maxWaitTime :
+                                                                        this.blockTimestamp - System.currentTimeMillis());
+                    if (waitTime > 0) {
+                        if (debug.val)
+                            LOG.debug(String.format("Partition %d :: take() -> " +
+                                      "Blocking for %d ms", this.partitionId, waitTime));
+                        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(waitTime));
+                    }
+                }
+            } // WHILE
+        } finally {
+            this.waiter = null;
+        }
+        if (debug.val)
+            LOG.debug(String.format("Partition %d :: take() -> %s",
+                      this.partitionId, retval));
+        return (retval);
     }
 
 
@@ -460,6 +704,7 @@ public class PartitionLockQueue extends ThrottlingQueue<AbstractTransaction> {
                       this.partitionId, afterRemoval, this.state));
         QueueState newState = (afterRemoval ? QueueState.BLOCKED_SAFETY : QueueState.UNBLOCKED);
         long currentTimestamp = -1l;
+        long origSafeTxnId = this.lastSafeTxnId.get();
         AbstractTransaction ts = super.peek(); // BLOCKING
         Long txnId = null;
         if (ts == null) {
@@ -482,11 +727,11 @@ public class PartitionLockQueue extends ThrottlingQueue<AbstractTransaction> {
             // If this txnId is greater than the last safe one that we've seen, then we know
             // that the lastSafeTxnId has been polled. That means that we need to 
             // wait for an appropriate amount of time before we're allow to be executed.
-            if (txnId.compareTo(this.lastSafeTxnId) > 0 && afterRemoval == false) {
+            if (txnId.longValue() > origSafeTxnId && afterRemoval == false) {
                 newState = QueueState.BLOCKED_ORDERING;
                 if (debug.val)
                     LOG.debug(String.format("Partition %d :: txnId[%d] > lastSafeTxnId[%d]",
-                              this.partitionId, txnId, this.lastSafeTxnId));
+                              this.partitionId, txnId, this.lastSafeTxnId.get()));
             }
             // If our current block time is negative, then we know that we're the first txnId
             // that's been in the system. We'll also want to wait a bit before we're
@@ -544,7 +789,7 @@ public class PartitionLockQueue extends ThrottlingQueue<AbstractTransaction> {
                 if (this.blockTimestamp <= currentTimestamp) {
                     newState = QueueState.UNBLOCKED;
                 }
-                if (this.profiler != null && this.lastSafeTxnId.equals(txnId) == false)
+                if (this.profiler != null && origSafeTxnId != txnId.longValue())
                     this.profiler.waitTimes.put(newState == QueueState.UNBLOCKED ? 0 : waitTime);
                 
                 if (debug.val) {
@@ -576,13 +821,22 @@ public class PartitionLockQueue extends ThrottlingQueue<AbstractTransaction> {
         // a new txn with a lower id. But that's ok because we've synchronized setting
         // the id up above. This is actually probably the only part of this entire method
         // that needs to be protected...
-        if (txnId != null) this.lastSafeTxnId = txnId;
+        // In lock-free mode, another thread could have lowered the last safe txn id
+        // since we started. If so, we won't overwrite it and we'll recompute
+        // our state the next time that we're polled.
+        if (txnId != null) {
+            if (this.lockFree == false) {
+                this.lastSafeTxnId.set(txnId.longValue());
+            } else if (this.lastSafeTxnId.compareAndSet(origSafeTxnId, txnId.longValue()) == false) {
+                this.dirty = true;
+            }
+        }
         
         // Set the new state
         if (newState != this.state) {
             if (trace.val)
                 LOG.trace(String.format("Partition %d :: ORIG[%s]->NEW[%s] / LastSafeTxn:%d",
-                          this.partitionId, this.state, newState, this.lastSafeTxnId));
+                          this.partitionId, this.state, newState, this.lastSafeTxnId.get()));
             if (this.profiler != null) {
                 this.profiler.queueStates.get(this.state).stopIfStarted();
                 this.profiler.queueStates.get(newState).start();
@@ -592,7 +846,9 @@ public class PartitionLockQueue extends ThrottlingQueue<AbstractTransaction> {
             // Always poke anybody that is blocking on this queue.
             // The txn may not be ready to run just yet, but at least they'll be
             // able to recompute a new sleep time.
-            this.isReady.signal();
+            // In lock-free mode, only the polling thread calls this method
+            // so there is nobody else to wake up.
+            if (this.lockFree == false) this.isReady.signal();
         }
         else if (this.profiler != null) {
             this.profiler.queueStates.get(this.state).restart();
@@ -628,6 +884,7 @@ public class PartitionLockQueue extends ThrottlingQueue<AbstractTransaction> {
             return (profiler);
         }
         public QueueState checkQueueState() {
+            if (lockFree) return (PartitionLockQueue.this.refreshQueueState());
             QueueState ret = null;
             lock.lock();
             try {
@@ -666,7 +923,8 @@ public class PartitionLockQueue extends ThrottlingQueue<AbstractTransaction> {
         m[i].put("# of Popped", this.txnsPopped);
         m[i].put("Last Popped Txn", this.lastTxnPopped);
         m[i].put("Last Seen Txn", this.lastSeenTxnId);
-        m[i].put("Last Safe Txn", this.lastSafeTxnId);
+        m[i].put("Last Safe Txn", this.lastSafeTxnId.get());
+        m[i].put("Lock-Free", this.lockFree);
         
         m[++i] = new LinkedHashMap<String, Object>();
         m[i].put("Throttled", super.isThrottled());
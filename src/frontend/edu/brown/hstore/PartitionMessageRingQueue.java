@@ -0,0 +1,488 @@
+package edu.brown.hstore;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.voltdb.types.WorkQueueWaitStrategyType;
+
+import edu.brown.hstore.internal.FinishTxnMessage;
+import edu.brown.hstore.internal.InternalMessage;
+import edu.brown.hstore.internal.InternalTxnMessage;
+import edu.brown.hstore.internal.PrepareTxnMessage;
+import edu.brown.hstore.internal.SetDistributedTxnMessage;
+import edu.brown.hstore.internal.UtilityWorkMessage;
+import edu.brown.hstore.internal.WorkFragmentMessage;
+
+/**
+ * A bounded multi-producer/single-consumer work queue for a PartitionExecutor.
+ * This is an alternative to the PartitionMessageQueue that does not use any locks
+ * on the producer side. Each InternalMessage type is mapped to a priority lane.
+ * Each lane is a fixed-size ring buffer where producers claim a slot with a single
+ * CAS and the consumer always polls the highest priority lane that is not empty.
+ * The lanes follow the same priorities as the PartitionMessageQueue's comparator,
+ * but messages within a lane come out in FIFO order instead of txn id order.
+ * <B>Note:</B> Only the PartitionExecutor's thread should remove messages from this queue.
+ * If that thread needs to put messages back into the queue (e.g., releasing blocked txns)
+ * and their lane is full, then they will be kept in a separate overflow list that
+ * is polled before all of the lanes. Any other thread will just get rejected by
+ * offer() or will wait in add()/put() until there is space. The only exceptions are
+ * the txn control messages and WorkFragments, which can never be rejected, and the
+ * messages that are added with {@link #offer(InternalMessage, boolean)}. If their lane
+ * is full, then they are kept in an unbounded overflow list for that lane that is
+ * polled after its ring buffer, so the lane stays in FIFO order.
+ * @author pavlo
+ */
+public class PartitionMessageRingQueue extends AbstractQueue<InternalMessage> implements BlockingQueue<InternalMessage> {
+
+    // ----------------------------------------------------------------------------
+    // PRIORITY LANES
+    // ----------------------------------------------------------------------------
+
+    protected static final int LANE_UTILITY_STATS = 0;
+    protected static final int LANE_TXN_CONTROL = 1;
+    protected static final int LANE_WORK_FRAGMENT = 2;
+    protected static final int LANE_TXN = 3;
+    protected static final int LANE_OTHER = 4;
+    private static final int NUM_LANES = 5;
+
+    /**
+     * Return the lane that the given message should be put into.
+     * Lower lanes are polled first.
+     * @param msg
+     * @return
+     */
+    protected static int getLane(InternalMessage msg) {
+        Class<?> clazz = msg.getClass();
+        if (clazz == UtilityWorkMessage.TableStatsRequestMessage.class) {
+            return (LANE_UTILITY_STATS);
+        }
+        else if (msg instanceof InternalTxnMessage) {
+            if (clazz == SetDistributedTxnMessage.class ||
+                clazz == PrepareTxnMessage.class ||
+                clazz == FinishTxnMessage.class) {
+                return (LANE_TXN_CONTROL);
+            }
+            else if (clazz == WorkFragmentMessage.class) {
+                return (LANE_WORK_FRAGMENT);
+            }
+            return (LANE_TXN);
+        }
+        return (LANE_OTHER);
+    }
+
+    /**
+     * A single bounded ring buffer.
+     * Every slot has a sequence number that tells producers whether the slot is free
+     * and tells the consumer whether the slot has been published.
+     */
+    private static final class Lane {
+        private final AtomicReferenceArray<InternalMessage> buffer;
+        private final AtomicLongArray sequences;
+        private final int mask;
+        private final AtomicLong tail = new AtomicLong(0);
+        private volatile long head = 0;
+
+        /**
+         * Messages that could not be rejected when the ring buffer was full.
+         * Only accessed while holding this lane's lock.
+         */
+        private final ArrayDeque<InternalMessage> overflow = new ArrayDeque<InternalMessage>();
+        private volatile int overflowSize = 0;
+
+        private Lane(int capacity) {
+            this.buffer = new AtomicReferenceArray<InternalMessage>(capacity);
+            this.sequences = new AtomicLongArray(capacity);
+            this.mask = capacity - 1;
+            for (int i = 0; i < capacity; i++) {
+                this.sequences.set(i, i);
+            } // FOR
+        }
+
+        private boolean offer(InternalMessage msg) {
+            long pos = this.tail.get();
+            while (true) {
+                int idx = (int)(pos & this.mask);
+                long diff = this.sequences.get(idx) - pos;
+                if (diff == 0) {
+                    if (this.tail.compareAndSet(pos, pos + 1)) {
+                        this.buffer.lazySet(idx, msg);
+                        this.sequences.set(idx, pos + 1); // Publish
+                        return (true);
+                    }
+                    pos = this.tail.get();
+                }
+                // The consumer hasn't freed this slot yet, so the lane is full
+                else if (diff < 0) {
+                    return (false);
+                }
+                // Somebody else claimed this slot before us
+                else {
+                    pos = this.tail.get();
+                }
+            } // WHILE
+        }
+
+        /**
+         * Add the message to the ring buffer or to the overflow list if the ring
+         * buffer is full. Once there is something in the overflow list, everything
+         * after it has to go there too until the consumer has polled it.
+         */
+        private void force(InternalMessage msg) {
+            if (this.overflowSize == 0 && this.offer(msg)) return;
+            synchronized (this) {
+                if (this.overflow.isEmpty() && this.offer(msg)) return;
+                this.overflow.add(msg);
+                this.overflowSize = this.overflow.size();
+            } // SYNCH
+        }
+
+        private InternalMessage peek() {
+            long pos = this.head;
+            int idx = (int)(pos & this.mask);
+            if (this.sequences.get(idx) != pos + 1) {
+                if (this.overflowSize == 0) return (null);
+                synchronized (this) {
+                    return (this.overflow.peek());
+                } // SYNCH
+            }
+            return (this.buffer.get(idx));
+        }
+
+        private InternalMessage poll() {
+            long pos = this.head;
+            int idx = (int)(pos & this.mask);
+            if (this.sequences.get(idx) != pos + 1) {
+                if (this.overflowSize == 0) return (null);
+                synchronized (this) {
+                    InternalMessage msg = this.overflow.poll();
+                    this.overflowSize = this.overflow.size();
+                    return (msg);
+                } // SYNCH
+            }
+            InternalMessage msg = this.buffer.get(idx);
+            this.buffer.lazySet(idx, null);
+            this.sequences.lazySet(idx, pos + this.mask + 1); // Free for the next round
+            this.head = pos + 1;
+            return (msg);
+        }
+
+        private int size() {
+            long size = this.tail.get() - this.head;
+            return (int)(size < 0 ? 0 : size) + this.overflowSize;
+        }
+
+        private void snapshot(Collection<InternalMessage> c) {
+            long end = this.tail.get();
+            for (long pos = this.head; pos < end; pos++) {
+                int idx = (int)(pos & this.mask);
+                if (this.sequences.get(idx) != pos + 1) break;
+                InternalMessage msg = this.buffer.get(idx);
+                if (msg != null) c.add(msg);
+            } // FOR
+            synchronized (this) {
+                c.addAll(this.overflow);
+            } // SYNCH
+        }
+    }
+
+    // ----------------------------------------------------------------------------
+    // DATA MEMBERS
+    // ----------------------------------------------------------------------------
+
+    private final Lane lanes[];
+    private final int capacity;
+    private final WorkQueueWaitStrategyType waitStrategy;
+
+    /**
+     * Messages that the consumer tried to put back in the queue
+     * when their lane was full. Only accessed while holding this queue's lock.
+     */
+    private final ArrayDeque<InternalMessage> overflow = new ArrayDeque<InternalMessage>();
+    private volatile int overflowSize = 0;
+
+    /**
+     * The last thread that removed something from this queue.
+     */
+    private volatile Thread consumer = null;
+
+    /**
+     * Set to true when the consumer is parked waiting for new messages.
+     */
+    private volatile boolean waiting = false;
+
+    // ----------------------------------------------------------------------------
+    // INITIALIZATION
+    // ----------------------------------------------------------------------------
+
+    /**
+     * Constructor
+     * @param laneCapacity The max number of messages per priority lane.
+     *                     This will be rounded up to the next power of two.
+     * @param waitStrategy
+     */
+    public PartitionMessageRingQueue(int laneCapacity, WorkQueueWaitStrategyType waitStrategy) {
+        assert(laneCapacity > 0) : "Invalid lane capacity " + laneCapacity;
+        assert(waitStrategy != null);
+        int size = 1;
+        while (size < laneCapacity) size <<= 1;
+
+        this.lanes = new Lane[NUM_LANES];
+        for (int i = 0; i < NUM_LANES; i++) {
+            this.lanes[i] = new Lane(size);
+        } // FOR
+        this.capacity = size * NUM_LANES;
+        this.waitStrategy = waitStrategy;
+    }
+
+    public WorkQueueWaitStrategyType getWaitStrategy() {
+        return (this.waitStrategy);
+    }
+
+    // ----------------------------------------------------------------------------
+    // PRODUCER METHODS
+    // ----------------------------------------------------------------------------
+
+    /**
+     * Add the message to its priority lane. Returns false if that lane is full,
+     * unless the caller is the consumer thread or the message can't be rejected.
+     */
+    @Override
+    public boolean offer(InternalMessage msg) {
+        return (this.offer(msg, false));
+    }
+
+    /**
+     * Add the message to its priority lane. If force is true, then the message
+     * will be kept in the lane's overflow list if the lane is full instead of
+     * being rejected. This is always the case for txn control messages and
+     * WorkFragments, since the txns that they belong to can't make any
+     * progress without them.
+     * @param msg
+     * @param force
+     * @return false if the lane is full and the message was rejected
+     */
+    public boolean offer(InternalMessage msg, boolean force) {
+        if (msg == null) throw new NullPointerException();
+        int laneId = getLane(msg);
+        Lane lane = this.lanes[laneId];
+        if (lane.overflowSize == 0 && lane.offer(msg)) {
+            if (this.waiting) LockSupport.unpark(this.consumer);
+            return (true);
+        }
+        // The consumer can never wait for itself to make room in the queue
+        if (Thread.currentThread() == this.consumer) {
+            synchronized (this) {
+                this.overflow.add(msg);
+                this.overflowSize = this.overflow.size();
+            } // SYNCH
+            return (true);
+        }
+        if (force || laneId == LANE_TXN_CONTROL || laneId == LANE_WORK_FRAGMENT) {
+            lane.force(msg);
+            if (this.waiting) LockSupport.unpark(this.consumer);
+            return (true);
+        }
+        return (false);
+    }
+
+    @Override
+    public boolean offer(InternalMessage msg, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (this.offer(msg) == false) {
+            if (System.nanoTime() >= deadline) return (false);
+            if (Thread.interrupted()) throw new InterruptedException();
+            Thread.yield();
+        } // WHILE
+        return (true);
+    }
+
+    /**
+     * Add the message to its priority lane, waiting if necessary
+     * for space to become available.
+     */
+    @Override
+    public boolean add(InternalMessage msg) {
+        while (this.offer(msg) == false) {
+            Thread.yield();
+        } // WHILE
+        return (true);
+    }
+
+    @Override
+    public void put(InternalMessage msg) throws InterruptedException {
+        while (this.offer(msg) == false) {
+            if (Thread.interrupted()) throw new InterruptedException();
+            Thread.yield();
+        } // WHILE
+    }
+
+    // ----------------------------------------------------------------------------
+    // CONSUMER METHODS
+    // ----------------------------------------------------------------------------
+
+    @Override
+    public synchronized InternalMessage poll() {
+        this.consumer = Thread.currentThread();
+        if (this.overflowSize > 0) {
+            InternalMessage msg = this.overflow.poll();
+            this.overflowSize = this.overflow.size();
+            return (msg);
+        }
+        InternalMessage msg = null;
+        for (int i = 0; i < NUM_LANES; i++) {
+            if ((msg = this.lanes[i].poll()) != null) break;
+        } // FOR
+        return (msg);
+    }
+
+    @Override
+    public synchronized InternalMessage peek() {
+        if (this.overflowSize > 0) {
+            return (this.overflow.peek());
+        }
+        InternalMessage msg = null;
+        for (int i = 0; i < NUM_LANES; i++) {
+            if ((msg = this.lanes[i].peek()) != null) break;
+        } // FOR
+        return (msg);
+    }
+
+    @Override
+    public InternalMessage poll(long timeout, TimeUnit unit) throws InterruptedException {
+        InternalMessage msg = this.poll();
+        if (msg != null) return (msg);
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while ((msg = this.poll()) == null) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) break;
+            if (Thread.interrupted()) throw new InterruptedException();
+            this.await(remaining);
+        } // WHILE
+        return (msg);
+    }
+
+    @Override
+    public InternalMessage take() throws InterruptedException {
+        InternalMessage msg = null;
+        while ((msg = this.poll()) == null) {
+            if (Thread.interrupted()) throw new InterruptedException();
+            this.await(Long.MAX_VALUE);
+        } // WHILE
+        return (msg);
+    }
+
+    /**
+     * Wait for a new message using this queue's WorkQueueWaitStrategyType.
+     * This may return before a message has arrived.
+     * @param nanos The max amount of time to wait
+     */
+    private void await(long nanos) {
+        switch (this.waitStrategy) {
+            case SPIN:
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            case PARK: {
+                // We have to check the queue again after we set our waiting flag,
+                // otherwise a producer could add something right before we set
+                // it and never wake us up.
+                this.waiting = true;
+                if (this.isEmpty()) LockSupport.parkNanos(this, nanos);
+                this.waiting = false;
+                break;
+            }
+            default:
+                throw new RuntimeException("Unexpected wait strategy " + this.waitStrategy);
+        } // SWITCH
+    }
+
+    @Override
+    public int drainTo(Collection<? super InternalMessage> c) {
+        return (this.drainTo(c, Integer.MAX_VALUE));
+    }
+
+    @Override
+    public synchronized int drainTo(Collection<? super InternalMessage> c, int maxElements) {
+        if (c == this) throw new IllegalArgumentException();
+        int ctr = 0;
+        InternalMessage msg = null;
+        while (ctr < maxElements && (msg = this.poll()) != null) {
+            c.add(msg);
+            ctr++;
+        } // WHILE
+        return (ctr);
+    }
+
+    @Override
+    public synchronized void clear() {
+        while (this.poll() != null) {
+            // Keep going...
+        } // WHILE
+    }
+
+    // ----------------------------------------------------------------------------
+    // UTILITY METHODS
+    // ----------------------------------------------------------------------------
+
+    @Override
+    public boolean isEmpty() {
+        if (this.overflowSize > 0) return (false);
+        for (int i = 0; i < NUM_LANES; i++) {
+            if (this.lanes[i].size() > 0) return (false);
+        } // FOR
+        return (true);
+    }
+
+    @Override
+    public int size() {
+        int size = this.overflowSize;
+        for (int i = 0; i < NUM_LANES; i++) {
+            size += this.lanes[i].size();
+        } // FOR
+        return (size);
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Math.max(0, this.capacity - this.size());
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the messages that are currently
+     * in the queue, in the order that they will be polled. This should only be
+     * used for debugging. The iterator does not support remove().
+     */
+    @Override
+    public synchronized Iterator<InternalMessage> iterator() {
+        final List<InternalMessage> snapshot = new ArrayList<InternalMessage>(this.overflow);
+        for (int i = 0; i < NUM_LANES; i++) {
+            this.lanes[i].snapshot(snapshot);
+        } // FOR
+        final Iterator<InternalMessage> it = snapshot.iterator();
+        return new Iterator<InternalMessage>() {
+            @Override
+            public boolean hasNext() {
+                return (it.hasNext());
+            }
+            @Override
+            public InternalMessage next() {
+                return (it.next());
+            }
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
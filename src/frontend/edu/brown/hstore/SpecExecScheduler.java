@@ -91,6 +91,39 @@ public class SpecExecScheduler implements Configurable {
      */
     private boolean ignore_interrupts = false;
     
+    // ----------------------------------------------------------------------------
+    // ADAPTIVE SCHEDULING
+    // ----------------------------------------------------------------------------
+    
+    /**
+     * If true, then the scheduler will resize its window and pick between the
+     * FIRST and SHORTEST policies based on its recent hit and abort rates.
+     */
+    private boolean adaptive = false;
+    
+    /**
+     * The number of searches between each adjustment
+     */
+    private int adaptiveInterval;
+    
+    /**
+     * The largest window that the scheduler is allowed to grow to
+     */
+    private int adaptiveMaxWindow;
+    
+    /**
+     * If the fraction of speculative txns that get aborted is greater than
+     * this threshold, then we will switch to the SHORTEST policy.
+     */
+    private double adaptiveAbortThreshold;
+    
+    /**
+     * The live counters for the current adjustment interval.
+     * This is always maintained when adaptive scheduling is enabled,
+     * regardless of whether profiling is enabled or not.
+     */
+    private final SpecExecProfiler adaptiveStats = new SpecExecProfiler();
+    
     // ----------------------------------------------------------------------------
     // PROFILING STUFF
     // ----------------------------------------------------------------------------
@@ -162,6 +195,18 @@ public class SpecExecScheduler implements Configurable {
         this.ignore_all_local = hstore_conf.site.specexec_ignore_all_local;
         this.ignore_interrupts = hstore_conf.site.specexec_ignore_interruptions;
         
+        this.adaptive = hstore_conf.site.specexec_scheduler_adaptive;
+        this.adaptiveInterval = Math.max(1, hstore_conf.site.specexec_scheduler_adaptive_interval);
+        this.adaptiveMaxWindow = Math.max(1, hstore_conf.site.specexec_scheduler_adaptive_max_window);
+        this.adaptiveAbortThreshold = hstore_conf.site.specexec_scheduler_adaptive_abort_threshold;
+        if (this.adaptive) {
+            this.adaptiveStats.reset();
+            if (this.policyType != SpecExecSchedulerPolicyType.SHORTEST) {
+                this.policyType = SpecExecSchedulerPolicyType.FIRST;
+            }
+            this.windowSize = Math.min(this.adaptiveMaxWindow, Math.max(1, this.windowSize));
+        }
+        
         if (hstore_conf.site.specexec_disable_partitions != null) {
             // Disable on all partitions
             // Use HStoreConf's site.specexec_enable=false instead
@@ -197,6 +242,22 @@ public class SpecExecScheduler implements Configurable {
     protected void setPolicyType(SpecExecSchedulerPolicyType policy) {
         this.policyType = policy;
     }
+    protected void setAdaptive(boolean val, int interval, int maxWindow, double abortThreshold) {
+        this.adaptive = val;
+        this.adaptiveInterval = Math.max(1, interval);
+        this.adaptiveMaxWindow = Math.max(1, maxWindow);
+        this.adaptiveAbortThreshold = abortThreshold;
+        this.adaptiveStats.reset();
+    }
+    public boolean isAdaptive() {
+        return (this.adaptive);
+    }
+    public int getWindowSize() {
+        return (this.windowSize);
+    }
+    public SpecExecSchedulerPolicyType getPolicyType() {
+        return (this.policyType);
+    }
     protected void reset() {
         this.lastIterator = null;
     }
@@ -326,7 +387,9 @@ public class SpecExecScheduler implements Configurable {
         int txn_ctr = 0;
         int examined_ctr = 0;
         int matched_ctr = 0;
+        int next_examined = 0;
         boolean was_interrupted = false;
+        boolean window_miss = false;
         long bestTime = (this.policyType == SpecExecSchedulerPolicyType.LONGEST ? Long.MIN_VALUE : Long.MAX_VALUE);
 
         // Check whether we can use our same iterator from the last call
@@ -377,6 +440,13 @@ public class SpecExecScheduler implements Configurable {
                 continue;
             }
             
+            // In adaptive mode, the window is a hard limit on the number of
+            // txns that we will examine, even if we haven't found a match yet.
+            if (this.adaptive && examined_ctr == this.windowSize) {
+                window_miss = (next == null);
+                break;
+            }
+            
             // Let's check it out!
             if (profiler != null) profiler.compute_time.start();
             if (debug.val)
@@ -417,23 +487,32 @@ public class SpecExecScheduler implements Configurable {
                 // Scheduling Policy: FIRST MATCH
                 if (this.policyType == SpecExecSchedulerPolicyType.FIRST) {
                     next = localTxn;
+                    next_examined = examined_ctr;
                     resetIterator = false;
                     break;
                 }
                 // Scheduling Policy: LAST MATCH
                 else if (this.policyType == SpecExecSchedulerPolicyType.LAST) {
                     next = localTxn;
+                    next_examined = examined_ctr;
                 }
                 // Scheduling Policy: SHORTEST/LONGEST TIME
                 else {
                     // Estimate the time that remains.
                     EstimatorState es = localTxn.getEstimatorState();
-                    if (es != null) {
+                    // If we switched to this policy on our own, then we still want to
+                    // be able to pick txns that do not have an estimate.
+                    if (es == null && this.adaptive && next == null) {
+                        next = localTxn;
+                        next_examined = examined_ctr;
+                    }
+                    else if (es != null) {
                         long remainingTime = es.getLastEstimate().getRemainingExecutionTime();
                         if ((this.policyType == SpecExecSchedulerPolicyType.SHORTEST && remainingTime < bestTime) ||
                             (this.policyType == SpecExecSchedulerPolicyType.LONGEST && remainingTime > bestTime)) {
                             bestTime = remainingTime;
                             next = localTxn;
+                            next_examined = examined_ctr;
                             if (debug.val)
                                 LOG.debug(String.format("[%s %d/%d] New Match -> %s / remainingTime=%d",
                                           this.policyType, examined_ctr, this.windowSize, next, remainingTime));
@@ -456,6 +535,18 @@ public class SpecExecScheduler implements Configurable {
         // variable so that we don't actually try to execute it.
         if (was_interrupted) next = null; 
         
+        if (this.adaptive && was_interrupted == false) {
+            this.adaptiveStats.searches++;
+            if (next != null) {
+                this.adaptiveStats.success++;
+                this.adaptiveStats.hit_examined += next_examined;
+            }
+            else if (window_miss) {
+                this.adaptiveStats.window_misses++;
+            }
+            if (this.adaptiveStats.searches >= this.adaptiveInterval) this.adapt();
+        }
+        
         // We found somebody to execute right now!
         // Make sure that we set the speculative flag to true!
         if (next != null) {
@@ -493,6 +584,70 @@ public class SpecExecScheduler implements Configurable {
         return (next);
     }
     
+    // ----------------------------------------------------------------------------
+    // ADAPTIVE SCHEDULING METHODS
+    // ----------------------------------------------------------------------------
+    
+    /**
+     * Record how many of the speculative txns that were executed during
+     * a distributed txn were committed and how many were aborted.
+     * This is only used for adaptive scheduling.
+     * @param committed
+     * @param aborted
+     */
+    public void noteSpeculativeResults(int committed, int aborted) {
+        if (this.adaptive) {
+            this.adaptiveStats.commits += committed;
+            this.adaptiveStats.aborts += aborted;
+        }
+    }
+    
+    /**
+     * Adjust the window size and the scheduling policy based on what
+     * happened since the last time that we were invoked.
+     * <UL>
+     *  <LI>If most of our failed searches stopped because they reached the end of the
+     *      window, then there are probably matches that we did not get to, so we
+     *      double the window.</LI>
+     *  <LI>Otherwise, we shrink the window towards twice the average number of txns
+     *      that we had to examine to find a match, so that we don't waste time scanning.</LI>
+     *  <LI>If too many speculative txns are getting aborted, then we will use
+     *      the SHORTEST policy to limit how long they run. Otherwise we just take
+     *      the FIRST match since that is the cheapest.</LI>
+     * </UL>
+     */
+    private void adapt() {
+        SpecExecProfiler stats = this.adaptiveStats;
+        int origWindow = this.windowSize;
+        SpecExecSchedulerPolicyType origPolicy = this.policyType;
+        
+        int misses = stats.searches - stats.success;
+        if (misses > 0 && stats.window_misses * 2 > misses) {
+            this.windowSize = Math.min(this.adaptiveMaxWindow, this.windowSize * 2);
+        }
+        else if (stats.success > 0) {
+            int needed = (int)Math.ceil(2.0 * stats.hit_examined / stats.success);
+            if (needed < this.windowSize) {
+                this.windowSize = Math.max(1, (this.windowSize + needed) / 2);
+            }
+        }
+        
+        int finished = stats.commits + stats.aborts;
+        if (finished > 0) {
+            double abortRate = stats.aborts / (double)finished;
+            this.policyType = (abortRate > this.adaptiveAbortThreshold ? SpecExecSchedulerPolicyType.SHORTEST :
+                                                                         SpecExecSchedulerPolicyType.FIRST);
+        }
+        
+        if (debug.val && (origWindow != this.windowSize || origPolicy != this.policyType))
+            LOG.debug(String.format("Partition %d :: Adjusted speculative scheduler " +
+                      "[window=%d->%d, policy=%s->%s, searches=%d, hits=%d, windowMisses=%d, commits=%d, aborts=%d]",
+                      this.partitionId, origWindow, this.windowSize, origPolicy, this.policyType,
+                      stats.searches, stats.success, stats.window_misses, stats.commits, stats.aborts));
+        if (origPolicy != this.policyType) this.lastIterator = null;
+        stats.reset();
+    }
+    
     // ----------------------------------------------------------------------------
     // DEBUG METHODS
     // ----------------------------------------------------------------------------
@@ -516,6 +671,9 @@ public class SpecExecScheduler implements Configurable {
         public SpecExecProfiler getProfiler(SpeculationType stype) {
             return (profilerMap[stype.ordinal()]);
         }
+        public SpecExecProfiler getAdaptiveStats() {
+            return (adaptiveStats);
+        }
         /**
          * Replace the ConflictChecker. This should only be used for testing
          * @param checker
@@ -2,6 +2,7 @@ package edu.brown.hstore;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -19,6 +20,7 @@ import org.voltdb.exceptions.ServerFaultException;
 import org.voltdb.utils.Pair;
 
 import edu.brown.hstore.Hstoreservice.Status;
+import edu.brown.hstore.callbacks.LocalInitQueueCallback;
 import edu.brown.hstore.callbacks.PartitionCountingCallback;
 import edu.brown.hstore.conf.HStoreConf;
 import edu.brown.hstore.txns.AbstractTransaction;
@@ -102,6 +104,14 @@ public class TransactionQueueManager extends ExceptionHandlingRunnable implement
      * at this site.
      */
     private final BlockingQueue<AbstractTransaction> initQueue; 
+    
+    /**
+     * Reusable buffers for inserting batches of txns from the initQueue.
+     * These are only used by the Initializer thread.
+     */
+    private final List<AbstractTransaction> initBatch = new ArrayList<AbstractTransaction>();
+    private boolean initBatchResults[] = new boolean[0];
+    private Long initBatchSafeTxnIds[] = new Long[0];
 
     
     // ----------------------------------------------------------------------------
@@ -141,7 +151,8 @@ public class TransactionQueueManager extends ExceptionHandlingRunnable implement
             PartitionLockQueue queue = new PartitionLockQueue(partition,
                                                               hstore_conf.site.txn_incoming_delay,
                                                               this.initThrottleThreshold,
-                                                              this.initThrottleRelease);
+                                                              this.initThrottleRelease,
+                                                              hstore_conf.site.queue_lockfree);
             this.lockQueues[partition] = queue;
             this.lockQueueBarriers[partition] = new ReentrantLock(true);
             this.profilers[partition] = new TransactionQueueManagerProfiler();
@@ -208,7 +219,22 @@ public class TransactionQueueManager extends ExceptionHandlingRunnable implement
                 } catch (InterruptedException ex) {
                     // IGNORE
                 }
-                if (nextTxn != null) initTransaction(nextTxn);
+                if (nextTxn == null) continue;
+                
+                // Grab whatever else is waiting in the queue and insert them
+                // all together so that we only lock each partition once
+                if (hstore_conf.site.queue_init_batching) {
+                    initBatch.add(nextTxn);
+                    initQueue.drainTo(initBatch, hstore_conf.site.queue_init_batch_size - 1);
+                    if (initBatch.size() > 1) {
+                        initTransactions(initBatch);
+                    } else {
+                        initTransaction(nextTxn);
+                    }
+                    initBatch.clear();
+                } else {
+                    initTransaction(nextTxn);
+                }
             } // WHILE
         };
     }
@@ -360,6 +386,87 @@ public class TransactionQueueManager extends ExceptionHandlingRunnable implement
         return (ret);
     }
     
+    /**
+     * Add a batch of new txns into the lock queues for the local partitions that
+     * they need to access. The txns are first sorted by their txn ids and then
+     * inserted one partition at a time, so that we only need to acquire each
+     * partition's lockQueueBarrier once per batch. The end result is the same as
+     * invoking initTransaction() for each txn in the batch in txn id order.
+     * <B>Note:</B> This should only be called by the Initializer thread.
+     * @param batch
+     */
+    protected void initTransactions(List<AbstractTransaction> batch) {
+        Collections.sort(batch);
+        
+        // Any txn with an uninitialized callback has to go through the 
+        // regular path so that we handle it the same way as before.
+        for (int i = batch.size() - 1; i >= 0; i--) {
+            AbstractTransaction nextTxn = batch.get(i);
+            if (nextTxn.getInitCallback().isInitialized() == false) {
+                this.initTransaction(nextTxn);
+                batch.remove(i);
+            }
+        } // FOR
+        int batchSize = batch.size();
+        if (this.initBatchResults.length < batchSize) {
+            this.initBatchResults = new boolean[batchSize];
+            this.initBatchSafeTxnIds = new Long[batchSize];
+        }
+        boolean results[] = this.initBatchResults;
+        Long safeTxnIds[] = this.initBatchSafeTxnIds;
+        
+        for (int i = 0; i < batchSize; i++) {
+            AbstractTransaction nextTxn = batch.get(i);
+            if (hstore_conf.site.txn_profiling && nextTxn instanceof LocalTransaction) {
+                LocalTransaction localTxn = (LocalTransaction)nextTxn;
+                if (localTxn.profiler != null) localTxn.profiler.startQueueLock();
+            }
+            results[i] = (nextTxn.getInitCallback().isAborted() == false);
+        } // FOR
+        if (trace.val)
+            LOG.trace(String.format("Adding batch of %d txns to lock queues", batchSize));
+        
+        for (int partition : this.localPartitions.values()) {
+            if (hstore_conf.site.queue_profiling) profilers[partition].init_time.start();
+            
+            // First note all of the txn ids at this partition while holding its
+            // barrier only once for the entire batch.
+            boolean lockFree = this.lockQueues[partition].isLockFree();
+            boolean touched = false;
+            if (lockFree == false) this.lockQueueBarriers[partition].lock();
+            try {
+                for (int i = 0; i < batchSize; i++) {
+                    AbstractTransaction nextTxn = batch.get(i);
+                    if (nextTxn.getPredictTouchedPartitions().contains(partition) == false) continue;
+                    touched = true;
+                    if (results[i] == false) continue;
+                    safeTxnIds[i] = this.lockQueues[partition].noteTransactionRecievedAndReturnLastSafeTxnId(nextTxn.getTransactionId());
+                } // FOR
+            } finally {
+                if (lockFree == false) this.lockQueueBarriers[partition].unlock();
+            } // SYNCH
+            
+            // Then add them into the queue, or reject them if they're not safe
+            if (touched) {
+                for (int i = 0; i < batchSize; i++) {
+                    AbstractTransaction nextTxn = batch.get(i);
+                    if (nextTxn.getPredictTouchedPartitions().contains(partition) == false) continue;
+                    PartitionCountingCallback<AbstractTransaction> callback = nextTxn.getInitCallback();
+                    if (results[i]) {
+                        Status status = this.lockQueueOffer(nextTxn, partition, callback, safeTxnIds[i]);
+                        if (status != Status.OK) results[i] = false;
+                    // IMPORTANT: We still need to decrement the callback's
+                    // counter for the txns that were rejected at other partitions.
+                    } else {
+                        callback.decrementCounter(partition);
+                    }
+                } // FOR
+            }
+            if (hstore_conf.site.queue_profiling) profilers[partition].init_time.stopIfStarted();
+        } // FOR
+        Arrays.fill(safeTxnIds, 0, batchSize, null);
+    }
+    
     /**
      * Queue a brand new transaction at this HStoreSite to be added into
      * the appropriate lock queues for the partitions that it needs to access.
@@ -375,6 +482,60 @@ public class TransactionQueueManager extends ExceptionHandlingRunnable implement
         this.initQueue.add(ts);
  }
     
+    /**
+     * Try to send the given single-partition txn directly to its base partition's
+     * PartitionExecutor without going through the initQueue and the PartitionLockQueue.
+     * This is only allowed if there is no distributed txn that is currently holding the 
+     * partition's lock and nothing is waiting in the partition's lock queue. 
+     * The txn is then noted as the last one released from the partition's lock queue,
+     * so any txn with a smaller id that shows up afterwards will be rejected.
+     * Returns false if the txn needs to be queued normally with queueTransactionInit().
+     * If the txn's dtxn check is stale by the time it gets to the PartitionExecutor,
+     * then the PartitionExecutor will just block it until the dtxn finishes.
+     * <B>Note:</B> The txn could be rejected and deleted after this returns true.
+     * @param ts
+     * @return
+     */
+    protected boolean fastLaneInsert(LocalTransaction ts) {
+        assert(ts.isInitialized()) :
+            String.format("Unexpected uninitialized transaction %s", ts);
+        if (ts.isPredictSinglePartition() == false || ts.isSysProc() || ts.isMapReduce()) {
+            return (false);
+        }
+        int partition = ts.getBasePartition();
+        if (this.lockQueues[partition] == null || this.lockQueues[partition].isLockFree()) {
+            return (false);
+        }
+        
+        // We have to check whether the partition is free and then mark our txn
+        // as released while holding the partition's barrier. Otherwise another txn 
+        // with a smaller id could get added to the lock queue in between.
+        this.lockQueueBarriers[partition].lock();
+        try {
+            if (this.hstore_site.getPartitionExecutor(partition).hasCurrentDtxn() ||
+                    this.lockQueues[partition].noteTransactionReleased(ts.getTransactionId()) == false) {
+                return (false);
+            }
+        } finally {
+            this.lockQueueBarriers[partition].unlock();
+        } // SYNCH
+        
+        LocalInitQueueCallback callback = ts.getInitCallback();
+        assert(callback.isInitialized()) :
+            String.format("Unexpected uninitialized %s for %s",
+                          callback.getClass().getSimpleName(), ts);
+        if (debug.val)
+            LOG.debug(String.format("%s - Sending txn directly to partition %d through the fast lane",
+                      ts, partition));
+        
+        // This is the same thing that checkLockQueue() does when it
+        // releases a txn from the lock queue
+        callback.run(partition);
+        ts.markReleased(partition);
+        this.hstore_site.transactionStart(ts);
+        return (true);
+    }
+    
     /**
      * Add a new transaction to this queue manager.
      * Returns true if the transaction was successfully inserted at all partitions.
@@ -417,14 +578,40 @@ public class TransactionQueueManager extends ExceptionHandlingRunnable implement
         // insert the new transaction into its queue. 
         Long txn_id = ts.getTransactionId();
         Long next_safe_id = null;
-        Status status = Status.OK;
         
-        this.lockQueueBarriers[partition].lock();
-        try {
+        // A lock-free queue does not need to be protected by the barrier
+        if (this.lockQueues[partition].isLockFree()) {
             next_safe_id = this.lockQueues[partition].noteTransactionRecievedAndReturnLastSafeTxnId(txn_id);
-        } finally {
-            this.lockQueueBarriers[partition].unlock();
-        } // SYNCH
+        } else {
+            this.lockQueueBarriers[partition].lock();
+            try {
+                next_safe_id = this.lockQueues[partition].noteTransactionRecievedAndReturnLastSafeTxnId(txn_id);
+            } finally {
+                this.lockQueueBarriers[partition].unlock();
+            } // SYNCH
+        }
+        
+        Status status = this.lockQueueOffer(ts, partition, callback, next_safe_id);
+        if (hstore_conf.site.queue_profiling) profilers[partition].init_time.stopIfStarted();
+        return (status);
+    }
+    
+    /**
+     * Add the given txn into the lock queue for the partition after we've
+     * already noted its txn id with noteTransactionRecievedAndReturnLastSafeTxnId().
+     * If the txn cannot be added, then it will be rejected.
+     * @param ts
+     * @param partition
+     * @param callback
+     * @param next_safe_id The last safe txn id returned by the partition's lock queue
+     * @return
+     */
+    private Status lockQueueOffer(AbstractTransaction ts,
+                                  int partition,
+                                  PartitionCountingCallback<? extends AbstractTransaction> callback,
+                                  Long next_safe_id) {
+        Long txn_id = ts.getTransactionId();
+        Status status = Status.OK;
         
         // The next txnId that we're going to try to execute is already greater
         // than this new txnId that we were given! Rejection!
@@ -460,14 +647,12 @@ public class TransactionQueueManager extends ExceptionHandlingRunnable implement
             this.rejectTransaction(ts, status, partition, next_safe_id);
             if (hstore_conf.site.queue_profiling) {
                 profilers[partition].rejection_time.stopIfStarted();
-                profilers[partition].init_time.stopIfStarted();
             }
         }
         else if (trace.val) {
             LOG.trace(String.format("Added %s to initQueue for partition %d [queueSize=%d]",
                       ts, partition, this.lockQueues[partition].size()));
         }
-        if (hstore_conf.site.queue_profiling) profilers[partition].init_time.stopIfStarted();
         return (status);
     }
     
@@ -484,12 +669,16 @@ public class TransactionQueueManager extends ExceptionHandlingRunnable implement
         
         // Poll the queue and get the next value.
         AbstractTransaction nextTxn = null;
-        this.lockQueueBarriers[partition].lockInterruptibly();
-        try {
+        if (this.lockQueues[partition].isLockFree()) {
             nextTxn = this.lockQueues[partition].poll();
-        } finally {
-            this.lockQueueBarriers[partition].unlock();
-        } // SYNCH
+        } else {
+            this.lockQueueBarriers[partition].lockInterruptibly();
+            try {
+                nextTxn = this.lockQueues[partition].poll();
+            } finally {
+                this.lockQueueBarriers[partition].unlock();
+            } // SYNCH
+        }
         
         if (nextTxn == null) {
             if (hstore_conf.site.queue_profiling) profilers[partition].lock_time.stopIfStarted();
@@ -592,6 +781,11 @@ public class TransactionQueueManager extends ExceptionHandlingRunnable implement
                           ts, partition));
             checkQueue = false;
         }
+        // Single-partition txns that went through the fast lane were 
+        // never in the lock queue in the first place
+        else if (ts.isPredictSinglePartition() && ts.isMarkedReleased(partition)) {
+            checkQueue = false;
+        }
         
         // Always attempt to remove it from this partition's queue
         // If this remove() returns false, then we know that our transaction wasn't
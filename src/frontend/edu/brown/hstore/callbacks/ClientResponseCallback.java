@@ -5,11 +5,14 @@ package edu.brown.hstore.callbacks;
 
 import org.voltdb.ClientResponseImpl;
 import org.voltdb.exceptions.ClientConnectionLostException;
+import org.voltdb.messaging.FastSerializer;
 import org.voltdb.network.Connection;
+import org.voltdb.network.VoltProtocolHandler;
 
 import com.google.protobuf.RpcCallback;
 
 import edu.brown.hstore.ClientInterface;
+import edu.brown.hstore.util.ClientResponseBatcher;
 
 /**
  * Thin wrapper to sent a ClientResponse back to the client over a Connection handle
@@ -20,18 +23,51 @@ public class ClientResponseCallback implements RpcCallback<ClientResponseImpl> {
     private final ClientInterface clientInterface;
     private final Connection conn;
     private final int messageSize;
+    private final int compressionThreshold;
+    private final ClientResponseBatcher batcher;
     
     public ClientResponseCallback(ClientInterface clientInterface, Connection conn, int messageSize) {
+        this(clientInterface, conn, messageSize, -1);
+    }
+    
+    /**
+     * @param compressionThreshold If this is not negative, then responses that are at
+     * least this large will be compressed before they are sent back to the client
+     */
+    public ClientResponseCallback(ClientInterface clientInterface, Connection conn, int messageSize, int compressionThreshold) {
+        this.clientInterface = clientInterface;
+        this.conn = conn;
+        this.messageSize = messageSize;
+        this.compressionThreshold = compressionThreshold;
+        this.batcher = null;
+    }
+    
+    /**
+     * Send the ClientResponse through the connection's ClientResponseBatcher so that it
+     * can be coalesced with any other responses that are waiting to be written
+     */
+    public ClientResponseCallback(ClientInterface clientInterface, ClientResponseBatcher batcher, Connection conn, int messageSize) {
         this.clientInterface = clientInterface;
         this.conn = conn;
         this.messageSize = messageSize;
+        this.compressionThreshold = -1;
+        this.batcher = batcher;
     }
     
     
     @Override
     public void run(ClientResponseImpl parameter) {
         // Always reduce backpressure before we throw the exception
-        boolean ret = this.conn.writeStream().enqueue(parameter);
+        boolean ret;
+        if (this.batcher != null) {
+            ret = this.batcher.add(parameter);
+        } else if (this.compressionThreshold >= 0) {
+            ret = this.conn.writeStream().enqueue(
+                    VoltProtocolHandler.compressedSerialization(parameter, FastSerializer.INITIAL_ALLOCATION,
+                                                                this.compressionThreshold));
+        } else {
+            ret = this.conn.writeStream().enqueue(parameter);
+        }
         this.clientInterface.reduceBackpressure(this.messageSize);
         if (ret == false) {
             throw new ClientConnectionLostException(parameter.getTransactionId());
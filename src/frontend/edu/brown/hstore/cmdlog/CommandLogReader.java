@@ -32,8 +32,11 @@ import java.io.RandomAccessFile;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.log4j.Logger;
@@ -66,15 +69,45 @@ public class CommandLogReader implements Iterable<LogEntry> {
         LoggerUtil.attachObserver(LOG, debug, trace);
     }
     
-    final FastDeserializer fd;
+    final List<File> files;
+    FastDeserializer fd;
+    int segmentIdx = 0;
     final Map<Integer, String> procedures;
     boolean groupCommit;
+    boolean streams;
     
+    /**
+     * Constructor
+     * If the given path does not exist, then we will look for the segment
+     * files that were written out by a CommandLogSegmentManager for it.
+     * Segments that were left behind by an earlier log are ignored.
+     * @param path
+     */
     public CommandLogReader(String path) {
+        File f = new File(path);
+        if (f.exists()) {
+            this.files = Collections.singletonList(f);
+        } else {
+            this.files = CommandLogSegmentManager.getCurrentSegmentFiles(f);
+            if (this.files.isEmpty()) {
+                LOG.trace("Failed to open file :"+f.getAbsolutePath());
+                throw new RuntimeException("Command log file " + f.getAbsolutePath() + " does not exist");
+            }
+            LOG.trace("Found " + this.files.size() + " segments for " + f.getAbsolutePath());
+        }
+        this.fd = this.open(this.files.get(0));
+        this.procedures = this.readHeader();        
+    }
+    
+    /**
+     * Map the given file into memory
+     * @param f
+     * @return
+     */
+    private FastDeserializer open(File f) {
         FileChannel roChannel = null;
         ByteBuffer readonlybuffer = null;
         
-        File f = new File(path);
         try {
             roChannel = new RandomAccessFile(f, "r").getChannel();
             LOG.trace("File Size :"+roChannel.size());            
@@ -89,9 +122,137 @@ public class CommandLogReader implements Iterable<LogEntry> {
             throw new RuntimeException(ex);
         }
         assert(readonlybuffer != null);
-        this.fd = new FastDeserializer(readonlybuffer);
-                
-        this.procedures = this.readHeader();        
+        return (new FastDeserializer(readonlybuffer));
+    }
+    
+    /**
+     * Switch to the next segment file of the log. Each segment starts with
+     * its own copy of the header, so we have to skip past it.
+     * @param index
+     */
+    private void openSegment(int index) {
+        this.fd = this.open(this.files.get(index));
+        this.readHeader();
+    }
+    
+    /**
+     * Return the size of the next compressed block. If we reach the
+     * end of the current segment (either the end of the file or the
+     * zero-filled part of a preallocated segment), then we will move
+     * on to the next segment.
+     */
+    private int nextBlockSize() {
+        while (true) {
+            if (this.fd.buffer().remaining() >= 4) {
+                int size = this.fd.buffer().getInt();
+                if (size > 0) return (size);
+            }
+            if (this.segmentIdx + 1 >= this.files.size()) {
+                throw new BufferUnderflowException();
+            }
+            this.openSegment(++this.segmentIdx);
+        } // WHILE
+    }
+    
+    /**
+     * Move back to the first entry in the log so that it can be iterated over again.
+     * Any iterators that were created before this is called should not be used anymore.
+     */
+    public void rewind() {
+        this.segmentIdx = 0;
+        this.fd = this.open(this.files.get(0));
+        this.readHeader();
+    }
+    
+    public boolean isGroupCommit() {
+        return (this.groupCommit);
+    }
+    
+    /**
+     * Returns true if this log is one of a group of per-partition log streams
+     * and its entries include their cross-stream information.
+     */
+    public boolean hasStreams() {
+        return (this.streams);
+    }
+    
+    /**
+     * Returns an iterator over the compressed group commit blocks in the log.
+     * Each block can be decoded separately with {@link #decodeBlock(byte[], boolean)},
+     * which allows the caller to decompress and deserialize multiple blocks
+     * in parallel. This is only supported for logs that use group commit.
+     * <B>Note:</B> This shares its position in the log with {@link #iterator()}, 
+     * so you should only use one of them for each CommandLogReader.
+     * @return
+     */
+    public Iterator<byte[]> blockIterator() {
+        if (this.groupCommit == false) {
+            throw new NotImplementedException("Block iteration is only supported for group commit logs");
+        }
+        return new Iterator<byte[]>() {
+            private byte[] _next = this.read();
+            
+            private byte[] read() {
+                try {
+                    byte b[] = new byte[nextBlockSize()];
+                    fd.readFully(b);
+                    return (b);
+                } catch (IOException ex) {
+                    throw new RuntimeException("Failed to read block from the WAL file!", ex);
+                } catch (BufferUnderflowException ex) {
+                    return (null);
+                }
+            }
+            @Override
+            public boolean hasNext() {
+                return (_next != null);
+            }
+            @Override
+            public byte[] next() {
+                byte ret[] = _next;
+                _next = this.read();
+                return (ret);
+            }
+            @Override
+            public void remove() {
+                throw new NotImplementedException("Can't call remove! You crazy!");
+            }
+        };
+    }
+    
+    /**
+     * Decompress and deserialize all of the LogEntries in the given group commit block.
+     * This is thread-safe.
+     * @param compressed
+     * @return
+     */
+    public static List<LogEntry> decodeBlock(byte compressed[]) {
+        return (decodeBlock(compressed, false));
+    }
+    
+    /**
+     * Decompress and deserialize all of the LogEntries in the given group commit block.
+     * This is thread-safe.
+     * @param compressed
+     * @param streams whether the block came from a per-partition log stream (see {@link #hasStreams()})
+     * @return
+     */
+    public static List<LogEntry> decodeBlock(byte compressed[], boolean streams) {
+        List<LogEntry> entries = new ArrayList<LogEntry>();
+        FastDeserializer in = null;
+        try {
+            in = new FastDeserializer(CompressionService.decompressBytes(compressed));
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to decompress data from the WAL file!", ex);
+        }
+        while (in.buffer().hasRemaining()) {
+            try {
+                entries.add(readEntry(in, streams));
+            } catch (IOException ex) {
+                throw new RuntimeException("Failed to deserialize LogEntry!", ex);
+            }
+        } // WHILE
+        return (entries);
     }
     
     @Override
@@ -119,7 +280,7 @@ public class CommandLogReader implements Iterable<LogEntry> {
                 if (groupCommit && !decompressedFd.buffer().hasRemaining()) {                    
                     int sizeCompressed = 0;
                     try {
-                        sizeCompressed = fd.readInt();
+                        sizeCompressed = nextBlockSize();
                         byte[] b = new byte[sizeCompressed];
                         fd.readFully(b);
                         byte[] decompressed = CompressionService.decompressBytes(b);
@@ -135,9 +296,9 @@ public class CommandLogReader implements Iterable<LogEntry> {
                 
                 try {
                     if (groupCommit)
-                        _next = decompressedFd.readObject(LogEntry.class);
+                        _next = readEntry(decompressedFd, streams);
                     else
-                        _next = fd.readObject(LogEntry.class);
+                        _next = readEntry(fd, streams);
                 } catch (IOException ex) {
                     throw new RuntimeException("Failed to deserialize LogEntry!", ex);
                 } catch (BufferUnderflowException ex) {                    
@@ -163,6 +324,12 @@ public class CommandLogReader implements Iterable<LogEntry> {
         // So maybe we want to make this a StoredProcedure Invocation iterator?
     }
     
+    private static LogEntry readEntry(FastDeserializer in, boolean streams) throws IOException {
+        LogEntry entry = new LogEntry();
+        entry.readExternal(in, streams);
+        return (entry);
+    }
+    
     /**
      * 
      * @return
@@ -171,7 +338,9 @@ public class CommandLogReader implements Iterable<LogEntry> {
         Map<Integer, String> procedures = new HashMap<Integer, String>();
         
         try {
-            this.groupCommit = fd.readBoolean();
+            byte flags = fd.readByte();
+            this.groupCommit = ((flags & CommandLogWriter.HEADER_GROUP_COMMIT) != 0);
+            this.streams = ((flags & CommandLogWriter.HEADER_STREAMS) != 0);
             int num_procs = fd.readInt();
             for (int i = 0; i < num_procs; i++){
                 Integer proc_id = fd.readInt();
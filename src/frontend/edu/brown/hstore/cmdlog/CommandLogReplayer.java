@@ -0,0 +1,511 @@
+/***************************************************************************
+ *   Copyright (C) 2012 by H-Store Project                                 *
+ *   Brown University                                                      *
+ *   Massachusetts Institute of Technology                                 *
+ *   Yale University                                                       *
+ *                                                                         *
+ *   Permission is hereby granted, free of charge, to any person obtaining *
+ *   a copy of this software and associated documentation files (the       *
+ *   "Software"), to deal in the Software without restriction, including   *
+ *   without limitation the rights to use, copy, modify, merge, publish,   *
+ *   distribute, sublicense, and/or sell copies of the Software, and to    *
+ *   permit persons to whom the Software is furnished to do so, subject to *
+ *   the following conditions:                                             *
+ *                                                                         *
+ *   The above copyright notice and this permission notice shall be        *
+ *   included in all copies or substantial portions of the Software.       *
+ *                                                                         *
+ *   THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       *
+ *   EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    *
+ *   MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*
+ *   IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR     *
+ *   OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, *
+ *   ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR *
+ *   OTHER DEALINGS IN THE SOFTWARE.                                       *
+ ***************************************************************************/
+package edu.brown.hstore.cmdlog;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.voltdb.CatalogContext;
+import org.voltdb.ClientResponseImpl;
+import org.voltdb.catalog.Procedure;
+import org.voltdb.exceptions.ServerFaultException;
+import org.voltdb.utils.EstTime;
+import org.voltdb.utils.NotImplementedException;
+
+import com.google.protobuf.RpcCallback;
+
+import edu.brown.hstore.HStoreConstants;
+import edu.brown.hstore.HStoreSite;
+import edu.brown.hstore.HStoreThreadManager;
+import edu.brown.hstore.Hstoreservice.Status;
+import edu.brown.hstore.txns.LocalTransaction;
+import edu.brown.logging.LoggerUtil;
+import edu.brown.logging.LoggerUtil.LoggerBoolean;
+import edu.brown.utils.PartitionEstimator;
+import edu.brown.utils.PartitionSet;
+import edu.brown.utils.ThreadUtil;
+
+/**
+ * Replays the transactions in a command log at an HStoreSite.
+ * Group commit batches are decompressed and deserialized on a pool of threads
+ * while the replay thread dispatches the entries that have already been decoded.
+ * Single-partition txns are queued at their base partition without waiting for
+ * them to finish, so txns at different partitions are replayed concurrently.
+ * Since the txn ids that we assign are monotonically increasing, the txns at the
+ * same partition are still executed in the same order as they were logged.
+ * Multi-partition txns act as barriers: we wait for all outstanding txns to
+ * finish, run the distributed txn by itself, and then continue.
+ * <P>
+ * If the log was written out as multiple per-partition streams, then we merge
+ * their entries by txn id and use the cross-stream markers to find the 
+ * multi-partition txns that were not durable in all of the streams that they
+ * were recorded in. These txns are not replayed, and neither is anything that
+ * comes after them in the streams that they do appear in.
+ */
+public class CommandLogReplayer {
+    private static final Logger LOG = Logger.getLogger(CommandLogReplayer.class);
+    private static final LoggerBoolean debug = new LoggerBoolean();
+    private static final LoggerBoolean trace = new LoggerBoolean();
+    static {
+        LoggerUtil.attachObserver(LOG, debug, trace);
+    }
+
+    private final HStoreSite hstore_site;
+    private final CatalogContext catalogContext;
+    private final PartitionEstimator p_estimator;
+    private final PartitionSet localPartitions;
+    private final List<CommandLogReader> readers;
+    private final int num_threads;
+
+    /**
+     * The number of txns that we have queued but have not finished yet
+     */
+    private final AtomicInteger outstanding = new AtomicInteger(0);
+
+    /**
+     * Limits the number of outstanding txns so that we don't flood the
+     * HStoreSite with the entire log at once.
+     */
+    private final Semaphore throttle;
+    private final int throttleSize;
+
+    private final AtomicInteger failures = new AtomicInteger(0);
+    private int singlePartitionCounter = 0;
+    private int barrierCounter = 0;
+    private long clientHandle = 0;
+
+    /**
+     * Callback that is invoked when a replayed txn finishes
+     */
+    private final RpcCallback<ClientResponseImpl> callback = new RpcCallback<ClientResponseImpl>() {
+        @Override
+        public void run(ClientResponseImpl cresponse) {
+            if (cresponse.getStatus() != Status.OK) {
+                LOG.warn(String.format("Failed to replay txn #%d from the command log [status=%s]\n%s",
+                                       cresponse.getTransactionId(), cresponse.getStatus(),
+                                       cresponse.getStatusString()));
+                failures.incrementAndGet();
+            }
+            throttle.release();
+            if (outstanding.decrementAndGet() == 0) {
+                synchronized (outstanding) {
+                    outstanding.notifyAll();
+                } // SYNCH
+            }
+        }
+    };
+
+    /**
+     * Constructor
+     * @param hstore_site
+     * @param reader
+     * @param num_threads The number of threads to use to decode log batches
+     */
+    public CommandLogReplayer(HStoreSite hstore_site, CommandLogReader reader, int num_threads) {
+        this(hstore_site, Collections.singletonList(reader), num_threads);
+    }
+    
+    /**
+     * Constructor for replaying the output of multiple command log streams
+     * @param hstore_site
+     * @param readers One reader per stream
+     * @param num_threads The number of threads to use to decode log batches
+     */
+    public CommandLogReplayer(HStoreSite hstore_site, List<CommandLogReader> readers, int num_threads) {
+        assert(readers.isEmpty() == false);
+        this.hstore_site = hstore_site;
+        this.catalogContext = hstore_site.getCatalogContext();
+        this.p_estimator = hstore_site.getPartitionEstimator();
+        this.localPartitions = hstore_site.getLocalPartitionIds();
+        this.readers = readers;
+        this.num_threads = (readers.get(0).isGroupCommit() ? num_threads : 0);
+        this.throttleSize = Math.max(1, hstore_site.getHStoreConf().site.network_incoming_limit_txns);
+        this.throttle = new Semaphore(this.throttleSize);
+    }
+
+    /**
+     * Replay all of the entries in the log. This is a blocking call that
+     * returns once all of the replayed txns have finished.
+     * @return the number of txns that were replayed
+     */
+    public int replay() {
+        long start = System.currentTimeMillis();
+        int ctr = 0;
+        ExecutorService pool = null;
+        if (this.num_threads > 0) {
+            pool = Executors.newFixedThreadPool(this.num_threads,
+                    ThreadUtil.getThreadFactory(HStoreThreadManager.getThreadName(hstore_site, HStoreConstants.THREAD_NAME_COMMANDLOGGER, "replay"),
+                                                Thread.getDefaultUncaughtExceptionHandler()));
+        }
+        try {
+            if (this.readers.size() > 1) {
+                ctr = this.replayStreams(pool);
+            } else if (this.readers.get(0).isGroupCommit()) {
+                ctr = this.replayBatches(pool);
+            } else {
+                for (LogEntry entry : this.readers.get(0)) {
+                    this.dispatch(entry);
+                    ctr++;
+                } // FOR
+            }
+        } finally {
+            if (pool != null) pool.shutdownNow();
+        }
+        this.waitForOutstanding();
+
+        LOG.info(String.format("Replayed %d txns from the command log in %.1f sec " +
+                               "[singlePartition=%d, barriers=%d, failures=%d, decodeThreads=%d]",
+                               ctr, (System.currentTimeMillis() - start) / 1000d,
+                               this.singlePartitionCounter, this.barrierCounter,
+                               this.failures.get(), this.num_threads));
+        return (ctr);
+    }
+
+    /**
+     * Replay the group commit batches of a single log. If we have a pool, then
+     * the batches are decoded on it. We keep a bounded number of batches in flight
+     * and always dispatch them in the order that they were written out.
+     * The entries within each batch are dispatched in txn id order.
+     * @param pool the pool to decode the log batches with (may be null)
+     * @return
+     */
+    private int replayBatches(ExecutorService pool) {
+        int ctr = 0;
+        int window = this.num_threads * 2;
+        LinkedList<Future<List<LogEntry>>> pending = new LinkedList<Future<List<LogEntry>>>();
+        CommandLogReader reader = this.readers.get(0);
+        Iterator<byte[]> it = reader.blockIterator();
+        while (it.hasNext() || pending.isEmpty() == false) {
+            List<LogEntry> entries = null;
+            if (pool == null) {
+                entries = decodeBlock(it.next(), reader.hasStreams());
+            } else {
+                while (it.hasNext() && pending.size() < window) {
+                    pending.add(this.submitBlock(pool, it.next(), reader.hasStreams()));
+                } // WHILE
+                entries = this.getBlock(pending.removeFirst());
+            }
+            for (LogEntry entry : entries) {
+                this.dispatch(entry);
+                ctr++;
+            } // FOR
+        } // WHILE
+        return (ctr);
+    }
+    
+    /**
+     * Merge the entries from all of our log streams and replay them in txn id
+     * order. Since each partition executes its txns in txn id order, this is a
+     * valid serial order for all of the streams. Once we sort the entries within
+     * each batch of a stream, the txns of every partition in that stream are in
+     * txn id order, so we only need to keep the current batch of each stream in memory.
+     * <P>
+     * We first make a pass over the streams to count the parts of each
+     * multi-partition txn. If one of these txns is missing from one of the streams
+     * that it was recorded in, then that stream's writer never made it durable 
+     * and the txn's ClientResponse was never sent out. We skip that txn in the
+     * streams that it does appear in, along with everything after it in those
+     * streams, since those txns may have seen its changes. The stream that is 
+     * missing the txn has nothing after it either, because each stream is only
+     * ever written out in order. All of the other streams are replayed in full.
+     * @param pool the pool to decode the log batches with (may be null)
+     * @return
+     */
+    private int replayStreams(ExecutorService pool) {
+        Map<Long, Integer> streamCounts = new HashMap<Long, Integer>();
+        Map<Long, Integer> expectedCounts = new HashMap<Long, Integer>();
+        List<Map<Long, Long>> positions = new ArrayList<Map<Long, Long>>();
+        for (CommandLogReader reader : this.readers) {
+            Map<Long, Long> streamPositions = new HashMap<Long, Long>();
+            StreamIterator it = new StreamIterator(reader, pool, Long.MAX_VALUE);
+            while (it.hasNext()) {
+                long position = it.getPosition();
+                LogEntry entry = it.next();
+                if (entry.getStreamCount() > 1) {
+                    Long txnId = entry.getTransactionId();
+                    Integer cnt = streamCounts.get(txnId);
+                    streamCounts.put(txnId, (cnt == null ? 1 : cnt.intValue() + 1));
+                    expectedCounts.put(txnId, entry.getStreamCount());
+                    streamPositions.put(txnId, position);
+                }
+            } // WHILE
+            positions.add(streamPositions);
+            reader.rewind();
+        } // FOR
+        
+        // Figure out where each stream needs to stop
+        long limits[] = new long[this.readers.size()];
+        Arrays.fill(limits, Long.MAX_VALUE);
+        for (Map.Entry<Long, Integer> e : streamCounts.entrySet()) {
+            if (e.getValue().intValue() == expectedCounts.get(e.getKey()).intValue()) continue;
+            for (int i = 0; i < limits.length; i++) {
+                Long position = positions.get(i).get(e.getKey());
+                if (position != null && position.longValue() < limits[i]) limits[i] = position.longValue();
+            } // FOR
+            if (debug.val)
+                LOG.debug(String.format("Txn #%d is missing from %d of the command log streams that it was recorded in",
+                                        e.getKey(), expectedCounts.get(e.getKey()) - e.getValue()));
+        } // FOR
+        for (int i = 0; i < limits.length; i++) {
+            if (limits[i] == Long.MAX_VALUE) continue;
+            LOG.warn(String.format("Command log stream #%d has a multi-partition txn that is missing from " +
+                                   "the other streams. Only replaying the first %d entries of it", i, limits[i]));
+        } // FOR
+        
+        // Merge the streams by the txn id of their next entry
+        PriorityQueue<StreamIterator> merge = new PriorityQueue<StreamIterator>(this.readers.size());
+        for (int i = 0; i < limits.length; i++) {
+            StreamIterator it = new StreamIterator(this.readers.get(i), pool, limits[i]);
+            if (it.hasNext()) merge.add(it);
+        } // FOR
+        int ctr = 0;
+        while (merge.isEmpty() == false) {
+            StreamIterator it = merge.poll();
+            LogEntry entry = it.next();
+            if (entry.isStreamMarker() == false) {
+                this.dispatch(entry);
+                ctr++;
+            }
+            if (it.hasNext()) merge.add(it);
+        } // WHILE
+        return (ctr);
+    }
+    
+    private Future<List<LogEntry>> submitBlock(ExecutorService pool, final byte block[], final boolean streams) {
+        return pool.submit(new Callable<List<LogEntry>>() {
+            @Override
+            public List<LogEntry> call() throws Exception {
+                return decodeBlock(block, streams);
+            }
+        });
+    }
+    
+    /**
+     * Decode the given group commit batch and sort its entries by txn id.
+     * The writer serializes a batch one partition buffer at a time, so the
+     * entries in a batch are not in the order that they were executed in.
+     * Sorting them does not change the order of the txns at any one partition.
+     * @param block
+     * @param streams
+     * @return
+     */
+    private static List<LogEntry> decodeBlock(byte block[], boolean streams) {
+        List<LogEntry> entries = CommandLogReader.decodeBlock(block, streams);
+        Collections.sort(entries, LogEntry.TXN_ID_COMPARATOR);
+        return (entries);
+    }
+    
+    private List<LogEntry> getBlock(Future<List<LogEntry>> future) {
+        try {
+            return (future.get());
+        } catch (InterruptedException ex) {
+            throw new ServerFaultException("Unexpected interruption while replaying command log", ex);
+        } catch (ExecutionException ex) {
+            throw new ServerFaultException("Failed to decode command log batch", ex.getCause());
+        }
+    }
+
+    /**
+     * Iterates over the entries of a single log stream in txn id order. If we 
+     * have a pool, then the stream's batches are decoded ahead of time on it. 
+     */
+    private class StreamIterator implements Iterator<LogEntry>, Comparable<StreamIterator> {
+        private final CommandLogReader reader;
+        private final Iterator<byte[]> blocks;
+        private final LinkedList<Future<List<LogEntry>>> pending = new LinkedList<Future<List<LogEntry>>>();
+        private final ExecutorService pool;
+        private final long limit;
+        private long position = 0;
+        private Iterator<LogEntry> current;
+        private LogEntry _next;
+        
+        /**
+         * @param reader
+         * @param pool
+         * @param limit the number of entries to return from the stream
+         */
+        private StreamIterator(CommandLogReader reader, ExecutorService pool, long limit) {
+            this.reader = reader;
+            this.pool = pool;
+            this.limit = limit;
+            this.blocks = reader.blockIterator();
+            this._next = this.read();
+        }
+        
+        /**
+         * Return the position of the next entry in the stream
+         */
+        private long getPosition() {
+            return (this.position);
+        }
+        
+        private LogEntry read() {
+            if (this.position >= this.limit) {
+                return (null);
+            }
+            while (this.current == null || this.current.hasNext() == false) {
+                if (this.pool == null) {
+                    if (this.blocks.hasNext() == false) return (null);
+                    this.current = decodeBlock(this.blocks.next(), this.reader.hasStreams()).iterator();
+                    continue;
+                }
+                while (this.blocks.hasNext() && this.pending.size() < num_threads * 2) {
+                    this.pending.add(submitBlock(this.pool, this.blocks.next(), this.reader.hasStreams()));
+                } // WHILE
+                if (this.pending.isEmpty()) return (null);
+                this.current = getBlock(this.pending.removeFirst()).iterator();
+            } // WHILE
+            return (this.current.next());
+        }
+        @Override
+        public boolean hasNext() {
+            return (this._next != null);
+        }
+        @Override
+        public LogEntry next() {
+            LogEntry ret = this._next;
+            this.position++;
+            this._next = this.read();
+            return (ret);
+        }
+        @Override
+        public void remove() {
+            throw new NotImplementedException("Can't call remove! You crazy!");
+        }
+        @Override
+        public int compareTo(StreamIterator other) {
+            return (this._next.getTransactionId().compareTo(other._next.getTransactionId()));
+        }
+    } // CLASS
+
+    /**
+     * Queue the txn for the given LogEntry at this HStoreSite
+     * @param entry
+     */
+    private void dispatch(LogEntry entry) {
+        // Cross-stream markers are only needed to merge multiple streams
+        if (entry.isStreamMarker()) return;
+        
+        Procedure catalog_proc = this.catalogContext.getProcedureById(entry.getProcedureId());
+        if (catalog_proc == null) {
+            throw new ServerFaultException("Invalid procedure id in command log entry " + entry, entry.getTransactionId());
+        }
+        // Read-only txns did not change anything, so there is nothing to replay
+        if (catalog_proc.getReadonly()) return;
+
+        int base_partition = HStoreConstants.NULL_PARTITION_ID;
+        try {
+            base_partition = this.p_estimator.getBasePartition(catalog_proc, entry.getProcedureParams().toArray());
+        } catch (Exception ex) {
+            throw new ServerFaultException("Failed to calculate base partition for command log entry " + entry, ex);
+        }
+
+        // If we don't know where this txn needs to go or it's not single-partitioned,
+        // then it has to wait for everything before it and everything after it has to wait for it
+        boolean barrier = (catalog_proc.getSinglepartition() == false ||
+                           catalog_proc.getSystemproc() ||
+                           this.localPartitions.contains(base_partition) == false);
+        if (barrier) {
+            if (this.localPartitions.contains(base_partition) == false) {
+                base_partition = this.localPartitions.get();
+            }
+            this.waitForOutstanding();
+            this.barrierCounter++;
+        } else {
+            this.singlePartitionCounter++;
+        }
+        if (trace.val)
+            LOG.trace(String.format("Replaying %s at partition %d [barrier=%s]", entry, base_partition, barrier));
+
+        this.throttle.acquireUninterruptibly();
+        this.outstanding.incrementAndGet();
+        this.queue(entry, catalog_proc, base_partition, barrier, this.callback);
+
+        if (barrier) this.waitForOutstanding();
+    }
+    
+    /**
+     * Create a new txn for the given LogEntry and queue it at the HStoreSite.
+     * The callback must be invoked once the txn has finished.
+     * @param entry
+     * @param catalog_proc
+     * @param base_partition
+     * @param barrier true if nothing else is running while this txn executes
+     * @param callback
+     */
+    protected void queue(LogEntry entry, Procedure catalog_proc, int base_partition,
+                         boolean barrier, RpcCallback<ClientResponseImpl> callback) {
+        LocalTransaction ts = this.hstore_site.getTransactionInitializer()
+                                             .createLocalTransaction(null,
+                                                                     EstTime.currentTimeMillis(),
+                                                                     this.clientHandle++,
+                                                                     base_partition,
+                                                                     catalog_proc,
+                                                                     entry.getProcedureParams(),
+                                                                     callback);
+        this.hstore_site.transactionQueue(ts);
+    }
+
+    /**
+     * Block until all of the txns that we have queued have finished
+     */
+    private void waitForOutstanding() {
+        synchronized (this.outstanding) {
+            while (this.outstanding.get() > 0) {
+                try {
+                    this.outstanding.wait();
+                } catch (InterruptedException ex) {
+                    throw new ServerFaultException("Unexpected interruption while replaying command log", ex);
+                }
+            } // WHILE
+        } // SYNCH
+    }
+
+    public int getFailureCount() {
+        return (this.failures.get());
+    }
+    public int getSinglePartitionCount() {
+        return (this.singlePartitionCounter);
+    }
+    public int getBarrierCount() {
+        return (this.barrierCounter);
+    }
+}
@@ -0,0 +1,515 @@
+/***************************************************************************
+ *   Copyright (C) 2012 by H-Store Project                                 *
+ *   Brown University                                                      *
+ *   Massachusetts Institute of Technology                                 *
+ *   Yale University                                                       *
+ *                                                                         *
+ *   Permission is hereby granted, free of charge, to any person obtaining *
+ *   a copy of this software and associated documentation files (the       *
+ *   "Software"), to deal in the Software without restriction, including   *
+ *   without limitation the rights to use, copy, modify, merge, publish,   *
+ *   distribute, sublicense, and/or sell copies of the Software, and to    *
+ *   permit persons to whom the Software is furnished to do so, subject to *
+ *   the following conditions:                                             *
+ *                                                                         *
+ *   The above copyright notice and this permission notice shall be        *
+ *   included in all copies or substantial portions of the Software.       *
+ *                                                                         *
+ *   THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       *
+ *   EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    *
+ *   MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*
+ *   IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR     *
+ *   OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, *
+ *   ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR *
+ *   OTHER DEALINGS IN THE SOFTWARE.                                       *
+ ***************************************************************************/
+package edu.brown.hstore.cmdlog;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+import org.voltdb.exceptions.ServerFaultException;
+
+import edu.brown.logging.LoggerUtil;
+import edu.brown.logging.LoggerUtil.LoggerBoolean;
+
+/**
+ * Manages a command log that is split into fixed-size segment files.
+ * Each segment is preallocated and zero-filled up front, and then written
+ * through a MappedByteBuffer. Since the size of the file never changes,
+ * flushing a segment only needs to sync its data and not the file's metadata.
+ * <B>Note:</B> Every segment starts with its own copy of the log header, and a
+ * zero-length block marks the end of the data in a segment.
+ *
+ * Segments that only contain txns that are covered by a snapshot can be
+ * recycled. We zero them out again and then reuse them as new segments.
+ * Spare segments use a separate file name until they are activated, at which
+ * point they are renamed with the next sequence id. This ensures that the
+ * sequence ids of the segments always match the order that they were written in.
+ *
+ * Any segments that are left behind by an earlier log with the same base file
+ * are removed when we start, just like the non-segmented CommandLogWriter
+ * truncates its log file.
+ */
+public class CommandLogSegmentManager {
+    private static final Logger LOG = Logger.getLogger(CommandLogSegmentManager.class);
+    private static final LoggerBoolean debug = new LoggerBoolean();
+    private static final LoggerBoolean trace = new LoggerBoolean();
+    static {
+        LoggerUtil.attachObserver(LOG, debug, trace);
+    }
+
+    /**
+     * The size of the zero-length marker at the end of the data in a segment
+     */
+    private static final int END_MARKER_SIZE = 4;
+
+    private static final int ZERO_FILL_CHUNK = 1024 * 1024;
+
+    /**
+     * The part of the file names of segments and spares that comes after the base name
+     */
+    private static final String SEGMENT_PATTERN = "\\.([\\d]+)";
+    private static final String SPARE_PATTERN = "\\.spare([\\d]+)";
+
+    /**
+     * A single segment file of the command log
+     */
+    protected static class Segment {
+        private File file;
+        private long seqId;
+        private final int size;
+        private MappedByteBuffer buffer;
+        /** The largest txnId that was written out to this segment */
+        private long maxTxnId = -1;
+
+        private Segment(File file, long seqId, int size) {
+            this.file = file;
+            this.seqId = seqId;
+            this.size = size;
+        }
+        public File getFile() {
+            return (this.file);
+        }
+        public long getSequenceId() {
+            return (this.seqId);
+        }
+        public long getMaxTransactionId() {
+            return (this.maxTxnId);
+        }
+        @Override
+        public String toString() {
+            return String.format("Segment[%s, maxTxnId=%d]", this.file.getName(), this.maxTxnId);
+        }
+    } // CLASS
+
+    private final File baseFile;
+    private final int segmentSize;
+    private final ByteBuffer header;
+
+    /**
+     * The segment that we are currently writing to
+     */
+    private Segment current;
+
+    /**
+     * Segments that are full and are waiting for a snapshot to cover them
+     */
+    private final LinkedList<Segment> closed = new LinkedList<Segment>();
+
+    /**
+     * Preallocated segments that are waiting to be used
+     */
+    private final LinkedList<Segment> spares = new LinkedList<Segment>();
+
+    /**
+     * The sequence id of the next segment that we activate
+     */
+    private long nextSeqId = 0;
+    
+    /**
+     * The id of the next spare segment file
+     */
+    private long nextSpareId = 0;
+    private int recycleCounter = 0;
+
+    /**
+     * Constructor
+     * @param baseFile The file name that we will use to generate the segment file names
+     * @param segmentSize The size of each segment in bytes
+     * @param numPreallocated The number of segments to preallocate
+     * @param header The log header that is written at the start of each segment
+     */
+    public CommandLogSegmentManager(File baseFile, int segmentSize, int numPreallocated, ByteBuffer header) {
+        this.baseFile = baseFile;
+        this.header = header.asReadOnlyBuffer();
+        this.segmentSize = Math.max(segmentSize, this.header.remaining() + END_MARKER_SIZE + 1);
+
+        this.baseFile.getParentFile().mkdirs();
+        this.removeStaleSegments();
+        for (int i = 0, cnt = Math.max(1, numPreallocated); i < cnt; i++) {
+            this.spares.add(this.preallocate(this.segmentSize));
+        } // FOR
+        this.current = this.activate(this.spares.poll());
+        LOG.info(String.format("Command Log Segments: %s [segmentSize=%d, preallocated=%d]",
+                               getSegmentFile(this.baseFile, this.current.seqId).getAbsolutePath(),
+                               this.segmentSize, numPreallocated));
+    }
+
+    /**
+     * Delete the segment files and spares that an earlier log with the same
+     * base file left behind. Otherwise the reader would mix them in with our
+     * segments, and activating a spare would replace the old segment that
+     * has the same sequence id.
+     */
+    private void removeStaleSegments() {
+        List<File> stale = new ArrayList<File>(getSegmentFiles(this.baseFile));
+        stale.addAll(listFiles(this.baseFile, SPARE_PATTERN));
+        for (File f : stale) {
+            if (f.delete() == false) {
+                String message = "Failed to delete stale command log segment " + f.getAbsolutePath();
+                throw new ServerFaultException(message, (Throwable)null);
+            }
+        } // FOR
+        if (stale.isEmpty() == false) {
+            LOG.warn(String.format("Deleted %d command log segments that were left behind by an earlier log for %s",
+                                   stale.size(), this.baseFile.getAbsolutePath()));
+        }
+    }
+
+    // ----------------------------------------------------------------------------
+    // WRITING
+    // ----------------------------------------------------------------------------
+
+    /**
+     * Append the given block to the log. If the block does not fit in the current
+     * segment, then we will force the current segment out to disk and rotate
+     * to the next one.
+     * @param block
+     * @param maxTxnId The largest txnId contained in this block
+     */
+    public void write(ByteBuffer block, long maxTxnId) {
+        int length = block.remaining();
+        if (this.current.buffer.remaining() < length + END_MARKER_SIZE) {
+            this.rotate(length);
+        }
+        this.current.buffer.put(block);
+        if (maxTxnId > this.current.maxTxnId) this.current.maxTxnId = maxTxnId;
+    }
+
+    /**
+     * Flush the data of the current segment out to disk
+     */
+    public void force() {
+        this.current.buffer.force();
+    }
+
+    /**
+     * Switch to the next segment. The old segment will be made durable before
+     * we return.
+     * @param length The size of the block that we need to write after rotating
+     */
+    private void rotate(int length) {
+        Segment old = this.current;
+        old.buffer.force();
+        old.buffer = null;
+
+        Segment next = null;
+        synchronized (this) {
+            this.closed.add(old);
+            if (this.header.remaining() + length + END_MARKER_SIZE <= this.segmentSize) {
+                next = this.spares.poll();
+            }
+            if (next == null) {
+                // We either ran out of spare segments or this block is too big
+                // for a normal segment. This will hurt, but it should be rare
+                int size = Math.max(this.segmentSize, this.header.remaining() + length + END_MARKER_SIZE);
+                next = this.preallocate(size);
+            }
+            next = this.activate(next);
+        } // SYNCH
+        if (debug.val)
+            LOG.debug(String.format("Rotating from %s to %s", old, next));
+        this.current = next;
+    }
+
+    /**
+     * Create a new zero-filled spare segment file with the log header at the beginning.
+     * The segment will not get a sequence id until it is activated.
+     * @param size
+     * @return
+     */
+    private Segment preallocate(int size) {
+        File f = getSpareFile(this.baseFile, this.nextSpareId++);
+        Segment segment = new Segment(f, -1, size);
+        try {
+            zeroFill(f, size, this.header);
+        } catch (IOException ex) {
+            String message = "Failed to preallocate command log segment " + f.getAbsolutePath();
+            throw new ServerFaultException(message, ex);
+        }
+        if (trace.val)
+            LOG.trace("Preallocated " + segment);
+        return (segment);
+    }
+
+    /**
+     * Give the spare segment the next sequence id and then memory-map
+     * it so that we can start writing to it
+     * @param segment
+     * @return
+     */
+    private Segment activate(Segment segment) {
+        long seqId = this.nextSeqId;
+        File f = getSegmentFile(this.baseFile, seqId);
+        if (segment.file.renameTo(f) == false) {
+            String message = String.format("Failed to rename command log segment %s to %s",
+                                           segment.file.getAbsolutePath(), f.getAbsolutePath());
+            throw new ServerFaultException(message, (Throwable)null);
+        }
+        this.nextSeqId++;
+        segment.file = f;
+        segment.seqId = seqId;
+        
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(segment.file, "rw");
+            segment.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segment.size);
+        } catch (IOException ex) {
+            String message = "Failed to map command log segment " + segment.file.getAbsolutePath();
+            throw new ServerFaultException(message, ex);
+        } finally {
+            // The mapping stays valid after the channel is closed
+            try {
+                if (raf != null) raf.close();
+            } catch (IOException ex) {
+                // Ignore
+            }
+        }
+        segment.buffer.position(this.header.remaining());
+        return (segment);
+    }
+
+    // ----------------------------------------------------------------------------
+    // RECYCLING
+    // ----------------------------------------------------------------------------
+
+    /**
+     * Recycle all of the closed segments that only contain txns that are
+     * older than the given txnId. This should be invoked once a snapshot
+     * that was taken by txnId is durable.
+     * @param txnId
+     * @return the number of segments that were recycled
+     */
+    public int recycle(long txnId) {
+        List<Segment> toRecycle = new ArrayList<Segment>();
+        synchronized (this) {
+            Iterator<Segment> it = this.closed.iterator();
+            while (it.hasNext()) {
+                Segment segment = it.next();
+                if (segment.maxTxnId >= txnId) break;
+                toRecycle.add(segment);
+                it.remove();
+            } // WHILE
+        } // SYNCH
+
+        for (Segment segment : toRecycle) {
+            Segment reused = null;
+            synchronized (this) {
+                File f = getSpareFile(this.baseFile, this.nextSpareId++);
+                try {
+                    zeroFill(segment.file, segment.size, this.header);
+                } catch (IOException ex) {
+                    String message = "Failed to recycle command log segment " + segment.file.getAbsolutePath();
+                    throw new ServerFaultException(message, ex);
+                }
+                if (segment.file.renameTo(f) == false) {
+                    LOG.warn("Failed to rename command log segment " + segment.file.getAbsolutePath());
+                    continue;
+                }
+                // Oversized segments are not worth keeping around
+                if (segment.size == this.segmentSize) {
+                    reused = new Segment(f, -1, segment.size);
+                    this.spares.add(reused);
+                } else {
+                    f.delete();
+                }
+                this.recycleCounter++;
+            } // SYNCH
+            if (debug.val)
+                LOG.debug(String.format("Recycled %s as %s [snapshotTxnId=%d]", segment, reused, txnId));
+        } // FOR
+        return (toRecycle.size());
+    }
+
+    /**
+     * Close the segment that we are currently writing to and remove
+     * the spare segments that we never used.
+     */
+    public void close() {
+        if (this.current != null && this.current.buffer != null) {
+            this.current.buffer.force();
+            this.current.buffer = null;
+        }
+        synchronized (this) {
+            for (Segment segment : this.spares) {
+                if (segment.file.delete() == false) {
+                    LOG.warn("Failed to delete spare command log segment " + segment.file.getAbsolutePath());
+                }
+            } // FOR
+            this.spares.clear();
+        } // SYNCH
+    }
+
+    // ----------------------------------------------------------------------------
+    // UTILITY METHODS
+    // ----------------------------------------------------------------------------
+
+    public int getSegmentSize() {
+        return (this.segmentSize);
+    }
+    public synchronized int getClosedSegmentCount() {
+        return (this.closed.size());
+    }
+    public synchronized int getSpareSegmentCount() {
+        return (this.spares.size());
+    }
+    public synchronized int getRecycleCount() {
+        return (this.recycleCounter);
+    }
+    public File getCurrentSegmentFile() {
+        return (this.current.file);
+    }
+
+    private static void zeroFill(File f, int size, ByteBuffer header) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer zeros = ByteBuffer.allocate(Math.min(size, ZERO_FILL_CHUNK));
+            channel.position(0);
+            for (int written = 0; written < size; ) {
+                zeros.clear();
+                zeros.limit(Math.min(zeros.capacity(), size - written));
+                written += channel.write(zeros);
+            } // FOR
+            channel.truncate(size);
+            channel.write(header.duplicate(), 0);
+            channel.force(true);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static String getBaseName(File baseFile) {
+        String name = baseFile.getName();
+        if (name.endsWith(CommandLogWriter.LOG_OUTPUT_EXT)) {
+            name = name.substring(0, name.length() - CommandLogWriter.LOG_OUTPUT_EXT.length());
+        }
+        return (name);
+    }
+
+    /**
+     * Return the file for the given segment of the command log
+     * @param baseFile
+     * @param seqId
+     * @return
+     */
+    public static File getSegmentFile(File baseFile, long seqId) {
+        String name = String.format("%s.%06d%s", getBaseName(baseFile), seqId, CommandLogWriter.LOG_OUTPUT_EXT);
+        return new File(baseFile.getParentFile(), name);
+    }
+
+    /**
+     * Return the file for the given spare segment. Spare segments do
+     * not contain any log data, so the reader will ignore them.
+     * @param baseFile
+     * @param spareId
+     * @return
+     */
+    private static File getSpareFile(File baseFile, long spareId) {
+        String name = String.format("%s.spare%06d%s", getBaseName(baseFile), spareId, CommandLogWriter.LOG_OUTPUT_EXT);
+        return new File(baseFile.getParentFile(), name);
+    }
+
+    /**
+     * Return all of the segment files that exist for the given command log,
+     * sorted by their sequence id.
+     * @param baseFile
+     * @return
+     */
+    public static List<File> getSegmentFiles(File baseFile) {
+        return (listFiles(baseFile, SEGMENT_PATTERN));
+    }
+    
+    /**
+     * Return the segment files that belong to the most recent log for the given
+     * base file, sorted by their sequence id. The segments of a single log always
+     * have consecutive sequence ids because we only ever recycle the oldest ones,
+     * so anything before a gap in the sequence ids is from some other log.
+     * @param baseFile
+     * @return
+     */
+    public static List<File> getCurrentSegmentFiles(File baseFile) {
+        List<File> files = getSegmentFiles(baseFile);
+        int first = files.size() - 1;
+        while (first > 0 && getSequenceId(files.get(first - 1)) + 1 == getSequenceId(files.get(first))) {
+            first--;
+        } // WHILE
+        if (first > 0) {
+            LOG.warn(String.format("Ignoring %d command log segments for %s that are not part of the most recent log",
+                                   first, baseFile.getAbsolutePath()));
+            files = files.subList(first, files.size());
+        }
+        return (files);
+    }
+    
+    /**
+     * Return the sequence id in the name of the given segment file
+     * @param f
+     * @return
+     */
+    private static long getSequenceId(File f) {
+        String name = f.getName();
+        name = name.substring(0, name.length() - CommandLogWriter.LOG_OUTPUT_EXT.length());
+        return (Long.parseLong(name.substring(name.lastIndexOf('.') + 1)));
+    }
+    
+    private static List<File> listFiles(File baseFile, String suffix) {
+        final Pattern p = Pattern.compile(Pattern.quote(getBaseName(baseFile)) +
+                                          suffix +
+                                          Pattern.quote(CommandLogWriter.LOG_OUTPUT_EXT));
+        File dir = baseFile.getAbsoluteFile().getParentFile();
+        File files[] = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return (p.matcher(f.getName()).matches());
+            }
+        });
+        if (files == null) return (new ArrayList<File>());
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f0, File f1) {
+                Matcher m0 = p.matcher(f0.getName());
+                Matcher m1 = p.matcher(f1.getName());
+                m0.matches();
+                m1.matches();
+                return Long.valueOf(m0.group(1)).compareTo(Long.valueOf(m1.group(1)));
+            }
+        });
+        return (Arrays.asList(files));
+    }
+}
@@ -30,10 +30,18 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 import org.voltdb.CatalogContext;
@@ -58,6 +66,7 @@ import edu.brown.logging.LoggerUtil.LoggerBoolean;
 import edu.brown.profilers.CommandLogWriterProfiler;
 import edu.brown.profilers.ProfileMeasurementUtil;
 import edu.brown.utils.ExceptionHandlingRunnable;
+import edu.brown.utils.PartitionSet;
 import edu.brown.utils.StringUtil;
 
 /**
@@ -80,6 +89,19 @@ public class CommandLogWriter extends ExceptionHandlingRunnable implements Shutd
      */
     public static final String LOG_OUTPUT_EXT = ".cmdlog"; 
     
+    /**
+     * The suffix format for the output files of per-partition log streams 
+     */
+    private static final String STREAM_FILE_FORMAT = ".stream%02d"; 
+    
+    /**
+     * Log header flags. The first byte of the header used to be a boolean for
+     * whether the log uses group commit, so older logs only ever have the
+     * first flag set.
+     */
+    static final int HEADER_GROUP_COMMIT = 0x01;
+    static final int HEADER_STREAMS = 0x02;
+    
     /**
      * Special LogEntry that holds additional data that we need in order to send
      * back a ClientResponse
@@ -89,12 +111,27 @@ public class CommandLogWriter extends ExceptionHandlingRunnable implements Shutd
         protected RpcCallback<ClientResponseImpl> clientCallback;
         protected long initiateTime;
         protected int restartCounter;
+        
+        /**
+         * For txns that are recorded in multiple log streams, the number of
+         * streams that have not made this txn durable yet.
+         */
+        protected AtomicInteger pendingStreams;
+        
+        /**
+         * For txns that are recorded in multiple log streams, the number of
+         * streams that could still lose this txn during recovery. The stream
+         * that decrements this to zero is the one that sends out the ClientResponse.
+         */
+        protected AtomicInteger unreleasedStreams;
 
         public LogEntry init(LocalTransaction ts, ClientResponseImpl cresponse) {
             this.cresponse = cresponse;
             this.clientCallback = ts.getClientCallback();
             this.initiateTime = ts.getInitiateTime();
             this.restartCounter = ts.getRestartCounter();
+            this.pendingStreams = null;
+            this.unreleasedStreams = null;
             return super.init(ts);
         }
 
@@ -105,8 +142,34 @@ public class CommandLogWriter extends ExceptionHandlingRunnable implements Shutd
             this.clientCallback = null;
             this.initiateTime = -1;
             this.restartCounter = -1;
+            this.pendingStreams = null;
+            this.unreleasedStreams = null;
         }
     }
+    
+    /**
+     * The ClientResponse of a log stream entry that is durable in its own stream
+     * but can't be sent out yet because an earlier multi-partition entry in the
+     * same stream is not durable in all of its other streams. We copy it out
+     * of the entry buffer because that gets reused once it is written out.
+     */
+    private static class HeldResponse {
+        private final ClientResponseImpl cresponse;
+        private final RpcCallback<ClientResponseImpl> clientCallback;
+        private final long initiateTime;
+        private final int restartCounter;
+        private final AtomicInteger pendingStreams;
+        private final AtomicInteger unreleasedStreams;
+        
+        private HeldResponse(WriterLogEntry entry) {
+            this.cresponse = entry.cresponse;
+            this.clientCallback = entry.clientCallback;
+            this.initiateTime = entry.initiateTime;
+            this.restartCounter = entry.restartCounter;
+            this.pendingStreams = entry.pendingStreams;
+            this.unreleasedStreams = entry.unreleasedStreams;
+        }
+    } // CLASS
 
     /**
      * Circular Buffer of Log Entries
@@ -126,7 +189,7 @@ public class CommandLogWriter extends ExceptionHandlingRunnable implements Shutd
             this.nextPos = 0;
         }
 
-        public LogEntry next(LocalTransaction ts, ClientResponseImpl cresponse) {
+        public WriterLogEntry next(LocalTransaction ts, ClientResponseImpl cresponse) {
             // Check that they don't try add the same txn twice right after each
             // other
             if (hstore_conf.site.jvm_asserts) {
@@ -142,7 +205,8 @@ public class CommandLogWriter extends ExceptionHandlingRunnable implements Shutd
             // But we need to think about what happens if we are about to wrap
             // around and we
             // haven't been flushed to disk yet.
-            LogEntry ret = this.buffer[this.nextPos].init(ts, cresponse);
+            WriterLogEntry ret = this.buffer[this.nextPos];
+            ret.init(ts, cresponse);
             this.nextPos = (this.nextPos + 1) % this.buffer.length;
             ;
             return ret;
@@ -171,12 +235,98 @@ public class CommandLogWriter extends ExceptionHandlingRunnable implements Shutd
             return String.format("%s[start=%d / next=%s]@%d", this.getClass().getSimpleName(), this.startPos, this.nextPos, this.hashCode());
         }
     } // CLASS
+    
+    /**
+     * A group commit batch that has been serialized and compressed by the
+     * writer thread but has not been written out to disk yet. This is only
+     * used when group commit pipelining is enabled.
+     */
+    protected class PendingBatch {
+        private final CircularLogEntryBuffer buffers[];
+        private final ByteBuffer compressed;
+        private final int txnCounter;
+        private final long maxTxnId;
+        private final int batchId;
+        private final long flushId;
+        
+        public PendingBatch(CircularLogEntryBuffer buffers[], ByteBuffer compressed, int txnCounter, long maxTxnId, int batchId, long flushId) {
+            this.buffers = buffers;
+            this.compressed = compressed;
+            this.txnCounter = txnCounter;
+            this.maxTxnId = maxTxnId;
+            this.batchId = batchId;
+            this.flushId = flushId;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("%s[batchCtr=%d / txns=%d / bytes=%d]",
+                                 this.getClass().getSimpleName(), this.batchId,
+                                 this.txnCounter, this.compressed.limit());
+        }
+    } // CLASS
+    
+    /**
+     * Separate thread that writes out and fsyncs the PendingBatches that were
+     * prepared by the main writer thread. Once a batch is durable, we will
+     * release all of its ClientResponses and then return its buffers back
+     * to the writer thread so that they can be reused.
+     */
+    protected class GroupCommitSyncer extends ExceptionHandlingRunnable {
+        @Override
+        public void runImpl() {
+            hstore_site.getThreadManager().registerProcessingThread();
+            
+            PendingBatch batch = null;
+            while (true) {
+                try {
+                    batch = pendingBatches.take();
+                } catch (InterruptedException ex) {
+                    if (stop && pendingBatches.isEmpty()) break;
+                    continue;
+                }
+                if (batch == STOP_BATCH) break;
+                
+                if (debug.val)
+                    LOG.debug("Writing out " + batch);
+                writeBatch(batch.compressed, batch.maxTxnId);
+                releaseResponses(batch.buffers);
+                
+                // These buffers can now be filled up again
+                freeBuffers.offer(batch.buffers);
+                markDurable(batch.flushId);
+                inflightBatches.decrementAndGet();
+            } // WHILE
+        }
+    } // CLASS
+    
+    /**
+     * Special marker that tells the GroupCommitSyncer that it should stop
+     */
+    private final PendingBatch STOP_BATCH = new PendingBatch(null, ByteBuffer.allocate(0), 0, -1, -1, -1);
 
     private final HStoreSite hstore_site;
     private final HStoreConf hstore_conf;
     private final CatalogContext catalogContext;
     private final File outputFile;
+    
+    /**
+     * The local partitions whose txns are written out by this writer
+     */
+    private final PartitionSet partitions;
+    
+    /**
+     * Partition id -> index of that partition's entry buffer
+     * This is -1 for partitions that are not handled by this writer.
+     */
+    private final int bufferOffsets[];
     private final FileChannel fstream;
+    
+    /**
+     * If segmented command logs are enabled, then we will write all of
+     * our entries through this instead of the fstream.
+     */
+    private final CommandLogSegmentManager segments;
 
     private final Semaphore writingEntry;
     private final int numWritingLocks;
@@ -188,20 +338,123 @@ public class CommandLogWriter extends ExceptionHandlingRunnable implements Shutd
     private final LogEntry singletonLogEntry;
 
     private int commitBatchCounter = 0;
+    
+    /**
+     * The largest txnId in the last batch that was serialized
+     */
+    private long batchMaxTxnId = -1;
     private boolean stop = false;
     private Thread self;
 
     /**
-     * If set to true, then the WriterThread is in the middle of writing out
-     * data to the log file.
+     * The id of the last time that the writer thread swapped the entry buffers.
+     * This is incremented while the writer thread holds all of the writing permits,
+     * so every entry that was queued before this was read will be in a swap with
+     * a larger id.
      */
-    private final AtomicBoolean flushInProgress = new AtomicBoolean(false);
+    private final AtomicLong lastSwapId = new AtomicLong(0);
+    
+    /**
+     * The id of the last buffer swap whose entries are durable. All of the swaps
+     * that came before it are durable too.
+     */
+    private final AtomicLong lastDurableId = new AtomicLong(0);
 
     /**
      * The log entry buffers (one per partition)
      */
     private CircularLogEntryBuffer entries[];
     private CircularLogEntryBuffer entriesFlushing[];
+    
+    // ----------------------------------------------------------------------------
+    // GROUP COMMIT PIPELINING
+    // ----------------------------------------------------------------------------
+    
+    /**
+     * If set to true, then the writer thread will hand off serialized batches
+     * to the GroupCommitSyncer instead of writing them out itself.
+     */
+    private final boolean usePipeline;
+    
+    /**
+     * Sets of log entry buffers that are not being filled or flushed.
+     */
+    private final BlockingQueue<CircularLogEntryBuffer[]> freeBuffers;
+    
+    /**
+     * Serialized batches that are waiting to be written out to disk
+     */
+    private final BlockingQueue<PendingBatch> pendingBatches;
+    
+    /**
+     * The number of batches that have been prepared by the writer thread
+     * but have not been made durable yet.
+     */
+    private final AtomicInteger inflightBatches = new AtomicInteger(0);
+    
+    private Thread syncer;
+    
+    // ----------------------------------------------------------------------------
+    // PER-PARTITION LOG STREAMS
+    // ----------------------------------------------------------------------------
+    
+    /**
+     * The id of the log stream that this writer is responsible for.
+     * This is -1 if per-partition log streams are not enabled. 
+     */
+    private final int streamId;
+    
+    /**
+     * If per-partition log streams are enabled, then the CommandLogWriter that
+     * is created by the HStoreSite writes out the first stream itself and then
+     * hands off the txns for the partitions of the other streams to the writers
+     * in this array. The first element is always this writer.
+     * This is null for all other writers.
+     */
+    private final CommandLogWriter streams[];
+    
+    /**
+     * Partition id -> index of the stream in the streams array
+     * This is -1 for partitions that are not local to our HStoreSite.
+     */
+    private final int streamOffsets[];
+    
+    /**
+     * The entry buffer index for the cross-stream markers of multi-partition
+     * txns that were recorded by other streams. This is -1 if we don't
+     * belong to a group of streams.
+     */
+    private final int markerOffset;
+    private final Thread streamThreads[];
+    
+    /**
+     * The writer that owns the group of streams that we belong to. We hold its
+     * lock whenever we touch the heldResponses of any of the streams.
+     * This is null if we don't belong to a group of streams.
+     */
+    private CommandLogWriter group;
+    
+    /**
+     * The responses of the entries in this stream that are durable but are waiting
+     * for an earlier multi-partition entry to be durable in all of its streams.
+     * Replay stops a stream at the first multi-partition entry that is missing from
+     * one of its other streams, so until then everything after it could still be lost.
+     */
+    private final LinkedList<HeldResponse> heldResponses = new LinkedList<HeldResponse>();
+    
+    // ----------------------------------------------------------------------------
+    // SNAPSHOT TRACKING
+    // ----------------------------------------------------------------------------
+    
+    /**
+     * The txnId of the blocking snapshot that our local partitions are writing out
+     */
+    private long snapshotTxnId = -1;
+    
+    /**
+     * The local partitions that have finished writing out their part of that snapshot
+     */
+    private final PartitionSet snapshotPartitions = new PartitionSet();
 
     private CommandLogWriterProfiler profiler;
 
@@ -212,17 +465,59 @@ public class CommandLogWriter extends ExceptionHandlingRunnable implements Shutd
      * @param path
      */
     public CommandLogWriter(HStoreSite hstore_site, File outputFile) {
+        this(hstore_site, outputFile, null, -1);
+    }
+    
+    /**
+     * Constructor for a writer that is only responsible for a single log stream 
+     * @param hstore_site
+     * @param outputFile
+     * @param partitions
+     * @param streamId
+     */
+    protected CommandLogWriter(HStoreSite hstore_site, File outputFile, PartitionSet partitions, int streamId) {
         this.hstore_site = hstore_site;
         this.hstore_conf = hstore_site.getHStoreConf();
         this.catalogContext = hstore_site.getCatalogContext();
-        this.outputFile = outputFile;
         this.singletonSerializer = new FastSerializer(true, true);
         // this.group_commit_size = Math.max(1,
         // hstore_conf.site.exec_command_logging_group_commit); //Group commit
         // threshold, or 1 if group commit is turned off
-
-        // Number of local partitions
-        int num_partitions = hstore_site.getLocalPartitionIds().size();
+        
+        // Per-Partition Log Streams
+        // Split the local partitions up into groups and create a separate writer
+        // for each group. We will take care of the first group ourselves.
+        PartitionSet localPartitions = hstore_site.getLocalPartitionIds();
+        List<PartitionSet> groups = null;
+        if (streamId < 0 && hstore_conf.site.commandlog_stream_partitions > 0) {
+            groups = new ArrayList<PartitionSet>();
+            for (int partition : localPartitions.values()) {
+                if (groups.isEmpty() || groups.get(groups.size()-1).size() >= hstore_conf.site.commandlog_stream_partitions) {
+                    groups.add(new PartitionSet());
+                }
+                groups.get(groups.size()-1).add(partition);
+            } // FOR
+            partitions = groups.get(0);
+            streamId = 0;
+        }
+        else if (partitions == null) {
+            partitions = localPartitions;
+        }
+        this.partitions = partitions;
+        this.streamId = streamId;
+        this.outputFile = (streamId < 0 ? outputFile : getStreamFile(hstore_conf, outputFile, streamId));
+        
+        this.bufferOffsets = new int[this.catalogContext.numberOfPartitions];
+        Arrays.fill(this.bufferOffsets, -1);
+        int offset = 0;
+        for (int partition : this.partitions.values()) {
+            this.bufferOffsets[partition] = offset++;
+        } // FOR
+        
+        // Number of local partitions, plus an extra buffer for cross-stream markers
+        int num_partitions = this.partitions.size();
+        this.markerOffset = (streamId < 0 ? -1 : num_partitions);
+        if (this.markerOffset >= 0) num_partitions++;
         this.numWritingLocks = num_partitions;
 
         // Number of log entries per partition
@@ -244,49 +539,153 @@ public class CommandLogWriter extends ExceptionHandlingRunnable implements Shutd
             // Make one entry buffer per partition SO THAT SYNCHRONIZATION ON
             // EACH BUFFER IS NOT REQUIRED
             this.writingEntry = new Semaphore(this.numWritingLocks, false);
-            this.entries = new CircularLogEntryBuffer[num_partitions];
-            this.entriesFlushing = new CircularLogEntryBuffer[num_partitions];
-            for (int partition = 0; partition < num_partitions; partition++) {
-                this.entries[partition] = new CircularLogEntryBuffer(num_entries);
-                this.entriesFlushing[partition] = new CircularLogEntryBuffer(num_entries);
-            } // FOR
+            this.entries = this.createEntryBuffers(num_partitions, num_entries);
+            this.entriesFlushing = this.createEntryBuffers(num_partitions, num_entries);
             this.singletonLogEntry = null;
         } else {
             this.useGroupCommit = false;
             this.writingEntry = null;
             this.singletonLogEntry = new LogEntry();
         }
-
-        FileOutputStream f = null;
-        try {
-            this.outputFile.getParentFile().mkdirs();
-            LOG.info("Command Log File: " + this.outputFile.getAbsolutePath());
-            this.outputFile.createNewFile();
-            f = new FileOutputStream(this.outputFile, false);
-        } catch (IOException ex) {
-            throw new RuntimeException(ex);
+        
+        // Group Commit Pipelining
+        // We need one set of buffers for each batch that can be in flight, plus
+        // the set that is currently being filled up by the partitions.
+        this.usePipeline = (this.useGroupCommit && hstore_conf.site.commandlog_pipeline);
+        if (this.usePipeline) {
+            int depth = Math.max(2, hstore_conf.site.commandlog_pipeline_depth);
+            this.freeBuffers = new LinkedBlockingQueue<CircularLogEntryBuffer[]>();
+            this.pendingBatches = new LinkedBlockingQueue<PendingBatch>();
+            this.freeBuffers.add(this.entriesFlushing);
+            for (int i = 2; i < depth; i++) {
+                this.freeBuffers.add(this.createEntryBuffers(num_partitions, num_entries));
+            } // FOR
+            if (debug.val)
+                LOG.debug("group_commit_pipeline_depth: " + depth);
+        } else {
+            this.freeBuffers = null;
+            this.pendingBatches = null;
         }
-        this.fstream = f.getChannel();
 
-        // Write out a header to the file
-        this.writeHeader();
+        // Segmented Log Files
+        // The segment reader relies on the size that prefixes each group commit
+        // batch to find the end of a segment, so we can only use them with group commit
+        if (this.useGroupCommit && hstore_conf.site.commandlog_segments) {
+            int segmentSize = Math.max(1, hstore_conf.site.commandlog_segment_size) * 1024 * 1024;
+            this.segments = new CommandLogSegmentManager(this.outputFile,
+                                                         segmentSize,
+                                                         hstore_conf.site.commandlog_segment_prealloc,
+                                                         this.serializeHeader());
+            this.fstream = null;
+        } else {
+            FileOutputStream f = null;
+            try {
+                this.outputFile.getParentFile().mkdirs();
+                LOG.info("Command Log File: " + this.outputFile.getAbsolutePath());
+                this.outputFile.createNewFile();
+                f = new FileOutputStream(this.outputFile, false);
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+            this.fstream = f.getChannel();
+            this.segments = null;
+    
+            // Write out a header to the file
+            this.writeHeader();
+        }
 
         // Writer Profiling
         if (hstore_conf.site.commandlog_profiling) {
             this.profiler = new CommandLogWriterProfiler();
         }
+        
+        // Create the writers for the other streams
+        if (groups != null) {
+            this.streams = new CommandLogWriter[groups.size()];
+            this.streamThreads = new Thread[groups.size()];
+            this.streamOffsets = new int[this.catalogContext.numberOfPartitions];
+            Arrays.fill(this.streamOffsets, -1);
+            this.streams[0] = this;
+            for (int i = 0; i < this.streams.length; i++) {
+                if (i > 0) this.streams[i] = new CommandLogWriter(hstore_site, outputFile, groups.get(i), i);
+                this.streams[i].group = this;
+                for (int partition : groups.get(i).values()) {
+                    this.streamOffsets[partition] = i;
+                } // FOR
+            } // FOR
+            if (debug.val)
+                LOG.debug(String.format("Created %d command log streams: %s", groups.size(), groups));
+        } else {
+            this.streams = null;
+            this.streamThreads = null;
+            this.streamOffsets = null;
+        }
+    }
+    
+    /**
+     * Return the output file of the given log stream. If ${site.commandlog_stream_dirs}
+     * is set, then the streams are spread across those directories in a round-robin manner.
+     * @param hstore_conf
+     * @param baseFile
+     * @param streamId
+     * @return
+     */
+    public static File getStreamFile(HStoreConf hstore_conf, File baseFile, int streamId) {
+        String name = baseFile.getName();
+        if (name.endsWith(LOG_OUTPUT_EXT)) {
+            name = name.substring(0, name.length() - LOG_OUTPUT_EXT.length());
+        }
+        name += String.format(STREAM_FILE_FORMAT, streamId) + LOG_OUTPUT_EXT;
+        
+        File dir = baseFile.getParentFile();
+        if (hstore_conf.site.commandlog_stream_dirs != null && hstore_conf.site.commandlog_stream_dirs.trim().isEmpty() == false) {
+            String dirs[] = hstore_conf.site.commandlog_stream_dirs.split(",");
+            dir = new File(dirs[streamId % dirs.length].trim());
+        }
+        return (new File(dir, name));
     }
 
+    private CircularLogEntryBuffer[] createEntryBuffers(int num_partitions, int num_entries) {
+        CircularLogEntryBuffer buffers[] = new CircularLogEntryBuffer[num_partitions];
+        for (int partition = 0; partition < num_partitions; partition++) {
+            buffers[partition] = new CircularLogEntryBuffer(num_entries);
+        } // FOR
+        return (buffers);
+    }
+    
     /**
      * Separate thread for writing out entries to the log
      */
     @Override
     public void runImpl() {
         this.self = Thread.currentThread();
-        this.self.setName(HStoreThreadManager.getThreadName(hstore_site, HStoreConstants.THREAD_NAME_COMMANDLOGGER));
+        if (this.streamId < 0) {
+            this.self.setName(HStoreThreadManager.getThreadName(hstore_site, HStoreConstants.THREAD_NAME_COMMANDLOGGER));
+        } else {
+            this.self.setName(HStoreThreadManager.getThreadName(hstore_site, HStoreConstants.THREAD_NAME_COMMANDLOGGER,
+                                                                String.format("%02d", this.streamId)));
+        }
         this.hstore_site.getThreadManager().registerProcessingThread();
+        
+        // Start the writers for the other log streams
+        if (this.streams != null) {
+            for (int i = 1; i < this.streams.length; i++) {
+                this.streamThreads[i] = new Thread(this.self.getThreadGroup(), this.streams[i]);
+                this.streamThreads[i].setDaemon(true);
+                this.streamThreads[i].setUncaughtExceptionHandler(this.self.getUncaughtExceptionHandler());
+                this.streamThreads[i].start();
+            } // FOR
+        }
 
         this.usePostProcessor = hstore_site.hasTransactionPostProcessors();
+        
+        if (this.usePipeline) {
+            this.syncer = new Thread(this.self.getThreadGroup(), new GroupCommitSyncer());
+            this.syncer.setName(HStoreThreadManager.getThreadName(hstore_site, HStoreConstants.THREAD_NAME_COMMANDLOGGER, "sync"));
+            this.syncer.setDaemon(true);
+            this.syncer.setUncaughtExceptionHandler(this.self.getUncaughtExceptionHandler());
+            this.syncer.start();
+        }
 
         CircularLogEntryBuffer temp[] = null;
         long next = System.currentTimeMillis() + hstore_conf.site.commandlog_timeout;
@@ -304,6 +703,24 @@ public class CommandLogWriter extends ExceptionHandlingRunnable implements Shutd
                 // if (debug.val)
                 // LOG.debug("Group commit timeout occurred, writing buffer to disk.");
             }
+            
+            // If we are pipelining, then we need to grab a free set of buffers
+            // that we can swap in for the partitions to fill up. This will block
+            // if all of our buffers are still waiting to be written out to disk.
+            CircularLogEntryBuffer nextEntries[] = null;
+            if (this.usePipeline) {
+                try {
+                    if (hstore_conf.site.commandlog_profiling && profiler != null)
+                        profiler.pipelineStallTime.start();
+                    nextEntries = this.freeBuffers.take();
+                } catch (InterruptedException ex) {
+                    if (this.stop) break;
+                    continue;
+                } finally {
+                    if (hstore_conf.site.commandlog_profiling && profiler != null)
+                        profiler.pipelineStallTime.stopIfStarted();
+                }
+            }
 
             // Take all of the writing permits. This will stop any other
             // thread from appending to the buffer that we're about to swap
@@ -328,8 +745,9 @@ public class CommandLogWriter extends ExceptionHandlingRunnable implements Shutd
             // filling the buffer and the writing thread where a full
             // buffer is exchanged for an empty one and the full
             // buffer is written out to disk.
+            long swapId = this.lastSwapId.incrementAndGet();
             temp = this.entries;
-            this.entries = this.entriesFlushing;
+            this.entries = (this.usePipeline ? nextEntries : this.entriesFlushing);
             this.entriesFlushing = temp;
             assert (this.entries != this.entriesFlushing);
 
@@ -340,17 +758,36 @@ public class CommandLogWriter extends ExceptionHandlingRunnable implements Shutd
 
             // Write the entries out to disk
             // if (debug.val) LOG.debug("Executing group commit");
-            this.flushInProgress.set(true);
-            if (this.groupCommit(this.entriesFlushing) == 0) {
-                next = System.currentTimeMillis() + hstore_conf.site.commandlog_timeout;
+            if (this.usePipeline) {
+                if (this.pipelineGroupCommit(this.entriesFlushing, swapId) == 0) {
+                    next = System.currentTimeMillis() + hstore_conf.site.commandlog_timeout;
+                    // There was nothing to write for this swap, so it is durable
+                    // as soon as every batch that we queued before it is durable
+                    if (this.inflightBatches.get() == 0) this.markDurable(swapId);
+                }
+            } else {
+                if (this.groupCommit(this.entriesFlushing) == 0) {
+                    next = System.currentTimeMillis() + hstore_conf.site.commandlog_timeout;
+                }
+                this.markDurable(swapId);
             }
-            this.flushInProgress.lazySet(false);
         } // WHILE
+        
+        // Tell the syncer to stop once it has written out everything
+        // that we have already given to it
+        if (this.usePipeline) {
+            this.pendingBatches.offer(STOP_BATCH);
+        }
     }
 
     @Override
     public void prepareShutdown(boolean error) {
         this.stop = true;
+        if (this.streams != null) {
+            for (int i = 1; i < this.streams.length; i++) {
+                this.streams[i].prepareShutdown(error);
+            } // FOR
+        }
     }
 
     /**
@@ -358,16 +795,45 @@ public class CommandLogWriter extends ExceptionHandlingRunnable implements Shutd
      * Multiple invocations of this will not be queued
      */
     protected void flush() throws InterruptedException {
-        // Wait until it starts running
-        while (this.flushInProgress.get() == false) {
-            // this.flushThread.interrupt();
+        if (this.streams != null) {
+            for (int i = 1; i < this.streams.length; i++) {
+                this.streams[i].flush();
+            } // FOR
+        }
+        
+        // The entries that were queued before now will be in the next swap
+        // (or a later one), so we need to wait until that swap is durable
+        long swapId = this.lastSwapId.get() + 1;
+        while (this.lastDurableId.get() < swapId) {
             Thread.yield();
         } // WHILE
+    }
+    
+    /**
+     * Write out all of the entries that have been queued at this writer and
+     * send out the responses that can be released. This is only for testing
+     * when the writer thread is not running.
+     * @return the number of txns that were written out
+     */
+    protected int commitQueuedEntries() {
+        assert(this.self == null) : "Unexpected writer thread for " + this.outputFile;
+        CircularLogEntryBuffer temp[] = this.entries;
+        this.entries = this.entriesFlushing;
+        this.entriesFlushing = temp;
+        return (this.groupCommit(temp));
+    }
 
-        // Then wait until it's done running
-        while (this.flushInProgress.get()) {
-            Thread.yield();
-        } // WHILE
+    /**
+     * Mark that all of the entries in the given buffer swap and the
+     * swaps that came before it are durable
+     * @param swapId
+     */
+    private void markDurable(long swapId) {
+        long last;
+        do {
+            last = this.lastDurableId.get();
+            if (last >= swapId) return;
+        } while (this.lastDurableId.compareAndSet(last, swapId) == false);
     }
 
     /**
@@ -379,22 +845,44 @@ public class CommandLogWriter extends ExceptionHandlingRunnable implements Shutd
      */
     public int getTotalTxnCount() {
         int total = 0;
+        if (this.streams != null) {
+            for (int i = 1; i < this.streams.length; i++) {
+                total += this.streams[i].getTotalTxnCount();
+            } // FOR
+        }
         for (CircularLogEntryBuffer c : this.entries) {
             total += c.size();
         } // FOR
-        for (CircularLogEntryBuffer c : this.entriesFlushing) {
-            total += c.size();
-        } // FOR
+        if (this.usePipeline) {
+            // The buffers that are being flushed are always in a PendingBatch
+            for (PendingBatch batch : this.pendingBatches) {
+                total += batch.txnCounter;
+            } // FOR
+        } else {
+            for (CircularLogEntryBuffer c : this.entriesFlushing) {
+                total += c.size();
+            } // FOR
+        }
         return (total);
     }
 
     @Override
     public void shutdown() {
+        if (this.streams != null) {
+            for (int i = 1; i < this.streams.length; i++) {
+                this.streams[i].shutdown();
+            } // FOR
+        }
         if (this.self != null) {
             this.stop = true;
             while (this.self.isAlive()) {
                 Thread.yield();
             } // WHILE
+            if (this.syncer != null) {
+                while (this.syncer.isAlive()) {
+                    Thread.yield();
+                } // WHILE
+            }
 
             if (debug.val) {
                 Map<String, Object> m = new LinkedHashMap<String, Object>();
@@ -403,6 +891,10 @@ public class CommandLogWriter extends ExceptionHandlingRunnable implements Shutd
                 LOG.debug("Closing WAL file\n" + StringUtil.formatMaps(m).trim() + " File :" + this.outputFile.getAbsolutePath());
             }
         }
+        if (this.segments != null) {
+            this.segments.close();
+            return;
+        }
         try {
             LOG.trace("Closing stream  :: size :" + this.fstream.size());
             
@@ -423,13 +915,93 @@ public class CommandLogWriter extends ExceptionHandlingRunnable implements Shutd
         return this.profiler;
     }
 
+    public CommandLogSegmentManager getSegmentManager() {
+        return this.segments;
+    }
+    
+    /**
+     * Return the writers for all of the per-partition log streams.
+     * This will be null if log streams are not enabled. 
+     * @return
+     */
+    public CommandLogWriter[] getStreams() {
+        return this.streams;
+    }
+    
+    public File getOutputFile() {
+        return this.outputFile;
+    }
+    
+    /**
+     * Notify the writer that the given local partition has finished writing out its
+     * part of the blocking snapshot that was taken by the given txn. Once all of the
+     * local partitions at this site are done, we will recycle the log segments that
+     * only contain txns that came before the snapshot.
+     * @param snapshotTxnId
+     * @param partition
+     * @return the number of segments that were recycled
+     */
+    public synchronized int notifySnapshotCompleted(long snapshotTxnId, int partition) {
+        if (this.snapshotTxnId != snapshotTxnId) {
+            this.snapshotTxnId = snapshotTxnId;
+            this.snapshotPartitions.clear();
+        }
+        this.snapshotPartitions.add(partition);
+        if (this.snapshotPartitions.containsAll(this.hstore_site.getLocalPartitionIds()) == false) {
+            return (0);
+        }
+        this.snapshotTxnId = -1;
+        this.snapshotPartitions.clear();
+        return (this.notifySnapshotCompleted(snapshotTxnId));
+    }
+    
+    /**
+     * Notify the writer that a snapshot was taken by the given txn. All of the
+     * log segments that only contain txns that came before it will be recycled.
+     * This is a no-op if segmented command logs are not enabled.
+     * @param snapshotTxnId
+     * @return the number of segments that were recycled
+     */
+    public int notifySnapshotCompleted(long snapshotTxnId) {
+        int recycled = 0;
+        if (this.streams != null) {
+            for (int i = 1; i < this.streams.length; i++) {
+                recycled += this.streams[i].notifySnapshotCompleted(snapshotTxnId);
+            } // FOR
+        }
+        if (this.segments == null) return (recycled);
+        recycled += this.segments.recycle(snapshotTxnId);
+        if (debug.val && recycled > 0)
+            LOG.debug(String.format("Recycled %d command log segments after snapshot txn #%d",
+                                    recycled, snapshotTxnId));
+        return (recycled);
+    }
+
     public boolean writeHeader() {
+        try {
+            this.fstream.write(this.serializeHeader());
+            this.fstream.force(true);
+        } catch (Exception e) {
+            String message = "Failed to write log headers";
+            throw new ServerFaultException(message, e);
+        }
+    
+        return (true);
+    }
+    
+    /**
+     * Serialize the log header into a new buffer
+     * @return
+     */
+    private ByteBuffer serializeHeader() {
         assert (this.singletonSerializer != null);
+        ByteBuffer header = null;
         try {
             this.singletonSerializer.clear();
-            this.singletonSerializer.writeBoolean(this.group_commit_size > 0);// Using
-                                                                              // group
-                                                                              // commit
+            int flags = 0;
+            if (this.group_commit_size > 0) flags |= HEADER_GROUP_COMMIT;
+            if (this.streamId >= 0) flags |= HEADER_STREAMS;
+            this.singletonSerializer.writeByte(flags);
             this.singletonSerializer.writeInt(this.catalogContext.procedures.size());
             for (Procedure catalog_proc : this.catalogContext.procedures.values()) {
                 int procId = catalog_proc.getId();
@@ -438,14 +1010,14 @@ public class CommandLogWriter extends ExceptionHandlingRunnable implements Shutd
             } // FOR
 
             BBContainer b = this.singletonSerializer.getBBContainer();
-            this.fstream.write(b.b.asReadOnlyBuffer());
-            this.fstream.force(true);
+            header = ByteBuffer.allocate(b.b.remaining());
+            header.put(b.b.asReadOnlyBuffer());
+            header.flip();
         } catch (Exception e) {
             String message = "Failed to write log headers";
             throw new ServerFaultException(message, e);
         }
-    
-        return (true);
+        return (header);
     }
     
     /**
@@ -461,7 +1033,74 @@ public class CommandLogWriter extends ExceptionHandlingRunnable implements Shutd
         }
 
         // Write all to a single FastSerializer buffer
+        int txnCounter = this.serializeBatch(eb);
+        if (txnCounter == 0) {
+            // if (debug.val)
+            // LOG.debug("No transactions are in the current buffers. Not writing anything to disk");
+            return (txnCounter);
+        }
+        
+        // Compress and force out to disk
+        ByteBuffer compressed = this.compressBatch();
+        if (debug.val)
+            LOG.debug(String.format("Writing out %d bytes for %d txns [batchCtr=%d]", compressed.limit(), txnCounter, this.commitBatchCounter));
+        this.writeBatch(compressed, this.batchMaxTxnId);
+        this.releaseResponses(eb);
+
+        this.commitBatchCounter++;
+        return (txnCounter);
+    }
+    
+    /**
+     * Serialize and compress the given buffer set and then hand it off to the
+     * GroupCommitSyncer to write out to disk. This returns without waiting for
+     * the batch to become durable, so that the writer thread can start 
+     * preparing the next batch right away.
+     * 
+     * @param eb
+     * @param swapId the buffer swap that these buffers came from
+     * @return the number of txns in the batch
+     */
+    protected int pipelineGroupCommit(CircularLogEntryBuffer[] eb, long swapId) {
+        assert(this.usePipeline);
+        if (hstore_conf.site.commandlog_profiling && this.profiler == null) {
+            this.profiler = new CommandLogWriterProfiler();
+        }
+        
+        int txnCounter = this.serializeBatch(eb);
+        if (txnCounter == 0) {
+            // There is nothing to write, so we can immediately reuse these buffers
+            this.freeBuffers.offer(eb);
+            return (txnCounter);
+        }
+        
+        if (hstore_conf.site.commandlog_profiling && profiler != null)
+            profiler.serializingTime.start();
+        ByteBuffer compressed = null;
+        try {
+            compressed = this.compressBatch();
+        } finally {
+            if (hstore_conf.site.commandlog_profiling && profiler != null)
+                profiler.serializingTime.stopIfStarted();
+        }
+        
+        PendingBatch batch = new PendingBatch(eb, compressed, txnCounter, this.batchMaxTxnId, this.commitBatchCounter++, swapId);
+        if (debug.val)
+            LOG.debug("Queuing " + batch + " for group commit");
+        this.inflightBatches.incrementAndGet();
+        this.pendingBatches.offer(batch);
+        return (txnCounter);
+    }
+    
+    /**
+     * Serialize all of the entries in the given buffer set into our 
+     * singletonSerializer
+     * @param eb
+     * @return the number of txns that were serialized
+     */
+    private int serializeBatch(CircularLogEntryBuffer[] eb) {
         this.singletonSerializer.clear();
+        this.batchMaxTxnId = -1;
         int txnCounter = 0;
         for (int i = 0; i < eb.length; i++) {
             try {
@@ -471,8 +1110,10 @@ public class CommandLogWriter extends ExceptionHandlingRunnable implements Shutd
                 while (position != eb[i].nextPos) {
                     WriterLogEntry entry = eb[i].buffer[position++];
                     try {
-                        this.singletonSerializer.writeObject(entry);
+                        entry.writeExternal(this.singletonSerializer, this.streamId >= 0);
                         txnCounter++;
+                        if (entry.getTransactionId().longValue() > this.batchMaxTxnId)
+                            this.batchMaxTxnId = entry.getTransactionId().longValue();
                     } catch (Throwable ex) {
                         LOG.warn("Failed to write log entry", ex);
                     }
@@ -486,25 +1127,40 @@ public class CommandLogWriter extends ExceptionHandlingRunnable implements Shutd
                 throw new ServerFaultException(message, e);
             }
         } // FOR
-        if (txnCounter == 0) {
-            // if (debug.val)
-            // LOG.debug("No transactions are in the current buffers. Not writing anything to disk");
-            return (txnCounter);
-        }
-        
-        // Compress and force out to disk
+        return (txnCounter);
+    }
+    
+    /**
+     * Compress the contents of our singletonSerializer. The returned buffer
+     * is not shared, so it is safe to hand it off to another thread.
+     * @return
+     */
+    private ByteBuffer compressBatch() {
         ByteBuffer compressed;
         try {
             compressed = CompressionService.compressBufferForMessaging(this.singletonSerializer.getBBContainer().b);
         } catch (IOException e) {
             throw new RuntimeException("Failed to compress WAL buffer");
         }
-        
-        if (debug.val)
-            LOG.debug(String.format("Writing out %d bytes for %d txns [batchCtr=%d]", compressed.limit(), txnCounter, this.commitBatchCounter));
+        return (compressed);
+    }
+    
+    /**
+     * Write the compressed batch out to the log file and force it to disk 
+     * @param compressed
+     * @param maxTxnId the largest txnId in this batch
+     */
+    private void writeBatch(ByteBuffer compressed, long maxTxnId) {
+        if (hstore_conf.site.commandlog_profiling && profiler != null && profiler.writingTime.isStarted() == false)
+            profiler.writingTime.start();
         try {
-            this.fstream.write(compressed);
-            this.fstream.force(true);
+            if (this.segments != null) {
+                this.segments.write(compressed, maxTxnId);
+                this.segments.force();
+            } else {
+                this.fstream.write(compressed);
+                this.fstream.force(true);
+            }
         } catch (IOException ex) {
             ex.printStackTrace();
             String message = "Failed to group commit for buffer";
@@ -512,33 +1168,112 @@ public class CommandLogWriter extends ExceptionHandlingRunnable implements Shutd
         }
         if (hstore_conf.site.commandlog_profiling && profiler != null)
             ProfileMeasurementUtil.swap(profiler.writingTime, profiler.networkTime);
+    }
+    
+    /**
+     * Send out the ClientResponses for all of the txns in the given buffer set.
+     * This can only be called once the entries are durable. If we are a log
+     * stream, then the responses that come after a multi-partition entry that
+     * is not durable in all of its streams yet are held back until it is.
+     * @param eb
+     */
+    private void releaseResponses(CircularLogEntryBuffer[] eb) {
         try {
-            // Send responses
-            for (int i = 0; i < eb.length; i++) {
-                CircularLogEntryBuffer buffer = eb[i];
-                int start = buffer.getStart();
-                for (int j = 0, size = buffer.size(); j < size; j++) {
-                    WriterLogEntry entry = buffer.buffer[(start + j) % buffer.buffer.length];
-                    if (entry.isInitialized()) {
-                        if (this.usePostProcessor) {
-                            hstore_site.responseQueue(entry.cresponse, entry.clientCallback, entry.initiateTime, entry.restartCounter);
-                        } else {
-                            hstore_site.responseSend(entry.cresponse, entry.clientCallback, entry.initiateTime, entry.restartCounter);
-                        }
-                    } else {
-                        LOG.warn("Unexpected unintialized " + entry.getClass().getSimpleName());
-                    }
-
-                } // FOR
-                buffer.flushCleanup();
-            } // FOR
+            if (this.group == null) {
+                this.releaseEntries(eb);
+            } else {
+                synchronized (this.group) {
+                    this.releaseEntries(eb);
+                    
+                    // Our entries may have been the last part of the multi-partition
+                    // txns that the other streams are holding their responses for
+                    for (CommandLogWriter stream : this.group.streams) {
+                        stream.releaseHeldResponses();
+                    } // FOR
+                } // SYNCH
+            }
         } finally {
             if (hstore_conf.site.commandlog_profiling && profiler != null)
-                profiler.networkTime.stop();
+                profiler.networkTime.stopIfStarted();
+        }
+    }
+    
+    private void releaseEntries(CircularLogEntryBuffer[] eb) {
+        // Replay sorts each batch of a log stream by txn id before it looks for
+        // incomplete multi-partition entries, so we have to release them in that order
+        List<WriterLogEntry> ordered = (this.group != null ? new ArrayList<WriterLogEntry>() : null);
+        
+        // Send responses
+        for (int i = 0; i < eb.length; i++) {
+            CircularLogEntryBuffer buffer = eb[i];
+            int start = buffer.getStart();
+            for (int j = 0, size = buffer.size(); j < size; j++) {
+                WriterLogEntry entry = buffer.buffer[(start + j) % buffer.buffer.length];
+                if (entry.isInitialized() == false) {
+                    LOG.warn("Unexpected unintialized " + entry.getClass().getSimpleName());
+                } else if (ordered != null) {
+                    ordered.add(entry);
+                } else {
+                    this.releaseResponse(entry.cresponse, entry.clientCallback,
+                                         entry.initiateTime, entry.restartCounter, null);
+                }
+            } // FOR
+        } // FOR
+        
+        if (ordered != null) {
+            Collections.sort(ordered, LogEntry.TXN_ID_COMPARATOR);
+            for (WriterLogEntry entry : ordered) {
+                if (entry.pendingStreams != null) entry.pendingStreams.decrementAndGet();
+                if (this.heldResponses.isEmpty() &&
+                    (entry.pendingStreams == null || entry.pendingStreams.get() == 0)) {
+                    this.releaseResponse(entry.cresponse, entry.clientCallback,
+                                         entry.initiateTime, entry.restartCounter, entry.unreleasedStreams);
+                } else {
+                    this.heldResponses.add(new HeldResponse(entry));
+                }
+            } // FOR
+        }
+        for (int i = 0; i < eb.length; i++) {
+            eb[i].flushCleanup();
+        } // FOR
+    }
+    
+    /**
+     * Send out the responses that we are holding, up to the first multi-partition
+     * entry that is still not durable in all of its streams.
+     * The caller must hold the lock of our group.
+     */
+    private void releaseHeldResponses() {
+        assert(Thread.holdsLock(this.group));
+        while (this.heldResponses.isEmpty() == false) {
+            HeldResponse held = this.heldResponses.peek();
+            if (held.pendingStreams != null && held.pendingStreams.get() > 0) {
+                if (trace.val)
+                    LOG.trace(String.format("Holding %d responses in stream #%d until txn #%d is durable in all of its streams",
+                                            this.heldResponses.size(), this.streamId, held.cresponse.getTransactionId()));
+                break;
+            }
+            this.heldResponses.poll();
+            this.releaseResponse(held.cresponse, held.clientCallback,
+                                 held.initiateTime, held.restartCounter, held.unreleasedStreams);
+        } // WHILE
+    }
+    
+    /**
+     * Send out a txn's ClientResponse. If the txn was recorded in multiple
+     * log streams, then we only send it once every one of those streams has
+     * released it. 
+     */
+    private void releaseResponse(ClientResponseImpl cresponse, RpcCallback<ClientResponseImpl> clientCallback,
+                                 long initiateTime, int restartCounter, AtomicInteger unreleasedStreams) {
+        if (unreleasedStreams != null && unreleasedStreams.decrementAndGet() > 0) {
+            return;
+        }
+        if (this.usePostProcessor) {
+            hstore_site.responseQueue(cresponse, clientCallback, initiateTime, restartCounter);
+        } else {
+            hstore_site.responseSend(cresponse, clientCallback, initiateTime, restartCounter);
         }
-
-        this.commitBatchCounter++;
-        return (txnCounter);
     }
     
     /**
@@ -550,6 +1285,13 @@ public class CommandLogWriter extends ExceptionHandlingRunnable implements Shutd
      */
     public boolean appendToLog(final LocalTransaction ts, final ClientResponseImpl cresponse) {
         boolean sendResponse = true;
+        
+        // -------------------------------
+        // PER-PARTITION LOG STREAMS
+        // -------------------------------
+        if (this.streams != null) {
+            return (this.appendToStreams(ts, cresponse));
+        }
 
         // -------------------------------
         // QUEUE FOR GROUP COMMIT
@@ -560,30 +1302,12 @@ public class CommandLogWriter extends ExceptionHandlingRunnable implements Shutd
         
             int basePartition = ts.getBasePartition();
             assert(this.hstore_site.isLocalPartition(basePartition));
-            int offset = this.hstore_site.getLocalPartitionOffset(basePartition);
-
-            // get the buffer for the partition of the current transaction
-            CircularLogEntryBuffer buffer = this.entries[offset];
-            assert(buffer != null) : "Missing log entry buffer for partition " + basePartition;
-            try {
-                // acquire semaphore permit to write a transaction to the log
-                // buffer will wait if buffer is currently being swapped
-                this.writingEntry.acquire();
-
-                // create an entry for this transaction in the buffer for this partition
-                // NOTE: this is guaranteed to be thread-safe because there is
-                // only one thread per partition
-                LogEntry entry = buffer.next(ts, cresponse);
-                assert(entry != null);
-                if (trace.val)
-                    LOG.trace(String.format("New %s %s from %s for partition %d", entry.getClass().getSimpleName(), entry, buffer, basePartition));
+            int offset = this.bufferOffsets[basePartition];
+            assert(offset >= 0) : "Partition " + basePartition + " is not handled by " + this.outputFile;
+            this.appendEntry(ts, cresponse, offset, null, null, 1, false);
 
-                this.writingEntry.release();
-            } catch (InterruptedException e) {
-                throw new RuntimeException("Unexpected interruption while waiting for WriterThread to finish");
-            } finally {
-                if (hstore_conf.site.commandlog_profiling && profiler != null) profiler.blockedTime.stopIfStarted();
-            }
+            if (trace.val)
+                LOG.trace(ts + " - Finished queuing txn to write out to command log");
 
             if (trace.val)
                 LOG.trace(ts + " - Finished queuing txn to write out to command log");
@@ -614,4 +1338,105 @@ public class CommandLogWriter extends ExceptionHandlingRunnable implements Shutd
         
         return (sendResponse);
     }
+    
+    /**
+     * Queue a new entry for the given txn in the entry buffer at the given offset.
+     * Only the buffer for cross-stream markers can be written to by multiple threads.
+     * @param ts
+     * @param cresponse
+     * @param offset
+     * @param pendingStreams
+     * @param unreleasedStreams
+     * @param numStreams
+     * @param marker
+     */
+    private void appendEntry(LocalTransaction ts, ClientResponseImpl cresponse, int offset,
+                             AtomicInteger pendingStreams, AtomicInteger unreleasedStreams,
+                             int numStreams, boolean marker) {
+        try {
+            // acquire semaphore permit to write a transaction to the log
+            // buffer will wait if buffer is currently being swapped
+            this.writingEntry.acquire();
+            
+            // get the buffer for the partition of the current transaction
+            CircularLogEntryBuffer buffer = this.entries[offset];
+            assert(buffer != null) : "Missing log entry buffer at offset " + offset;
+
+            // create an entry for this transaction in the buffer for this partition
+            // NOTE: this is guaranteed to be thread-safe because there is
+            // only one thread per partition
+            WriterLogEntry entry = null;
+            if (offset == this.markerOffset) {
+                synchronized (buffer) {
+                    entry = buffer.next(ts, cresponse);
+                    entry.pendingStreams = pendingStreams;
+                    entry.unreleasedStreams = unreleasedStreams;
+                    entry.setStreams(numStreams, marker);
+                } // SYNCH
+            } else {
+                entry = buffer.next(ts, cresponse);
+                entry.pendingStreams = pendingStreams;
+                entry.unreleasedStreams = unreleasedStreams;
+                entry.setStreams(numStreams, marker);
+            }
+            assert(entry != null);
+            if (trace.val)
+                LOG.trace(String.format("New %s %s from %s at offset %d", entry.getClass().getSimpleName(), entry, buffer, offset));
+
+            this.writingEntry.release();
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Unexpected interruption while waiting for WriterThread to finish");
+        } finally {
+            if (hstore_conf.site.commandlog_profiling && profiler != null) profiler.blockedTime.stopIfStarted();
+        }
+    }
+    
+    /**
+     * Queue the given txn at the log stream for its base partition. If this is a
+     * multi-partition txn that touched partitions that belong to other streams,
+     * then we will also queue a cross-stream marker at each of those streams.
+     * The txn's ClientResponse is only sent once all of these streams are durable,
+     * along with every multi-partition txn that came before it in those streams.
+     * @param ts
+     * @param cresponse
+     * @return
+     */
+    private boolean appendToStreams(LocalTransaction ts, ClientResponseImpl cresponse) {
+        assert(this.useGroupCommit) : "Per-partition log streams require group commit";
+        int basePartition = ts.getBasePartition();
+        CommandLogWriter baseStream = this.streams[this.streamOffsets[basePartition]];
+        
+        // Figure out what other streams this txn needs to be recorded in
+        PartitionSet touched = ts.getPredictTouchedPartitions();
+        boolean others[] = null;
+        int numStreams = 1;
+        if (touched != null && touched.size() > 1) {
+            for (int partition : touched.values()) {
+                int stream = this.streamOffsets[partition];
+                if (stream < 0 || this.streams[stream] == baseStream) continue;
+                if (others == null) others = new boolean[this.streams.length];
+                if (others[stream] == false) {
+                    others[stream] = true;
+                    numStreams++;
+                }
+            } // FOR
+        }
+        
+        if (others == null) {
+            baseStream.appendEntry(ts, cresponse, baseStream.bufferOffsets[basePartition], null, null, 1, false);
+            return (false);
+        }
+        if (trace.val)
+            LOG.trace(String.format("%s - Recording txn in %d command log streams", ts, numStreams));
+        AtomicInteger pendingStreams = new AtomicInteger(numStreams);
+        AtomicInteger unreleasedStreams = new AtomicInteger(numStreams);
+        baseStream.appendEntry(ts, cresponse, baseStream.bufferOffsets[basePartition],
+                               pendingStreams, unreleasedStreams, numStreams, false);
+        for (int i = 0; i < others.length; i++) {
+            if (others[i] == false) continue;
+            CommandLogWriter stream = this.streams[i];
+            stream.appendEntry(ts, cresponse, stream.markerOffset, pendingStreams, unreleasedStreams, numStreams, true);
+        } // FOR
+        return (false);
+    }
 }
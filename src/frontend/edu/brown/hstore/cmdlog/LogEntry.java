@@ -27,6 +27,7 @@
 package edu.brown.hstore.cmdlog;
 
 import java.io.IOException;
+import java.util.Comparator;
 
 import org.apache.log4j.Logger;
 import org.voltdb.ParameterSet;
@@ -54,11 +55,37 @@ public class LogEntry implements FastSerializable, Poolable {
         LoggerUtil.attachObserver(LOG, debug, trace);
     }
     
+    /**
+     * Orders LogEntries by their txn id. The writer serializes each group commit
+     * batch one partition buffer at a time, so a batch has to be sorted with this
+     * before its txns can be replayed.
+     */
+    public static final Comparator<LogEntry> TXN_ID_COMPARATOR = new Comparator<LogEntry>() {
+        @Override
+        public int compare(LogEntry e0, LogEntry e1) {
+            return (e0.txnId.compareTo(e1.txnId));
+        }
+    };
+    
     private Long txnId;
     private long timestamp;
     private int procId;
     private ParameterSet procParams;
     
+    /**
+     * The number of command log streams that this txn was recorded in.
+     * This is only greater than one for multi-partition txns whose 
+     * partitions are handled by different streams.
+     */
+    private int numStreams = 1;
+    
+    /**
+     * If true, then this entry is a cross-stream marker for a multi-partition
+     * txn whose full entry was recorded in another stream. Markers do not
+     * include the txn's parameters.
+     */
+    private boolean marker = false;
+    
     /**
      * Initialization method.
      * Note that even though we take in a LocalTransaction handle, we will
@@ -70,6 +97,8 @@ public class LogEntry implements FastSerializable, Poolable {
         this.txnId = ts.getTransactionId();
         this.procId = ts.getProcedure().getId();
         this.procParams = ts.getProcedureParameters();
+        this.numStreams = 1;
+        this.marker = false;
         assert(this.isInitialized()) : 
             "Unexpected uninitialized " + this.getClass().getSimpleName();
         return (this);
@@ -84,6 +113,19 @@ public class LogEntry implements FastSerializable, Poolable {
         return (this);
     }
     
+    /**
+     * Mark this entry as belonging to a txn that was recorded in multiple 
+     * command log streams.
+     * @param numStreams the total number of streams that the txn was recorded in
+     * @param marker true if this is only a marker and not the txn's full entry 
+     * @return
+     */
+    public LogEntry setStreams(int numStreams, boolean marker) {
+        this.numStreams = numStreams;
+        this.marker = marker;
+        return (this);
+    }
+    
     public Long getTransactionId() {
         return txnId;
     }
@@ -96,6 +138,12 @@ public class LogEntry implements FastSerializable, Poolable {
     public ParameterSet getProcedureParams() {
         return procParams;
     }
+    public int getStreamCount() {
+        return numStreams;
+    }
+    public boolean isStreamMarker() {
+        return marker;
+    }
     
     @Override
     public boolean isInitialized() {
@@ -108,27 +156,63 @@ public class LogEntry implements FastSerializable, Poolable {
         this.timestamp = -1;
         this.procId = -1;
         this.procParams = null;
+        this.numStreams = 1;
+        this.marker = false;
     }
 
     @Override
     public void readExternal(FastDeserializer in) throws IOException {
+        this.readExternal(in, false);
+    }
+    
+    /**
+     * Deserialize this entry from a log that may have per-partition streams
+     * @param in
+     * @param streams true if the log's header says that it belongs to a group of streams
+     * @throws IOException
+     */
+    public void readExternal(FastDeserializer in, boolean streams) throws IOException {
         this.txnId = Long.valueOf(in.readLong());
         this.timestamp = in.readLong();
         this.procId = in.readInt();
-        this.procParams = in.readObject(ParameterSet.class);
+        if (streams) {
+            this.numStreams = in.readShort();
+            this.marker = in.readBoolean();
+        } else {
+            this.numStreams = 1;
+            this.marker = false;
+        }
+        this.procParams = (this.marker ? null : in.readObject(ParameterSet.class));
     }
 
     @Override
     public void writeExternal(FastSerializer out) throws IOException {
+        this.writeExternal(out, false);
+    }
+    
+    /**
+     * Serialize this entry. The stream information is only included if the
+     * log belongs to a group of per-partition streams.
+     * @param out
+     * @param streams
+     * @throws IOException
+     */
+    public void writeExternal(FastSerializer out, boolean streams) throws IOException {
         assert(this.isInitialized()) : 
             "Unexpected uninitialized " + this.getClass().getSimpleName();               
+        assert(streams || (this.numStreams == 1 && this.marker == false)) :
+            "Unable to write multi-stream entry " + this + " to a single log";
         out.writeLong(this.txnId.longValue());
         out.writeLong(EstTime.currentTimeMillis());
         out.writeInt(this.procId);
-        out.writeObject(this.procParams);
+        if (streams) {
+            out.writeShort(this.numStreams);
+            out.writeBoolean(this.marker);
+        }
+        if (this.marker == false) out.writeObject(this.procParams);
     }
     
     public String toString() {
-        return ("Txn #" + this.txnId + " / Proc #" + this.procId);
+        return ("Txn #" + this.txnId + " / Proc #" + this.procId + (this.marker ? " / Marker" : ""));
     }
 } // CLASS
\ No newline at end of file
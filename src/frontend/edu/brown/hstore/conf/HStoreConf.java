@@ -130,6 +130,15 @@ public final class HStoreConf {
             experimental=true
         )
         public boolean nanosecond_latencies;
+        
+        @ConfigProperty(
+            description="When compression is enabled between clients and an HStoreSite, " +
+                        "messages that are smaller than this number of bytes are sent uncompressed. " +
+                        "See ${site.network_client_compression} and ${client.network_compression}.",
+            defaultInt=4096,
+            experimental=true
+        )
+        public int network_compression_threshold;
 
     }
     
@@ -409,6 +418,17 @@ public final class HStoreConf {
         )
         public boolean exec_early_prepare;
 
+        @ConfigProperty(
+            description="If this parameter and ${site.exec_early_prepare} are both true, then " +
+                        "a remote partition that receives the last WorkFragment for a distributed " +
+                        "txn will invoke the 2PC:PREPARE phase before it sends back its WorkResult. " +
+                        "The base partition will then treat that WorkResult as the partition's " +
+                        "vote and will not send it a separate TransactionPrepareRequest.",
+            defaultBoolean=false,
+            experimental=true
+        )
+        public boolean exec_early_prepare_vote;
+
         @ConfigProperty(
             description="Setting this configuration parameter to true allows clients to " +
                         "issue ad hoc query requests use the @AdHoc sysproc. This should be " +
@@ -457,6 +477,55 @@ public final class HStoreConf {
         )
         public boolean exec_readwrite_tracking;
 
+        @ConfigProperty(
+            description="If enabled, then each PartitionExecutor will cache the results of the read-only " +
+                        "queries that are executed by non-speculative single-partition transactions. " +
+                        "A cached result is keyed on the query's PlanFragment and its input parameters. " +
+                        "It is invalidated as soon as a transaction writes to one of the tables that " +
+                        "the query reads, or when any transaction is aborted at the partition.",
+            defaultBoolean=false,
+            experimental=true
+        )
+        public boolean exec_query_cache;
+
+        @ConfigProperty(
+            description="The max number of query results that each PartitionExecutor will keep in its " +
+                        "cache when ${site.exec_query_cache} is enabled. The least recently used results " +
+                        "are evicted first.",
+            defaultInt=1000,
+            experimental=true
+        )
+        public int exec_query_cache_size;
+        
+        @ConfigProperty(
+            description="If enabled, then each PartitionExecutor will use a bounded, lock-free " +
+                        "multi-producer/single-consumer ring buffer for its work queue instead of " +
+                        "the default PartitionMessageQueue. Messages are put into priority lanes " +
+                        "based on their type and are processed in FIFO order within each lane.",
+            defaultBoolean=false,
+            experimental=true
+        )
+        public boolean exec_work_queue_ring;
+        
+        @ConfigProperty(
+            description="The max number of messages per priority lane in the PartitionExecutor's " +
+                        "work queue when ${site.exec_work_queue_ring} is enabled. This will be rounded " +
+                        "up to the next power of two.",
+            defaultInt=16384,
+            experimental=true
+        )
+        public int exec_work_queue_ring_size;
+        
+        @ConfigProperty(
+            description="What the PartitionExecutor's thread should do while it waits for new messages " +
+                        "when ${site.exec_work_queue_ring} is enabled. SPIN has the lowest latency but " +
+                        "will use an entire CPU core per partition even when the system is idle.",
+            defaultString="PARK",
+            experimental=true,
+            enumOptions="org.voltdb.types.WorkQueueWaitStrategyType"
+        )
+        public String exec_work_queue_wait;
+
         // ----------------------------------------------------------------------------
         // Speculative Execution Options
         // ----------------------------------------------------------------------------
@@ -494,6 +563,44 @@ public final class HStoreConf {
         )
         public int specexec_scheduler_window;
         
+        @ConfigProperty(
+            description="If enabled, then the SpecExecScheduler will adjust its window size and " +
+                        "scheduling policy at run time based on how often it finds a transaction to " +
+                        "speculatively execute and how often those transactions get aborted. " +
+                        "The window starts at ${site.specexec_scheduler_window} and is a hard limit " +
+                        "on the number of transactions examined per search. The scheduler will switch " +
+                        "between the FIRST and SHORTEST policies.",
+            defaultBoolean=false,
+            experimental=true
+        )
+        public boolean specexec_scheduler_adaptive;
+        
+        @ConfigProperty(
+            description="The number of searches performed by the SpecExecScheduler between each " +
+                        "adjustment when ${site.specexec_scheduler_adaptive} is enabled.",
+            defaultInt=1000,
+            experimental=true
+        )
+        public int specexec_scheduler_adaptive_interval;
+        
+        @ConfigProperty(
+            description="The maximum window size that the SpecExecScheduler is allowed to use " +
+                        "when ${site.specexec_scheduler_adaptive} is enabled.",
+            defaultInt=100,
+            experimental=true
+        )
+        public int specexec_scheduler_adaptive_max_window;
+        
+        @ConfigProperty(
+            description="If the fraction of speculative transactions that are aborted is greater than " +
+                        "this threshold, then the adaptive SpecExecScheduler will use the SHORTEST policy. " +
+                        "Otherwise it will use the FIRST policy. " +
+                        "See ${site.specexec_scheduler_adaptive}.",
+            defaultDouble=0.10,
+            experimental=true
+        )
+        public double specexec_scheduler_adaptive_abort_threshold;
+        
         @ConfigProperty(
             description="If this parameter is true, then the SpecExecScheduler will not attempt to " +
                         "speculatively execute any transactions if the current distributed transaction " +
@@ -601,6 +708,96 @@ public final class HStoreConf {
         )
         public int commandlog_timeout;
         
+        @ConfigProperty(
+            description="If enabled, then the CommandLogWriter will pipeline its group commits. " +
+                        "The next batch of log entries will be serialized and compressed while the " +
+                        "previous batch is still being written out and fsynced to disk by a separate " +
+                        "thread. The ClientResponses for each batch are released as soon as that " +
+                        "batch is durable.",
+            defaultBoolean=false,
+            experimental=true
+        )
+        public boolean commandlog_pipeline;
+        
+        @ConfigProperty(
+            description="The number of group commit batches that can be in flight at the same time " +
+                        "when ${site.commandlog_pipeline} is enabled (i.e., batches that are either " +
+                        "being serialized or waiting to be fsynced). Each batch requires its own set of " +
+                        "log entry buffers. The minimum is two.",
+            defaultInt=2,
+            experimental=true
+        )
+        public int commandlog_pipeline_depth;
+        
+        @ConfigProperty(
+            description="If enabled, then the CommandLogWriter will split the command log into " +
+                        "fixed-size segment files that are preallocated up front and written through " +
+                        "memory-mapped buffers. Segments are recycled once a snapshot covers all of " +
+                        "the txns that they contain.",
+            defaultBoolean=false,
+            experimental=true
+        )
+        public boolean commandlog_segments;
+        
+        @ConfigProperty(
+            description="The size of each command log segment file in megabytes. " +
+                        "Only used if ${site.commandlog_segments} is enabled.",
+            defaultInt=64,
+            experimental=true
+        )
+        public int commandlog_segment_size;
+        
+        @ConfigProperty(
+            description="The number of command log segment files to preallocate when the " +
+                        "CommandLogWriter starts. Only used if ${site.commandlog_segments} is enabled.",
+            defaultInt=2,
+            experimental=true
+        )
+        public int commandlog_segment_prealloc;
+        
+        @ConfigProperty(
+            description="If set to a value greater than zero, then the CommandLogWriter will split the " +
+                        "command log into separate streams that each have their own writer thread and output " +
+                        "file. Each stream handles this many of the site's local partitions. " +
+                        "Multi-partition txns are recorded in the stream of their base partition and a " +
+                        "cross-stream marker is written to every other stream that they touched. " +
+                        "Set this to one to use a separate stream per partition.",
+            defaultInt=0,
+            experimental=true
+        )
+        public int commandlog_stream_partitions;
+        
+        @ConfigProperty(
+            description="Comma-separated list of directories to write the command log streams to. " +
+                        "The streams are assigned to these directories in a round-robin manner, which " +
+                        "allows you to spread them out over multiple devices. If not set, then all of the " +
+                        "streams are written to ${site.commandlog_dir}. " +
+                        "Only used if ${site.commandlog_stream_partitions} is greater than zero.",
+            defaultNull=true,
+            experimental=true
+        )
+        public String commandlog_stream_dirs;
+        
+        @ConfigProperty(
+            description="If set, then the HStoreSite will replay the transactions in this command log " +
+                        "file during recovery before it starts accepting client connections. " +
+                        "The output files of multiple command log streams can be given as a " +
+                        "comma-separated list. " +
+                        "Requires ${site.snapshot} to be enabled.",
+            defaultNull=true,
+            experimental=true
+        )
+        public String commandlog_replay_file;
+        
+        @ConfigProperty(
+            description="The number of threads that the CommandLogReplayer will use to decompress and " +
+                        "deserialize group commit batches in parallel during recovery. " +
+                        "If set to zero, then the batches are decoded serially in the replay thread.",
+            defaultInt=4,
+            experimental=true
+        )
+        public int commandlog_replay_threads;
+        
         @ConfigProperty(
             description="If enabled, then the CommandLogWriter will keep track of various internal " +
                         "profile statistics.",
@@ -951,6 +1148,68 @@ public final class HStoreConf {
         )
         public long network_incoming_limit_bytes;
         
+        @ConfigProperty(
+            description="If enabled, then the HStoreCoordinator will coalesce all of the RPC requests " +
+                        "and responses that are going to the same remote site into a single socket write. " +
+                        "Messages are buffered until either the HStoreCoordinator's event loop thread " +
+                        "flushes them or the buffer reaches ${site.network_rpc_batch_bytes}.",
+            defaultBoolean=false,
+            experimental=true
+        )
+        public boolean network_rpc_batching;
+        
+        @ConfigProperty(
+            description="The number of buffered bytes for a remote site that will force the " +
+                        "HStoreCoordinator to write them out immediately when ${site.network_rpc_batching} " +
+                        "is enabled.",
+            defaultInt=65536,
+            experimental=true
+        )
+        public int network_rpc_batch_bytes;
+        
+        @ConfigProperty(
+            description="The number of threads that the HStoreCoordinator will use to read and " +
+                        "decode messages from remote sites. Each connection is pinned to a single " +
+                        "thread, so messages from the same site are still processed in order. " +
+                        "If this is set to one, then all connections are handled by the " +
+                        "HStoreCoordinator's event loop thread.",
+            defaultInt=1,
+            experimental=true
+        )
+        public int network_eventloop_threads;
+        
+        @ConfigProperty(
+            description="Allow clients to compress their connections to this HStoreSite with Snappy. " +
+                        "This is only used for clients that ask for it with ${client.network_compression}. " +
+                        "Transaction requests and responses that are at least " +
+                        "${global.network_compression_threshold} bytes will then be compressed.",
+            defaultBoolean=true,
+            experimental=true
+        )
+        public boolean network_client_compression;
+        
+        @ConfigProperty(
+            description="The number of selector threads that the HStoreSite will use for client connections. " +
+                        "Each client connection is assigned to one of these threads by the hash of its address, " +
+                        "and that thread does all of the reads and writes for it. Each thread is pinned " +
+                        "by the HStoreThreadManager. If this is set to one, then a single selector thread " +
+                        "hands the connections' work off to a pool of network threads.",
+            defaultInt=1,
+            experimental=true
+        )
+        public int network_incoming_selectors;
+        
+        @ConfigProperty(
+            description="If this parameter is set to true, then the ClientResponses for a client connection " +
+                        "that are ready before the network thread gets around to writing them out " +
+                        "are serialized into a single buffer and sent back with one write. " +
+                        "This is most helpful when a command log group commit releases a large batch " +
+                        "of responses at the same time.",
+            defaultBoolean=false,
+            experimental=true
+        )
+        public boolean network_response_batching;
+        
         // ----------------------------------------------------------------------------
         // Transaction Execution Options
         // ----------------------------------------------------------------------------
@@ -1052,6 +1311,49 @@ public final class HStoreConf {
         )
         public boolean queue_profiling;
         
+        @ConfigProperty(
+            description="If enabled, then each PartitionLockQueue will store its transactions in a " +
+                        "concurrent skiplist and will not acquire a lock when transactions are added " +
+                        "or removed. The queue's state is only recomputed by the partition's " +
+                        "PartitionExecutor when it polls the queue. This reduces contention between " +
+                        "the TransactionQueueManager threads and the PartitionExecutor when there " +
+                        "are a lot of distributed transactions.",
+            defaultBoolean=false,
+            experimental=true
+        )
+        public boolean queue_lockfree;
+
+        @ConfigProperty(
+            description="If enabled, then the TransactionQueueManager will drain new transactions " +
+                        "from its initialization queue in batches. Each batch is sorted by transaction id " +
+                        "and then inserted into the PartitionLockQueues one partition at a time, " +
+                        "so that each partition's lock is only acquired once per batch instead of once " +
+                        "per transaction.",
+            defaultBoolean=false,
+            experimental=true
+        )
+        public boolean queue_init_batching;
+
+        @ConfigProperty(
+            description="The maximum number of transactions that the TransactionQueueManager will " +
+                        "insert into the PartitionLockQueues at once when ${site.queue_init_batching} " +
+                        "is enabled.",
+            defaultInt=64,
+            experimental=true
+        )
+        public int queue_init_batch_size;
+
+        @ConfigProperty(
+            description="If enabled, then a new single-partition transaction will bypass the " +
+                        "TransactionQueueManager and its PartitionLockQueue and be handed directly to " +
+                        "its base partition's PartitionExecutor whenever there is no distributed " +
+                        "transaction holding or waiting for that partition. Otherwise the transaction " +
+                        "will be queued normally.",
+            defaultBoolean=false,
+            experimental=true
+        )
+        public boolean queue_fastlane;
+
         @ConfigProperty(
             description="The initial throttling threshold for the PartitionLockQueue.",
             defaultDouble=1.0,
@@ -1174,6 +1476,19 @@ public final class HStoreConf {
         )
         public boolean markov_mispredict_recompute;
 
+        @ConfigProperty(
+            description="If this parameter is set to true, then the MarkovEstimators will not update " +
+                        "their models' counters or recompute their probabilities while a transaction is running. " +
+                        "Instead, the paths of completed transactions are handed off to a separate " +
+                        "MarkovModelLearner thread that folds them into the models and swaps in the new " +
+                        "probabilities. A model is only recomputed if its MarkovEstimator has recomputes enabled " +
+                        "or a transaction is aborted due to a misprediction and ${site.markov_mispredict_recompute} " +
+                        "is set to true. Note that ${site.markov_learning_enable} must be set to true.",
+            defaultBoolean=false,
+            experimental=true
+        )
+        public boolean markov_learning_async;
+
         @ConfigProperty(
             description="", // TODO
             defaultNull=true,
@@ -1267,7 +1582,18 @@ public final class HStoreConf {
             experimental=false
         )
         public boolean planner_caching;
-        
+
+        @ConfigProperty(
+            description="The maximum number of multi-partition BatchPlans that each BatchPlanner will cache " +
+                        "when ${site.planner_caching} is enabled. A cached plan is reused whenever a batch " +
+                        "touches the same partitions from the same base partition, which allows the BatchPlanner " +
+                        "to skip rebuilding the plan's WorkFragments. Set this to zero to only cache " +
+                        "single-partition BatchPlans.",
+            defaultInt=0,
+            experimental=true
+        )
+        public int planner_caching_multipartition_size;
+
         @ConfigProperty(
             description="The maximum number of execution rounds allowed per batch.",
             defaultInt=10,
@@ -1724,6 +2050,29 @@ public final class HStoreConf {
         )
         public boolean txn_hints;
         
+        @ConfigProperty(
+            description="If this parameter and ${client.txn_hints} are both set to true, then a client that was " +
+                        "not given a catalog will retrieve it from the cluster using @GetCatalog after it makes " +
+                        "its first connection. The client will then use the catalog's partition-to-site mapping and " +
+                        "the procedures' partitioning parameters to send each request directly to the HStoreSite that " +
+                        "has its base partition. The catalog is retrieved again if the client connects to an " +
+                        "HStoreSite that is not in the catalog that it already has.",
+            defaultBoolean=false,
+            experimental=true
+        )
+        public boolean txn_hints_fetch_catalog;
+        
+        @ConfigProperty(
+            description="Ask each HStoreSite to compress the messages on this client's connections with Snappy. " +
+                        "Transaction requests and responses that are at least " +
+                        "${global.network_compression_threshold} bytes will be compressed if the HStoreSite " +
+                        "agrees to it (see ${site.network_client_compression}). This is useful when the client " +
+                        "is on a slow network link or the transactions return large results.",
+            defaultBoolean=false,
+            experimental=true
+        )
+        public boolean network_compression;
+        
         @ConfigProperty(
             description="If a node is executing multiple client processes, then the node may become overloaded if " +
                         "all the clients are started at the same time. This parameter defines the threshold for when " +
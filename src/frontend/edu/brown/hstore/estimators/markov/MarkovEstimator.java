@@ -26,6 +26,7 @@ import edu.brown.hstore.txns.TransactionUtil;
 import edu.brown.interfaces.DebugContext;
 import edu.brown.logging.LoggerUtil;
 import edu.brown.logging.LoggerUtil.LoggerBoolean;
+import edu.brown.markov.CompiledMarkovGraph;
 import edu.brown.markov.MarkovEdge;
 import edu.brown.markov.MarkovGraph;
 import edu.brown.markov.MarkovGraphTimes;
@@ -65,7 +66,7 @@ public class MarkovEstimator extends TransactionEstimator {
      * to recompute the graph.
      * TODO (pavlo): Saurya says: Should this be in MarkovGraph?
      */
-    private static final double RECOMPUTE_TOLERANCE = (double) 0.5;
+    protected static final double RECOMPUTE_TOLERANCE = (double) 0.5;
 
     // ----------------------------------------------------------------------------
     // DATA MEMBERS
@@ -90,6 +91,12 @@ public class MarkovEstimator extends TransactionEstimator {
     
     private transient boolean enable_recomputes = false;
     
+    /**
+     * If this is set, then the counters and probabilities for our MarkovGraphs
+     * will be updated by this background thread instead of by us
+     */
+    private MarkovModelLearner learner = null;
+    
     /**
      * If we're using the TransactionEstimator, then we need to convert all 
      * primitive array ProcParameters into object arrays...
@@ -150,6 +157,9 @@ public class MarkovEstimator extends TransactionEstimator {
     public void enableGraphRecomputes() {
        this.enable_recomputes = true;
     }
+    public void setModelLearner(MarkovModelLearner learner) {
+        this.learner = learner;
+    }
     public MarkovGraphsContainer getMarkovGraphsContainer() {
         return (this.markovs);
     }
@@ -367,7 +377,7 @@ public class MarkovEstimator extends TransactionEstimator {
         
         // Once the workload shifts we detect it and trigger this method. Recomputes
         // the graph with the data we collected with the current workload method.
-        if (this.enable_recomputes && markov.shouldRecompute(this.txn_count.get(), RECOMPUTE_TOLERANCE)) {
+        if (this.enable_recomputes && this.learner == null && markov.shouldRecompute(this.txn_count.get(), RECOMPUTE_TOLERANCE)) {
             markov.calculateProbabilities(catalogContext.getAllPartitionIds());
         }
         
@@ -388,6 +398,9 @@ public class MarkovEstimator extends TransactionEstimator {
         // The transaction for the given txn_id is in limbo, so we just want to remove it
         if (status == Status.ABORT_MISPREDICT) {
             state.getMarkovGraph().incrementMispredictionCount();
+            if (this.learner != null && hstore_conf.site.markov_mispredict_recompute) {
+                this.learner.queueRecompute(state.getBasePartition(), state.getMarkovGraph());
+            }
             if (this.profiler != null) this.profiler.finish_time.appendTime(timestamp);
             return;
         }
@@ -427,9 +440,15 @@ public class MarkovEstimator extends TransactionEstimator {
     
             // Update counters
             // We want to update the counters for the entire path right here so that
-            // nobody gets incomplete numbers if they recompute probabilities
-            for (MarkovVertex v : state.actual_path) v.incrementInstanceHits();
-            for (MarkovEdge e : state.actual_path_edges) e.incrementInstanceHits();
+            // nobody gets incomplete numbers if they recompute probabilities.
+            // If we have a MarkovModelLearner, then it will do this for us.
+            if (this.learner != null) {
+                this.learner.queuePath(state.getBasePartition(), markov,
+                                      state.actual_path, state.actual_path_edges, this.enable_recomputes);
+            } else {
+                for (MarkovVertex v : state.actual_path) v.incrementInstanceHits();
+                for (MarkovEdge e : state.actual_path_edges) e.incrementInstanceHits();
+            }
             if (this.enable_recomputes) {
                 this.markovTimes.addInstanceTime(next_v, txn_id, state.getExecutionTimeOffset(end_time));
             }
@@ -633,46 +652,67 @@ public class MarkovEstimator extends TransactionEstimator {
         MarkovVertex next_v = null;
         MarkovEdge next_e = null;
         
+        // First check the graph's compiled form without taking any locks.
+        // Most of the time the txn is going to transition to a vertex that we've seen before
+        CompiledMarkovGraph compiled = markov.getCompiledGraph();
+        int current_id = compiled.getVertexId(current);
+        if (current_id >= 0) {
+            for (int offset = compiled.getSuccessorStart(current_id), end = compiled.getSuccessorEnd(current_id); offset < end; offset++) {
+                MarkovEdge e = compiled.getSuccessorEdge(offset);
+                if (e == null || compiled.isStatement(compiled.getSuccessorId(offset), catalog_stmt, queryCounter) == false) continue;
+                MarkovVertex v = compiled.getSuccessor(offset);
+                if (v.isEqual(catalog_stmt, partitions, touchedPartitions, queryCounter)) {
+                    if (debug.val)
+                        LOG.debug("Found next vertex " + v + " for Txn #" + state.getTransactionId());
+                    next_v = v;
+                    next_e = e;
+                    break;
+                }
+            } // FOR
+        }
+        
         // Synchronize on the single vertex so that it's more fine-grained than the entire graph
-        synchronized (current) {
-            Collection<MarkovEdge> edges = markov.getOutEdges(current);
-            if (edges != null) {
-                if (debug.val)
-                    LOG.debug(String.format("Examining %d edges from %s for txn #%d",
-                              edges.size(), current, state.getTransactionId())); 
-                for (MarkovEdge e : edges) {
-                    MarkovVertex v = markov.getDest(e);
-                    if (v.isEqual(catalog_stmt, partitions, touchedPartitions, queryCounter)) {
-                        if (debug.val)
-                            LOG.debug("Found next vertex " + v + " for Txn #" + state.getTransactionId());
-                        next_v = v;
-                        next_e = e;
-                        break;
-                    }
-                } // FOR
-            }
+        if (next_v == null) {
+            synchronized (current) {
+                Collection<MarkovEdge> edges = markov.getOutEdges(current);
+                if (edges != null) {
+                    if (debug.val)
+                        LOG.debug(String.format("Examining %d edges from %s for txn #%d",
+                                  edges.size(), current, state.getTransactionId())); 
+                    for (MarkovEdge e : edges) {
+                        MarkovVertex v = markov.getDest(e);
+                        if (v.isEqual(catalog_stmt, partitions, touchedPartitions, queryCounter)) {
+                            if (debug.val)
+                                LOG.debug("Found next vertex " + v + " for Txn #" + state.getTransactionId());
+                            next_v = v;
+                            next_e = e;
+                            break;
+                        }
+                    } // FOR
+                }
         
-            // If we fail to find the next vertex, that means we have to dynamically create a new 
-            // one. The graph is self-managed, so we don't need to worry about whether 
-            // we need to recompute probabilities.
-            if (next_v == null) {
-                next_v = new MarkovVertex(catalog_stmt,
-                                          MarkovVertex.Type.QUERY,
-                                          queryCounter,
-                                          partitions,
-                                          touchedPartitions);
-                assert(markov.containsVertex(current)) :
-                    String.format("%s does not have current vertex %s for %s",
-                                  markov, current,
-                                  TransactionUtil.formatTxnName(markov.getProcedure(), state.getTransactionId())); 
-                markov.addVertex(next_v);
-                next_e = markov.addToEdge(current, next_v);
-                if (debug.val)
-                    LOG.debug(String.format("Created new edge from %s to new vertex %s for txn #%d", 
-                              state.getCurrent(), next_v, state.getTransactionId()));
-                // assert(state.getCurrent().getPartitions().size() <= touchedPartitions.size());
-            }
-        } // SYNCH
+                // If we fail to find the next vertex, that means we have to dynamically create a new 
+                // one. The graph is self-managed, so we don't need to worry about whether 
+                // we need to recompute probabilities.
+                if (next_v == null) {
+                    next_v = new MarkovVertex(catalog_stmt,
+                                              MarkovVertex.Type.QUERY,
+                                              queryCounter,
+                                              partitions,
+                                              touchedPartitions);
+                    assert(markov.containsVertex(current)) :
+                        String.format("%s does not have current vertex %s for %s",
+                                      markov, current,
+                                      TransactionUtil.formatTxnName(markov.getProcedure(), state.getTransactionId())); 
+                    markov.addVertex(next_v);
+                    next_e = markov.addToEdge(current, next_v);
+                    if (debug.val)
+                        LOG.debug(String.format("Created new edge from %s to new vertex %s for txn #%d", 
+                                  state.getCurrent(), next_v, state.getTransactionId()));
+                    // assert(state.getCurrent().getPartitions().size() <= touchedPartitions.size());
+                }
+            } // SYNCH
+        }
         
         if (current.isStartVertex() && next_v.isCommitVertex()) {
             throw new ServerFaultException("Trying to connect START->COMMIT", state.getTransactionId());
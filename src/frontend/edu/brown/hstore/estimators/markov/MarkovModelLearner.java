@@ -0,0 +1,221 @@
+package edu.brown.hstore.estimators.markov;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+import edu.brown.hstore.HStoreConstants;
+import edu.brown.hstore.HStoreSite;
+import edu.brown.hstore.util.AbstractProcessingRunnable;
+import edu.brown.logging.LoggerUtil;
+import edu.brown.logging.LoggerUtil.LoggerBoolean;
+import edu.brown.markov.MarkovEdge;
+import edu.brown.markov.MarkovGraph;
+import edu.brown.markov.MarkovVertex;
+import edu.brown.statistics.ObjectHistogram;
+import edu.brown.utils.PartitionSet;
+
+/**
+ * Special thread that updates the MarkovGraphs used by the local MarkovEstimators.
+ * When a txn finishes, its MarkovEstimator appends the path that the txn took through
+ * its MarkovGraph to a lock-free buffer for the txn's base partition. This thread
+ * drains those buffers, folds the paths into the graphs' hit counters, and then
+ * recomputes the probabilities of any graph that needs it. The new probabilities are
+ * calculated in a shadow graph and then swapped in, so the PartitionExecutors never have
+ * to wait for a recomputation or see a graph whose probabilities are half-computed.
+ */
+public final class MarkovModelLearner extends AbstractProcessingRunnable<Integer> {
+    private static final Logger LOG = Logger.getLogger(MarkovModelLearner.class);
+    private static final LoggerBoolean debug = new LoggerBoolean();
+    private static final LoggerBoolean trace = new LoggerBoolean();
+    static {
+        LoggerUtil.attachObserver(LOG, debug, trace);
+    }
+
+    /**
+     * The path of a completed txn through a MarkovGraph.
+     * If the vertices are null, then this is a request to recompute the graph.
+     */
+    private static class LearnedPath {
+        private final MarkovGraph markov;
+        private final MarkovVertex vertices[];
+        private final MarkovEdge edges[];
+        private final boolean recompute;
+
+        private LearnedPath(MarkovGraph markov, MarkovVertex vertices[], MarkovEdge edges[], boolean recompute) {
+            this.markov = markov;
+            this.vertices = vertices;
+            this.edges = edges;
+            this.recompute = recompute;
+        }
+    }
+
+    private final PartitionSet allPartitions;
+
+    /**
+     * PartitionId -> Buffer of LearnedPaths that have not been processed yet
+     */
+    private final List<ConcurrentLinkedQueue<LearnedPath>> buffers;
+
+    /**
+     * PartitionId -> Whether the partition is already in our queue to be drained
+     */
+    private final AtomicBoolean scheduled[];
+
+    /**
+     * The number of txns that we have folded into each MarkovGraph
+     * since the last time that it was recomputed
+     */
+    private final ObjectHistogram<MarkovGraph> txnCounts = new ObjectHistogram<MarkovGraph>();
+
+    /**
+     * The MarkovGraphs that got new paths from estimators that allow recomputes
+     */
+    private final Set<MarkovGraph> updatedGraphs = new HashSet<MarkovGraph>();
+    private final Set<MarkovGraph> forcedGraphs = new HashSet<MarkovGraph>();
+
+    private long pathCounter = 0;
+    private long recomputeCounter = 0;
+
+    // ----------------------------------------------------------------------------
+    // INITIALIZATION
+    // ----------------------------------------------------------------------------
+
+    /**
+     * @param hstore_site
+     */
+    public MarkovModelLearner(HStoreSite hstore_site) {
+        super(hstore_site,
+              HStoreConstants.THREAD_NAME_MARKOVLEARNER,
+              new LinkedBlockingQueue<Integer>(),
+              hstore_site.getHStoreConf().site.status_exec_info);
+
+        this.allPartitions = hstore_site.getCatalogContext().getAllPartitionIds();
+        int num_partitions = hstore_site.getCatalogContext().numberOfPartitions;
+        this.buffers = new ArrayList<ConcurrentLinkedQueue<LearnedPath>>(num_partitions);
+        this.scheduled = new AtomicBoolean[num_partitions];
+        for (int partition = 0; partition < num_partitions; partition++) {
+            this.buffers.add(null);
+        } // FOR
+        for (int partition : hstore_site.getLocalPartitionIds().values()) {
+            this.buffers.set(partition, new ConcurrentLinkedQueue<LearnedPath>());
+            this.scheduled[partition] = new AtomicBoolean(false);
+        } // FOR
+    }
+
+    // ----------------------------------------------------------------------------
+    // QUEUING METHODS
+    // ----------------------------------------------------------------------------
+
+    /**
+     * Queue the path that a completed txn took through the given MarkovGraph.
+     * This is safe to call from any thread and will never block.
+     * @param partition The txn's base partition
+     * @param markov
+     * @param vertices
+     * @param edges
+     * @param recompute Whether the graph can be recomputed once it has enough new paths
+     */
+    public void queuePath(int partition, MarkovGraph markov, List<MarkovVertex> vertices, List<MarkovEdge> edges, boolean recompute) {
+        MarkovVertex path_vertices[] = vertices.toArray(new MarkovVertex[vertices.size()]);
+        MarkovEdge path_edges[] = edges.toArray(new MarkovEdge[edges.size()]);
+        this.queue(partition, new LearnedPath(markov, path_vertices, path_edges, recompute));
+    }
+
+    /**
+     * Queue a request to recompute the probabilities of the given MarkovGraph
+     * the next time that we process the partition's buffer.
+     * @param partition
+     * @param markov
+     */
+    public void queueRecompute(int partition, MarkovGraph markov) {
+        this.queue(partition, new LearnedPath(markov, null, null, true));
+    }
+
+    private void queue(int partition, LearnedPath path) {
+        this.buffers.get(partition).offer(path);
+        if (this.scheduled[partition].compareAndSet(false, true)) {
+            this.queue.offer(partition);
+        }
+    }
+
+    // ----------------------------------------------------------------------------
+    // PROCESSING METHODS
+    // ----------------------------------------------------------------------------
+
+    @Override
+    protected void processingCallback(Integer partition) {
+        // We have to clear the flag before we drain the buffer so that any path
+        // that gets added after we finish will put the partition back in our queue
+        this.scheduled[partition.intValue()].set(false);
+
+        LearnedPath path = null;
+        ConcurrentLinkedQueue<LearnedPath> buffer = this.buffers.get(partition.intValue());
+        while ((path = buffer.poll()) != null) {
+            if (path.vertices == null) {
+                this.forcedGraphs.add(path.markov);
+                continue;
+            }
+            for (MarkovVertex v : path.vertices) v.incrementInstanceHits();
+            for (MarkovEdge e : path.edges) e.incrementInstanceHits();
+            this.txnCounts.put(path.markov);
+            if (path.recompute) this.updatedGraphs.add(path.markov);
+            this.pathCounter++;
+        } // WHILE
+        if (trace.val)
+            LOG.trace(String.format("Folded paths into %d MarkovGraphs for partition %d",
+                      this.updatedGraphs.size(), partition));
+
+        for (MarkovGraph markov : this.forcedGraphs) {
+            this.recompute(markov);
+        } // FOR
+        for (MarkovGraph markov : this.updatedGraphs) {
+            if (this.forcedGraphs.contains(markov)) continue;
+            int txn_count = (int)this.txnCounts.get(markov, 0);
+            if (markov.shouldRecompute(txn_count, MarkovEstimator.RECOMPUTE_TOLERANCE)) {
+                this.recompute(markov);
+            }
+        } // FOR
+        this.updatedGraphs.clear();
+        this.forcedGraphs.clear();
+    }
+
+    private void recompute(MarkovGraph markov) {
+        if (debug.val)
+            LOG.debug(String.format("Recomputing probabilities for %s [txns=%d]",
+                      markov, this.txnCounts.get(markov, 0)));
+        try {
+            markov.calculateShadowProbabilities(this.allPartitions);
+        } catch (Throwable ex) {
+            // Just log the problem. The graph will keep using its old probabilities
+            LOG.warn(String.format("Failed to recompute probabilities for %s", markov), ex);
+            return;
+        }
+        this.txnCounts.remove(markov);
+        this.recomputeCounter++;
+    }
+
+    // ----------------------------------------------------------------------------
+    // DEBUG METHODS
+    // ----------------------------------------------------------------------------
+
+    /**
+     * Returns the number of txn paths that this thread has folded into the MarkovGraphs
+     */
+    public long getPathCount() {
+        return (this.pathCounter);
+    }
+
+    /**
+     * Returns the number of times that this thread has recomputed a MarkovGraph
+     */
+    public long getRecomputeCount() {
+        return (this.recomputeCounter);
+    }
+}
@@ -1,5 +1,6 @@
 package edu.brown.hstore.estimators.markov;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
@@ -27,6 +28,7 @@ import edu.brown.logging.LoggerUtil;
 import edu.brown.logging.LoggerUtil.LoggerBoolean;
 import edu.brown.mappings.ParameterMapping;
 import edu.brown.mappings.ParameterMappingsSet;
+import edu.brown.markov.CompiledMarkovGraph;
 import edu.brown.markov.MarkovEdge;
 import edu.brown.markov.MarkovGraph;
 import edu.brown.markov.MarkovVertex;
@@ -116,6 +118,8 @@ public class MarkovPathEstimator extends VertexTreeWalker<MarkovVertex, MarkovEd
     private final PartitionSet past_partitions = new PartitionSet();
     private final SortedSet<MarkovEdge> candidate_edges = new TreeSet<MarkovEdge>();
     private final Collection<CountedStatement> next_statements = new HashSet<CountedStatement>();
+    private final List<MarkovEdge> next_edges = new ArrayList<MarkovEdge>();
+    private final List<MarkovVertex> next_vertices = new ArrayList<MarkovVertex>();
     
     // ----------------------------------------------------------------------------
     // CONSTRUCTORS
@@ -222,6 +226,44 @@ public class MarkovPathEstimator extends VertexTreeWalker<MarkovVertex, MarkovEd
     // TRAVERSAL METHODS
     // ----------------------------------------------------------------------------
     
+    /**
+     * Add the given successor of the current vertex to either the set of 
+     * candidate edges (if it is COMMIT/ABORT) or the set of Statements that
+     * we could be executing next. We also keep track of the edge so that 
+     * we don't have to look up the current vertex's successors again.
+     * @param element
+     * @param next_e
+     * @param next
+     */
+    private void addSuccessor(MarkovVertex element, MarkovEdge next_e, MarkovVertex next) {
+        this.next_edges.add(next_e);
+        this.next_vertices.add(next);
+        Statement cur_catalog_stmt = element.getCatalogItem();
+        int cur_catalog_stmt_index = element.getQueryCounter();
+        Statement next_catalog_stmt = next.getCatalogItem();
+        int next_catalog_stmt_index = next.getQueryCounter();
+        
+        // Sanity Check: If this vertex is the same Statement as the current vertex,
+        // then its instance counter must be greater than the current vertex's counter
+        if (next_catalog_stmt.equals(cur_catalog_stmt)) {
+            if (next_catalog_stmt_index <= cur_catalog_stmt_index) {
+                LOG.error("CURRENT: " + element + " [commit=" + element.isCommitVertex() + "]");
+                LOG.error("NEXT: " + next + " [commit=" + next.isCommitVertex() + "]");
+            }
+            assert(next_catalog_stmt_index > cur_catalog_stmt_index) :
+                String.format("%s[#%d] > %s[#%d]",
+                              next_catalog_stmt.fullName(), next_catalog_stmt_index,
+                              cur_catalog_stmt.fullName(), cur_catalog_stmt_index);
+        }
+        
+        // Check whether it's COMMIT/ABORT
+        if (next.isCommitVertex() || next.isAbortVertex()) {
+            this.candidate_edges.add(next_e);
+        } else {
+            this.next_statements.add(next.getCountedStatement());
+        }
+    }
+    
     /**
      * This is the main part of where we figure out the path that this transaction will take
      */
@@ -233,51 +275,49 @@ public class MarkovPathEstimator extends VertexTreeWalker<MarkovVertex, MarkovEd
         // Initialize temporary data
         this.candidate_edges.clear();
         this.next_statements.clear();
+        this.next_edges.clear();
+        this.next_vertices.clear();
         this.past_partitions.addAll(element.getPartitions());
         
         if (trace.val) LOG.trace("Current Vertex: " + element);
-        Statement cur_catalog_stmt = element.getCatalogItem();
-        int cur_catalog_stmt_index = element.getQueryCounter();
         MarkovGraph markov = (MarkovGraph)this.getGraph();
         
         // At our current vertex we need to gather all of our neighbors
-        // and get unique Statements that we could be executing next
-        Collection<MarkovVertex> next_vertices = markov.getSuccessors(element);
-        if (next_vertices == null || next_vertices.isEmpty()) {
-            if (debug.val) LOG.debug("No succesors were found for " + element + ". Halting traversal");
-            return;
-        }
-        if (trace.val) LOG.trace("Successors: " + next_vertices);
-        
-        // Step #1
-        // Get all of the unique Statement+StatementInstanceIndex pairs for the vertices
-        // that are adjacent to our current vertex
-        for (MarkovVertex next : next_vertices) {
-            Statement next_catalog_stmt = next.getCatalogItem();
-            int next_catalog_stmt_index = next.getQueryCounter();
-            
-            // Sanity Check: If this vertex is the same Statement as the current vertex,
-            // then its instance counter must be greater than the current vertex's counter
-            if (next_catalog_stmt.equals(cur_catalog_stmt)) {
-                if (next_catalog_stmt_index <= cur_catalog_stmt_index) {
-                    LOG.error("CURRENT: " + element + " [commit=" + element.isCommitVertex() + "]");
-                    LOG.error("NEXT: " + next + " [commit=" + next.isCommitVertex() + "]");
-                }
-                assert(next_catalog_stmt_index > cur_catalog_stmt_index) :
-                    String.format("%s[#%d] > %s[#%d]",
-                                  next_catalog_stmt.fullName(), next_catalog_stmt_index,
-                                  cur_catalog_stmt.fullName(), cur_catalog_stmt_index);
+        // and get unique Statements that we could be executing next.
+        // We use the graph's compiled form so that we don't have to go through
+        // the JUNG collections to find the successors and their edges. But if our vertex
+        // is not in it or got new edges after it was built, then we have to use the graph.
+        CompiledMarkovGraph compiled = markov.getCompiledGraph();
+        int element_id = compiled.getVertexId(element);
+        if (element_id >= 0 && compiled.isCurrent(element_id)) {
+            int succ_start = compiled.getSuccessorStart(element_id);
+            int succ_end = compiled.getSuccessorEnd(element_id);
+            if (succ_start == succ_end) {
+                if (debug.val) LOG.debug("No succesors were found for " + element + ". Halting traversal");
+                return;
             }
+            if (trace.val) LOG.trace("Successors: " + markov.getSuccessors(element));
             
-            // Check whether it's COMMIT/ABORT
-            if (next.isCommitVertex() || next.isAbortVertex()) {
-                MarkovEdge candidate = markov.findEdge(element, next);
-                assert(candidate != null);
-                this.candidate_edges.add(candidate);
-            } else {
-                this.next_statements.add(next.getCountedStatement());
+            // Step #1
+            // Get all of the unique Statement+StatementInstanceIndex pairs for the vertices
+            // that are adjacent to our current vertex
+            for (int offset = succ_start; offset < succ_end; offset++) {
+                MarkovEdge next_e = compiled.getSuccessorEdge(offset);
+                if (next_e == null) continue;
+                this.addSuccessor(element, next_e, compiled.getSuccessor(offset));
+            } // FOR
+        } else {
+            Collection<MarkovEdge> next_edges = markov.getOutEdges(element);
+            if (next_edges == null || next_edges.isEmpty()) {
+                if (debug.val) LOG.debug("No succesors were found for " + element + ". Halting traversal");
+                return;
             }
-        } // FOR
+            if (trace.val) LOG.trace("Successors: " + markov.getSuccessors(element));
+            
+            for (MarkovEdge next_e : next_edges) {
+                this.addSuccessor(element, next_e, markov.getDest(next_e));
+            } // FOR
+        }
 
         // Now for the unique set of Statement+StatementIndex pairs, figure out which partitions
         // the queries will go to.
@@ -403,17 +443,15 @@ public class MarkovPathEstimator extends VertexTreeWalker<MarkovVertex, MarkovEd
                     candidate_edge = null;
                     if (trace.val)
                         LOG.trace("Partitions:" + this.stmt_partitions + " / Past:" + this.past_partitions);
-                    for (MarkovVertex next_v : next_vertices) {
+                    for (int i = 0, cnt = this.next_vertices.size(); i < cnt; i++) {
+                        MarkovEdge next_e = this.next_edges.get(i);
+                        MarkovVertex next_v = this.next_vertices.get(i);
                         if (trace.val) LOG.trace("Checking whether " + next_v + " is the correct transition");
-                        if (next_v.isEqual(catalog_stmt, this.stmt_partitions, this.past_partitions, catalog_stmt_index, true)) {
+                        if (next_v.getQueryCounter() == catalog_stmt_index.intValue() &&
+                            next_v.isEqual(catalog_stmt, this.stmt_partitions, this.past_partitions, catalog_stmt_index, true)) {
                             // BINGO!!!
                             assert(candidate_edge == null);
-                            try {
-                                candidate_edge = markov.findEdge(element, next_v);
-                            } catch (NullPointerException ex) {
-                                continue;
-                            }
-                            assert(candidate_edge != null);
+                            candidate_edge = next_e;
                             this.candidate_edges.add(candidate_edge);
                             if (trace.val)
                                 LOG.trace("Found candidate edge to " + next_v + " [" + candidate_edge + "]");
@@ -0,0 +1,78 @@
+package edu.brown.hstore.stats;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.voltdb.StatsSource;
+import org.voltdb.SysProcSelector;
+import org.voltdb.VoltTable;
+import org.voltdb.VoltTable.ColumnInfo;
+import org.voltdb.VoltType;
+import org.voltdb.utils.DBBPool;
+
+import edu.brown.hstore.HStoreSite;
+import edu.brown.logging.LoggerUtil;
+import edu.brown.logging.LoggerUtil.LoggerBoolean;
+
+/**
+ * Direct memory usage of all of the DBBPools in this JVM.
+ * If LOANED_BUFFERS keeps growing under a steady load, then some
+ * network stream is not discarding its buffers.
+ */
+public class BufferPoolStats extends StatsSource {
+    private static final Logger LOG = Logger.getLogger(BufferPoolStats.class);
+    private static final LoggerBoolean debug = new LoggerBoolean();
+    private static final LoggerBoolean trace = new LoggerBoolean();
+    static {
+        LoggerUtil.attachObserver(LOG, debug, trace);
+    }
+
+    private final HStoreSite hstore_site;
+
+    public BufferPoolStats(HStoreSite hstore_site) {
+        super(SysProcSelector.BUFFERPOOL.name(), false);
+        this.hstore_site = hstore_site;
+    }
+
+    @Override
+    protected Iterator<Object> getStatsRowKeyIterator(boolean interval) {
+        List<Integer> siteIds = new ArrayList<Integer>();
+        siteIds.add(this.hstore_site.getSiteId());
+        final Iterator<Integer> it = siteIds.iterator();
+        return new Iterator<Object>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+            @Override
+            public Object next() {
+                return it.next();
+            }
+            @Override
+            public void remove() {
+                it.remove();
+            }
+        };
+    }
+
+    @Override
+    protected void populateColumnSchema(ArrayList<ColumnInfo> columns) {
+        super.populateColumnSchema(columns);
+        columns.add(new VoltTable.ColumnInfo("ALLOCATED_BYTES", VoltType.BIGINT));
+        columns.add(new VoltTable.ColumnInfo("LOANED_BYTES", VoltType.BIGINT));
+        columns.add(new VoltTable.ColumnInfo("LOANED_BUFFERS", VoltType.BIGINT));
+        columns.add(new VoltTable.ColumnInfo("HEAP_ALLOCATIONS", VoltType.BIGINT));
+    }
+
+    @Override
+    protected synchronized void updateStatsRow(Object rowKey, Object[] rowValues) {
+        int offset = this.columnNameToIndex.get("HOSTNAME")+1;
+        rowValues[offset++] = DBBPool.getBytesAllocatedGlobally();
+        rowValues[offset++] = DBBPool.getBytesLoanedGlobally();
+        rowValues[offset++] = DBBPool.getBuffersLoanedGlobally();
+        rowValues[offset++] = DBBPool.getHeapAllocationsGlobally();
+        super.updateStatsRow(rowKey, rowValues);
+    }
+}
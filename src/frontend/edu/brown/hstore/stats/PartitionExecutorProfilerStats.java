@@ -62,6 +62,7 @@ public class PartitionExecutorProfilerStats extends StatsSource {
         columns.add(new VoltTable.ColumnInfo("PARTITION", VoltType.INTEGER));
         columns.add(new VoltTable.ColumnInfo("TRANSACTIONS", VoltType.BIGINT));
         columns.add(new VoltTable.ColumnInfo("ELAPSED_TIME", VoltType.BIGINT));
+        columns.add(new VoltTable.ColumnInfo("ALLOCATED_BYTES", VoltType.BIGINT));
 //        columns.add(new VoltTable.ColumnInfo("CONFLICT_CHECKER", VoltType.STRING));
         for (ProfileMeasurement pm : profiler.getProfileMeasurements()) {
             String name = pm.getName().toUpperCase();
@@ -84,6 +85,7 @@ public class PartitionExecutorProfilerStats extends StatsSource {
         rowValues[offset++] = partition;
         rowValues[offset++] = profiler.numTransactions;
         rowValues[offset++] = System.currentTimeMillis() - profiler.start_time;
+        rowValues[offset++] = profiler.allocated_bytes;
         
 //        if (dbg.getSpecExecConflictChecker() != null) {
 //            rowValues[offset++] = dbg.getSpecExecConflictChecker().getClass().getSimpleName();
@@ -184,6 +184,7 @@ public abstract class AbstractTransaction implements Poolable, Comparable<Abstra
     
     private final boolean released[];
     private final boolean prepared[];
+    private final Status prepareFailed[];
     private final boolean finished[];
     
     protected final RoundState round_state[];
@@ -267,6 +268,7 @@ public abstract class AbstractTransaction implements Poolable, Comparable<Abstra
         
         this.released = new boolean[numPartitions];
         this.prepared = new boolean[numPartitions];
+        this.prepareFailed = new Status[numPartitions];
         this.finished = new boolean[numPartitions];
         this.round_state = new RoundState[numPartitions];
         this.round_ctr = new int[numPartitions];
@@ -374,6 +376,7 @@ public abstract class AbstractTransaction implements Poolable, Comparable<Abstra
         for (int partition : this.hstore_site.getLocalPartitionIds().values()) {
             this.released[partition] = false;
             this.prepared[partition] = false;
+            this.prepareFailed[partition] = null;
             this.finished[partition] = false;
             this.round_state[partition] = null;
             this.round_ctr[partition] = 0;
@@ -922,6 +925,28 @@ public abstract class AbstractTransaction implements Poolable, Comparable<Abstra
         return (this.prepared[partition]);
     }
     
+    /**
+     * Mark this txn as having failed to prepare at the given partition.
+     * Any later 2PC:PREPARE request for this txn at that partition will
+     * get back the same status.
+     * @param partition - The partition where the prepare failed
+     * @param status - The status that the prepare returned
+     */
+    public final void markPrepareFailed(int partition, Status status) {
+        if (debug.val)
+            LOG.debug(String.format("%s - Marking as failed to prepare on partition %d [status=%s]",
+                      this, partition, status));
+        this.prepareFailed[partition] = status;
+    }
+    /**
+     * Return the status of the failed prepare for this txn at the given partition.
+     * Returns null if the txn has not failed to prepare at that partition.
+     * @return
+     */
+    public final Status getPrepareFailedStatus(int partition) {
+        return (this.prepareFailed[partition]);
+    }
+    
     /**
      * Mark this txn as finished (and thus ready for clean-up)
      */
@@ -318,7 +318,8 @@ public class DependencyTracker {
                 LOG.trace(String.format("%s - Releasing %d queued results",
                           ts, state.queued_results.size()));
             for (Entry<Pair<Integer, Integer>, VoltTable> e : state.queued_results.entrySet()) {
-                this.addResult(ts, e.getKey(), e.getValue(), true);
+                Pair<Integer, Integer> key = e.getKey();
+                this.addResult(ts, key.getFirst().intValue(), key.getSecond().intValue(), e.getValue(), true);
             } // FOR
             state.queued_results.clear();
         }
@@ -784,19 +785,20 @@ public class DependencyTracker {
         assert(result != null) :
             String.format("%s - The result for DependencyId %d from partition %d is null",
                           ts, dependency_id, partition);
-        this.addResult(ts, Pair.of(partition, dependency_id), result, false);
+        this.addResult(ts, partition, dependency_id, result, false);
     }
 
     /**
      * Store a VoltTable result that this transaction is waiting for.
-     * @param key The hackish partition+dependency key
-     * @param result The actual data for the result
-     * @param force If false, then we will check to make sure the result isn't a duplicate
+     * The partition+dependency key is only created if we need to queue the result.
      * @param partition The partition id that generated the result
      * @param dependency_id The dependency id that this result corresponds to
+     * @param result The actual data for the result
+     * @param force If false, then we will check to make sure the result isn't a duplicate
      */
     private void addResult(final LocalTransaction ts,
-                           final Pair<Integer, Integer> key,
+                           final int partition,
+                           final int dependency_id,
                            final VoltTable result,
                            final boolean force) {
         final TransactionState state = this.getState(ts);
@@ -804,8 +806,6 @@ public class DependencyTracker {
         
         final ReentrantLock txnLock = ts.getTransactionLock();
         final int base_partition = ts.getBasePartition();
-        final int partition = key.getFirst().intValue();
-        final int dependency_id = key.getSecond().intValue();
         final RoundState roundState = ts.getCurrentRoundState(base_partition); 
         final boolean singlePartitioned = ts.isPredictSinglePartition();
         
@@ -824,6 +824,7 @@ public class DependencyTracker {
             if (singlePartitioned == false) txnLock.lock();
             try {
                 if (roundState == RoundState.INITIALIZED) {
+                    Pair<Integer, Integer> key = Pair.of(partition, dependency_id);
                     assert(state.queued_results.containsKey(key) == false) : 
                         String.format("%s - Duplicate result %s",
                                       ts, TransactionUtil.debugPartDep(partition, dependency_id));
@@ -28,6 +28,13 @@ public class DistributedState implements Poolable {
      */
     protected final PartitionSet exec_donePartitions = new PartitionSet();
     
+    /**
+     * The partitions that we sent a WorkFragment marked as the last fragment.
+     * The WorkResult that comes back from these partitions doubles as their
+     * 2PC:PREPARE vote.
+     */
+    protected final PartitionSet exec_lastFragmentPartitions = new PartitionSet();
+    
     /**
      * 
      */
@@ -130,6 +137,7 @@ public class DistributedState implements Poolable {
         this.finish_callback.finish();
         this.is_all_local = true;
         this.exec_donePartitions.clear();
+        this.exec_lastFragmentPartitions.clear();
         this.notified_prepare.clear();
         this.notified_finish.set(false);
         this.sent_parameters.clear();
@@ -712,6 +712,19 @@ public class LocalTransaction extends AbstractTransaction {
         return (null);
     }
     
+    /**
+     * Get the partitions that we sent a WorkFragment with the last fragment
+     * flag set to. These partitions will 2PC:PREPARE the txn before they send
+     * back their WorkResult.
+     * @return
+     */
+    public PartitionSet getLastFragmentPartitions() {
+        if (this.dtxnState != null) {
+            return (this.dtxnState.exec_lastFragmentPartitions);
+        }
+        return (null);
+    }
+    
     /**
      * Check whether the calling thread should initiate the finish phase of 2PC.
      * This method will return true if this is the first time that somebody has
@@ -0,0 +1,149 @@
+package edu.brown.hstore.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.voltdb.ClientResponseImpl;
+import org.voltdb.messaging.FastSerializer;
+import org.voltdb.network.Connection;
+import org.voltdb.network.VoltProtocolHandler;
+import org.voltdb.utils.DBBPool;
+import org.voltdb.utils.DBBPool.BBContainer;
+import org.voltdb.utils.DeferredSerialization;
+
+import edu.brown.logging.LoggerUtil;
+import edu.brown.logging.LoggerUtil.LoggerBoolean;
+
+/**
+ * Coalesces the ClientResponses for a single client connection.
+ * The first response that is added when the batcher is empty is queued in the
+ * connection's WriteStream as a DeferredSerialization. Every other response
+ * that is added before the network thread gets around to serializing it
+ * is piggybacked onto the same buffer. This means that when a whole bunch of
+ * responses are released at once (e.g., after a command log group commit), they
+ * are written out to the client with a single write instead of one per txn.
+ */
+public class ClientResponseBatcher implements DeferredSerialization {
+    private static final Logger LOG = Logger.getLogger(ClientResponseBatcher.class);
+    private static final LoggerBoolean debug = new LoggerBoolean();
+    static {
+        LoggerUtil.attachObserver(LOG, debug);
+    }
+
+    private final Connection conn;
+    private final int expectedSize;
+    private final int compressionThreshold;
+
+    /**
+     * The responses that are waiting to be serialized
+     */
+    private List<ClientResponseImpl> pending = new ArrayList<ClientResponseImpl>();
+
+    /**
+     * True if this batcher is currently queued in the WriteStream
+     */
+    private boolean queued = false;
+
+    /**
+     * True if the WriteStream cancelled us because the connection was closed
+     */
+    private boolean cancelled = false;
+
+    private long batchCounter = 0;
+    private long responseCounter = 0;
+
+    /**
+     * @param conn
+     * @param expectedSize The expected size of a single serialized ClientResponse
+     * @param compressionThreshold If this is not negative, then batches that are at
+     * least this large will be compressed before they are sent back to the client
+     */
+    public ClientResponseBatcher(Connection conn, int expectedSize, int compressionThreshold) {
+        this.conn = conn;
+        this.expectedSize = expectedSize;
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Add a ClientResponse to be sent back to the client.
+     * Returns false if the connection is closed.
+     * @param cresponse
+     * @return
+     */
+    public boolean add(ClientResponseImpl cresponse) {
+        boolean enqueue = false;
+        synchronized (this) {
+            if (this.cancelled) return (false);
+            this.pending.add(cresponse);
+            if (this.queued == false) {
+                this.queued = true;
+                enqueue = true;
+            }
+        } // SYNCH
+        // We can't hold our lock while we call enqueue because the
+        // WriteStream might invoke cancel() on us
+        if (enqueue) {
+            return (this.conn.writeStream().enqueue(this));
+        }
+        return (true);
+    }
+
+    @Override
+    public BBContainer serialize(DBBPool pool) throws IOException {
+        List<ClientResponseImpl> batch = null;
+        synchronized (this) {
+            batch = this.pending;
+            this.pending = new ArrayList<ClientResponseImpl>();
+            this.queued = false;
+            this.batchCounter++;
+            this.responseCounter += batch.size();
+        } // SYNCH
+        assert(batch.isEmpty() == false);
+        if (debug.val)
+            LOG.debug(String.format("Serializing batch of %d ClientResponses for %s",
+                      batch.size(), this.conn));
+
+        final FastSerializer fs = new FastSerializer(pool, this.expectedSize * batch.size());
+        try {
+            for (ClientResponseImpl cresponse : batch) {
+                fs.appendObjectForMessaging(cresponse);
+            } // FOR
+        } catch (IOException ex) {
+            fs.getBBContainer().discard();
+            throw ex;
+        }
+        BBContainer c = fs.getBBContainer();
+        if (this.compressionThreshold >= 0) {
+            c = VoltProtocolHandler.compressMessages(c, this.compressionThreshold);
+        }
+        return (c);
+    }
+
+    @Override
+    public synchronized void cancel() {
+        this.cancelled = true;
+        this.queued = false;
+        this.pending.clear();
+    }
+
+    /**
+     * Returns the number of batches that this batcher has serialized
+     */
+    public synchronized long getBatchCount() {
+        return (this.batchCounter);
+    }
+
+    /**
+     * Returns the total number of ClientResponses that this batcher has serialized
+     */
+    public synchronized long getResponseCount() {
+        return (this.responseCounter);
+    }
+
+    @Override
+    public String toString() {
+        return (this.conn.toString());
+    }
+}
@@ -2,6 +2,7 @@ package edu.brown.hstore.util;
 
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -85,6 +86,55 @@ public class QueryCache {
         }
     } // CLASS
     
+    /**
+     * The key for a query result in the globalCache.
+     * We use deepEquals() because a query parameter could be an array.
+     */
+    private static class GlobalCacheKey {
+        long fragmentId;
+        Object params[];
+        int hash;
+        
+        public GlobalCacheKey set(long fragmentId, Object params[]) {
+            this.fragmentId = fragmentId;
+            this.params = params;
+            this.hash = (int)(fragmentId ^ (fragmentId >>> 32)) * 31 + Arrays.deepHashCode(params);
+            return (this);
+        }
+        
+        @Override
+        public int hashCode() {
+            return (this.hash);
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return (true);
+            if ((obj instanceof GlobalCacheKey) == false) return (false);
+            GlobalCacheKey other = (GlobalCacheKey)obj;
+            return (this.hash == other.hash &&
+                    this.fragmentId == other.fragmentId &&
+                    Arrays.deepEquals(this.params, other.params));
+        }
+    } // CLASS
+    
+    /**
+     * A query result in the globalCache along with the versions of the 
+     * tables that the query read when the result was stored.
+     */
+    private static class GlobalCacheEntry {
+        final VoltTable result;
+        final int tableIds[];
+        final long tableVersions[];
+        int accessCounter = 0;
+        
+        public GlobalCacheEntry(VoltTable result, int tableIds[], long tableVersions[]) {
+            this.result = result;
+            this.tableIds = tableIds;
+            this.tableVersions = tableVersions;
+        }
+    } // CLASS
+    
     /**
      * Simple circular buffer cache
      */
@@ -135,7 +185,22 @@ public class QueryCache {
     // INITIALIZATION
     // ----------------------------------------------------------------------------
 
-    private final Cache globalCache;
+    /**
+     * Query results that can be used by any transaction, evicted in LRU order
+     */
+    private final LinkedHashMap<GlobalCacheKey, GlobalCacheEntry> globalCache;
+    private final GlobalCacheKey globalCacheProbe = new GlobalCacheKey();
+    
+    /**
+     * TableId -> Number of times that the table has been written to.
+     * A globalCache entry is only valid if all of the tables that it read
+     * still have the same version as when the entry was stored.
+     */
+    private long tableVersions[] = new long[0];
+    
+    private long globalCacheHits = 0;
+    private long globalCacheMisses = 0;
+    
     private final Cache txnCache;
     
     /**
@@ -146,21 +211,128 @@ public class QueryCache {
     /**
      * Constructor
      */
-    public QueryCache(int globalBufferSize, int txnBufferSize) {
-        this.globalCache = new Cache(globalBufferSize);
+    public QueryCache(final int globalBufferSize, int txnBufferSize) {
+        this.globalCache = new LinkedHashMap<GlobalCacheKey, GlobalCacheEntry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<GlobalCacheKey, GlobalCacheEntry> eldest) {
+                return (this.size() > globalBufferSize);
+            }
+        };
         this.txnCache = new Cache(txnBufferSize);
     }
     
     
     // ----------------------------------------------------------------------------
-    // API
+    // GLOBAL CACHE API
     // ----------------------------------------------------------------------------
 
-    
-    public void addGlobalQueryResult(int fragmentId, ParameterSet params, VoltTable result) {
+    /**
+     * Store the result of a read-only query so that it can be used by any transaction.
+     * The result will be invalidated once any of the given tables are written to.
+     * @param fragmentId
+     * @param params
+     * @param tableIds The tables read by the query (may be null)
+     * @param result
+     */
+    public void addGlobalQueryResult(long fragmentId, ParameterSet params, int tableIds[], VoltTable result) {
+        if (tableIds == null) tableIds = new int[0];
+        long versions[] = new long[tableIds.length];
+        for (int i = 0; i < tableIds.length; i++) {
+            versions[i] = this.getTableVersion(tableIds[i]);
+        } // FOR
+        if (trace.val)
+            LOG.trace(String.format("Storing global query result for FragmentId %d - %s", fragmentId, params));
         
+        // We have to copy the parameters because the caller may reuse the array
+        Object values[] = params.toArray();
+        GlobalCacheKey key = new GlobalCacheKey().set(fragmentId, Arrays.copyOf(values, values.length));
+        this.globalCache.put(key, new GlobalCacheEntry(result, tableIds, versions));
+    }
+    
+    /**
+     * Return the result of a read-only query that was stored with addGlobalQueryResult().
+     * Returns null if there is no result or if one of the tables that the query
+     * read has been written to since the result was stored.
+     * The VoltTable that is returned shares its data with the cached result but 
+     * has its own row position, so it is safe for the caller to iterate over it.
+     * @param fragmentId
+     * @param params
+     * @return
+     */
+    public VoltTable getGlobalQueryResult(long fragmentId, ParameterSet params) {
+        GlobalCacheKey key = this.globalCacheProbe.set(fragmentId, params.toArray());
+        GlobalCacheEntry entry = this.globalCache.get(key);
+        if (entry != null && this.isValid(entry) == false) {
+            if (trace.val)
+                LOG.trace(String.format("Invalidating global query result for FragmentId %d", fragmentId));
+            this.globalCache.remove(key);
+            entry = null;
+        }
+        // Don't hold on to the caller's parameters
+        key.params = null;
+        if (entry == null) {
+            this.globalCacheMisses++;
+            return (null);
+        }
+        this.globalCacheHits++;
+        entry.accessCounter++;
+        return (new VoltTable(entry.result.getTableDataReference(), true));
+    }
+    
+    /**
+     * Mark the given tables as modified. Any cached query result that 
+     * read from one of them will no longer be returned.
+     * @param tableIds
+     */
+    public void markTablesWritten(int tableIds[]) {
+        if (tableIds == null) return;
+        for (int tableId : tableIds) {
+            if (tableId >= this.tableVersions.length) {
+                this.tableVersions = Arrays.copyOf(this.tableVersions, tableId + 1);
+            }
+            this.tableVersions[tableId]++;
+        } // FOR
     }
     
+    /**
+     * Remove all of the query results from the global cache.
+     * This should be called whenever the database is changed in a way that we 
+     * can't track at the table level (e.g., a txn was rolled back)
+     */
+    public void clearGlobalCache() {
+        if (debug.val && this.globalCache.isEmpty() == false)
+            LOG.debug(String.format("Clearing %d global query results", this.globalCache.size()));
+        this.globalCache.clear();
+    }
+    
+    private boolean isValid(GlobalCacheEntry entry) {
+        for (int i = 0; i < entry.tableIds.length; i++) {
+            if (entry.tableVersions[i] != this.getTableVersion(entry.tableIds[i])) {
+                return (false);
+            }
+        } // FOR
+        return (true);
+    }
+    
+    private long getTableVersion(int tableId) {
+        return (tableId < this.tableVersions.length ? this.tableVersions[tableId] : 0);
+    }
+    
+    public int getGlobalCacheSize() {
+        return (this.globalCache.size());
+    }
+    public long getGlobalCacheHits() {
+        return (this.globalCacheHits);
+    }
+    public long getGlobalCacheMisses() {
+        return (this.globalCacheMisses);
+    }
+    
+    // ----------------------------------------------------------------------------
+    // TRANSACTION CACHE API
+    // ----------------------------------------------------------------------------
+    
     /**
      * Store a new cache entry for a query that is specific to a transaction
      * This cached result is not be available to other transactions
@@ -285,7 +457,8 @@ public class QueryCache {
         
         // Global Cache
         m[idx] = new LinkedHashMap<String, Object>();
-        m[idx].put("Global Cache", null);
+        m[idx].put(String.format("Global Cache[%d]", this.globalCache.size()),
+                   String.format("Hits=%d / Misses=%d", this.globalCacheHits, this.globalCacheMisses));
         
         // TxnCache
         m[++idx] = new LinkedHashMap<String, Object>();
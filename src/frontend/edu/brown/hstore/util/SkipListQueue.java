@@ -0,0 +1,86 @@
+package edu.brown.hstore.util;
+
+import java.util.AbstractQueue;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * A non-blocking priority queue backed by a ConcurrentSkipListSet.
+ * Elements are ordered by their natural ordering (or the given Comparator)
+ * and the head of the queue is always the smallest element. Unlike a
+ * PriorityBlockingQueue, none of the operations acquire a lock, so many
+ * threads can insert and remove elements without contending with the
+ * thread that is polling the head of the queue.
+ * <B>Note:</B> Elements that compare as equal are treated as duplicates and
+ * will be rejected by offer(). Also, size() is not a constant-time operation.
+ * @param <E>
+ */
+public class SkipListQueue<E> extends AbstractQueue<E> {
+
+    private final ConcurrentSkipListSet<E> set;
+
+    public SkipListQueue() {
+        this.set = new ConcurrentSkipListSet<E>();
+    }
+
+    public SkipListQueue(Comparator<? super E> comparator) {
+        this.set = new ConcurrentSkipListSet<E>(comparator);
+    }
+
+    @Override
+    public boolean offer(E e) {
+        return (this.set.add(e));
+    }
+
+    @Override
+    public E poll() {
+        return (this.set.pollFirst());
+    }
+
+    @Override
+    public E peek() {
+        // We can't use first() here because it will throw an exception
+        // if somebody removes the last element out from under us
+        try {
+            return (this.set.first());
+        } catch (NoSuchElementException ex) {
+            return (null);
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return (this.set.remove(o));
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return (this.set.contains(o));
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return (this.set.isEmpty());
+    }
+
+    @Override
+    public void clear() {
+        this.set.clear();
+    }
+
+    /**
+     * Returns a weakly consistent iterator over the elements in
+     * ascending order.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return (this.set.iterator());
+    }
+
+    @Override
+    public int size() {
+        return (this.set.size());
+    }
+}
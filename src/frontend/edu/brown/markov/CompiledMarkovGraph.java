@@ -0,0 +1,239 @@
+package edu.brown.markov;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.voltdb.catalog.Statement;
+
+/**
+ * Read-optimized snapshot of a MarkovGraph that is used when estimating the
+ * path of a txn at runtime. Every vertex is assigned an int id and the outbound
+ * edges are stored in compressed sparse row (CSR) arrays, so finding the successors
+ * of a vertex does not have to go through the JUNG collections or any HashMaps.
+ * The snapshot is immutable. MarkovGraph will keep using it after new vertices or edges
+ * are added to the graph until enough of them have been added to make it worth building
+ * a new one. Callers have to use the graph itself for any vertex that is missing from the
+ * snapshot or that got new edges after it was built (see isCurrent()).
+ */
+public class CompiledMarkovGraph {
+
+    private static final int SPECIAL_STMT_ID = -1;
+
+    private final MarkovGraph markov;
+
+    /**
+     * The MarkovGraph's version when we started building this snapshot
+     */
+    private final int version;
+
+    /**
+     * VertexId -> MarkovVertex
+     */
+    private final MarkovVertex vertices[];
+
+    /**
+     * MarkovVertex.getCompiledId() -> VertexId (or -1 if the vertex is not in this snapshot)
+     */
+    private final int vertexIds[];
+
+    /**
+     * VertexId -> MarkovVertex.getEdgeVersion() when this snapshot was built
+     */
+    private final int edgeVersions[];
+
+    /**
+     * VertexId -> Statement id (or SPECIAL_STMT_ID for START/COMMIT/ABORT)
+     */
+    private final int stmtIds[];
+
+    /**
+     * VertexId -> Query Counter
+     */
+    private final int counters[];
+
+    /**
+     * VertexId -> Offset of the vertex's first outbound edge in the arrays below.
+     * The edges for vertex i are in the range [succOffsets[i], succOffsets[i+1]).
+     * An entry with a null MarkovEdge should be skipped.
+     */
+    private final int succOffsets[];
+    private final int succTargets[];
+    private final MarkovEdge succEdges[];
+
+    // ----------------------------------------------------------------------------
+    // INITIALIZATION
+    // ----------------------------------------------------------------------------
+
+    /**
+     * Build a compiled snapshot of the given MarkovGraph.
+     * This will throw a ConcurrentModificationException if the graph is modified while
+     * we are reading it.
+     * @param markov
+     * @param version
+     */
+    protected CompiledMarkovGraph(MarkovGraph markov, int version) {
+        this.markov = markov;
+        this.version = version;
+
+        this.vertices = markov.getVertices().toArray(new MarkovVertex[0]);
+        int num_vertices = this.vertices.length;
+        this.stmtIds = new int[num_vertices];
+        this.counters = new int[num_vertices];
+        this.edgeVersions = new int[num_vertices];
+        this.succOffsets = new int[num_vertices + 1];
+
+        int max_id = -1;
+        for (int i = 0; i < num_vertices; i++) {
+            MarkovVertex v = this.vertices[i];
+            this.stmtIds[i] = (v.isQueryVertex() ? ((Statement)v.getCatalogItem()).getId() : SPECIAL_STMT_ID);
+            this.counters[i] = v.getQueryCounter();
+            // We have to grab this before we read the vertex's edges
+            this.edgeVersions[i] = v.getEdgeVersion();
+            max_id = Math.max(max_id, v.getCompiledId());
+        } // FOR
+        this.vertexIds = new int[max_id + 1];
+        Arrays.fill(this.vertexIds, -1);
+        for (int i = 0; i < num_vertices; i++) {
+            int compiled_id = this.vertices[i].getCompiledId();
+            if (compiled_id >= 0) this.vertexIds[compiled_id] = i;
+        } // FOR
+
+        int num_edges = 0;
+        for (int i = 0; i < num_vertices; i++) {
+            this.succOffsets[i] = num_edges;
+            Collection<MarkovEdge> out_edges = markov.getOutEdges(this.vertices[i]);
+            if (out_edges != null) num_edges += out_edges.size();
+        } // FOR
+        this.succOffsets[num_vertices] = num_edges;
+
+        this.succTargets = new int[num_edges];
+        this.succEdges = new MarkovEdge[num_edges];
+        for (int i = 0; i < num_vertices; i++) {
+            Collection<MarkovEdge> out_edges = markov.getOutEdges(this.vertices[i]);
+            if (out_edges == null) continue;
+            int offset = this.succOffsets[i];
+            for (MarkovEdge e : out_edges) {
+                if (offset == this.succOffsets[i+1]) break;
+                int target = this.getVertexId(markov.getDest(e));
+                if (target < 0) continue;
+                this.succTargets[offset] = target;
+                this.succEdges[offset] = e;
+                offset++;
+            } // FOR
+            // If the graph changed underneath us, then just mark the rest as empty
+            while (offset < this.succOffsets[i+1]) {
+                this.succTargets[offset] = i;
+                this.succEdges[offset] = null;
+                offset++;
+            } // WHILE
+        } // FOR
+    }
+
+    // ----------------------------------------------------------------------------
+    // ACCESS METHODS
+    // ----------------------------------------------------------------------------
+
+    public MarkovGraph getMarkovGraph() {
+        return (this.markov);
+    }
+
+    /**
+     * Returns the version of the MarkovGraph that this snapshot was built from
+     * @return
+     */
+    public int getVersion() {
+        return (this.version);
+    }
+
+    public int getVertexCount() {
+        return (this.vertices.length);
+    }
+
+    public int getEdgeCount() {
+        return (this.succEdges.length);
+    }
+
+    /**
+     * Return the int id of the given vertex in this snapshot.
+     * Returns -1 if the vertex was added to the graph after this snapshot was built.
+     * @param v
+     * @return
+     */
+    public int getVertexId(MarkovVertex v) {
+        int compiled_id = v.getCompiledId();
+        if (compiled_id < 0 || compiled_id >= this.vertexIds.length) return (-1);
+        int id = this.vertexIds[compiled_id];
+        if (id < 0 || this.vertices[id] != v) return (-1);
+        return (id);
+    }
+
+    /**
+     * Returns true if no outbound edges were added to the given vertex after
+     * this snapshot was built. If this is false, then the vertex's successors in
+     * this snapshot are incomplete.
+     * @param id
+     * @return
+     */
+    public boolean isCurrent(int id) {
+        return (this.edgeVersions[id] == this.vertices[id].getEdgeVersion());
+    }
+
+    public MarkovVertex getVertex(int id) {
+        return (this.vertices[id]);
+    }
+
+    /**
+     * Returns true if the given vertex is for the given Statement+counter.
+     * This is only a quick filter before calling MarkovVertex.isEqual()
+     * @param id
+     * @param catalog_stmt
+     * @param counter
+     * @return
+     */
+    public boolean isStatement(int id, Statement catalog_stmt, int counter) {
+        return (this.counters[id] == counter && this.stmtIds[id] == catalog_stmt.getId());
+    }
+
+    /**
+     * Returns the offset of the first outbound edge of the vertex
+     * @param id
+     * @return
+     */
+    public int getSuccessorStart(int id) {
+        return (this.succOffsets[id]);
+    }
+
+    /**
+     * Returns the offset after the last outbound edge of the vertex
+     * @param id
+     * @return
+     */
+    public int getSuccessorEnd(int id) {
+        return (this.succOffsets[id+1]);
+    }
+
+    public int getSuccessorId(int offset) {
+        return (this.succTargets[offset]);
+    }
+
+    public MarkovVertex getSuccessor(int offset) {
+        return (this.vertices[this.succTargets[offset]]);
+    }
+
+    /**
+     * Returns the edge at the given offset. This may be null if the graph
+     * was modified while the snapshot was being built.
+     * @param offset
+     * @return
+     */
+    public MarkovEdge getSuccessorEdge(int offset) {
+        return (this.succEdges[offset]);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s<%s, vertices=%d, edges=%d>",
+                             this.getClass().getSimpleName(), this.markov,
+                             this.vertices.length, this.succEdges.length);
+    }
+}
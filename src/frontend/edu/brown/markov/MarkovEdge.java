@@ -1,5 +1,7 @@
 package edu.brown.markov;
 
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONStringer;
@@ -43,7 +45,9 @@ public class MarkovEdge extends AbstractEdge implements MarkovHitTrackable {
      * MarkovGraph. This will eventually get folded into the global hits count, but we need to keep it separate so that
      * we can determine whether the current workload is deviating from the training set
      */
-    public transient int instancehits = 0;
+    public transient volatile int instancehits = 0;
+    private static final AtomicIntegerFieldUpdater<MarkovEdge> INSTANCEHITS_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(MarkovEdge.class, "instancehits");
 
     /**
      * Constructor
@@ -132,8 +136,16 @@ public class MarkovEdge extends AbstractEdge implements MarkovHitTrackable {
     
     @Override
     public void applyInstanceHitsToTotalHits() {
-        this.totalhits += this.instancehits;
-        this.instancehits = 0;
+        this.totalhits += INSTANCEHITS_UPDATER.getAndSet(this, 0);
+    }
+    /**
+     * Move the given number of instance hits over to the total hits.
+     * Any hits that were added after the caller read the instance hits are left alone.
+     * @param hits
+     */
+    protected void applyInstanceHitsToTotalHits(int hits) {
+        this.totalhits += hits;
+        INSTANCEHITS_UPDATER.addAndGet(this, -hits);
     }
     @Override
     public void incrementTotalHits() {
@@ -153,7 +165,7 @@ public class MarkovEdge extends AbstractEdge implements MarkovHitTrackable {
     }
     @Override
     public int incrementInstanceHits() {
-        return (++this.instancehits);
+        return (INSTANCEHITS_UPDATER.incrementAndGet(this));
     }
     
     
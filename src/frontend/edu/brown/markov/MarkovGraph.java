@@ -3,6 +3,7 @@ package edu.brown.markov;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -38,6 +39,8 @@ import edu.brown.utils.PartitionSet;
 import edu.brown.utils.ProjectType;
 import edu.brown.workload.QueryTrace;
 import edu.brown.workload.TransactionTrace;
+import edu.uci.ics.jung.graph.util.EdgeType;
+import edu.uci.ics.jung.graph.util.Pair;
 
 /**
  * Markov Model Graph
@@ -70,6 +73,14 @@ public class MarkovGraph extends AbstractDirectedGraph<MarkovVertex, MarkovEdge>
      */
     public static final int MIN_HITS_FOR_NO_ABORT = 5;
     
+    /**
+     * We will only rebuild the CompiledMarkovGraph once the number of vertices and edges
+     * that were added since the last one was built times this ratio is at least as large
+     * as the number of vertices and edges in it. Otherwise we would have to rebuild it
+     * after every new vertex while the graph is still being learned.
+     */
+    public static final int COMPILE_REBUILD_RATIO = 10;
+    
     // ----------------------------------------------------------------------------
     // INSTANCE DATA MEMBERS
     // ----------------------------------------------------------------------------
@@ -159,6 +170,14 @@ public class MarkovGraph extends AbstractDirectedGraph<MarkovVertex, MarkovEdge>
     private transient final Map<Statement, Collection<MarkovVertex>> cache_stmtVertices = new HashMap<Statement, Collection<MarkovVertex>>();
     private transient final Map<MarkovVertex, Collection<MarkovVertex>> cache_getSuccessors = new ConcurrentHashMap<MarkovVertex, Collection<MarkovVertex>>();
     
+    /**
+     * Read-optimized snapshot of this graph. The version is incremented every time
+     * that a vertex or edge is added to the graph. 
+     */
+    private transient volatile CompiledMarkovGraph cache_compiled = null;
+    private transient volatile int cache_compiledVersion = 0;
+    private transient final AtomicInteger cache_nextCompiledId = new AtomicInteger(0);
+    
     public void buildCache() {
         for (Statement catalog_stmt : this.catalog_proc.getStatements().values()) {
             if (this.cache_stmtVertices.containsKey(catalog_stmt) == false)
@@ -211,6 +230,8 @@ public class MarkovGraph extends AbstractDirectedGraph<MarkovVertex, MarkovEdge>
     public boolean addVertex(MarkovVertex v) {
         boolean ret = super.addVertex(v);
         if (ret) {
+            v.setCompiledId(this.cache_nextCompiledId.getAndIncrement());
+            this.cache_compiledVersion++;
             if (v.isQueryVertex()) {
                 Collection<MarkovVertex> stmt_vertices = this.cache_stmtVertices.get(v.getCatalogItem());
                 if (stmt_vertices == null) {
@@ -228,6 +249,93 @@ public class MarkovGraph extends AbstractDirectedGraph<MarkovVertex, MarkovEdge>
         return (ret);
     }
 
+    @Override
+    public boolean addEdge(MarkovEdge e, Pair<? extends MarkovVertex> endpoints, EdgeType edgeType) {
+        boolean ret = super.addEdge(e, endpoints, edgeType);
+        if (ret) {
+            endpoints.getFirst().incrementEdgeVersion();
+            this.cache_compiledVersion++;
+        }
+        return (ret);
+    }
+    
+    @Override
+    public boolean removeVertex(MarkovVertex v) {
+        boolean ret = super.removeVertex(v);
+        if (ret) this.invalidateCompiledGraph();
+        return (ret);
+    }
+    
+    @Override
+    public boolean removeEdge(MarkovEdge e) {
+        boolean ret = super.removeEdge(e);
+        if (ret) this.invalidateCompiledGraph();
+        return (ret);
+    }
+    
+    /**
+     * Return a CompiledMarkovGraph for this graph. This may be missing some
+     * of the vertices and edges that were added since it was built.
+     * We will only build a new one once enough of them have been added.
+     * @return
+     */
+    public CompiledMarkovGraph getCompiledGraph() {
+        CompiledMarkovGraph compiled = this.cache_compiled;
+        if (compiled == null || this.isCompiledGraphStale(compiled, false)) {
+            compiled = this.compileGraph(false);
+        }
+        return (compiled);
+    }
+    
+    /**
+     * Return a CompiledMarkovGraph that has all of the vertices and edges
+     * in this graph. If anything was added since the last one was built,
+     * then we will build a new one.
+     * @return
+     */
+    public CompiledMarkovGraph getCurrentCompiledGraph() {
+        CompiledMarkovGraph compiled = this.cache_compiled;
+        if (compiled == null || this.isCompiledGraphStale(compiled, true)) {
+            compiled = this.compileGraph(true);
+        }
+        return (compiled);
+    }
+    
+    private boolean isCompiledGraphStale(CompiledMarkovGraph compiled, boolean current) {
+        int changes = this.cache_compiledVersion - compiled.getVersion();
+        if (changes == 0) return (false);
+        if (current) return (true);
+        return (changes * COMPILE_REBUILD_RATIO >= compiled.getVertexCount() + compiled.getEdgeCount());
+    }
+    
+    private synchronized CompiledMarkovGraph compileGraph(boolean current) {
+        // Somebody else might have built a new one while we were waiting
+        CompiledMarkovGraph compiled = this.cache_compiled;
+        if (compiled != null && this.isCompiledGraphStale(compiled, current) == false) {
+            return (compiled);
+        }
+        while (true) {
+            // Anything that gets added while we are building it will make it stale
+            int version = this.cache_compiledVersion;
+            try {
+                compiled = new CompiledMarkovGraph(this, version);
+            } catch (ConcurrentModificationException ex) {
+                // Somebody added a new vertex or edge while we were reading
+                // the graph, so we'll just try again
+                continue;
+            }
+            break;
+        } // WHILE
+        this.cache_compiled = compiled;
+        if (trace.val) LOG.trace("Built new " + compiled);
+        return (compiled);
+    }
+    
+    private void invalidateCompiledGraph() {
+        this.cache_compiledVersion++;
+        this.cache_compiled = null;
+    }
+    
     /**
      * For the given Vertex type, return the special vertex
      * @param vtype - the Vertex type (cannot be a regular query)
@@ -368,6 +476,72 @@ public class MarkovGraph extends AbstractDirectedGraph<MarkovVertex, MarkovEdge>
         this.recompute_count++;
     }
 
+    /**
+     * Calculate the probabilities for this graph without resetting the tables that
+     * other threads may be reading while we do this. We copy the hit counters into a
+     * shadow graph, calculate the new probabilities there, and then swap the new
+     * probability tables into this graph's vertices and edges.
+     * Any instance hits that are added after we take our copy are left for the next time.
+     * Only one thread should be recomputing a graph at a time.
+     * <B>NOTE:</B> The swap is not atomic for the whole graph. Each vertex and edge gets its
+     * new probability table on its own, so a reader that walks the graph during the swap can
+     * see a mix of old and new probabilities (but never a half-computed table). Vertices and
+     * edges that are added after we take our copy keep their current probabilities until
+     * the next recompute.
+     */
+    public void calculateShadowProbabilities(PartitionSet partitions) {
+        CompiledMarkovGraph compiled = this.getCurrentCompiledGraph();
+        MarkovGraph shadow = new MarkovGraph(this.catalog_proc);
+
+        int num_vertices = compiled.getVertexCount();
+        MarkovVertex shadow_vertices[] = new MarkovVertex[num_vertices];
+        for (int i = 0; i < num_vertices; i++) {
+            shadow_vertices[i] = new MarkovVertex(compiled.getVertex(i));
+            shadow.addVertex(shadow_vertices[i]);
+        } // FOR
+
+        // We have to grab the edge counters before the vertex counters, because
+        // txns will increment the vertices in their path before the edges. This
+        // ensures that an edge never has more hits than its source vertex.
+        int num_edges = compiled.getEdgeCount();
+        MarkovEdge shadow_edges[] = new MarkovEdge[num_edges];
+        int edge_hits[] = new int[num_edges];
+        for (int i = 0; i < num_vertices; i++) {
+            for (int offset = compiled.getSuccessorStart(i), end = compiled.getSuccessorEnd(i); offset < end; offset++) {
+                MarkovEdge e = compiled.getSuccessorEdge(offset);
+                if (e == null) continue;
+                edge_hits[offset] = e.getInstanceHits();
+                shadow_edges[offset] = new MarkovEdge(shadow, e.totalhits + edge_hits[offset], e.getProbability());
+                shadow.addEdge(shadow_edges[offset], shadow_vertices[i], shadow_vertices[compiled.getSuccessorId(offset)]);
+            } // FOR
+        } // FOR
+        int vertex_hits[] = new int[num_vertices];
+        for (int i = 0; i < num_vertices; i++) {
+            MarkovVertex v = compiled.getVertex(i);
+            vertex_hits[i] = v.getInstanceHits();
+            shadow_vertices[i].totalhits = v.totalhits + vertex_hits[i];
+            shadow_vertices[i].resetAllProbabilities();
+        } // FOR
+
+        shadow.calculateEdgeProbabilities();
+        shadow.calculateVertexProbabilities(partitions);
+
+        // Swap in the new probabilities
+        for (int i = 0; i < num_vertices; i++) {
+            MarkovVertex v = compiled.getVertex(i);
+            v.probabilities = shadow_vertices[i].probabilities;
+            v.applyInstanceHitsToTotalHits(vertex_hits[i]);
+        } // FOR
+        for (int offset = 0; offset < num_edges; offset++) {
+            if (shadow_edges[offset] == null) continue;
+            MarkovEdge e = compiled.getSuccessorEdge(offset);
+            e.probability = shadow_edges[offset].probability;
+            e.applyInstanceHitsToTotalHits(edge_hits[offset]);
+        } // FOR
+
+        this.recompute_count++;
+    }
+
     /**
      * Calculate vertex probabilities
      */
@@ -9,6 +9,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import org.apache.commons.collections15.map.ListOrderedMap;
 import org.apache.log4j.Logger;
@@ -150,8 +151,10 @@ public class MarkovVertex extends AbstractVertex implements MarkovHitTrackable,
 
     /**
      * Mapping from Probability type to another map from partition id
+     * This is volatile because MarkovGraph.calculateShadowProbabilities() will swap
+     * in a whole new table while other threads are reading it.
      */
-    public float probabilities[][];
+    public volatile float probabilities[][];
     
     // ----------------------------------------------------------------------------
     // TRANSIENT DATA MEMBERS
@@ -160,7 +163,9 @@ public class MarkovVertex extends AbstractVertex implements MarkovHitTrackable,
     /**
      * The number of times this vertex has been touched in the current on-line run
      */
-    public transient int instancehits = 0;
+    public transient volatile int instancehits = 0;
+    private static final AtomicIntegerFieldUpdater<MarkovVertex> INSTANCEHITS_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(MarkovVertex.class, "instancehits");
     
     /**
      * The count, used to figure out the average execution time above
@@ -178,6 +183,18 @@ public class MarkovVertex extends AbstractVertex implements MarkovHitTrackable,
      */
     private transient CountedStatement counted_stmt = null;
     
+    /**
+     * The id that our MarkovGraph gave this vertex when it was added to it.
+     * This never changes, so every CompiledMarkovGraph built for the graph
+     * can map it to the vertex's position in its own arrays.
+     */
+    private transient int compiled_id = -1;
+    
+    /**
+     * This is incremented every time that a new outbound edge is added to this vertex
+     */
+    private transient volatile int edge_version = 0;
+    
 
     // ----------------------------------------------------------------------------
     // CONSTRUCTORS
@@ -777,8 +794,16 @@ public class MarkovVertex extends AbstractVertex implements MarkovHitTrackable,
    
     @Override
     public void applyInstanceHitsToTotalHits() {
-        this.totalhits += this.instancehits;
-        this.instancehits = 0;
+        this.totalhits += INSTANCEHITS_UPDATER.getAndSet(this, 0);
+    }
+    /**
+     * Move the given number of instance hits over to the total hits.
+     * Any hits that were added after the caller read the instance hits are left alone.
+     * @param hits
+     */
+    protected void applyInstanceHitsToTotalHits(int hits) {
+        this.totalhits += hits;
+        INSTANCEHITS_UPDATER.addAndGet(this, -hits);
     }
     @Override
     public void incrementTotalHits() {
@@ -798,7 +823,20 @@ public class MarkovVertex extends AbstractVertex implements MarkovHitTrackable,
     }
     @Override
     public int incrementInstanceHits() {
-        return (++this.instancehits);
+        return (INSTANCEHITS_UPDATER.incrementAndGet(this));
+    }
+    
+    protected int getCompiledId() {
+        return (this.compiled_id);
+    }
+    protected void setCompiledId(int id) {
+        this.compiled_id = id;
+    }
+    protected int getEdgeVersion() {
+        return (this.edge_version);
+    }
+    protected void incrementEdgeVersion() {
+        this.edge_version++;
     }
     
     // ----------------------------------------------------------------------------
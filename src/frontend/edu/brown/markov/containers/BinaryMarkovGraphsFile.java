@@ -0,0 +1,515 @@
+package edu.brown.markov.containers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+import org.voltdb.CatalogContext;
+import org.voltdb.catalog.Database;
+import org.voltdb.catalog.Procedure;
+import org.voltdb.catalog.Statement;
+
+import edu.brown.logging.LoggerUtil;
+import edu.brown.logging.LoggerUtil.LoggerBoolean;
+import edu.brown.markov.MarkovEdge;
+import edu.brown.markov.MarkovGraph;
+import edu.brown.markov.MarkovUtil;
+import edu.brown.markov.MarkovVertex;
+import edu.brown.utils.ArgumentsParser;
+import edu.brown.utils.ClassUtil;
+import edu.brown.utils.PartitionSet;
+
+/**
+ * Compact binary file format for a collection of MarkovGraphsContainers.
+ * Unlike the JSON format, catalog items are encoded using their integer ids and the
+ * edges of each graph are stored as flat arrays. The file starts with an index of the byte offset
+ * of every graph so that a MarkovGraphsContainer can deserialize them lazily the first time
+ * that a graph is requested for a particular procedure.
+ * <B>File Format:</B>
+ * <pre>
+ * MAGIC VERSION #CONTAINERS
+ *   [CONTAINER_ID CLASSNAME #GRAPHS [GRAPH_ID PROC_ID OFFSET LENGTH]*]*
+ * [GRAPH_ID PROC_ID #VERTICES #EDGES VERTICES... EDGE_SRC[] EDGE_DEST[] EDGE_HITS[] EDGE_PROB[]]*
+ * </pre>
+ */
+public class BinaryMarkovGraphsFile {
+    private static final Logger LOG = Logger.getLogger(BinaryMarkovGraphsFile.class);
+    private static final LoggerBoolean debug = new LoggerBoolean();
+    private static final LoggerBoolean trace = new LoggerBoolean();
+    static {
+        LoggerUtil.attachObserver(LOG, debug, trace);
+    }
+
+    /**
+     * The first four bytes of every binary MarkovGraph file ("HMKV")
+     */
+    public static final int MAGIC = 0x484D4B56;
+    public static final int VERSION = 1;
+
+    /**
+     * Statement id used for the special START/COMMIT/ABORT vertices
+     */
+    private static final int SPECIAL_STMT_ID = -1;
+
+    /**
+     * The location of a single serialized MarkovGraph within the file
+     */
+    private static class GraphEntry {
+        final int procId;
+        final int offset;
+        final int length;
+        GraphEntry(int procId, int offset, int length) {
+            this.procId = procId;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final CatalogContext catalogContext;
+    private final File file;
+    private final ByteBuffer buffer;
+
+    /**
+     * The position in the buffer where the serialized graphs start
+     */
+    private int dataStart;
+
+    /**
+     * ContainerId -> ClassName
+     */
+    private final Map<Integer, String> classNames = new TreeMap<Integer, String>();
+
+    /**
+     * ContainerId -> GraphId -> ProcId -> GraphEntry
+     */
+    private final Map<Integer, Map<Integer, Map<Integer, GraphEntry>>> index =
+            new HashMap<Integer, Map<Integer, Map<Integer, GraphEntry>>>();
+
+    // ----------------------------------------------------------------------------
+    // INITIALIZATION
+    // ----------------------------------------------------------------------------
+
+    /**
+     * Open a binary MarkovGraph file and read in its index.
+     * If mmap is true, then the file will be memory-mapped instead of being copied into the heap.
+     * @param catalogContext
+     * @param file
+     * @param mmap
+     * @throws IOException
+     */
+    public BinaryMarkovGraphsFile(CatalogContext catalogContext, File file, boolean mmap) throws IOException {
+        this.catalogContext = catalogContext;
+        this.file = file;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("The MarkovGraph file '" + file + "' is too large");
+            }
+            if (mmap) {
+                this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } else {
+                this.buffer = ByteBuffer.allocate((int)channel.size());
+                while (this.buffer.hasRemaining()) {
+                    if (channel.read(this.buffer) < 0) break;
+                } // WHILE
+                this.buffer.flip();
+            }
+        } finally {
+            raf.close();
+        }
+        this.readIndex();
+    }
+
+    private void readIndex() throws IOException {
+        ByteBuffer b = this.buffer.duplicate();
+        if (b.getInt() != MAGIC) {
+            throw new IOException("The file '" + this.file + "' is not a binary MarkovGraph file");
+        }
+        int version = b.getInt();
+        if (version != VERSION) {
+            throw new IOException(String.format("Unsupported binary MarkovGraph file version %d in '%s'",
+                                                version, this.file));
+        }
+        int num_containers = b.getInt();
+        List<GraphEntry> entries = new ArrayList<GraphEntry>();
+        for (int i = 0; i < num_containers; i++) {
+            int container_id = b.getInt();
+            this.classNames.put(container_id, readString(b));
+            Map<Integer, Map<Integer, GraphEntry>> graphs = new HashMap<Integer, Map<Integer, GraphEntry>>();
+            this.index.put(container_id, graphs);
+
+            int num_graphs = b.getInt();
+            for (int j = 0; j < num_graphs; j++) {
+                int id = b.getInt();
+                GraphEntry entry = new GraphEntry(b.getInt(), b.getInt(), b.getInt());
+                Map<Integer, GraphEntry> inner = graphs.get(id);
+                if (inner == null) {
+                    inner = new HashMap<Integer, GraphEntry>();
+                    graphs.put(id, inner);
+                }
+                inner.put(entry.procId, entry);
+                entries.add(entry);
+            } // FOR
+        } // FOR
+
+        // The graph offsets are relative to the end of the index
+        int data_start = b.position();
+        for (GraphEntry entry : entries) {
+            if (data_start + entry.offset + entry.length > b.limit()) {
+                throw new IOException("The binary MarkovGraph file '" + this.file + "' is truncated");
+            }
+        } // FOR
+        this.dataStart = data_start;
+        if (debug.val)
+            LOG.debug(String.format("Read index for %d MarkovGraphs in %d containers from '%s'",
+                      entries.size(), num_containers, this.file));
+    }
+
+    // ----------------------------------------------------------------------------
+    // LOADING
+    // ----------------------------------------------------------------------------
+
+    /**
+     * Returns true if the given file starts with the binary MarkovGraph magic number
+     * @param file
+     * @return
+     */
+    public static boolean isBinaryFile(File file) {
+        if (file.isFile() == false || file.length() < 4) return (false);
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                return (in.readInt() == MAGIC);
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            return (false);
+        }
+    }
+
+    /**
+     * Create the MarkovGraphsContainers stored in this file. None of the graphs
+     * are deserialized until they are first retrieved from their container.
+     * @param procedures If not null, then only graphs for these procedures will be loaded
+     * @param ids If not null, then only the containers with these ids will be created
+     * @return
+     */
+    public Map<Integer, MarkovGraphsContainer> getContainers(Collection<Procedure> procedures, Collection<Integer> ids) {
+        Map<Integer, MarkovGraphsContainer> ret = new HashMap<Integer, MarkovGraphsContainer>();
+        for (Entry<Integer, String> e : this.classNames.entrySet()) {
+            Integer container_id = e.getKey();
+            // See MarkovGraphsContainerUtil.load() for why we always want the global container
+            if (container_id.equals(MarkovUtil.GLOBAL_MARKOV_CONTAINER_ID) || ids == null || ids.contains(container_id)) {
+                MarkovGraphsContainer markovs = ClassUtil.newInstance(e.getValue(), new Object[]{procedures},
+                                                                                    new Class<?>[]{Collection.class});
+                assert(markovs != null);
+                markovs.setBinaryFile(this, container_id.intValue());
+                ret.put(container_id, markovs);
+            }
+        } // FOR
+        return (ret);
+    }
+
+    /**
+     * Returns all of the graph ids stored in this file for the given container
+     * @param container_id
+     * @return
+     */
+    protected Collection<Integer> getGraphIds(int container_id) {
+        Map<Integer, Map<Integer, GraphEntry>> graphs = this.index.get(container_id);
+        if (graphs == null) return (new ArrayList<Integer>());
+        return (graphs.keySet());
+    }
+
+    /**
+     * Returns all of the Procedures that have a graph stored in this file
+     * for the given container + id pair
+     * @param container_id
+     * @param id
+     * @return
+     */
+    protected Collection<Procedure> getProcedures(int container_id, Integer id) {
+        List<Procedure> ret = new ArrayList<Procedure>();
+        Map<Integer, Map<Integer, GraphEntry>> graphs = this.index.get(container_id);
+        if (graphs != null && graphs.containsKey(id)) {
+            for (Integer proc_id : graphs.get(id).keySet()) {
+                Procedure catalog_proc = this.catalogContext.getProcedureById(proc_id.intValue());
+                if (catalog_proc != null) ret.add(catalog_proc);
+            } // FOR
+        }
+        return (ret);
+    }
+
+    /**
+     * Deserialize the MarkovGraph for the given container + id + procedure.
+     * Returns null if there is no such graph in this file.
+     * @param container_id
+     * @param id
+     * @param catalog_proc
+     * @return
+     */
+    protected MarkovGraph readGraph(int container_id, Integer id, Procedure catalog_proc) {
+        Map<Integer, Map<Integer, GraphEntry>> graphs = this.index.get(container_id);
+        if (graphs == null) return (null);
+        Map<Integer, GraphEntry> inner = graphs.get(id);
+        if (inner == null) return (null);
+        GraphEntry entry = inner.get(catalog_proc.getId());
+        if (entry == null) return (null);
+
+        if (trace.val)
+            LOG.trace(String.format("Loading MarkovGraph [id=%d, proc=%s] from '%s'",
+                      id, catalog_proc.getName(), this.file.getName()));
+        ByteBuffer b = this.buffer.duplicate();
+        b.position(this.dataStart + entry.offset);
+        b.limit(this.dataStart + entry.offset + entry.length);
+        MarkovGraph markov = readGraph(this.catalogContext, catalog_proc, b);
+        markov.buildCache();
+        return (markov);
+    }
+
+    /**
+     * Deserialize a single MarkovGraph from the given buffer
+     * @param catalogContext
+     * @param catalog_proc
+     * @param b
+     * @return
+     */
+    protected static MarkovGraph readGraph(CatalogContext catalogContext, Procedure catalog_proc, ByteBuffer b) {
+        Database catalog_db = catalogContext.database;
+        int graph_id = b.getInt();
+        int proc_id = b.getInt();
+        assert(proc_id == catalog_proc.getId()) :
+            String.format("Expected graph for %s but got procedure #%d", catalog_proc.getName(), proc_id);
+        int num_vertices = b.getInt();
+        int num_edges = b.getInt();
+
+        MarkovGraph markov = new MarkovGraph(catalog_proc);
+        markov.setGraphId(graph_id);
+
+        MarkovVertex vertices[] = new MarkovVertex[num_vertices];
+        PartitionSet partitions = new PartitionSet();
+        PartitionSet past_partitions = new PartitionSet();
+        for (int i = 0; i < num_vertices; i++) {
+            MarkovVertex.Type type = MarkovVertex.Type.values()[b.get()];
+            int stmt_id = b.getInt();
+            Statement catalog_stmt = null;
+            if (stmt_id == SPECIAL_STMT_ID) {
+                catalog_stmt = MarkovUtil.getSpecialStatement(catalog_db, type);
+            } else {
+                catalog_stmt = catalogContext.getStatementById(stmt_id);
+                assert(catalog_stmt != null) : "Invalid Statement id #" + stmt_id;
+            }
+            int counter = b.getInt();
+            readPartitions(b, partitions);
+            readPartitions(b, past_partitions);
+
+            MarkovVertex v = new MarkovVertex(catalog_stmt, type, counter, partitions, past_partitions);
+            v.totalhits = b.getInt();
+            v.execution_time = b.getLong();
+            for (int p = 0; p < v.probabilities.length; p++) {
+                float probs[] = new float[b.getInt()];
+                for (int j = 0; j < probs.length; j++) {
+                    probs[j] = b.getFloat();
+                } // FOR
+                v.probabilities[p] = probs;
+            } // FOR
+            markov.addVertex(v);
+            vertices[i] = v;
+        } // FOR
+
+        // Edges are stored as flat arrays
+        int edge_pos = b.position();
+        for (int i = 0; i < num_edges; i++) {
+            MarkovVertex v0 = vertices[b.getInt(edge_pos + (i * 4))];
+            MarkovVertex v1 = vertices[b.getInt(edge_pos + ((num_edges + i) * 4))];
+            int hits = b.getInt(edge_pos + (((2 * num_edges) + i) * 4));
+            float probability = b.getFloat(edge_pos + (((3 * num_edges) + i) * 4));
+            markov.addEdge(new MarkovEdge(markov, hits, probability), v0, v1);
+        } // FOR
+        return (markov);
+    }
+
+    private static void readPartitions(ByteBuffer b, PartitionSet partitions) {
+        partitions.clear();
+        for (int i = 0, cnt = b.getShort(); i < cnt; i++) {
+            partitions.add(b.getInt());
+        } // FOR
+    }
+
+    private static String readString(ByteBuffer b) {
+        byte bytes[] = new byte[b.getShort()];
+        b.get(bytes);
+        return (new String(bytes));
+    }
+
+    // ----------------------------------------------------------------------------
+    // WRITING
+    // ----------------------------------------------------------------------------
+
+    /**
+     * Serialize the given MarkovGraph. Just like with the JSON format,
+     * query vertices that have never been visited are not written out.
+     * @param markov
+     * @param out
+     * @throws IOException
+     */
+    protected static void writeGraph(MarkovGraph markov, DataOutputStream out) throws IOException {
+        List<MarkovVertex> vertices = new ArrayList<MarkovVertex>();
+        Map<MarkovVertex, Integer> vertex_offsets = new HashMap<MarkovVertex, Integer>();
+        for (MarkovVertex v : markov.getVertices()) {
+            if (v.isQueryVertex() && (v.instancehits == 0 && v.totalhits == 0)) continue;
+            vertex_offsets.put(v, vertices.size());
+            vertices.add(v);
+        } // FOR
+        List<MarkovEdge> edges = new ArrayList<MarkovEdge>();
+        for (MarkovEdge e : markov.getEdges()) {
+            if (vertex_offsets.containsKey(markov.getSource(e)) &&
+                vertex_offsets.containsKey(markov.getDest(e))) {
+                edges.add(e);
+            }
+        } // FOR
+
+        out.writeInt(markov.getGraphId());
+        out.writeInt(markov.getProcedure().getId());
+        out.writeInt(vertices.size());
+        out.writeInt(edges.size());
+        for (MarkovVertex v : vertices) {
+            out.writeByte(v.getType().ordinal());
+            if (v.isQueryVertex()) {
+                out.writeInt(((Statement)v.getCatalogItem()).getId());
+            } else {
+                out.writeInt(SPECIAL_STMT_ID);
+            }
+            out.writeInt(v.counter);
+            writePartitions(out, v.partitions);
+            writePartitions(out, v.past_partitions);
+            out.writeInt(v.totalhits);
+            out.writeLong(v.execution_time);
+            for (int p = 0; p < v.probabilities.length; p++) {
+                out.writeInt(v.probabilities[p].length);
+                for (float prob : v.probabilities[p]) {
+                    out.writeFloat(prob);
+                } // FOR
+            } // FOR
+        } // FOR
+        for (MarkovEdge e : edges) {
+            out.writeInt(vertex_offsets.get(markov.getSource(e)));
+        } // FOR
+        for (MarkovEdge e : edges) {
+            out.writeInt(vertex_offsets.get(markov.getDest(e)));
+        } // FOR
+        for (MarkovEdge e : edges) {
+            out.writeInt(e.totalhits);
+        } // FOR
+        for (MarkovEdge e : edges) {
+            out.writeFloat(e.probability);
+        } // FOR
+    }
+
+    private static void writePartitions(DataOutputStream out, PartitionSet partitions) throws IOException {
+        out.writeShort(partitions.size());
+        for (int partition : partitions.values()) {
+            out.writeInt(partition);
+        } // FOR
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte bytes[] = s.getBytes();
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Write the given MarkovGraphsContainers out to a binary file
+     * @param markovs
+     * @param output_path
+     * @throws IOException
+     */
+    public static void save(Map<Integer, ? extends MarkovGraphsContainer> markovs, File output_path) throws IOException {
+        ByteArrayOutputStream index_bytes = new ByteArrayOutputStream();
+        ByteArrayOutputStream data_bytes = new ByteArrayOutputStream();
+        DataOutputStream index_out = new DataOutputStream(index_bytes);
+        DataOutputStream data_out = new DataOutputStream(data_bytes);
+
+        index_out.writeInt(MAGIC);
+        index_out.writeInt(VERSION);
+        index_out.writeInt(markovs.size());
+        int graphs_ctr = 0;
+        for (Integer container_id : new TreeMap<Integer, MarkovGraphsContainer>(markovs).keySet()) {
+            MarkovGraphsContainer m = markovs.get(container_id);
+            m.loadAll();
+            index_out.writeInt(container_id.intValue());
+            writeString(index_out, m.getClass().getCanonicalName());
+            index_out.writeInt(m.totalSize());
+            for (Integer id : m.keySet()) {
+                for (MarkovGraph markov : m.getAll(id).values()) {
+                    int offset = data_out.size();
+                    writeGraph(markov, data_out);
+                    index_out.writeInt(id.intValue());
+                    index_out.writeInt(markov.getProcedure().getId());
+                    index_out.writeInt(offset);
+                    index_out.writeInt(data_out.size() - offset);
+                    graphs_ctr++;
+                } // FOR
+            } // FOR
+        } // FOR
+        index_out.flush();
+        data_out.flush();
+
+        FileOutputStream out = new FileOutputStream(output_path);
+        try {
+            index_bytes.writeTo(out);
+            data_bytes.writeTo(out);
+        } finally {
+            out.close();
+        }
+        LOG.info(String.format("Wrote out %d graphs in binary format to '%s' [%d bytes]",
+                 graphs_ctr, output_path, index_bytes.size() + data_bytes.size()));
+    }
+
+    @Override
+    public String toString() {
+        return (this.getClass().getSimpleName() + "<" + this.file + ">");
+    }
+
+    // ----------------------------------------------------------------------------
+    // CONVERTER
+    // ----------------------------------------------------------------------------
+
+    /**
+     * Convert an existing JSON MarkovGraphsContainer file into the binary format
+     * @param vargs
+     * @throws Exception
+     */
+    public static void main(String[] vargs) throws Exception {
+        ArgumentsParser args = ArgumentsParser.load(vargs);
+        args.require(ArgumentsParser.PARAM_CATALOG,
+                     ArgumentsParser.PARAM_MARKOV,
+                     ArgumentsParser.PARAM_MARKOV_OUTPUT);
+        File input_path = args.getFileParam(ArgumentsParser.PARAM_MARKOV);
+        File output_path = args.getFileParam(ArgumentsParser.PARAM_MARKOV_OUTPUT);
+
+        Map<Integer, MarkovGraphsContainer> markovs = MarkovGraphsContainerUtil.load(args.catalogContext, input_path);
+        BinaryMarkovGraphsFile.save(markovs, output_path);
+        LOG.info(String.format("Converted '%s' [%d bytes] to '%s' [%d bytes]",
+                 input_path, input_path.length(), output_path, output_path.length()));
+    }
+}
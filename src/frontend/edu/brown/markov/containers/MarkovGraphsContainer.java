@@ -72,6 +72,14 @@ public class MarkovGraphsContainer implements JSONSerializable {
      */
     private final Set<Procedure> load_procedures;
     
+    /**
+     * If this container was created from a binary MarkovGraph file, then 
+     * we will deserialize the graphs from it the first time that they are requested
+     */
+    private BinaryMarkovGraphsFile binaryFile;
+    private int binaryFileId;
+    private volatile boolean binaryFileLoaded = false;
+    
     // -----------------------------------------------------------------
     // Constructors
     // -----------------------------------------------------------------
@@ -98,6 +106,7 @@ public class MarkovGraphsContainer implements JSONSerializable {
     // -----------------------------------------------------------------
     
     public MarkovGraph getFromGraphId(int id) {
+        this.loadAll();
         for (MarkovGraph m : this.getAll()) {
             if (m.getGraphId() == id) return (m);
         } // FOR
@@ -113,6 +122,72 @@ public class MarkovGraphsContainer implements JSONSerializable {
     public boolean isGlobal() {
         return (false);
     }
+    
+    /**
+     * Lazily load this container's graphs from the given binary file
+     * @param binaryFile
+     * @param binaryFileId The id of this container in the file
+     */
+    protected void setBinaryFile(BinaryMarkovGraphsFile binaryFile, int binaryFileId) {
+        this.binaryFile = binaryFile;
+        this.binaryFileId = binaryFileId;
+    }
+    
+    /**
+     * Deserialize all of the graphs that have not been loaded from our binary file yet.
+     * Any method that looks at more than one graph in this container will call this first,
+     * so only get() and getOrCreate() will load the graphs lazily.
+     */
+    public void loadAll() {
+        if (this.binaryFile == null || this.binaryFileLoaded) return;
+        for (Integer id : this.binaryFile.getGraphIds(this.binaryFileId)) {
+            for (Procedure catalog_proc : this.binaryFile.getProcedures(this.binaryFileId, id)) {
+                this.get(id, catalog_proc);
+            } // FOR
+        } // FOR
+        this.binaryFileLoaded = true;
+    }
+    
+    /**
+     * Returns the number of MarkovGraphs in this container that have been
+     * loaded so far. Unlike totalSize(), this will not load any graphs.
+     * @return
+     */
+    public int loadedSize() {
+        int total = 0;
+        for (Integer id : this.markovs.keySet()) {
+            Map<Procedure, MarkovGraph> m = this.markovs.get(id);
+            if (m != null) total += m.size();
+        } // FOR
+        return (total);
+    }
+    
+    /**
+     * Deserialize the MarkovGraph for the given id+catalog_proc from our binary file
+     * @param id
+     * @param catalog_proc
+     * @return
+     */
+    private MarkovGraph loadFromBinaryFile(Integer id, Procedure catalog_proc) {
+        if (this.load_procedures != null && this.load_procedures.contains(catalog_proc) == false) {
+            return (null);
+        }
+        MarkovGraph markov = null;
+        synchronized (this) {
+            Map<Procedure, MarkovGraph> inner = this.markovs.get(id);
+            if (inner != null) markov = inner.get(catalog_proc);
+            if (markov == null) {
+                markov = this.binaryFile.readGraph(this.binaryFileId, id, catalog_proc);
+                if (markov != null) {
+                    if (debug.val)
+                        LOG.debug(String.format("Loaded %s MarkovGraph for id %d from %s",
+                                  catalog_proc.getName(), id, this.binaryFile));
+                    this.put(id, markov);
+                }
+            }
+        } // SYNCH
+        return (markov);
+    }
 
     // -----------------------------------------------------------------
     // PSEUDO-MAP METHODS
@@ -120,11 +195,16 @@ public class MarkovGraphsContainer implements JSONSerializable {
     
     public void clear() {
         this.markovs.clear();
+        this.binaryFile = null;
     }
     
     public MarkovGraph get(Integer id, Procedure catalog_proc) {
         Map<Procedure, MarkovGraph> inner = this.markovs.get(id);
-        return (inner != null ? inner.get(catalog_proc) : null);
+        MarkovGraph markov = (inner != null ? inner.get(catalog_proc) : null);
+        if (markov == null && this.binaryFile != null) {
+            markov = this.loadFromBinaryFile(id, catalog_proc);
+        }
+        return (markov);
     }
     
     /**
@@ -203,6 +283,7 @@ public class MarkovGraphsContainer implements JSONSerializable {
      * Invoke MarkovGraph.calculateProbabilities() for all of the graphs stored within this container 
      */
     public void calculateProbabilities(PartitionSet partitions) {
+        this.loadAll();
         for (Map<Procedure, MarkovGraph> inner : this.markovs.values()) {
             for (Entry<Procedure, MarkovGraph> e : inner.entrySet()) {
                 MarkovGraph m = e.getValue();
@@ -224,10 +305,12 @@ public class MarkovGraphsContainer implements JSONSerializable {
     }
     
     protected Map<Procedure, MarkovGraph> getAll(Integer id) {
+        this.loadAll();
         return (this.markovs.get(id));
     }
     
     public Map<Integer, MarkovGraph> getAll(Procedure catalog_proc) {
+        this.loadAll();
         Map<Integer, MarkovGraph> ret = new HashMap<Integer, MarkovGraph>();
         for (Integer id : this.markovs.keySet()) {
             MarkovGraph m = this.markovs.get(id).get(catalog_proc);
@@ -241,6 +324,7 @@ public class MarkovGraphsContainer implements JSONSerializable {
      * @return
      */
     public Set<MarkovGraph> getAll() {
+        this.loadAll();
         Set<MarkovGraph> ret = new HashSet<MarkovGraph>();
         for (Integer id : this.markovs.keySet()) {
             Map<Procedure, MarkovGraph> m = this.markovs.get(id);
@@ -250,28 +334,28 @@ public class MarkovGraphsContainer implements JSONSerializable {
     }
     
     public void copy(MarkovGraphsContainer other) {
+        other.loadAll();
         this.markovs.putAll(other.markovs);
     }
     
     public Set<Integer> keySet() {
+        this.loadAll();
         return this.markovs.keySet();
     }
     
     public Set<Entry<Integer, Map<Procedure, MarkovGraph>>> entrySet() {
+        this.loadAll();
         return this.markovs.entrySet();
     }
     
     public int size() {
+        this.loadAll();
         return (this.markovs.size());
     }
     
     public int totalSize() {
-        int total = 0;
-        for (Integer id : this.markovs.keySet()) {
-            Map<Procedure, MarkovGraph> m = this.markovs.get(id);
-            if (m != null) total += m.size();
-        } // FOR
-        return (total);
+        this.loadAll();
+        return (this.loadedSize());
     }
     
     @Override
@@ -322,6 +406,8 @@ public class MarkovGraphsContainer implements JSONSerializable {
 
     @Override
     public void toJSON(JSONStringer stringer) throws JSONException {
+        this.loadAll();
+        
         // CLASSNAME
         stringer.key(Members.CLASSNAME.name()).value(this.getClass().getCanonicalName());
         
@@ -411,6 +411,15 @@ public abstract class MarkovGraphsContainerUtil {
         LOG.info(String.format("Loading in MarkovGraphContainers from '%s' [procedures=%s, ids=%s]",
                                file.getName(), (procedures == null ? "*ALL*" : CatalogUtil.debug(procedures)), (ids == null ? "*ALL*" : ids)));
         
+        // Binary files only need to have their index read in here. The graphs themselves
+        // will get deserialized by each MarkovGraphsContainer when they are first needed
+        if (BinaryMarkovGraphsFile.isBinaryFile(file)) {
+            BinaryMarkovGraphsFile binaryFile = new BinaryMarkovGraphsFile(catalogContext, file, true);
+            ret.putAll(binaryFile.getContainers(procedures, ids));
+            if (debug.val) LOG.debug(String.format("Created %d lazy MarkovGraphsContainers from %s", ret.size(), binaryFile));
+            return (ret);
+        }
+        
         try {
             // File Format: One PartitionId per line, each with its own MarkovGraphsContainer 
             BufferedReader in = FileUtil.getReader(file);
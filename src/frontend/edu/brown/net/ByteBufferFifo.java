@@ -3,7 +3,16 @@ package edu.brown.net;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
 
+import org.voltdb.utils.DBBPool;
+import org.voltdb.utils.DBBPool.BBContainer;
+
+/**
+ * FIFO of ByteBuffers. The buffers are acquired from the current thread's
+ * shared {@link DBBPool} and are returned to it when {@link #clear()} is called,
+ * so connections that come and go do not each allocate their own direct buffers.
+ */
 public class ByteBufferFifo {
     /** These buffers are available for reading (taking data). */
     private final ArrayDeque<ByteBuffer> readBuffers = new ArrayDeque<ByteBuffer>();
@@ -14,6 +23,9 @@ public class ByteBufferFifo {
     /** Cache of available ByteBuffers, since direct ByteBuffers are "expensive" to allocate. */
     private final ArrayDeque<ByteBuffer> emptyBuffers = new ArrayDeque<ByteBuffer>();
 
+    /** The pool containers for all of the buffers that this FIFO has acquired. */
+    private final IdentityHashMap<ByteBuffer, BBContainer> containers = new IdentityHashMap<ByteBuffer, BBContainer>();
+
     /** If we alternate reads and writes, this is used to save the read position of the buffer. */
     private int savedReadPosition = 0;
 
@@ -21,10 +33,16 @@ public class ByteBufferFifo {
 
     private static final int BUFFER_SIZE = 4096;
 
+    /** Return all of our buffers back to the pool. The FIFO can still be used afterwards. */
     public void clear() {
+        for (BBContainer c : containers.values()) {
+            c.discard();
+        }
+        containers.clear();
         readBuffers.clear();
         emptyBuffers.clear();
         currentWrite = null;
+        savedReadPosition = 0;
     }
 
     public ByteBuffer getWriteBuffer() {
@@ -116,10 +134,11 @@ public class ByteBufferFifo {
     private ByteBuffer allocateBuffer() {
         ByteBuffer buffer = emptyBuffers.pollLast();
         if (buffer == null) {
-            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
-            if (!bigEndian) {
-                buffer.order(ByteOrder.nativeOrder());
-            }
+            BBContainer c = DBBPool.getThreadLocalPool().acquire(BUFFER_SIZE);
+            buffer = c.b;
+            containers.put(buffer, c);
+            // Pooled buffers may have been used by somebody else with a different byte order
+            buffer.order(bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.nativeOrder());
         }
         return buffer;
     }
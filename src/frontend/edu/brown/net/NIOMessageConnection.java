@@ -150,11 +150,9 @@ public class NIOMessageConnection implements MessageConnection {
     public SelectableChannel getChannel() { return channel; }
 
     public void close() {
-        try {
-            channel.close();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        // This also closes the channel
+        read.close();
+        write.close();
     }
 
     public void setBigEndian() {
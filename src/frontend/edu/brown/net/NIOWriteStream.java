@@ -36,6 +36,11 @@ public class NIOWriteStream implements ZeroCopyOutputStream {
         return false;
     }
 
+    /** Return the buffers back to the pool. Any data that has not been flushed is dropped. */
+    public void close() {
+        buffers.clear();
+    }
+
     public void setBigEndian() {
         buffers.setBigEndian();
     }
@@ -140,5 +140,6 @@ public class NonBlockingConnection {
 
     public void close() {
         read.close();
+        write.close();
     }
 }
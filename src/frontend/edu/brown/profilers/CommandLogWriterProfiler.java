@@ -6,4 +6,16 @@ public class CommandLogWriterProfiler extends AbstractProfiler {
     public final ProfileMeasurement blockedTime = new ProfileMeasurement("BLOCKED");
     public final ProfileMeasurement networkTime = new ProfileMeasurement("NETWORK");
     
+    /**
+     * The amount of time spent serializing and compressing a batch
+     * when group commit pipelining is enabled.
+     */
+    public final ProfileMeasurement serializingTime = new ProfileMeasurement("SERIALIZING");
+    
+    /**
+     * The amount of time that the writer thread spent waiting for a 
+     * free set of buffers when group commit pipelining is enabled.
+     */
+    public final ProfileMeasurement pipelineStallTime = new ProfileMeasurement("PIPELINE_STALL");
+    
 }
@@ -1,5 +1,8 @@
 package edu.brown.profilers;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
 import edu.brown.statistics.Histogram;
 import edu.brown.statistics.ObjectHistogram;
 
@@ -13,6 +16,17 @@ public class PartitionExecutorProfiler extends AbstractProfiler {
      */
     public long numTransactions = 0;
     
+    /**
+     * The total number of bytes allocated on the heap by the PartitionExecutor's
+     * thread while it was executing transactions. Divide this by numTransactions to 
+     * get the amount of garbage that we create per txn. This will always be 
+     * zero if the JVM does not support per-thread allocation tracking.
+     * Note that this still includes the txn handles themselves and the objects that
+     * are cached on them (e.g., their FinishTxnMessage), since those are not pooled.
+     * Not guaranteed to be thread-safe.
+     */
+    public long allocated_bytes = 0;
+    
     /**
      * Counter for the number of messages processed at this partition
      */
@@ -103,10 +117,76 @@ public class PartitionExecutorProfiler extends AbstractProfiler {
      */
     public final ProfileMeasurement sp3_remote_time = new ProfileMeasurement("SP3_REMOTE");
     
+    // ----------------------------------------------------------------------------
+    // ALLOCATION TRACKING
+    // ----------------------------------------------------------------------------
+    
+    private static final ThreadMXBean THREAD_BEAN = ManagementFactory.getThreadMXBean();
+    private static final boolean ALLOCATION_TRACKING;
+    static {
+        boolean supported = false;
+        try {
+            if (THREAD_BEAN instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)THREAD_BEAN;
+                supported = bean.isThreadAllocatedMemorySupported();
+                if (supported && bean.isThreadAllocatedMemoryEnabled() == false) {
+                    bean.setThreadAllocatedMemoryEnabled(true);
+                }
+            }
+        } catch (Throwable ex) {
+            supported = false;
+        }
+        ALLOCATION_TRACKING = supported;
+    }
+    
+    /**
+     * Returns true if the JVM can tell us how many bytes a thread has allocated
+     * @return
+     */
+    public static boolean isAllocationTrackingSupported() {
+        return (ALLOCATION_TRACKING);
+    }
+    
+    /**
+     * Return the total number of bytes allocated so far by the given thread.
+     * Returns -1 if allocation tracking is not supported by this JVM.
+     * @param threadId
+     * @return
+     */
+    public static long getThreadAllocatedBytes(long threadId) {
+        if (ALLOCATION_TRACKING) {
+            return ((com.sun.management.ThreadMXBean)THREAD_BEAN).getThreadAllocatedBytes(threadId);
+        }
+        return (-1);
+    }
+    
+    /**
+     * Record the number of bytes allocated by a txn, where the given marker
+     * is the value returned by getThreadAllocatedBytes() before the txn started.
+     * @param threadId
+     * @param marker
+     */
+    public void addAllocatedBytes(long threadId, long marker) {
+        if (marker >= 0) {
+            long current = getThreadAllocatedBytes(threadId);
+            if (current > marker) this.allocated_bytes += (current - marker);
+        }
+    }
+    
+    /**
+     * Return the average number of bytes allocated per txn executed at this partition.
+     * @return
+     */
+    public double getAllocatedBytesPerTxn() {
+        if (this.numTransactions == 0) return (0d);
+        return (this.allocated_bytes / (double)this.numTransactions);
+    }
+    
     @Override
     public void reset() {
         super.reset();
         this.start_time = System.currentTimeMillis();
         this.numTransactions = 0;
+        this.allocated_bytes = 0;
     }
 }
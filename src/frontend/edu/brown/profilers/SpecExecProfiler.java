@@ -47,11 +47,44 @@ public class SpecExecProfiler extends AbstractProfiler {
      */
     public int interrupts = 0;
     
+    /**
+     * The number of times that SpecExecScheduler.next() searched the queue.
+     */
+    public int searches = 0;
+    
+    /**
+     * The number of searches that stopped because they reached the
+     * end of the scheduler's window without finding a match.
+     */
+    public int window_misses = 0;
+    
+    /**
+     * The total number of txns examined before finding a match
+     * for the successful searches.
+     */
+    public long hit_examined = 0;
+    
+    /**
+     * The number of speculative txns that were committed
+     */
+    public int commits = 0;
+    
+    /**
+     * The number of speculative txns that had to be aborted because
+     * they conflicted with the distributed txn.
+     */
+    public int aborts = 0;
+    
     @Override
     public void reset() {
         super.reset();
         this.success = 0;
         this.interrupts = 0;
+        this.searches = 0;
+        this.window_misses = 0;
+        this.hit_examined = 0;
+        this.commits = 0;
+        this.aborts = 0;
         this.num_comparisons.clear();
         this.num_matches.clear();
         this.num_executed.clear();
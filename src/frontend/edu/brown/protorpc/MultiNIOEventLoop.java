@@ -0,0 +1,186 @@
+package edu.brown.protorpc;
+
+import java.nio.channels.SelectableChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An EventLoop that spreads its connections across multiple NIOEventLoops that
+ * each have their own Selector and thread. The main loop (i.e., the thread that calls
+ * run()) still handles accepts, connects, timers, and runInEventThread() callbacks.
+ * Once a channel is registered for reads or writes, it is pinned to a single
+ * shard for the rest of its life. That means that all of the messages for a
+ * connection are read and decoded by the same thread in the order that they
+ * arrived, but different connections are processed in parallel.
+ */
+public class MultiNIOEventLoop extends NIOEventLoop {
+    private static final Logger LOG = Logger.getLogger(MultiNIOEventLoop.class);
+
+    private final NIOEventLoop shards[];
+    private final Thread shardThreads[];
+    private final ThreadFactory threadFactory;
+    private final ConcurrentHashMap<SelectableChannel, Integer> channelShards =
+            new ConcurrentHashMap<SelectableChannel, Integer>();
+    private final AtomicInteger nextShard = new AtomicInteger(0);
+    private volatile Thread mainThread;
+    private volatile Throwable shardError;
+
+    public MultiNIOEventLoop(int numShards) {
+        this(numShards, Executors.defaultThreadFactory());
+    }
+
+    /**
+     * @param numShards the number of selector threads to spread connections across
+     * @param threadFactory used to create the thread for each shard every time run() is called
+     */
+    public MultiNIOEventLoop(int numShards, ThreadFactory threadFactory) {
+        super();
+        if (numShards <= 0) {
+            throw new IllegalArgumentException("Invalid number of shards " + numShards);
+        }
+        this.threadFactory = threadFactory;
+        this.shards = new NIOEventLoop[numShards];
+        this.shardThreads = new Thread[numShards];
+        for (int i = 0; i < numShards; i++) {
+            this.shards[i] = new NIOEventLoop();
+        }
+    }
+
+    public int getNumShards() {
+        return (this.shards.length);
+    }
+
+    @Override
+    public void registerRead(final SelectableChannel channel, final Handler handler) {
+        final int idx = this.getShard(channel);
+        this.runInShard(idx, new Runnable() {
+            @Override
+            public void run() {
+                shards[idx].registerRead(channel, handler);
+            }
+        });
+    }
+
+    @Override
+    public void registerWrite(final SelectableChannel channel, final Handler handler) {
+        final int idx = this.getShard(channel);
+        this.runInShard(idx, new Runnable() {
+            @Override
+            public void run() {
+                shards[idx].registerWrite(channel, handler);
+            }
+        });
+    }
+
+    @Override
+    public void registerTimer(final int timerMilliseconds, final Handler handler) {
+        // The timer queue is not thread-safe, so it can only be touched by the main thread
+        if (this.mainThread == null || Thread.currentThread() == this.mainThread) {
+            super.registerTimer(timerMilliseconds, handler);
+        } else {
+            this.runInEventThread(new Runnable() {
+                @Override
+                public void run() {
+                    MultiNIOEventLoop.super.registerTimer(timerMilliseconds, handler);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void cancelTimer(final Handler handler) {
+        if (this.mainThread == null || Thread.currentThread() == this.mainThread) {
+            super.cancelTimer(handler);
+        } else {
+            this.runInEventThread(new Runnable() {
+                @Override
+                public void run() {
+                    MultiNIOEventLoop.super.cancelTimer(handler);
+                }
+            });
+        }
+    }
+
+    /**
+     * Start the shard threads and then run the main loop in the calling thread.
+     * The shard threads are stopped when the main loop exits.
+     */
+    @Override
+    public void run() {
+        this.mainThread = Thread.currentThread();
+        this.shardError = null;
+        for (int i = 0; i < this.shards.length; i++) {
+            final NIOEventLoop shard = this.shards[i];
+            this.shardThreads[i] = this.threadFactory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        shard.run();
+                    } catch (Throwable ex) {
+                        LOG.error("Unexpected error in " + Thread.currentThread().getName(), ex);
+                        shardError = ex;
+                        exitLoop();
+                    }
+                }
+            });
+            this.shardThreads[i].setDaemon(true);
+            this.shardThreads[i].start();
+        } // FOR
+
+        try {
+            super.run();
+        } finally {
+            for (NIOEventLoop shard : this.shards) {
+                shard.exitLoop();
+            } // FOR
+            for (int i = 0; i < this.shardThreads.length; i++) {
+                try {
+                    this.shardThreads[i].join();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                this.shardThreads[i] = null;
+            } // FOR
+            this.mainThread = null;
+        }
+        if (this.shardError != null) {
+            throw new RuntimeException(this.shardError);
+        }
+    }
+
+    /**
+     * Returns the shard that the given channel is pinned to. If the channel
+     * does not have one yet, then it will be assigned one in round-robin order.
+     */
+    private int getShard(SelectableChannel channel) {
+        Integer idx = this.channelShards.get(channel);
+        if (idx == null) {
+            // Clean out any channels that were closed since the last time
+            for (Iterator<SelectableChannel> it = this.channelShards.keySet().iterator(); it.hasNext(); ) {
+                if (it.next().isOpen() == false) it.remove();
+            } // FOR
+            idx = (this.nextShard.getAndIncrement() & Integer.MAX_VALUE) % this.shards.length;
+            Integer existing = this.channelShards.putIfAbsent(channel, idx);
+            if (existing != null) idx = existing;
+        }
+        return (idx.intValue());
+    }
+
+    /**
+     * Invoke the given callback right away if we are already in the shard's thread.
+     * Otherwise we have to hand it off to the shard, since registering a channel
+     * with a Selector will block while another thread is inside of select().
+     */
+    private void runInShard(int idx, Runnable callback) {
+        if (Thread.currentThread() == this.shardThreads[idx]) {
+            callback.run();
+        } else {
+            this.shards[idx].runInEventThread(callback);
+        }
+    }
+}
@@ -84,18 +84,36 @@ public class ProtoConnection {
     }
 
     public boolean tryWrite(MessageLite message) {
+        this.bufferWrite(message);
+        return connection.tryFlush();
+    }
+
+    /** Serializes the message into the connection's write buffer without writing it to the
+     * socket. This allows multiple messages to be sent out with a single write. Call
+     * {@link #tryFlush()} to actually write out the buffered messages.
+     *
+     * @return the number of bytes that were added to the write buffer.
+     */
+    public int bufferWrite(MessageLite message) {
         try {
-            codedOutput.writeRawLittleEndian32(message.getSerializedSize());
+            int size = message.getSerializedSize();
+            codedOutput.writeRawLittleEndian32(size);
             message.writeTo(codedOutput);
             // writes to the underlying output stream 
             codedOutput.flush();  
-
-            return connection.tryFlush();
+            return (size + 4);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /** See {@link NonBlockingConnection#tryFlush()}.
+     * @see NonBlockingConnection#tryFlush()
+     */
+    public boolean tryFlush() {
+        return connection.tryFlush();
+    }
+
     // TODO: Only keep one of getConnection and getChannel?
     public NonBlockingConnection getConnection() {
         return connection;
@@ -32,6 +32,21 @@ public class ProtoRpcChannel extends AbstractEventHandler implements RpcChannel
             new HashMap<Integer, ProtoRpcController>();
     private int reconnectIntervalSeconds;
 
+    /** If greater than zero, then outgoing requests are coalesced into a single
+     * socket write until this many bytes are buffered or the event loop flushes them. */
+    private int batchMaxBytes = 0;
+    private int batchedBytes = 0;
+    private boolean batchFlushScheduled = false;
+    private final Runnable batchFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ProtoRpcChannel.this) {
+                batchFlushScheduled = false;
+                if (batchedBytes > 0) flushBatch();
+            }
+        }
+    };
+
     /** A factory interface for connecting to an RPC server. */
     public interface ConnectFactory {
         /** Creates a new connection that is connecting. */
@@ -112,6 +127,36 @@ public class ProtoRpcChannel extends AbstractEventHandler implements RpcChannel
         reconnectIntervalSeconds = reconnectSeconds;
     }
 
+    /**
+     * Enables write batching for this channel. Instead of writing each request out to the
+     * socket as soon as callMethod() is invoked, requests are appended to the connection's
+     * buffer and written out together either when the buffer reaches maxBytes or when the
+     * event loop thread gets around to flushing it, whichever comes first. All the requests
+     * issued by other threads in the meantime are sent with one write.
+     *
+     * @param maxBytes number of buffered bytes that forces an immediate flush. 0 disables
+     *          batching (default).
+     */
+    public synchronized void setWriteBatching(int maxBytes) {
+        assert maxBytes >= 0;
+        batchMaxBytes = maxBytes;
+        if (batchMaxBytes == 0 && batchedBytes > 0 && connection != null) flushBatch();
+    }
+
+    public synchronized boolean isWriteBatching() {
+        return (batchMaxBytes > 0);
+    }
+
+    // Must be called while holding the lock on this channel
+    private void flushBatch() {
+        batchedBytes = 0;
+        if (connection == null) return;
+        boolean blocked = connection.tryFlush();
+        if (blocked) {
+            eventLoop.registerWrite(connection.getChannel(), this);
+        }
+    }
+
     public void callMethod(Descriptors.MethodDescriptor method,
             RpcController controller, Message request,
             Message responsePrototype, RpcCallback<Message> done) {
@@ -130,6 +175,16 @@ public class ProtoRpcChannel extends AbstractEventHandler implements RpcChannel
             // System.err.println("Sending RPC sequence " + sequence);
             RpcRequest rpcRequest = makeRpcRequest(sequence, method, request);
             sequence += 1;
+            if (batchMaxBytes > 0) {
+                batchedBytes += connection.bufferWrite(rpcRequest);
+                if (batchedBytes >= batchMaxBytes) {
+                    flushBatch();
+                } else if (batchFlushScheduled == false) {
+                    batchFlushScheduled = true;
+                    eventLoop.runInEventThread(batchFlushTask);
+                }
+                return;
+            }
             boolean blocked = connection.tryWrite(rpcRequest);
             if (blocked) {
                 // the write blocked: wait for write callbacks
@@ -64,14 +64,57 @@ public class ProtoServer extends AbstractEventHandler {
         }
 
         private final ProtoConnection connection;
+        private int batchedBytes = 0;
+        private boolean batchFlushScheduled = false;
+        private final Runnable batchFlushTask = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (EventCallbackWrapper.this) {
+                    batchFlushScheduled = false;
+                    if (batchedBytes > 0) flushBatch();
+                }
+            }
+        };
 
         public synchronized void writeResponse(RpcResponse output) {
+            if (batchMaxBytes > 0) {
+                batchedBytes += connection.bufferWrite(output);
+                if (batchedBytes >= batchMaxBytes) {
+                    flushBatch();
+                } else if (batchFlushScheduled == false) {
+                    batchFlushScheduled = true;
+                    eventLoop.runInEventThread(batchFlushTask);
+                }
+                return;
+            }
             boolean blocked = connection.tryWrite(output);
             if (blocked) {
                 // write blocked: wait for the write callback
                 eventLoop.registerWrite(connection.getChannel(), this);
             }
         }
+
+        // Must be called while holding the lock on this wrapper
+        private void flushBatch() {
+            batchedBytes = 0;
+            boolean blocked = connection.tryFlush();
+            if (blocked) {
+                // write blocked: wait for the write callback
+                eventLoop.registerWrite(connection.getChannel(), this);
+            }
+        }
+    }
+
+    /**
+     * Enables write batching for the responses sent back on all of this server's
+     * connections. See {@link ProtoRpcChannel#setWriteBatching(int)}.
+     *
+     * @param maxBytes number of buffered bytes that forces an immediate flush. 0 disables
+     *          batching (default).
+     */
+    public void setWriteBatching(int maxBytes) {
+        assert maxBytes >= 0;
+        batchMaxBytes = maxBytes;
     }
 
     private void read(EventCallbackWrapper eventLoopCallback) {
@@ -220,4 +263,5 @@ public class ProtoServer extends AbstractEventHandler {
     private EventLoop eventLoop;
     private ServerSocketChannel serverSocket;
     private final ServiceRegistry serviceRegistry = new ServiceRegistry();
+    private volatile int batchMaxBytes = 0;
 }
@@ -1,11 +1,9 @@
 package org.voltdb;
 
-import java.nio.ByteBuffer;
 import java.util.Iterator;
 
 import org.apache.log4j.Logger;
 import org.voltdb.catalog.Procedure;
-import org.voltdb.messaging.FastSerializer;
 import org.voltdb.types.SortDirectionType;
 import org.voltdb.utils.Pair;
 import org.voltdb.utils.ReduceInputIterator;
@@ -212,8 +210,7 @@ public abstract class VoltMapReduceProcedure<K> extends VoltProcedure {
                           this.mr_ts, this.reduce_output.getRowCount(), this.partitionId));
             ByteString reduceOutData = null;
             try {
-                ByteBuffer b = ByteBuffer.wrap(FastSerializer.serialize(reduce_output));
-                reduceOutData = ByteString.copyFrom(b.array()); 
+                reduceOutData = VoltTableUtil.toByteString(reduce_output);
             } catch (Exception ex) {
                 throw new RuntimeException(String.format("Unexpected error when serializing %s reduceOutput data for partition %d",
                                                          mr_ts, this.partitionId), ex);
@@ -169,6 +169,21 @@ public interface Client {
             Object... parameters)
     throws IOException, NoConnectionsException;
 
+    /**
+     * Asynchronously invoke a batch of procedures. Each invocation is sent to the same node that
+     * {@link #callProcedure(ProcedureCallback, String, Object...)} would have picked for it, but all of the
+     * invocations that are going to the same connection are serialized into a single buffer and written
+     * together. This is much cheaper than calling callProcedure() in a loop for lots of small requests.
+     * If the client is not blocking and there is backpressure on any of the connections that the batch
+     * needs, then none of the invocations are queued.
+     * @param callbacks ProcedureCallbacks that will be invoked with each invocation's results. May contain nulls.
+     * @param procNames class names (not qualified by package) of the procedures to execute.
+     * @param parameters the list of parameter values for each invocation.
+     * @return <code>true</code> if the batch was queued and <code>false</code> otherwise
+     */
+    public boolean callProcedures(ProcedureCallback callbacks[], String procNames[], Object[][] parameters)
+    throws IOException, NoConnectionsException;
+
     /**
      * Calculate the size of a stored procedure invocation once it is serialized. This is computationally intensive
      * as the invocation is serialized as part of the calculation.
@@ -34,6 +34,7 @@ import org.voltdb.utils.DBBPool.BBContainer;
 
 import edu.brown.catalog.CatalogUtil;
 import edu.brown.hstore.HStoreConstants;
+import edu.brown.hstore.HStoreThreadManager;
 import edu.brown.hstore.Hstoreservice.Status;
 import edu.brown.hstore.conf.HStoreConf;
 import edu.brown.logging.LoggerUtil;
@@ -72,10 +73,10 @@ final class ClientImpl implements Client {
     /**
      * If we have a catalog, then we'll enable client-side hints
      */
-    private Catalog m_catalog;
-    private CatalogContext m_catalogContext;
-    private PartitionEstimator m_pEstimator;
-    private int m_partitionSiteXref[];
+    private volatile Catalog m_catalog;
+    private volatile CatalogContext m_catalogContext;
+    private volatile PartitionEstimator m_pEstimator;
+    private volatile int m_partitionSiteXref[];
     private final HStoreConf m_hstoreConf;
     private final ProfileMeasurement m_queueTime = new ProfileMeasurement("queue");
 
@@ -123,11 +124,8 @@ final class ClientImpl implements Client {
         m_hstoreConf = HStoreConf.singleton(true);
 
         if (catalog != null && m_hstoreConf.client.txn_hints) {
-            m_catalog = catalog;
-            m_catalogContext = new CatalogContext(m_catalog);
-            m_pEstimator = new PartitionEstimator(m_catalogContext);
-            m_partitionSiteXref = CatalogUtil.getPartitionSiteXrefArray(m_catalog);
-    }
+            this.setCatalog(catalog);
+        }
 
         m_distributer = new Distributer(
                 expectedOutgoingMessageSize,
@@ -136,6 +134,9 @@ final class ClientImpl implements Client {
                 m_hstoreConf.global.nanosecond_latencies,
                 statsSettings);
         m_distributer.addClientStatusListener(new CSL());
+        if (m_hstoreConf.client.network_compression) {
+            m_distributer.setCompression(m_hstoreConf.global.network_compression_threshold);
+        }
     }
 
     /**
@@ -152,7 +153,8 @@ final class ClientImpl implements Client {
         }
         String subProgram = "default";
         String subPassword = "password";
-        m_distributer.createConnection(null, host, port, subProgram, subPassword);
+        int site_id = m_distributer.createConnection(null, host, port, subProgram, subPassword);
+        this.checkCatalog(site_id);
     }
     
     /**
@@ -171,7 +173,62 @@ final class ClientImpl implements Client {
         }
         final String subProgram = (program == null) ? "" : program;
         final String subPassword = (password == null) ? "" : password;
-        m_distributer.createConnection(site_id, host, port, subProgram, subPassword);
+        int cxn_site_id = m_distributer.createConnection(site_id, host, port, subProgram, subPassword);
+        this.checkCatalog(cxn_site_id);
+    }
+    
+    /**
+     * Install the catalog that we will use to compute the base partition of
+     * each new txn request and the site that it should be sent to.
+     * The catalog-derived fields are all replaced before m_catalog is updated, since
+     * that is the field that the callProcedure() methods check first.
+     * @param catalog
+     */
+    private void setCatalog(Catalog catalog) {
+        CatalogContext catalogContext = new CatalogContext(catalog);
+        m_partitionSiteXref = CatalogUtil.getPartitionSiteXrefArray(catalog);
+        m_pEstimator = new PartitionEstimator(catalogContext);
+        m_catalogContext = catalogContext;
+        m_catalog = catalog;
+    }
+    
+    /**
+     * If we do not have a catalog, or the site that we just connected to is not
+     * in the catalog that we do have, then retrieve the current catalog from
+     * the cluster so that we can route txn requests directly to the site
+     * that has their base partition.
+     * @param site_id The site that the new connection is for
+     */
+    private void checkCatalog(int site_id) throws IOException {
+        if (m_hstoreConf.client.txn_hints == false || m_hstoreConf.client.txn_hints_fetch_catalog == false) {
+            return;
+        }
+        CatalogContext catalogContext = m_catalogContext;
+        if (catalogContext != null && site_id >= 0 && catalogContext.getSiteById(site_id) != null) {
+            return;
+        }
+        
+        if (debug.val)
+            LOG.debug(String.format("Retrieving catalog from cluster [newSite=%s, hasCatalog=%s]",
+                      HStoreThreadManager.formatSiteName(site_id), catalogContext != null));
+        ClientResponse cresponse = null;
+        try {
+            cresponse = this.callProcedure("@GetCatalog");
+        } catch (ProcCallException ex) {
+            // We can still execute txns without the catalog, so we'll
+            // just let all of the requests go through the round-robin connections
+            LOG.warn("Failed to retrieve catalog from cluster. Client-side txn routing will be disabled", ex);
+            return;
+        }
+        VoltTable vt = cresponse.getResults()[0];
+        boolean adv = vt.advanceRow();
+        assert(adv) : "Unexpected empty result from @GetCatalog";
+        Catalog catalog = new Catalog();
+        catalog.execute(vt.getString(0));
+        this.setCatalog(catalog);
+        if (debug.val)
+            LOG.debug(String.format("Updated client catalog [sites=%d, partitions=%d]",
+                      m_catalogContext.numberOfSites, m_catalogContext.numberOfPartitions));
     }
 
     /**
@@ -310,10 +367,82 @@ final class ClientImpl implements Client {
         }
         StoredProcedureInvocation invocation =
             new StoredProcedureInvocation(m_handle.getAndIncrement(), procName, parameters);
+        Integer site_id = this.prepareInvocation(invocation, hints);
+
+        if (m_blockingQueue) {
+            long start = ProfileMeasurement.getTime();
+            while (!m_distributer.queue(invocation, callback, expectedSerializedSize, true, site_id)) {
+                try {
+                    backpressureBarrier();
+                } catch (InterruptedException e) {
+                    throw new java.io.InterruptedIOException("Interrupted while invoking procedure asynchronously");
+                }
+            }
+            m_queueTime.appendTime(start, ProfileMeasurement.getTime(), 1);
+            return true;
+        } else {
+            long start = ProfileMeasurement.getTime();
+            boolean ret = m_distributer.queue(invocation, callback, expectedSerializedSize, false, site_id);
+            m_queueTime.appendTime(start, ProfileMeasurement.getTime(), 1);
+            return ret;
+        }
+    }
 
+    @Override
+    public final boolean callProcedures(
+            ProcedureCallback callbacks[],
+            String procNames[],
+            Object[][] parameters)
+            throws IOException, NoConnectionsException {
+        if (m_isShutdown) {
+            return false;
+        }
+        assert(callbacks.length == procNames.length);
+        assert(parameters.length == procNames.length);
+        
+        StoredProcedureInvocation invocations[] = new StoredProcedureInvocation[procNames.length];
+        ProcedureCallback batchCallbacks[] = new ProcedureCallback[procNames.length];
+        Integer site_ids[] = new Integer[procNames.length];
+        for (int i = 0; i < invocations.length; i++) {
+            batchCallbacks[i] = callbacks[i];
+            if (batchCallbacks[i] == null) {
+                batchCallbacks[i] = new NullCallback();
+            } else if (batchCallbacks[i] instanceof ProcedureArgumentCacher) {
+                ((ProcedureArgumentCacher)batchCallbacks[i]).setArgs(parameters[i]);
+            }
+            invocations[i] = new StoredProcedureInvocation(m_handle.getAndIncrement(), procNames[i], parameters[i]);
+            site_ids[i] = this.prepareInvocation(invocations[i], null);
+        } // FOR
+
+        long start = ProfileMeasurement.getTime();
+        boolean ret = true;
+        if (m_blockingQueue) {
+            while (!m_distributer.queue(invocations, batchCallbacks, m_expectedOutgoingMessageSize, false, site_ids)) {
+                try {
+                    backpressureBarrier();
+                } catch (InterruptedException e) {
+                    throw new java.io.InterruptedIOException("Interrupted while invoking procedures asynchronously");
+                }
+            }
+        } else {
+            ret = m_distributer.queue(invocations, batchCallbacks, m_expectedOutgoingMessageSize, false, site_ids);
+        }
+        m_queueTime.appendTime(start, ProfileMeasurement.getTime(), invocations.length);
+        return (ret);
+    }
+    
+    /**
+     * Fill in the procedure id and the base partition of the given invocation,
+     * and return the site that it should be sent to. The site is null
+     * if we don't have a catalog or could not figure out the base partition.
+     * @param invocation
+     * @param hints
+     * @return
+     */
+    private Integer prepareInvocation(StoredProcedureInvocation invocation, StoredProcedureInvocationHints hints) {
         Integer site_id = null;
         if (m_catalog != null) {
-            Procedure catalog_proc = m_catalogContext.procedures.getIgnoreCase(procName);
+            Procedure catalog_proc = m_catalogContext.procedures.getIgnoreCase(invocation.getProcName());
             if (catalog_proc != null) {
                 // OPTIMIZATION: If we have the the catalog, then we'll send just 
                 // the procId. This reduces the number of strings that we need to 
@@ -331,7 +460,8 @@ final class ClientImpl implements Client {
                             invocation.setBasePartition(partition);
                         }
                     } catch (Exception ex) {
-                        throw new RuntimeException("Failed to estimate base partition for new invocation of '" + procName + "'", ex);
+                        throw new RuntimeException("Failed to estimate base partition for new invocation of '" +
+                                                   invocation.getProcName() + "'", ex);
                     }
                 }
             }
@@ -339,24 +469,7 @@ final class ClientImpl implements Client {
         if (hints != null && hints.basePartition != HStoreConstants.NULL_PARTITION_ID) {
             invocation.setBasePartition(hints.basePartition);
         }
-
-        if (m_blockingQueue) {
-            long start = ProfileMeasurement.getTime();
-            while (!m_distributer.queue(invocation, callback, expectedSerializedSize, true, site_id)) {
-                try {
-                    backpressureBarrier();
-                } catch (InterruptedException e) {
-                    throw new java.io.InterruptedIOException("Interrupted while invoking procedure asynchronously");
-                }
-            }
-            m_queueTime.appendTime(start, ProfileMeasurement.getTime(), 1);
-            return true;
-        } else {
-            long start = ProfileMeasurement.getTime();
-            boolean ret = m_distributer.queue(invocation, callback, expectedSerializedSize, false, site_id);
-            m_queueTime.appendTime(start, ProfileMeasurement.getTime(), 1);
-            return ret;
-        }
+        return (site_id);
     }
 
     public void drain() throws NoConnectionsException, InterruptedException {
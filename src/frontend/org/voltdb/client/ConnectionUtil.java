@@ -44,6 +44,7 @@ import org.voltdb.ClientResponseImpl;
 import org.voltdb.StoredProcedureInvocation;
 import org.voltdb.messaging.FastDeserializer;
 import org.voltdb.messaging.FastSerializer;
+import org.voltdb.network.VoltProtocolHandler;
 import org.voltdb.utils.DBBPool.BBContainer;
 
 /**
@@ -99,7 +100,26 @@ public class ConnectionUtil {
     public static Object[] getAuthenticatedConnection(
             String host, String username, String password, int port) throws IOException
     {
-        return getAuthenticatedConnection("database", host, username, password, port);
+        return getAuthenticatedConnection("database", host, username, password, port, false);
+    }
+
+    /**
+     * Create a connection to a Volt server and authenticate the connection.
+     * If compression is true, then we will ask the server to compress the messages
+     * on this connection.
+     * @param host
+     * @param username
+     * @param password
+     * @param port
+     * @param compression
+     * @throws IOException
+     * @returns The same array of objects as getAuthenticatedConnection(String, String, String, int)
+     * with an extra Boolean at the end that is true if the server agreed to use compression
+     */
+    public static Object[] getAuthenticatedConnection(
+            String host, String username, String password, int port, boolean compression) throws IOException
+    {
+        return getAuthenticatedConnection("database", host, username, password, port, compression);
     }
 
     /**
@@ -117,17 +137,17 @@ public class ConnectionUtil {
     public static Object[] getAuthenticatedExportConnection(
             String host, String username, String password, int port) throws IOException
     {
-        return getAuthenticatedConnection("export", host, username, password, port);
+        return getAuthenticatedConnection("export", host, username, password, port, false);
     }
 
 
     private static Object[] getAuthenticatedConnection(
-            String service, String host, String username, String password, int port)
+            String service, String host, String username, String password, int port, boolean compression)
     throws IOException {
         LOG.debug("Ok, so now we're looking for an authenticated connection");
         LOG.debug("[service=" + service + ", host=" + host + ", user=" + username + ", pass=" + password + ", port=" + port + "]");
         
-        Object returnArray[] = new Object[3];
+        Object returnArray[] = new Object[4];
         boolean success = false;
         InetSocketAddress addr = new InetSocketAddress(host, port);
         SocketChannel aChannel = SocketChannel.open(addr);
@@ -155,7 +175,7 @@ public class ConnectionUtil {
             byte passwordHash[] = md.digest(password.getBytes());
             FastSerializer fs = new FastSerializer();
             fs.writeInt(0);             // placeholder for length
-            fs.writeByte(0);            // version
+            fs.writeByte(compression ? VoltProtocolHandler.LOGIN_COMPRESSION_FLAG : 0); // version
             fs.writeString(service);    // data service (export|database)
             fs.writeString(username);
             fs.write(passwordHash);
@@ -207,7 +227,7 @@ public class ConnectionUtil {
                 throw new IOException("Authentication rejected");
             } else {
                 loginResponse.flip();
-                loginResponse.position(1);
+                returnArray[3] = (loginResponse.get() & VoltProtocolHandler.LOGIN_COMPRESSION_FLAG) != 0;
                 loginResponseCode = loginResponse.get();
             }
 
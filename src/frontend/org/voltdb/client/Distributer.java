@@ -25,6 +25,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -71,7 +72,7 @@ class Distributer {
     private final ArrayList<NodeConnection> m_connections = new ArrayList<NodeConnection>();
     
     /** SiteId -> NodeConnection */
-    private final Map<Integer, Collection<NodeConnection>> m_connectionSiteXref = new HashMap<Integer, Collection<NodeConnection>>();
+    private final Map<Integer, Collection<NodeConnection>> m_connectionSiteXref = new ConcurrentHashMap<Integer, Collection<NodeConnection>>();
 
     private final ArrayList<ClientStatusListener> m_listeners = new ArrayList<ClientStatusListener>();
 
@@ -88,6 +89,12 @@ class Distributer {
     private final boolean m_useMultipleThreads;
     
     private final boolean m_nanoseconds;
+    
+    /**
+     * If this is not negative, then we will ask the server to compress new connections
+     * and messages that are at least this many bytes will be compressed
+     */
+    private int m_compressionThreshold = -1;
 
     private final String m_hostname;
     
@@ -196,6 +203,7 @@ class Distributer {
         // private final CircularFifoBuffer<Long> lastSeenClientHandles = new CircularFifoBuffer<Long>(100);
         private final int m_hostId;
         private final long m_connectionId;
+        private Integer m_siteId;
         private Connection m_connection;
         private String m_hostname;
         private int m_port;
@@ -220,6 +228,7 @@ class Distributer {
         }
 
         public void createWork(long now, long handle, String name, BBContainer c, ProcedureCallback callback) {
+            c = compress(c);
             synchronized (this) {
                 if (!m_isConnected) {
                     final ClientResponse r = new ClientResponseImpl(-1, -1, -1, Status.ABORT_CONNECTION_LOST,
@@ -235,6 +244,32 @@ class Distributer {
             m_connection.writeStream().enqueue(c);
         }
 
+        /**
+         * Register the callbacks for a batch of invocations that were all
+         * serialized into the given buffer and then queue it as a single write
+         */
+        public void createWork(long now, StoredProcedureInvocation invocations[], ProcedureCallback callbacks[], BBContainer c) {
+            c = compress(c);
+            synchronized (this) {
+                if (!m_isConnected) {
+                    final ClientResponse r = new ClientResponseImpl(-1, -1, -1, Status.ABORT_CONNECTION_LOST,
+                            new VoltTable[0], "Connection to database host (" + m_hostname +
+                            ") was lost before a response was received");
+                    for (ProcedureCallback callback : callbacks) {
+                        callback.clientCallback(r);
+                    } // FOR
+                    c.discard();
+                    return;
+                }
+                for (int i = 0; i < invocations.length; i++) {
+                    m_callbacks.put(invocations[i].getClientHandle(),
+                                    new CallbackValues(now, callbacks[i], invocations[i].getProcName()));
+                } // FOR
+                m_callbacksToInvoke.addAndGet(invocations.length);
+            }
+            m_connection.writeStream().enqueue(c);
+        }
+
         public void createWork(long now, long handle, String name, FastSerializable f, ProcedureCallback callback) {
             synchronized (this) {
                 if (!m_isConnected) {
@@ -247,7 +282,27 @@ class Distributer {
                 m_callbacks.put(handle, new CallbackValues(now, callback, name));
                 m_callbacksToInvoke.incrementAndGet();
             }
-            m_connection.writeStream().enqueue(f);
+            if (hasCompression()) {
+                m_connection.writeStream().enqueue(
+                        VoltProtocolHandler.compressedSerialization(f, m_expectedOutgoingMessageSize, m_compressionThreshold));
+            } else {
+                m_connection.writeStream().enqueue(f);
+            }
+        }
+        
+        /**
+         * Compress the serialized messages if the server agreed to it
+         */
+        private BBContainer compress(BBContainer c) {
+            if (hasCompression()) {
+                try {
+                    c = VoltProtocolHandler.compressMessages(c, m_compressionThreshold);
+                } catch (IOException ex) {
+                    c.discard();
+                    throw new RuntimeException("Failed to compress messages for " + this, ex);
+                }
+            }
+            return (c);
         }
 
         private void updateStats(
@@ -374,6 +429,20 @@ class Distributer {
                 //Prevent queueing of new work to this connection
                 synchronized (Distributer.this) {
                     m_connections.remove(this);
+                    if (m_siteId != null) {
+                        synchronized (m_connectionSiteXref) {
+                            Collection<NodeConnection> nc = m_connectionSiteXref.get(m_siteId);
+                            if (nc != null) {
+                                List<NodeConnection> newList = new ArrayList<NodeConnection>(nc);
+                                newList.remove(this);
+                                if (newList.isEmpty()) {
+                                    m_connectionSiteXref.remove(m_siteId);
+                                } else {
+                                    m_connectionSiteXref.put(m_siteId, newList);
+                                }
+                            }
+                        } // SYNCH
+                    }
                     //Notify listeners that a connection has been lost
                     for (ClientStatusListener s : m_listeners) {
                         s.connectionLost(m_hostname, m_connections.size());
@@ -572,7 +641,23 @@ class Distributer {
 //        createConnection(host, program, password, port);
 //    }
 
-    public synchronized void createConnection(Integer site_id, String host, int port, String program, String password) throws UnknownHostException, IOException {
+    /**
+     * Ask the server to compress all of the connections that are created from now on.
+     * Messages that are smaller than the threshold will not be compressed.
+     * @param threshold
+     */
+    void setCompression(int threshold) {
+        m_compressionThreshold = threshold;
+    }
+
+    /**
+     * Create a new connection to the given host. If the site_id is null, then the
+     * connection will be registered for the site id that the server reported when
+     * we authenticated. That way txn requests that have a base partition can
+     * always be sent directly to the site that has it.
+     * @return The site id that this connection was registered under
+     */
+    public synchronized int createConnection(Integer site_id, String host, int port, String program, String password) throws UnknownHostException, IOException {
         if (debug.val) {
             LOG.debug(String.format("Creating new connection [site=%s, host=%s, port=%d]",
                       HStoreThreadManager.formatSiteName(site_id), host, port));
@@ -581,7 +666,7 @@ class Distributer {
         Object connectionStuff[] = null;
         try {
             connectionStuff =
-            ConnectionUtil.getAuthenticatedConnection(host, program, password, port);
+            ConnectionUtil.getAuthenticatedConnection(host, program, password, port, m_compressionThreshold >= 0);
         } catch (Exception ex) {
             LOG.error("Failed to get connection to " + host + ":" + port, (debug.val ? ex : null));
             throw new IOException(ex);
@@ -613,19 +698,21 @@ class Distributer {
         }
         m_buildString = (String)connectionStuff[2];
         NodeConnection cxn = new NodeConnection(numbers);
+        cxn.setCompression(Boolean.TRUE.equals(connectionStuff[3]));
         m_connections.add(cxn);
-        if (site_id != null) {
-            if (debug.val)
-                LOG.debug(String.format("Created connection for Site %s: %s", HStoreThreadManager.formatSiteName(site_id), cxn));
-            synchronized (m_connectionSiteXref) {
-                Collection<NodeConnection> nc = m_connectionSiteXref.get(site_id);
-                if (nc == null) {
-                    nc = new ArrayList<NodeConnection>();
-                    m_connectionSiteXref.put(site_id, nc);
-                }
-                nc.add(cxn);    
-            } // SYNCH
-        }
+        if (site_id == null) site_id = cxn.m_hostId;
+        if (debug.val)
+            LOG.debug(String.format("Created connection for Site %s: %s", HStoreThreadManager.formatSiteName(site_id), cxn));
+        synchronized (m_connectionSiteXref) {
+            // The per-site lists are never modified in place so that queue()
+            // can pick from them without holding the lock
+            Collection<NodeConnection> nc = m_connectionSiteXref.get(site_id);
+            List<NodeConnection> newList = new ArrayList<NodeConnection>();
+            if (nc != null) newList.addAll(nc);
+            newList.add(cxn);
+            m_connectionSiteXref.put(site_id, newList);
+        } // SYNCH
+        cxn.m_siteId = site_id;
         
         Connection c = m_network.registerChannel(aChannel, cxn);
         cxn.m_hostname = c.getHostname();
@@ -633,6 +720,7 @@ class Distributer {
         cxn.m_connection = c;
         if (debug.val) 
             LOG.debug("From what I can tell, we have a connection: " + cxn);
+        return (site_id.intValue());
     }
 
 //    private HashMap<String, Long> reportedSizes = new HashMap<String, Long>();
@@ -677,8 +765,9 @@ class Distributer {
         // random Connection to that site. This is so that we can send the
         // txn request directly to the site that presumably has all of the
         // data that the txn will need
-        if (site_id != null && m_connectionSiteXref.containsKey(site_id)) {
-            cxn = CollectionUtil.random(m_connectionSiteXref.get(site_id));
+        Collection<NodeConnection> siteConnections = (site_id != null ? m_connectionSiteXref.get(site_id) : null);
+        if (siteConnections != null && siteConnections.isEmpty() == false) {
+            cxn = CollectionUtil.random(siteConnections);
             if (cxn == null) {
                 LOG.warn("No direct connection to " + HStoreThreadManager.formatSiteName(site_id));
             }
@@ -771,6 +860,104 @@ class Distributer {
         return !backpressure;
     }
     
+    /**
+     * Queue a batch of invocations. Each invocation is routed to a connection the same
+     * way that queue() does it, except that the invocations without a site all go to the
+     * same round-robin connection. All of the invocations that are going to the same
+     * connection are then serialized into a single buffer and queued as one write.
+     * The server already decodes back-to-back messages out of a single read,
+     * so it does not need to know that they were sent as a batch.
+     * Nothing is queued if any of the connections that the batch needs has backpressure
+     * and ignoreBackpressure is false.
+     * @param invocations
+     * @param callbacks
+     * @param expectedSerializedSize The expected size of each invocation
+     * @param ignoreBackpressure If true the batch will be queued even if there is backpressure
+     * @param site_ids The site to send each invocation to. Entries may be null.
+     * @return True if the batch was queued and false if it was not queued due to backpressure
+     * @throws NoConnectionsException
+     */
+    boolean queue(
+            StoredProcedureInvocation invocations[],
+            ProcedureCallback callbacks[],
+            int expectedSerializedSize,
+            final boolean ignoreBackpressure,
+            final Integer site_ids[])
+        throws NoConnectionsException {
+        assert(invocations.length == callbacks.length);
+        assert(invocations.length == site_ids.length);
+        long now = System.currentTimeMillis();
+        
+        final int totalConnections = m_connections.size();
+        if (totalConnections == 0) {
+            throw new NoConnectionsException("No connections.");
+        }
+        
+        Map<NodeConnection, List<Integer>> batches = new LinkedHashMap<NodeConnection, List<Integer>>();
+        NodeConnection rrCxn = null;
+        for (int i = 0; i < invocations.length; i++) {
+            NodeConnection cxn = null;
+            Collection<NodeConnection> siteConnections = (site_ids[i] != null ? m_connectionSiteXref.get(site_ids[i]) : null);
+            if (siteConnections != null && siteConnections.isEmpty() == false) {
+                cxn = CollectionUtil.random(siteConnections);
+            }
+            if (cxn == null) {
+                if (rrCxn == null) {
+                    synchronized (this) {
+                        for (int j = 0; j < totalConnections; ++j) {
+                            int idx = Math.abs(++m_nextConnection % totalConnections);
+                            rrCxn = m_connections.get(idx);
+                            if (rrCxn.hadBackPressure() == false || ignoreBackpressure) {
+                                break;
+                            }
+                        } // FOR
+                    } // SYNCH
+                }
+                cxn = rrCxn;
+            }
+            List<Integer> offsets = batches.get(cxn);
+            if (offsets == null) {
+                offsets = new ArrayList<Integer>();
+                batches.put(cxn, offsets);
+            }
+            offsets.add(i);
+        } // FOR
+        
+        if (ignoreBackpressure == false) {
+            for (NodeConnection cxn : batches.keySet()) {
+                if (cxn.hadBackPressure()) {
+                    if (trace.val) LOG.trace("Not queuing batch because of backpressure from " + cxn);
+                    for (ClientStatusListener s : m_listeners) {
+                        s.backpressure(true);
+                    }
+                    return (false);
+                }
+            } // FOR
+        }
+        
+        for (Map.Entry<NodeConnection, List<Integer>> e : batches.entrySet()) {
+            NodeConnection cxn = e.getKey();
+            List<Integer> offsets = e.getValue();
+            StoredProcedureInvocation cxnInvocations[] = new StoredProcedureInvocation[offsets.size()];
+            ProcedureCallback cxnCallbacks[] = new ProcedureCallback[offsets.size()];
+            final FastSerializer fs = new FastSerializer(m_pool, expectedSerializedSize * offsets.size());
+            try {
+                for (int i = 0; i < cxnInvocations.length; i++) {
+                    cxnInvocations[i] = invocations[offsets.get(i)];
+                    cxnCallbacks[i] = callbacks[offsets.get(i)];
+                    fs.appendObjectForMessaging(cxnInvocations[i]);
+                } // FOR
+            } catch (IOException ex) {
+                fs.getBBContainer().discard();
+                throw new RuntimeException(ex);
+            }
+            if (debug.val) 
+                LOG.debug(String.format("Queuing batch of %d requests at %s", cxnInvocations.length, cxn));
+            cxn.createWork(now, cxnInvocations, cxnCallbacks, fs.getBBContainer());
+        } // FOR
+        return (true);
+    }
+    
     /**
      * Return a thread-safe FastSerializer
      * @return
@@ -189,6 +189,20 @@ public class FastSerializer implements DataOutput {
         return buffer;
     }
 
+    /**
+     * Append the object to the buffer with the same length prefix that
+     * writeObjectForMessaging() uses. The buffer is not flipped, so multiple
+     * messages can be written back-to-back and then sent all at once.
+     * Call getBBContainer() when done.
+     */
+    public void appendObjectForMessaging(FastSerializable object) throws IOException {
+        final int startPosition = buffer.b.position();
+        writeInt(0);
+        object.writeExternal(this);
+        final int len = buffer.b.position() - (4 + startPosition);
+        buffer.b.putInt(startPosition, len);
+    }
+
     /** @return a reference to the underlying ByteBuffer. */
     public BBContainer getBBContainer() {
         buffer.b.flip();
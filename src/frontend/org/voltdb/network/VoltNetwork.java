@@ -106,6 +106,13 @@ import edu.brown.hstore.HStoreThreadManager;
     private final boolean m_useExecutorService;
     private final ArrayList<WeakReference<Thread>> m_networkThreads = new ArrayList<WeakReference<Thread>>();
     private final ArrayList<DBBPool> m_poolsToClearOnShutdown = new ArrayList<DBBPool>();
+    
+    /**
+     * If this is not null, then each connection is handed off to one of these
+     * VoltNetworks. Each of them has its own Selector and thread that does
+     * all of the reads and writes for its connections.
+     */
+    private final VoltNetwork m_shards[];
 
     /**
      * Synchronizes registration and unregistration of channels
@@ -125,6 +132,69 @@ import edu.brown.hstore.HStoreThreadManager;
         m_selector = selector;
         m_useBlockingSelect = true;
         m_useExecutorService = false;
+        m_shards = null;
+    }
+    
+    /**
+     * Create a VoltNetwork that spreads its connections across multiple selector threads.
+     * Each connection is assigned to one of them by the hash of its remote address
+     * and all of its reads and writes are then done in that thread. This avoids
+     * handing every selected key off to another thread like the executor service does.
+     * The thread that calls run() on this VoltNetwork only starts and stops the selector threads.
+     * @param hstore_site
+     * @param selectorThreads
+     */
+    public VoltNetwork(final HStoreSite hstore_site, int selectorThreads) {
+        if (selectorThreads <= 0) {
+            throw new IllegalArgumentException("Invalid number of selector threads " + selectorThreads);
+        }
+        m_thread = new Thread(this, "Volt Network");
+        m_thread.setDaemon(true);
+        m_useBlockingSelect = true;
+        m_useExecutorService = false;
+        try {
+            m_selector = Selector.open();
+        } catch (IOException ex) {
+            m_logger.fatal(null, ex);
+            throw new RuntimeException(ex);
+        }
+        
+        m_shards = new VoltNetwork[selectorThreads];
+        for (int i = 0; i < m_shards.length; i++) {
+            String threadName = String.format("%s-%02d", HStoreConstants.THREAD_NAME_VOLTNETWORK, i);
+            if (hstore_site != null) {
+                threadName = HStoreThreadManager.getThreadName(hstore_site, threadName);
+            }
+            m_shards[i] = new VoltNetwork(hstore_site, threadName);
+        } // FOR
+        m_logger.debug("Network Selector Threads: " + m_shards.length);
+    }
+    
+    /**
+     * Create one of the selector threads for a sharded VoltNetwork.
+     * It does all of the work for its connections in its own thread.
+     */
+    private VoltNetwork(final HStoreSite hstore_site, String threadName) {
+        m_thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // Pin the thread if we have an HStoreThreadManager
+                if (hstore_site != null) {
+                    hstore_site.getThreadManager().registerProcessingThread();
+                }
+                VoltNetwork.this.run();
+            }
+        }, threadName);
+        m_thread.setDaemon(true);
+        m_useBlockingSelect = true;
+        m_useExecutorService = false;
+        m_shards = null;
+        try {
+            m_selector = Selector.open();
+        } catch (IOException ex) {
+            m_logger.fatal(null, ex);
+            throw new RuntimeException(ex);
+        }
     }
 
     public VoltNetwork() {
@@ -148,6 +218,7 @@ import edu.brown.hstore.HStoreThreadManager;
         m_thread = new Thread(this, "Volt Network");
         m_thread.setDaemon(true);
         m_useBlockingSelect = blockingSelect;
+        m_shards = null;
 
         try {
             m_selector = Selector.open();
@@ -202,7 +273,7 @@ import edu.brown.hstore.HStoreThreadManager;
                             run.run();
                         } finally {
                             synchronized (m_poolsToClearOnShutdown) {
-                                m_poolsToClearOnShutdown.add(VoltPort.m_pool.get());
+                                m_poolsToClearOnShutdown.add(DBBPool.getThreadLocalPool());
                             }
                         }
                     };
@@ -316,11 +387,17 @@ import edu.brown.hstore.HStoreThreadManager;
             synchronized (this) {
                 m_shouldStop = true;
                 m_selector.wakeup();
+                this.notifyAll();
             }
             m_thread.join();
         } else {
             m_shouldStop = true;
         }
+        if (m_shards != null) {
+            for (VoltNetwork shard : m_shards) {
+                shard.shutdown();
+            } // FOR
+        }
     }
 
     public Connection registerChannel(SocketChannel channel, InputHandler handler) throws IOException {
@@ -338,6 +415,9 @@ import edu.brown.hstore.HStoreThreadManager;
             SocketChannel channel,
             InputHandler handler,
             int interestOps) throws IOException {
+        if (m_shards != null) {
+            return getShard(channel).registerChannel(channel, handler, interestOps);
+        }
         channel.configureBlocking (false);
         channel.socket().setKeepAlive(true);
 
@@ -405,6 +485,10 @@ import edu.brown.hstore.HStoreThreadManager;
 
     @Override
     public void run() {
+        if (m_shards != null) {
+            this.runShards();
+            return;
+        }
         try {
             while (m_shouldStop == false) {
                 try {
@@ -428,6 +512,54 @@ import edu.brown.hstore.HStoreThreadManager;
         }
     }
 
+    /**
+     * Returns the selector thread that the given channel should be assigned to.
+     * The hash of the remote address is mixed before we pick one because the
+     * ephemeral ports that clients connect from often all have the same low bits
+     * (e.g., Linux prefers even port numbers for connect()).
+     */
+    private VoltNetwork getShard(SocketChannel channel) {
+        Object addr = channel.socket().getRemoteSocketAddress();
+        int hash = (addr != null ? addr.hashCode() : channel.hashCode());
+        hash ^= (hash >>> 16);
+        hash *= 0x85ebca6b;
+        hash ^= (hash >>> 13);
+        return (m_shards[(hash & Integer.MAX_VALUE) % m_shards.length]);
+    }
+
+    /**
+     * Start all of the selector threads and then wait until we are told to stop.
+     * All of the connections are registered with the shards, so there is
+     * nothing for this thread to select on.
+     */
+    private void runShards() {
+        for (VoltNetwork shard : m_shards) {
+            shard.start();
+        } // FOR
+        try {
+            synchronized (this) {
+                while (m_shouldStop == false) {
+                    this.wait();
+                } // WHILE
+            } // SYNCH
+        } catch (InterruptedException ex) {
+            // Time to stop
+        } finally {
+            for (VoltNetwork shard : m_shards) {
+                try {
+                    shard.shutdown();
+                } catch (InterruptedException ex) {
+                    m_logger.error(null, ex);
+                }
+            } // FOR
+            try {
+                m_selector.close();
+            } catch (IOException e) {
+                m_logger.error(null, e);
+            }
+        }
+    }
+
     private synchronized void p_shutdown() {
         //Synchronized so the interruption won't interrupt the network thread
         //while it is waiting for the executor service to shutdown
@@ -607,6 +739,17 @@ import edu.brown.hstore.HStoreThreadManager;
         long totalMessagesRead = 0;
         long totalWritten = 0;
         long totalMessagesWritten = 0;
+        if (m_shards != null) {
+            for (VoltNetwork shard : m_shards) {
+                Map<Long, Pair<String, long[]>> shardStats = shard.getIOStats(interval);
+                long shardTotals[] = shardStats.remove(-1L).getSecond();
+                totalRead += shardTotals[0];
+                totalMessagesRead += shardTotals[1];
+                totalWritten += shardTotals[2];
+                totalMessagesWritten += shardTotals[3];
+                retval.putAll(shardStats);
+            } // FOR
+        }
         synchronized (m_ports) {
             for (VoltPort p : m_ports) {
                 final long read = p.readStream().getBytesRead(interval);
@@ -647,6 +790,11 @@ import edu.brown.hstore.HStoreThreadManager;
         for (WeakReference<Thread> ref : m_networkThreads) {
             ids.add(ref.get().getId());
         }
+        if (m_shards != null) {
+            for (VoltNetwork shard : m_shards) {
+                ids.addAll(shard.getThreadIds());
+            } // FOR
+        }
         return ids;
     }
 }
@@ -76,17 +76,6 @@ public class VoltPort implements Callable<VoltPort>, Connection
     final int m_expectedOutgoingMessageSize;
     final String m_remoteHost;
 
-    /**
-     * Package private so that the thread factory in VoltNetwork can clear the pool when the threads exit.
-     */
-    static final ThreadLocal<DBBPool> m_pool =
-        new ThreadLocal<DBBPool>() {
-            @Override
-            protected DBBPool initialValue() {
-                return new DBBPool();
-            }
-    };
-
     /** Wrap a socket with a VoltPort */
     public VoltPort(
             VoltNetwork network,
@@ -127,7 +116,7 @@ public class VoltPort implements Callable<VoltPort>, Connection
     /** VoltNetwork invokes this to prepare and invoke run() */
     public VoltPort call() throws IOException {
         try {
-            final DBBPool pool = m_pool.get();
+            final DBBPool pool = DBBPool.getThreadLocalPool();
 
             /*
              * Have the read stream fill from the network
@@ -21,15 +21,43 @@ import java.util.concurrent.atomic.AtomicLong;
 import java.nio.ByteBuffer;
 import java.io.IOException;
 
+import org.voltdb.messaging.FastSerializable;
+import org.voltdb.messaging.FastSerializer;
+import org.voltdb.utils.CompressionService;
+import org.voltdb.utils.DBBPool;
+import org.voltdb.utils.DeferredSerialization;
+import org.voltdb.utils.DBBPool.BBContainer;
+
 public abstract class VoltProtocolHandler implements InputHandler {
     /** VoltProtocolPorts each have a unique id */
     private static AtomicLong m_globalConnectionCounter = new AtomicLong(0);
 
+    /**
+     * Bit in the version byte of the login request and response that is used to
+     * negotiate compression. The client sets it if it wants to compress messages
+     * and the server echoes it back if it agrees.
+     */
+    public static final byte LOGIN_COMPRESSION_FLAG = 0x1;
+
+    /**
+     * If this bit is set in a message's length prefix, then the message is a
+     * Snappy-compressed block of one or more regular length-prefixed messages.
+     * Message lengths can never be this large, so this is only ambiguous to peers
+     * that did not negotiate compression.
+     */
+    public static final int COMPRESSED_MESSAGE_FLAG = 0x80000000;
+
+    private static final int MAX_MESSAGE_LENGTH = 52428800;
+
     /** messages read by this connection */
     private int m_sequenceId;
     /** serial number of this VoltPort */
     private final long m_connectionId;
     private int m_nextLength;
+    private boolean m_nextCompressed = false;
+    private boolean m_compression = false;
+    /** Messages from a compressed block that have not been handed out yet */
+    private ByteBuffer m_decompressed;
 
     public VoltProtocolHandler() {
         m_sequenceId = 0;
@@ -47,30 +75,137 @@ public abstract class VoltProtocolHandler implements InputHandler {
          * access to the read stream.
          */
         ByteBuffer result = null;
+        if (m_decompressed != null) {
+            return nextDecompressedMessage();
+        }
 
         if (m_nextLength == 0 && inputStream.dataAvailable() > (Integer.SIZE/8)) {
             m_nextLength = inputStream.getInt();
-            if (m_nextLength < 1) {
-                throw new IOException(
-                        "Next message length is " + m_nextLength + " which is less than 1 and is nonsense");
-            }
-            if (m_nextLength > 52428800) {
-                throw new IOException(
-                        "Next message length is " + m_nextLength + " which is greater then the hard coded " +
-                        "max of 52428800. Break up the work into smaller chunks (2 megabytes is reasonable) " +
-                        "and send as multiple messages or stored procedure invocations");
+            if (m_compression && (m_nextLength & COMPRESSED_MESSAGE_FLAG) != 0) {
+                m_nextLength &= ~COMPRESSED_MESSAGE_FLAG;
+                m_nextCompressed = true;
             }
+            checkMessageLength(m_nextLength);
             assert m_nextLength > 0;
         }
         if (m_nextLength > 0 && inputStream.dataAvailable() >= m_nextLength) {
             result = ByteBuffer.allocate(m_nextLength);
             inputStream.getBytes(result.array());
             m_nextLength = 0;
+            if (m_nextCompressed) {
+                m_nextCompressed = false;
+                m_decompressed = ByteBuffer.wrap(CompressionService.decompressBytes(result.array()));
+                return nextDecompressedMessage();
+            }
             m_sequenceId++;
         }
         return result;
     }
 
+    /**
+     * Return the next message out of the last compressed block that we read
+     */
+    private ByteBuffer nextDecompressedMessage() throws IOException {
+        if (m_decompressed.remaining() < (Integer.SIZE/8)) {
+            throw new IOException("Compressed message block has " + m_decompressed.remaining() + " trailing bytes");
+        }
+        final int length = m_decompressed.getInt();
+        checkMessageLength(length);
+        if (m_decompressed.remaining() < length) {
+            throw new IOException("Compressed message block is truncated. Expected " + length +
+                                  " bytes but only " + m_decompressed.remaining() + " are left");
+        }
+        final ByteBuffer result = ByteBuffer.allocate(length);
+        m_decompressed.get(result.array());
+        if (!m_decompressed.hasRemaining()) {
+            m_decompressed = null;
+        }
+        m_sequenceId++;
+        return result;
+    }
+
+    private static void checkMessageLength(int length) throws IOException {
+        if (length < 1) {
+            throw new IOException(
+                    "Next message length is " + length + " which is less than 1 and is nonsense");
+        }
+        if (length > MAX_MESSAGE_LENGTH) {
+            throw new IOException(
+                    "Next message length is " + length + " which is greater then the hard coded " +
+                    "max of " + MAX_MESSAGE_LENGTH + ". Break up the work into smaller chunks (2 megabytes is reasonable) " +
+                    "and send as multiple messages or stored procedure invocations");
+        }
+    }
+
+    /**
+     * Enable or disable reading compressed messages from this connection.
+     * This should only be enabled once both sides have agreed to it
+     * when the connection was authenticated.
+     */
+    public void setCompression(boolean compression) {
+        m_compression = compression;
+    }
+
+    public boolean hasCompression() {
+        return m_compression;
+    }
+
+    /**
+     * Compress a buffer that contains one or more length-prefixed messages into a
+     * single compressed block. The original container is returned unchanged if
+     * it is smaller than the threshold or if compressing it would not save anything.
+     * Otherwise the original container is discarded.
+     * @param c
+     * @param threshold
+     * @return
+     * @throws IOException
+     */
+    public static BBContainer compressMessages(BBContainer c, int threshold) throws IOException {
+        final int length = c.b.remaining();
+        if (length < threshold) {
+            return c;
+        }
+        final byte compressed[];
+        if (c.b.isDirect()) {
+            compressed = CompressionService.compressBuffer(c.b.duplicate());
+        } else {
+            compressed = CompressionService.compressBytes(c.b.array(), c.b.arrayOffset() + c.b.position(), length);
+        }
+        if (compressed.length + (Integer.SIZE/8) >= length) {
+            return c;
+        }
+        final ByteBuffer b = ByteBuffer.allocate(compressed.length + (Integer.SIZE/8));
+        b.putInt(compressed.length | COMPRESSED_MESSAGE_FLAG);
+        b.put(compressed);
+        b.flip();
+        c.discard();
+        return DBBPool.wrapBB(b);
+    }
+
+    /**
+     * Returns a DeferredSerialization that serializes the given object like
+     * WriteStream.enqueue(FastSerializable, int) does and then compresses it
+     * if it is larger than the threshold.
+     * @param f
+     * @param expectedSize
+     * @param threshold
+     * @return
+     */
+    public static DeferredSerialization compressedSerialization(final FastSerializable f,
+                                                                final int expectedSize,
+                                                                final int threshold) {
+        return new DeferredSerialization() {
+            @Override
+            public BBContainer serialize(final DBBPool pool) throws IOException {
+                final FastSerializer fs = new FastSerializer(pool, expectedSize);
+                return compressMessages(fs.writeObjectForMessaging(f), threshold);
+            }
+
+            @Override
+            public void cancel() {}
+        };
+    }
+
     @Override
     public void started(Connection c) {
     }
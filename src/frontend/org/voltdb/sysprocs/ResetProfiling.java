@@ -100,6 +100,13 @@ public class ResetProfiling extends VoltSystemProcedure {
                     if (hstore_conf.site.commandlog_profiling && commandLog.getProfiler() != null) {
                         profilers.add(commandLog.getProfiler());
                     }
+                    if (hstore_conf.site.commandlog_profiling && commandLog.getStreams() != null) {
+                        for (CommandLogWriter stream : commandLog.getStreams()) {
+                            if (stream != commandLog && stream.getProfiler() != null) {
+                                profilers.add(stream.getProfiler());
+                            }
+                        } // FOR
+                    }
                     
                     // Reset the StartWorkload flag in the HStoreSite
                     hstore_site.getDebugContext().resetStartWorkload();
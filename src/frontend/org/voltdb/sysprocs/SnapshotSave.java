@@ -43,6 +43,7 @@ import org.voltdb.sysprocs.saverestore.SnapshotUtil;
 import edu.brown.catalog.CatalogUtil;
 import edu.brown.hstore.HStoreConstants;
 import edu.brown.hstore.PartitionExecutor.SystemProcedureExecutionContext;
+import edu.brown.hstore.cmdlog.CommandLogWriter;
 import edu.brown.utils.CollectionUtil;
 
 @ProcInfo(singlePartition = false)
@@ -112,6 +113,14 @@ public class SnapshotSave extends VoltSystemProcedure {
             byte block = (Byte) params.toArray()[3];
             SnapshotSaveAPI saveAPI = new SnapshotSaveAPI();
             VoltTable result = saveAPI.startSnapshotting(file_path, file_nonce, block, startTime, context, hostname);
+            
+            // If this was a blocking snapshot, then everything at this partition that came
+            // before us is now durable in the snapshot. The command log will recycle the
+            // segments that it no longer needs once all of its local partitions are done.
+            CommandLogWriter commandLog = context.getHStoreSite().getCommandLogWriter();
+            if (block != 0 && commandLog != null && this.isSnapshotSuccessful(result)) {
+                commandLog.notifySnapshotCompleted(txn_id.longValue(), context.getPartitionExecutor().getPartitionId());
+            }
 
             LOG.trace("createSnapshotTargets :: Ends at partition : " + context.getPartitionExecutor().getPartitionId() + "\n" + result);
             return new DependencySet(SnapshotSave.DEP_createSnapshotTargets, result);
@@ -295,6 +304,20 @@ public class SnapshotSave extends VoltSystemProcedure {
         return results;
     }
 
+    private boolean isSnapshotSuccessful(VoltTable vt) {
+        if (vt.hasColumn("RESULT") == false) return (true);
+        boolean success = true;
+        vt.resetRowPosition();
+        while (vt.advanceRow()) {
+            if (vt.getString("RESULT").equals("SUCCESS") == false) {
+                success = false;
+                break;
+            }
+        } // WHILE
+        vt.resetRowPosition();
+        return (success);
+    }
+
     private final VoltTable[] performSaveFeasibilityWork(String filePath, String fileNonce) {
         SynthesizedPlanFragment[] pfs = new SynthesizedPlanFragment[2];
 
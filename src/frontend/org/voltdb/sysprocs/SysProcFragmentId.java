@@ -59,6 +59,8 @@ public class SysProcFragmentId {
     public static final int PF_plannerProfilerAggregator = 37;
     public static final int PF_anticacheProfilerData = 38;
     public static final int PF_anticacheProfilerAggregator = 39;
+    public static final int PF_bufferPoolData = 40;
+    public static final int PF_bufferPoolAggregator = 41;
 
     // @Shutdown
     public static final int PF_shutdownCommand = 50;
@@ -0,0 +1,39 @@
+package org.voltdb.types;
+
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This defines what the PartitionExecutor's thread will do while it waits
+ * for new messages to show up in its PartitionMessageRingQueue.
+ * @author pavlo
+ */
+public enum WorkQueueWaitStrategyType {
+    /**
+     * Spin in a tight loop checking the queue.
+     * This has the lowest hand-off latency but it will burn a full CPU core
+     * per partition, even when the system is idle.
+     */
+    SPIN,
+    /**
+     * Call Thread.yield() between each check of the queue.
+     */
+    YIELD,
+    /**
+     * Park the thread until a producer wakes it up or the poll times out.
+     * This is the default configuration.
+     */
+    PARK;
+
+    private static final Map<String, WorkQueueWaitStrategyType> name_lookup = new HashMap<String, WorkQueueWaitStrategyType>();
+    static {
+        for (WorkQueueWaitStrategyType e : EnumSet.allOf(WorkQueueWaitStrategyType.class)) {
+            WorkQueueWaitStrategyType.name_lookup.put(e.name().toLowerCase(), e);
+        } // FOR
+    } // STATIC
+
+    public static WorkQueueWaitStrategyType get(String name) {
+        return WorkQueueWaitStrategyType.name_lookup.get(name.toLowerCase());
+    }
+} // ENUM
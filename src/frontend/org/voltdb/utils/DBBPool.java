@@ -205,6 +205,8 @@ public final class DBBPool {
                 final DBBContainer slice = m_slices[m_availableSlices];
                 m_availableSlices--;
                 m_arena.m_pool.bytesLoanedLocally += slice.b.capacity();
+                bytesLoanedGlobally.addAndGet(slice.b.capacity());
+                buffersLoanedGlobally.incrementAndGet();
                 return slice;
             }
 
@@ -218,6 +220,8 @@ public final class DBBPool {
                     final int returnIndex = (m_numSlices - m_returnedSlices) - 1;
                     final int capacity = c.b.capacity();
                     m_arena.m_pool.bytesLoanedLocally -= capacity;
+                    bytesLoanedGlobally.addAndGet(-capacity);
+                    buffersLoanedGlobally.decrementAndGet();
                     c.b.clear();
                     m_returnedSlices++;
 
@@ -331,6 +335,7 @@ public final class DBBPool {
             }
 
             if (m_arenaSize > m_maxArenaSize) {
+                heapAllocationsGlobally.incrementAndGet();
                 return DBBPool.wrapBB(ByteBuffer.allocate(minSize));
             }
 
@@ -445,6 +450,36 @@ public final class DBBPool {
      */
     private static AtomicLong bytesAllocatedGlobally = new AtomicLong(0);
 
+    /**
+     * Number of bytes that are currently loaned out by all DBBPools.
+     * If this keeps growing while the load is steady, then somebody is not
+     * discarding their containers.
+     */
+    private static final AtomicLong bytesLoanedGlobally = new AtomicLong(0);
+
+    /**
+     * Number of pooled buffers that are currently loaned out by all DBBPools
+     */
+    private static final AtomicLong buffersLoanedGlobally = new AtomicLong(0);
+
+    /**
+     * Number of times that a DBBPool had to fall back to allocating a heap buffer
+     * because the request was too large or the arena was already at its max size
+     */
+    private static final AtomicLong heapAllocationsGlobally = new AtomicLong(0);
+
+    /**
+     * One pool per thread that is shared by all of the network streams
+     * that thread services. Buffers can be discarded from any thread and they
+     * will be returned to the pool that they were acquired from.
+     */
+    private static final ThreadLocal<DBBPool> m_threadLocalPool = new ThreadLocal<DBBPool>() {
+        @Override
+        protected DBBPool initialValue() {
+            return new DBBPool();
+        }
+    };
+
     /**
      * True if the native library with the functionality necessary to retrieve buffer addresses
      * was found.
@@ -494,6 +529,15 @@ public final class DBBPool {
         return new BBWrapperContainer(b);
     }
 
+    /**
+     * Returns the DBBPool for the current thread. This should be used
+     * instead of creating a new DBBPool for every connection or stream.
+     * @return
+     */
+    public static DBBPool getThreadLocalPool() {
+        return m_threadLocalPool.get();
+    }
+
     private long bytesAllocatedLocally = 0;
     private long bytesLoanedLocally = 0;
 
@@ -604,6 +648,7 @@ public final class DBBPool {
             return DBBPool.wrapBB(ByteBuffer.allocate(minSize));
         } else {
             if (minSize > MAX_ALLOCATION_SIZE) {
+                heapAllocationsGlobally.incrementAndGet();
                 return DBBPool.wrapBB(ByteBuffer.allocate(minSize));
             }
             return getArenaForAllocation(minSize).acquire(minSize);
@@ -659,6 +704,34 @@ public final class DBBPool {
         return bytesLoanedLocally;
     }
 
+    /**
+     * Returns the number of bytes that are currently loaned out by all DBBPools
+     */
+    public static long getBytesLoanedGlobally() {
+        return bytesLoanedGlobally.get();
+    }
+
+    /**
+     * Returns the number of pooled buffers that are currently loaned out by all DBBPools
+     */
+    public static long getBuffersLoanedGlobally() {
+        return buffersLoanedGlobally.get();
+    }
+
+    /**
+     * Returns the number of times that any DBBPool had to allocate a heap buffer instead
+     */
+    public static long getHeapAllocationsGlobally() {
+        return heapAllocationsGlobally.get();
+    }
+
+    /**
+     * Returns the number of bytes of direct memory allocated by all DBBPools
+     */
+    public static long getBytesAllocatedGlobally() {
+        return bytesAllocatedGlobally.get();
+    }
+
     /**
      * Remove all references to DirectByteBuffers allocated by this pool allowing
      * them to be garbage collected. A pool must be cleared before it is garbage collected
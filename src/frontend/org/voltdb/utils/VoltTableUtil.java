@@ -1,6 +1,7 @@
 package org.voltdb.utils;
 
 import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collection;
 
@@ -10,6 +11,9 @@ import org.voltdb.catalog.Column;
 import org.voltdb.catalog.Table;
 import org.voltdb.types.SortDirectionType;
 
+import com.google.protobuf.ByteString;
+import com.google.protobuf.ByteStringUtil;
+
 import au.com.bytecode.opencsv.CSVWriter;
 import edu.brown.utils.StringBoxUtil;
 import edu.brown.utils.StringUtil;
@@ -165,6 +169,26 @@ public abstract class VoltTableUtil {
         return (result);
     }
     
+    /**
+     * Serialize a VoltTable into a ByteString that can be read back with
+     * FastDeserializer.readObject(VoltTable.class). This produces the same bytes
+     * as VoltTable.writeExternal(), but the table's buffer is copied directly into
+     * the ByteString instead of going through a FastSerializer first.
+     * @param vt
+     * @return
+     */
+    public static ByteString toByteString(VoltTable vt) {
+        ByteBuffer data = vt.getDirectDataReference().duplicate();
+        int length = data.position();
+        data.position(0);
+        data.limit(length);
+        
+        ByteBuffer header = ByteBuffer.allocate(4);
+        header.putInt(length);
+        header.flip();
+        return (ByteStringUtil.concat(header, data));
+    }
+    
     
     /**
      * Returns a row with random data that can be added to this VoltTable
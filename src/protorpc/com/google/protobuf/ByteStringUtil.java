@@ -0,0 +1,56 @@
+package com.google.protobuf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Build ByteStrings directly from ByteBuffers.
+ * ByteString.copyFrom() has to make its own defensive copy of the data, so any
+ * caller that first serializes into a scratch buffer ends up copying it twice.
+ * This class has to be in the com.google.protobuf package so that it can use
+ * ByteString.newCodedBuilder(), which lets us fill in the ByteString's
+ * backing array ourselves.
+ */
+public abstract class ByteStringUtil {
+
+    private static final int CHUNK_SIZE = 4096;
+
+    /**
+     * Concatenate the remaining bytes of the given buffers into a new ByteString.
+     * Each byte is copied exactly once. The positions of the given buffers are
+     * not modified.
+     * @param buffers
+     * @return
+     */
+    public static ByteString concat(ByteBuffer...buffers) {
+        int size = 0;
+        for (ByteBuffer b : buffers) {
+            size += b.remaining();
+        } // FOR
+        if (size == 0) return (ByteString.EMPTY);
+
+        ByteString.CodedBuilder builder = ByteString.newCodedBuilder(size);
+        CodedOutputStream output = builder.getCodedOutput();
+        try {
+            for (ByteBuffer b : buffers) {
+                if (b.hasArray()) {
+                    output.writeRawBytes(b.array(), b.arrayOffset() + b.position(), b.remaining());
+                }
+                // Direct buffers have to go through a temporary array
+                else {
+                    ByteBuffer dup = b.duplicate();
+                    byte chunk[] = new byte[Math.min(CHUNK_SIZE, dup.remaining())];
+                    while (dup.hasRemaining()) {
+                        int length = Math.min(chunk.length, dup.remaining());
+                        dup.get(chunk, 0, length);
+                        output.writeRawBytes(chunk, 0, length);
+                    } // WHILE
+                }
+            } // FOR
+        } catch (IOException ex) {
+            // This should never happen because we're writing into a byte array
+            throw new RuntimeException("Unexpected error when building ByteString", ex);
+        }
+        return (builder.build());
+    }
+}
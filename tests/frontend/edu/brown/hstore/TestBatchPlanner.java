@@ -232,7 +232,7 @@ public class TestBatchPlanner extends BaseTestCase {
             BatchPlanner.BatchPlan plan1 = planner.plan(TXN_ID, LOCAL_PARTITION, PartitionSet.singleton(LOCAL_PARTITION), this.touched_partitions, this.args);
             assertNotNull(plan1);
             assertFalse(plan1.hasMisprediction());
-            assert(plan0 == plan1);
+            assertSame(plan0, plan1);
             
         } finally {
             hstore_conf.site.planner_caching = orig;    
@@ -375,6 +375,78 @@ public class TestBatchPlanner extends BaseTestCase {
         assertEquals(NUM_PARTITIONS, remote_frags);
     }
 
+    /**
+     * testMultiSitedPlanCaching
+     */
+    public void testMultiSitedPlanCaching() throws Exception {
+        HStoreConf hstore_conf = HStoreConf.singleton();
+        boolean orig = hstore_conf.site.planner_caching;
+        int origSize = hstore_conf.site.planner_caching_multipartition_size;
+        hstore_conf.site.planner_caching = true;
+        hstore_conf.site.planner_caching_multipartition_size = 64;
+
+        try {
+            this.init(MULTISITE_PROCEDURE, MULTISITE_STATEMENT, MULTISITE_PROCEDURE_ARGS);
+            BatchPlanner planner = new BatchPlanner(batch, this.catalog_proc, p_estimator);
+            BatchPlanner.BatchPlan plan0 = planner.plan(TXN_ID,
+                                                        LOCAL_PARTITION,
+                                                        catalogContext.getAllPartitionIds(),
+                                                        this.touched_partitions,
+                                                        this.args);
+            assertNotNull(plan0);
+            assertFalse(plan0.hasMisprediction());
+            assertTrue(plan0.isCached());
+            assertEquals(1, planner.getDebugContext().getCachedMultiPartitionPlanCount());
+
+            plan0.getWorkFragmentsBuilders(TXN_ID, this.stmtCounters, fragments);
+            List<WorkFragment.Builder> fragments0 = new ArrayList<WorkFragment.Builder>(fragments);
+            fragments.clear();
+
+            // The same batch should get back the same plan and the same WorkFragments,
+            // except that they should have the new SQLStmt counters
+            this.stmtCounters[0] = 1;
+            BatchPlanner.BatchPlan plan1 = planner.plan(TXN_ID + 1,
+                                                        LOCAL_PARTITION,
+                                                        catalogContext.getAllPartitionIds(),
+                                                        this.touched_partitions,
+                                                        this.args);
+            assertNotNull(plan1);
+            assertFalse(plan1.hasMisprediction());
+            assert(plan0 == plan1);
+
+            plan1.getWorkFragmentsBuilders(TXN_ID + 1, this.stmtCounters, fragments);
+            assertEquals(fragments0.size(), fragments.size());
+            for (int i = 0, cnt = fragments.size(); i < cnt; i++) {
+                WorkFragment.Builder f0 = fragments0.get(i);
+                WorkFragment.Builder f1 = fragments.get(i);
+                assertNotSame(f0, f1);
+                assertEquals(f0.getPartitionId(), f1.getPartitionId());
+                assertEquals(f0.getFragmentIdList(), f1.getFragmentIdList());
+                assertEquals(f0.getInputDepIdList(), f1.getInputDepIdList());
+                assertEquals(f0.getOutputDepIdList(), f1.getOutputDepIdList());
+                assertEquals(f0.getStmtCounterCount(), f1.getStmtCounterCount());
+                for (int ii = 0, cnt_ii = f1.getStmtCounterCount(); ii < cnt_ii; ii++) {
+                    assertEquals(0, f0.getStmtCounter(ii));
+                    assertEquals(1, f1.getStmtCounter(ii));
+                } // FOR
+            } // FOR
+
+            // A different base partition should get a different plan
+            BatchPlanner.BatchPlan plan2 = planner.plan(TXN_ID + 2,
+                                                        REMOTE_PARTITION,
+                                                        catalogContext.getAllPartitionIds(),
+                                                        this.touched_partitions,
+                                                        this.args);
+            assertNotNull(plan2);
+            assertFalse(plan2.hasMisprediction());
+            assertNotSame(plan0, plan2);
+            assertEquals(2, planner.getDebugContext().getCachedMultiPartitionPlanCount());
+        } finally {
+            hstore_conf.site.planner_caching = orig;
+            hstore_conf.site.planner_caching_multipartition_size = origSize;
+        }
+    }
+
     /**
      * testGetWorkFragments
      */
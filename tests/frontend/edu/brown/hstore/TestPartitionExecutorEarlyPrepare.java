@@ -0,0 +1,280 @@
+package edu.brown.hstore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.voltdb.CatalogContext;
+import org.voltdb.ClientResponseImpl;
+import org.voltdb.ParameterSet;
+import org.voltdb.catalog.Procedure;
+import org.voltdb.catalog.Site;
+import org.voltdb.types.SpeculationType;
+
+import com.google.protobuf.RpcCallback;
+
+import edu.brown.BaseTestCase;
+import edu.brown.benchmark.tm1.procedures.UpdateLocation;
+import edu.brown.benchmark.tm1.procedures.UpdateSubscriberData;
+import edu.brown.hstore.Hstoreservice.Status;
+import edu.brown.hstore.Hstoreservice.TransactionPrepareResponse;
+import edu.brown.hstore.Hstoreservice.WorkResult;
+import edu.brown.hstore.callbacks.LocalFinishCallback;
+import edu.brown.hstore.callbacks.LocalPrepareCallback;
+import edu.brown.hstore.callbacks.RemotePrepareCallback;
+import edu.brown.hstore.conf.HStoreConf;
+import edu.brown.hstore.specexec.checkers.AbstractConflictChecker;
+import edu.brown.hstore.txns.AbstractTransaction;
+import edu.brown.hstore.txns.LocalTransaction;
+import edu.brown.hstore.txns.RemoteTransaction;
+import edu.brown.utils.PartitionSet;
+import edu.brown.utils.ProjectType;
+
+/**
+ * PartitionExecutor Tests for piggybacking the 2PC:PREPARE vote on the
+ * WorkResult for the last WorkFragment of a distributed txn
+ * @author pavlo
+ */
+public class TestPartitionExecutorEarlyPrepare extends BaseTestCase {
+
+    private static final int NUM_SITES = 2;
+    private static final int BASE_PARTITION = 0;
+    private static final int REMOTE_PARTITION = 1;
+    private static final long TXN_ID = 1000l;
+
+    private HStoreConf hstore_conf;
+    private HStoreSite baseSite;
+    private HStoreSite remoteSite;
+    private PartitionExecutor.Debug baseExecutorDbg;
+    private PartitionExecutor.Debug remoteExecutorDbg;
+    private MockFinishCoordinator coordinator;
+
+    private Procedure mpProc;
+    private Procedure spProc;
+    private PartitionSet partitions;
+    private LocalTransaction ts;
+    private RemoteTransaction remote_ts;
+
+    /**
+     * HStoreCoordinator that records the status of each TransactionFinish
+     * request instead of sending it out over the network
+     */
+    private class MockFinishCoordinator extends HStoreCoordinator {
+        final List<Status> finished = new ArrayList<Status>();
+
+        MockFinishCoordinator(HStoreSite hstore_site) {
+            super(hstore_site);
+        }
+        @Override
+        public void transactionFinish(LocalTransaction ts, Status status, LocalFinishCallback callback) {
+            this.finished.add(status);
+        }
+    }
+
+    /**
+     * ConflictChecker that counts how many times we checked for conflicts
+     * after execution. It always reports a conflict.
+     */
+    private static class CountingConflictChecker extends AbstractConflictChecker {
+        final AtomicInteger checks = new AtomicInteger(0);
+
+        CountingConflictChecker(CatalogContext catalogContext) {
+            super(catalogContext);
+        }
+        @Override
+        public boolean shouldIgnoreTransaction(AbstractTransaction ts) {
+            return (false);
+        }
+        @Override
+        public boolean hasConflictBefore(AbstractTransaction ts0, LocalTransaction ts1, int partitionId) {
+            return (false);
+        }
+        @Override
+        public boolean hasConflictAfter(AbstractTransaction ts0, LocalTransaction ts1, int partitionId) {
+            this.checks.incrementAndGet();
+            return (true);
+        }
+    }
+
+    // --------------------------------------------------------------------------------------------
+    // SETUP
+    // --------------------------------------------------------------------------------------------
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp(ProjectType.TM1);
+        initializeCatalog(1, NUM_SITES, 1);
+
+        this.hstore_conf = HStoreConf.singleton();
+        this.hstore_conf.site.specexec_enable = true;
+        this.hstore_conf.site.exec_early_prepare_vote = true;
+        this.hstore_conf.site.exec_postprocessing_threads = false;
+        this.hstore_conf.site.commandlog_enable = false;
+
+        Site baseCatalogSite = (Site)catalogContext.getPartitionById(BASE_PARTITION).getParent();
+        Site remoteCatalogSite = (Site)catalogContext.getPartitionById(REMOTE_PARTITION).getParent();
+        assertNotSame(baseCatalogSite, remoteCatalogSite);
+        this.baseSite = new MockHStoreSite(baseCatalogSite.getId(), catalogContext, hstore_conf) {
+            @Override
+            public HStoreCoordinator getCoordinator() {
+                return (coordinator);
+            }
+        };
+        this.remoteSite = new MockHStoreSite(remoteCatalogSite.getId(), catalogContext, hstore_conf);
+        this.coordinator = new MockFinishCoordinator(this.baseSite);
+        assertTrue(this.baseSite.isLocalPartition(BASE_PARTITION));
+        assertTrue(this.remoteSite.isLocalPartition(REMOTE_PARTITION));
+
+        this.baseExecutorDbg = this.baseSite.getPartitionExecutor(BASE_PARTITION).getDebugContext();
+        this.remoteExecutorDbg = this.remoteSite.getPartitionExecutor(REMOTE_PARTITION).getDebugContext();
+
+        this.mpProc = this.getProcedure(UpdateLocation.class);
+        this.spProc = this.getProcedure(UpdateSubscriberData.class);
+        this.partitions = new PartitionSet(BASE_PARTITION, REMOTE_PARTITION);
+
+        // The txn's handle at its base partition. Pretend that we sent the last
+        // WorkFragment for this txn to the remote partition
+        this.ts = new LocalTransaction(this.baseSite);
+        this.ts.testInit(TXN_ID, BASE_PARTITION, this.partitions, this.mpProc, 1, "1");
+        this.ts.setClientResponse(new ClientResponseImpl(TXN_ID, 0l, BASE_PARTITION, Status.OK,
+                                                         HStoreConstants.EMPTY_RESULT, ""));
+        this.ts.getLastFragmentPartitions().add(REMOTE_PARTITION);
+
+        // The same txn's handle at the remote site
+        this.remote_ts = new RemoteTransaction(this.remoteSite);
+        this.remote_ts.init(TXN_ID, BASE_PARTITION, new ParameterSet(), this.mpProc, this.partitions, true);
+    }
+
+    // --------------------------------------------------------------------------------------------
+    // HELPER METHODS
+    // --------------------------------------------------------------------------------------------
+
+    /**
+     * Make the given partition fail to prepare the txn by blocking a conflicting
+     * speculative txn behind it.
+     */
+    private CountingConflictChecker makeConflict(HStoreSite hstore_site, PartitionExecutor.Debug dbg, int partition) {
+        CountingConflictChecker checker = new CountingConflictChecker(catalogContext);
+        dbg.setConflictChecker(checker);
+
+        LocalTransaction spec_ts = new LocalTransaction(hstore_site);
+        spec_ts.testInit(TXN_ID + 1, partition, new PartitionSet(partition), this.spProc, 1l, 2l, 3l, 4l);
+        spec_ts.setSpeculative(SpeculationType.SP2_REMOTE_AFTER);
+        dbg.addBlockedSpecExecTxn(spec_ts);
+        return (checker);
+    }
+
+    /**
+     * Execute the last WorkFragment for the txn at the remote partition and
+     * return the WorkResult that it sends back to the base partition.
+     */
+    private WorkResult executeLastFragment() {
+        WorkResult result = WorkResult.newBuilder()
+                                      .setPartitionId(REMOTE_PARTITION)
+                                      .setStatus(Status.OK)
+                                      .build();
+        return (this.remoteExecutorDbg.prepareWorkResult(this.remote_ts, result));
+    }
+
+    // --------------------------------------------------------------------------------------------
+    // TEST CASES
+    // --------------------------------------------------------------------------------------------
+
+    /**
+     * testEarlyPrepareVote
+     */
+    @Test
+    public void testEarlyPrepareVote() throws Exception {
+        WorkResult result = this.executeLastFragment();
+        assertEquals(Status.OK, result.getStatus());
+        assertFalse(result.hasError());
+        assertTrue(this.remote_ts.isMarkedPrepared(REMOTE_PARTITION));
+
+        // The WorkResult should be counted as the remote partition's vote
+        LocalPrepareCallback callback = this.ts.getPrepareCallback();
+        this.baseExecutorDbg.processWorkResult(this.ts, result);
+        assertNull(this.ts.getPendingError());
+        assertTrue(callback.getReceivedPartitions().contains(REMOTE_PARTITION));
+        assertFalse(callback.isUnblocked());
+        assertFalse(callback.isAborted());
+
+        // So once the base partition prepares, we can commit without
+        // another round trip to the remote partition
+        Status status = this.baseExecutorDbg.prepareTransaction(this.ts, callback);
+        assertEquals(Status.OK, status);
+        assertTrue(callback.isUnblocked());
+        assertFalse(callback.isAborted());
+        assertEquals(1, this.coordinator.finished.size());
+        assertEquals(Status.OK, this.coordinator.finished.get(0));
+    }
+
+    /**
+     * testEarlyPrepareVoteFailed
+     */
+    @Test
+    public void testEarlyPrepareVoteFailed() throws Exception {
+        CountingConflictChecker checker = this.makeConflict(this.remoteSite, this.remoteExecutorDbg, REMOTE_PARTITION);
+
+        // The WorkResult should come back with the prepare status but no error
+        WorkResult result = this.executeLastFragment();
+        assertEquals(Status.ABORT_RESTART, result.getStatus());
+        assertFalse(result.hasError());
+        assertFalse(this.remote_ts.isMarkedPrepared(REMOTE_PARTITION));
+        assertEquals(1, checker.checks.get());
+
+        // The base partition should not count it as a vote or abort the txn.
+        // It has to be left for the regular prepare round.
+        LocalPrepareCallback callback = this.ts.getPrepareCallback();
+        this.baseExecutorDbg.processWorkResult(this.ts, result);
+        assertNull(this.ts.getPendingError());
+        assertFalse(callback.getReceivedPartitions().contains(REMOTE_PARTITION));
+        assertFalse(callback.isAborted());
+
+        // The regular TransactionPrepareRequest should get back the same status
+        // without the remote partition preparing the txn a second time
+        final List<TransactionPrepareResponse> responses = new ArrayList<TransactionPrepareResponse>();
+        RemotePrepareCallback remoteCallback = this.remote_ts.getPrepareCallback();
+        remoteCallback.init(this.remote_ts, new PartitionSet(REMOTE_PARTITION), new RpcCallback<TransactionPrepareResponse>() {
+            @Override
+            public void run(TransactionPrepareResponse parameter) {
+                responses.add(parameter);
+            }
+        });
+        Status status = this.remoteExecutorDbg.prepareTransaction(this.remote_ts, remoteCallback);
+        assertEquals(Status.ABORT_RESTART, status);
+        assertEquals(1, checker.checks.get());
+        assertFalse(this.remote_ts.isMarkedPrepared(REMOTE_PARTITION));
+        assertEquals(1, responses.size());
+        assertEquals(Status.ABORT_RESTART, responses.get(0).getStatus());
+        assertTrue(responses.get(0).getPartitionsList().contains(REMOTE_PARTITION));
+    }
+
+    /**
+     * testEarlyPrepareVoteAbort
+     */
+    @Test
+    public void testEarlyPrepareVoteAbort() throws Exception {
+        WorkResult result = this.executeLastFragment();
+        assertEquals(Status.OK, result.getStatus());
+        LocalPrepareCallback callback = this.ts.getPrepareCallback();
+        this.baseExecutorDbg.processWorkResult(this.ts, result);
+        assertTrue(callback.getReceivedPartitions().contains(REMOTE_PARTITION));
+
+        // Now have the base partition fail to prepare. The txn has to abort even
+        // though the remote partition already voted to commit it.
+        CountingConflictChecker checker = this.makeConflict(this.baseSite, this.baseExecutorDbg, BASE_PARTITION);
+        Status status = this.baseExecutorDbg.prepareTransaction(this.ts, callback);
+        assertEquals(Status.ABORT_RESTART, status);
+        assertEquals(1, checker.checks.get());
+        assertFalse(this.ts.isMarkedPrepared(BASE_PARTITION));
+        assertTrue(callback.isAborted());
+        assertFalse(callback.isUnblocked());
+        assertTrue(callback.allCallbacksFinished());
+
+        // And all of the partitions (including the remote one that was already
+        // prepared) need to be told to abort
+        assertEquals(1, this.coordinator.finished.size());
+        assertEquals(Status.ABORT_RESTART, this.coordinator.finished.get(0));
+    }
+}
@@ -0,0 +1,265 @@
+package edu.brown.hstore;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+import org.voltdb.TransactionIdManager;
+import org.voltdb.VoltProcedure;
+import org.voltdb.catalog.Procedure;
+import org.voltdb.catalog.Site;
+
+import edu.brown.BaseTestCase;
+import edu.brown.benchmark.tm1.procedures.DeleteCallForwarding;
+import edu.brown.hstore.conf.HStoreConf;
+import edu.brown.hstore.txns.AbstractTransaction;
+import edu.brown.hstore.txns.LocalTransaction;
+import edu.brown.utils.CollectionUtil;
+import edu.brown.utils.PartitionSet;
+import edu.brown.utils.ProjectType;
+
+/**
+ * Contention tests for the PartitionLockQueue.
+ * Multiple producer threads insert txns into a single queue (like the
+ * TransactionQueueManager threads) while one consumer thread takes from it
+ * (like the PartitionExecutor). We run the same workloads against the
+ * locking and the lock-free versions of the queue.
+ */
+public class TestPartitionLockQueueContention extends BaseTestCase {
+
+    private static final int NUM_PRODUCERS = 4;
+    private static final int NUM_TXNS = 20000;
+    private static final int TXN_DELAY = 1;
+    private static final Class<? extends VoltProcedure> TARGET_PROCEDURE = DeleteCallForwarding.class;
+
+    HStoreSite hstore_site;
+    TransactionIdManager idManager;
+    Procedure catalog_proc;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp(ProjectType.TM1);
+
+        Site catalog_site = CollectionUtil.first(catalogContext.sites);
+        assertNotNull(catalog_site);
+        this.hstore_site = new MockHStoreSite(catalog_site.getId(), catalogContext, HStoreConf.singleton());
+        this.idManager = hstore_site.getTransactionIdManager(0);
+        this.catalog_proc = this.getProcedure(TARGET_PROCEDURE);
+    }
+
+    // --------------------------------------------------------------------------------------------
+    // UTILITY METHODS
+    // --------------------------------------------------------------------------------------------
+
+    private List<AbstractTransaction> createTransactions(int num_txns) {
+        List<AbstractTransaction> txns = new ArrayList<AbstractTransaction>();
+        for (int i = 0; i < num_txns; i++) {
+            LocalTransaction txn = new LocalTransaction(this.hstore_site);
+            Long txnId = this.idManager.getNextUniqueTransactionId();
+            txn.testInit(txnId, 0, new PartitionSet(1), this.catalog_proc);
+            txns.add(txn);
+        } // FOR
+        return (txns);
+    }
+    
+    /**
+     * Insert the txn into the queue using the same protocol as 
+     * TransactionQueueManager.lockQueueInsert(). 
+     * Returns false if the txn was rejected. 
+     */
+    private boolean insert(PartitionLockQueue queue, AbstractTransaction ts) {
+        Long txnId = ts.getTransactionId();
+        Long nextSafeId = queue.noteTransactionRecievedAndReturnLastSafeTxnId(txnId);
+        return (nextSafeId.compareTo(txnId) <= 0 && queue.offer(ts, false));
+    }
+    
+    /**
+     * Take txns out of the queue until we get the given txn
+     */
+    private List<AbstractTransaction> takeUntil(PartitionLockQueue queue, AbstractTransaction last) throws InterruptedException {
+        List<AbstractTransaction> popped = new ArrayList<AbstractTransaction>();
+        AbstractTransaction ts = null;
+        while (ts != last) {
+            ts = queue.take();
+            if (ts != null) popped.add(ts);
+        } // WHILE
+        return (popped);
+    }
+    
+    /**
+     * Check that every txn was either popped exactly once or rejected, and
+     * that the popped txns came out of the queue in txn id order
+     */
+    private void checkResults(Collection<AbstractTransaction> txns,
+                              List<AbstractTransaction> popped,
+                              Collection<AbstractTransaction> rejected) {
+        Long lastTxnId = -1l;
+        for (AbstractTransaction ts : popped) {
+            assertTrue(String.format("%s <= %d", ts, lastTxnId),
+                       ts.getTransactionId().compareTo(lastTxnId) > 0);
+            lastTxnId = ts.getTransactionId();
+        } // FOR
+        
+        Set<AbstractTransaction> seen = new HashSet<AbstractTransaction>(popped);
+        assertEquals(popped.size(), seen.size());
+        for (AbstractTransaction ts : rejected) {
+            assertFalse(ts.toString(), seen.contains(ts));
+            seen.add(ts);
+        } // FOR
+        assertEquals(txns.size(), popped.size() + rejected.size());
+        assertEquals(new HashSet<AbstractTransaction>(txns), seen);
+    }
+
+    /**
+     * Run the contention workload on the given queue.
+     * Each producer gets every NUM_PRODUCERS-th txn, so txns arrive slightly
+     * out of order. Once all of the producers are finished, we add one last
+     * txn that tells the consumer that it can stop.
+     */
+    private void runWorkload(final PartitionLockQueue queue) throws Exception {
+        List<AbstractTransaction> txns = this.createTransactions(NUM_TXNS);
+        final List<List<AbstractTransaction>> partitions = new ArrayList<List<AbstractTransaction>>();
+        for (int i = 0; i < NUM_PRODUCERS; i++) {
+            partitions.add(new ArrayList<AbstractTransaction>());
+        } // FOR
+        for (int i = 0; i < NUM_TXNS; i++) {
+            partitions.get(i % NUM_PRODUCERS).add(txns.get(i));
+        } // FOR
+        final AbstractTransaction last = CollectionUtil.first(this.createTransactions(1));
+
+        final Collection<AbstractTransaction> rejected = new ConcurrentLinkedQueue<AbstractTransaction>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch producersDone = new CountDownLatch(NUM_PRODUCERS);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (final List<AbstractTransaction> producerTxns : partitions) {
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (AbstractTransaction ts : producerTxns) {
+                            if (insert(queue, ts) == false) rejected.add(ts);
+                        } // FOR
+                    } catch (InterruptedException ex) {
+                        // IGNORE
+                    } finally {
+                        producersDone.countDown();
+                    }
+                }
+            };
+            threads.add(t);
+        } // FOR
+        final AtomicBoolean lastInserted = new AtomicBoolean(false);
+        threads.add(new Thread() {
+            public void run() {
+                try {
+                    producersDone.await();
+                    lastInserted.set(insert(queue, last));
+                } catch (InterruptedException ex) {
+                    // IGNORE
+                }
+            }
+        });
+        for (Thread t : threads) {
+            t.setDaemon(true);
+            t.start();
+        } // FOR
+        
+        start.countDown();
+        List<AbstractTransaction> popped = this.takeUntil(queue, last);
+        for (Thread t : threads) t.join();
+        assertTrue(lastInserted.get());
+        assertEquals(last, popped.remove(popped.size()-1));
+        assertTrue(queue.isEmpty());
+        this.checkResults(txns, popped, rejected);
+    }
+    
+    /**
+     * Run a single-threaded workload where txns arrive after newer txns
+     * have already been popped from the queue. Returns the txns that were
+     * rejected followed by the order that the txns were popped in.
+     */
+    private List<AbstractTransaction> runOutOfOrderWorkload(PartitionLockQueue queue, List<AbstractTransaction> txns) throws Exception {
+        int batch = txns.size() / 3;
+        List<AbstractTransaction> older = txns.subList(0, batch);
+        List<AbstractTransaction> first = new ArrayList<AbstractTransaction>(txns.subList(batch, batch * 2));
+        List<AbstractTransaction> newer = txns.subList(batch * 2, txns.size());
+        List<AbstractTransaction> rejected = new ArrayList<AbstractTransaction>();
+        Random random = new Random(0);
+        
+        // Insert the middle batch out of order and then pop half of it
+        Collections.shuffle(first, random);
+        for (AbstractTransaction ts : first) {
+            if (this.insert(queue, ts) == false) rejected.add(ts);
+        } // FOR
+        List<AbstractTransaction> popped = new ArrayList<AbstractTransaction>();
+        for (int i = 0; i < batch / 2; i++) {
+            popped.add(queue.take());
+        } // FOR
+        
+        // The txns from the first batch are older than what we already popped, 
+        // so they all should get rejected. Everything else should get through.
+        List<AbstractTransaction> second = new ArrayList<AbstractTransaction>(older);
+        second.addAll(newer);
+        Collections.shuffle(second, random);
+        for (AbstractTransaction ts : second) {
+            if (this.insert(queue, ts) == false) rejected.add(ts);
+        } // FOR
+        popped.addAll(this.takeUntil(queue, txns.get(txns.size()-1)));
+        assertTrue(queue.isEmpty());
+        
+        this.checkResults(txns, popped, rejected);
+        assertEquals(new HashSet<AbstractTransaction>(older), new HashSet<AbstractTransaction>(rejected));
+        
+        List<AbstractTransaction> result = new ArrayList<AbstractTransaction>(rejected);
+        result.addAll(popped);
+        return (result);
+    }
+
+    // --------------------------------------------------------------------------------------------
+    // TEST CASES
+    // --------------------------------------------------------------------------------------------
+
+    /**
+     * testLockingQueue
+     */
+    @Test
+    public void testLockingQueue() throws Exception {
+        PartitionLockQueue queue = new PartitionLockQueue(0, TXN_DELAY, NUM_TXNS * 2, 0.5, false);
+        assertFalse(queue.isLockFree());
+        this.runWorkload(queue);
+    }
+
+    /**
+     * testLockFreeQueue
+     */
+    @Test
+    public void testLockFreeQueue() throws Exception {
+        PartitionLockQueue queue = new PartitionLockQueue(0, TXN_DELAY, NUM_TXNS * 2, 0.5, true);
+        assertTrue(queue.isLockFree());
+        this.runWorkload(queue);
+    }
+    
+    /**
+     * testLockFreeRejections
+     */
+    @Test
+    public void testLockFreeRejections() throws Exception {
+        // Both versions of the queue should reject the same txns
+        // and release everything else in the same order
+        List<AbstractTransaction> txns = this.createTransactions(300);
+        PartitionLockQueue queue = new PartitionLockQueue(0, TXN_DELAY, NUM_TXNS, 0.5, false);
+        List<AbstractTransaction> expected = this.runOutOfOrderWorkload(queue, txns);
+        
+        queue = new PartitionLockQueue(0, TXN_DELAY, NUM_TXNS, 0.5, true);
+        List<AbstractTransaction> actual = this.runOutOfOrderWorkload(queue, txns);
+        assertEquals(expected, actual);
+    }
+}
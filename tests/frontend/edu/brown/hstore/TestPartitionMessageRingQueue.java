@@ -0,0 +1,213 @@
+package edu.brown.hstore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.voltdb.catalog.Procedure;
+import org.voltdb.types.WorkQueueWaitStrategyType;
+
+import edu.brown.BaseTestCase;
+import edu.brown.benchmark.tm1.procedures.UpdateLocation;
+import edu.brown.hstore.Hstoreservice.WorkFragment;
+import edu.brown.hstore.conf.HStoreConf;
+import edu.brown.hstore.internal.InternalMessage;
+import edu.brown.hstore.internal.StartTxnMessage;
+import edu.brown.hstore.internal.UtilityWorkMessage;
+import edu.brown.hstore.internal.WorkFragmentMessage;
+import edu.brown.hstore.txns.LocalTransaction;
+import edu.brown.utils.PartitionSet;
+import edu.brown.utils.ProjectType;
+
+public class TestPartitionMessageRingQueue extends BaseTestCase {
+
+    private static final int NUM_PARTITIONS = 5;
+    private static final int BASE_PARTITION = 1;
+    private static final int LANE_SIZE = 8;
+    private static long NEXT_TXN_ID = 1;
+
+    private final PartitionMessageRingQueue queue = new PartitionMessageRingQueue(LANE_SIZE, WorkQueueWaitStrategyType.PARK);
+    private MockHStoreSite hstore_site;
+    private Procedure catalog_proc;
+    private LocalTransaction ts0;
+    private LocalTransaction ts1;
+
+    private final WorkFragment mockFragment = null;
+
+    private StartTxnMessage startMsg;
+    private WorkFragmentMessage workMsg;
+    private UtilityWorkMessage utilMsg;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp(ProjectType.TM1);
+        this.addPartitions(NUM_PARTITIONS);
+
+        this.hstore_site = new MockHStoreSite(0, catalogContext, HStoreConf.singleton());
+        this.catalog_proc = this.getProcedure(UpdateLocation.class);
+
+        this.ts0 = new LocalTransaction(this.hstore_site);
+        this.ts0.testInit(NEXT_TXN_ID++, BASE_PARTITION, null, catalogContext.getAllPartitionIds(), catalog_proc);
+
+        this.ts1 = new LocalTransaction(this.hstore_site);
+        this.ts1.testInit(NEXT_TXN_ID++, BASE_PARTITION, null, new PartitionSet(BASE_PARTITION), catalog_proc);
+
+        // Initialize some messages that we can use
+        this.utilMsg = new UtilityWorkMessage();
+        this.startMsg = new StartTxnMessage(ts1);
+        this.workMsg = new WorkFragmentMessage(ts1, mockFragment);
+    }
+
+    /**
+     * testLaneOrder
+     */
+    public void testLaneOrder() throws Exception {
+        // Insert them backwards and make sure that they come out
+        // in the order of their priority lanes
+        InternalMessage expected[] = { workMsg, startMsg, utilMsg };
+        for (int i = expected.length - 1; i >= 0; i--) {
+            assertTrue(this.queue.offer(expected[i]));
+        } // FOR
+        assertEquals(expected.length, this.queue.size());
+
+        for (InternalMessage m : expected) {
+            assertEquals(m, this.queue.peek());
+            assertEquals(m, this.queue.poll());
+        } // FOR
+        assertTrue(this.queue.isEmpty());
+        assertNull(this.queue.poll());
+    }
+
+    /**
+     * testFIFOWithinLane
+     */
+    public void testFIFOWithinLane() throws Exception {
+        // Unlike the PartitionMessageQueue, messages in the same
+        // lane come out in the order that they were added
+        StartTxnMessage start0 = new StartTxnMessage(ts1);
+        StartTxnMessage start1 = new StartTxnMessage(ts0);
+        assert(start1.getTransactionId() < start0.getTransactionId());
+
+        assertTrue(this.queue.add(start0));
+        assertTrue(this.queue.add(start1));
+        assertEquals(start0, this.queue.poll());
+        assertEquals(start1, this.queue.poll());
+        assertNull(this.queue.poll());
+    }
+
+    /**
+     * testBounded
+     */
+    public void testBounded() throws Exception {
+        // Fill up the StartTxnMessage lane from a thread other than the consumer
+        // and make sure that the next one gets rejected
+        this.queue.poll();
+        final List<Boolean> results = new ArrayList<Boolean>();
+        Thread t = new Thread() {
+            public void run() {
+                for (int i = 0; i <= LANE_SIZE; i++) {
+                    results.add(queue.offer(new StartTxnMessage(ts1)));
+                } // FOR
+            }
+        };
+        t.start();
+        t.join();
+        assertEquals(LANE_SIZE + 1, results.size());
+        for (int i = 0; i < LANE_SIZE; i++) {
+            assertTrue(Integer.toString(i), results.get(i));
+        } // FOR
+        assertFalse(results.get(LANE_SIZE));
+        assertEquals(LANE_SIZE, this.queue.size());
+
+        // Other lanes are not affected
+        assertTrue(this.queue.offer(this.workMsg));
+        assertEquals(this.workMsg, this.queue.poll());
+
+        // But the consumer thread is always allowed to put things back
+        assertTrue(this.queue.offer(this.startMsg));
+        assertEquals(LANE_SIZE + 1, this.queue.size());
+        assertEquals(this.startMsg, this.queue.poll());
+
+        List<InternalMessage> drained = new ArrayList<InternalMessage>();
+        assertEquals(LANE_SIZE, this.queue.drainTo(drained));
+        assertTrue(this.queue.isEmpty());
+    }
+
+    /**
+     * testNeverRejected
+     */
+    public void testNeverRejected() throws Exception {
+        // WorkFragments and forced StartTxnMessages from other threads have to get
+        // in even when their lane is full, and they still need to come out in order
+        this.queue.poll();
+        final List<InternalMessage> added = new ArrayList<InternalMessage>();
+        final List<Boolean> results = new ArrayList<Boolean>();
+        Thread t = new Thread() {
+            public void run() {
+                for (int i = 0; i < LANE_SIZE * 2; i++) {
+                    InternalMessage msg = new WorkFragmentMessage(ts1, mockFragment);
+                    results.add(queue.offer(msg));
+                    added.add(msg);
+                } // FOR
+                for (int i = 0; i < LANE_SIZE * 2; i++) {
+                    InternalMessage msg = new StartTxnMessage(ts0);
+                    results.add(queue.offer(msg, true));
+                    added.add(msg);
+                } // FOR
+                
+                // Anything that can be rejected has to wait until the
+                // overflow for its lane has been polled
+                results.add(queue.offer(new StartTxnMessage(ts1)));
+            }
+        };
+        t.start();
+        t.join();
+        assertEquals(added.size() + 1, results.size());
+        for (int i = 0; i < added.size(); i++) {
+            assertTrue(Integer.toString(i), results.get(i));
+        } // FOR
+        assertFalse(results.get(added.size()));
+        assertEquals(added.size(), this.queue.size());
+        
+        List<InternalMessage> drained = new ArrayList<InternalMessage>();
+        assertEquals(added.size(), this.queue.drainTo(drained));
+        assertEquals(added, drained);
+        assertTrue(this.queue.isEmpty());
+    }
+
+    /**
+     * testMultipleProducers
+     */
+    public void testMultipleProducers() throws Exception {
+        final int numProducers = 4;
+        final int numMessages = LANE_SIZE * 100;
+        final CountDownLatch latch = new CountDownLatch(numProducers);
+        for (int i = 0; i < numProducers; i++) {
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < numMessages; j++) {
+                            queue.put(new StartTxnMessage(ts1));
+                        } // FOR
+                    } catch (InterruptedException ex) {
+                        // IGNORE
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+        } // FOR
+
+        int total = 0;
+        while (total < numProducers * numMessages) {
+            InternalMessage msg = this.queue.poll(1, TimeUnit.SECONDS);
+            assertNotNull("Timed out after " + total + " messages", msg);
+            total++;
+        } // WHILE
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertTrue(this.queue.isEmpty());
+    }
+}
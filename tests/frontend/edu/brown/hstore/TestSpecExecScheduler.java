@@ -204,6 +204,52 @@ public class TestSpecExecScheduler extends BaseTestCase {
         assertFalse(this.work_queue.toString(), this.work_queue.contains(next));
   }
     
+    /**
+     * testAdaptiveWindow
+     */
+    public void testAdaptiveWindow() throws Exception {
+        // Every search finds a match on the first txn that it examines,
+        // so the window should shrink down to two
+        this.populateQueue(this.addedTxns, 10);
+        this.scheduler.setPolicyType(SpecExecSchedulerPolicyType.FIRST);
+        this.scheduler.setAdaptive(true, 1, 20, 0.5);
+        assertEquals(WINDOW_SIZE, this.scheduler.getWindowSize());
+        
+        int lastWindow = this.scheduler.getWindowSize();
+        for (int i = 0; i < 3; i++) {
+            LocalTransaction next = this.scheduler.next(this.dtxn, SpeculationType.SP2_REMOTE_BEFORE);
+            assertNotNull(next);
+            assertTrue(this.scheduler.getWindowSize() <= lastWindow);
+            lastWindow = this.scheduler.getWindowSize();
+        } // FOR
+        assertEquals(2, this.scheduler.getWindowSize());
+        assertEquals(SpecExecSchedulerPolicyType.FIRST, this.scheduler.getPolicyType());
+    }
+    
+    /**
+     * testAdaptivePolicy
+     */
+    public void testAdaptivePolicy() throws Exception {
+        // If too many speculative txns get aborted, then the scheduler
+        // should switch over to the SHORTEST policy and then back again
+        this.populateQueue(this.addedTxns, 10);
+        this.scheduler.setPolicyType(SpecExecSchedulerPolicyType.FIRST);
+        this.scheduler.setAdaptive(true, 1, 20, 0.5);
+        
+        this.scheduler.noteSpeculativeResults(1, 3);
+        LocalTransaction next = this.scheduler.next(this.dtxn, SpeculationType.SP2_REMOTE_BEFORE);
+        assertNotNull(next);
+        assertEquals(SpecExecSchedulerPolicyType.SHORTEST, this.scheduler.getPolicyType());
+        
+        // None of these txns have an estimate, but we should still
+        // be able to pick one of them
+        this.scheduler.noteSpeculativeResults(3, 0);
+        next = this.scheduler.next(this.dtxn, SpeculationType.SP2_REMOTE_BEFORE);
+        assertNotNull(next);
+        assertFalse(this.work_queue.contains(next));
+        assertEquals(SpecExecSchedulerPolicyType.FIRST, this.scheduler.getPolicyType());
+    }
+    
     /**
      * testNonConflicting
      */
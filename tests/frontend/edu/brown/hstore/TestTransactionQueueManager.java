@@ -1,6 +1,8 @@
 package edu.brown.hstore;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Semaphore;
 
@@ -59,7 +61,8 @@ public class TestTransactionQueueManager extends BaseTestCase {
             this.invoked = true;
             System.err.println("INVOKED: " + invoked);
         }
-        protected void abortCallback(Status status) {
+        @Override
+        protected void abortCallback(int partition, Status status) {
             this.aborted = true;
         }
     }
@@ -245,6 +248,109 @@ public class TestTransactionQueueManager extends BaseTestCase {
         assertTrue(dbg.isLockQueuesEmpty());
     }
     
+    /**
+     * testBatchInsert
+     */
+    @Test
+    public void testBatchInsert() throws Exception {
+        // Insert a batch of txns out of order and make sure that they
+        // are added to all of their partitions and come out in the right order
+        final Long txn_id0 = this.idManager.getNextUniqueTransactionId();
+        final Long txn_id1 = this.idManager.getNextUniqueTransactionId();
+        final Long txn_id2 = this.idManager.getNextUniqueTransactionId();
+        final PartitionSet partitions0 = catalogContext.getAllPartitionIds();
+        final PartitionSet partitions1 = new PartitionSet(1, 3);
+        final PartitionSet partitions2 = catalogContext.getAllPartitionIds();
+        final MockCallback inner_callback0 = new MockCallback();
+        final MockCallback inner_callback1 = new MockCallback();
+        final MockCallback inner_callback2 = new MockCallback();
+        final LocalTransaction txn0 = this.createTransaction(txn_id0, partitions0, inner_callback0);
+        final LocalTransaction txn1 = this.createTransaction(txn_id1, partitions1, inner_callback1);
+        final LocalTransaction txn2 = this.createTransaction(txn_id2, partitions2, inner_callback2);
+        
+        List<AbstractTransaction> batch = new ArrayList<AbstractTransaction>();
+        batch.add(txn2);
+        batch.add(txn0);
+        batch.add(txn1);
+        this.queueManager.initTransactions(batch);
+        assertEquals(partitions0, this.findTxnInQueues(txn0));
+        assertEquals(partitions1, this.findTxnInQueues(txn1));
+        assertEquals(partitions2, this.findTxnInQueues(txn2));
+        
+        ThreadUtil.sleep(TXN_DELAY);
+        assertTrue(this.queueManager.toString(), this.checkAllQueues());
+        assertTrue("callback0", inner_callback0.lock.tryAcquire());
+        assertFalse("callback1", inner_callback1.lock.tryAcquire());
+        assertFalse("callback2", inner_callback2.lock.tryAcquire());
+        for (int partition : partitions0) {
+            this.queueManager.lockQueueFinished(txn0, Status.OK, partition);
+        }
+        
+        ThreadUtil.sleep(TXN_DELAY);
+        assertTrue(this.queueManager.toString(), this.checkAllQueues());
+        assertTrue("callback1", inner_callback1.lock.tryAcquire());
+        assertFalse("callback2", inner_callback2.lock.tryAcquire());
+        for (int partition : partitions1) {
+            this.queueManager.lockQueueFinished(txn1, Status.OK, partition);
+        }
+        
+        ThreadUtil.sleep(TXN_DELAY);
+        assertTrue(this.queueManager.toString(), this.checkAllQueues());
+        assertTrue("callback2", inner_callback2.lock.tryAcquire());
+        assertTrue(dbg.isLockQueuesEmpty());
+    }
+    
+    /**
+     * testFastLane
+     */
+    @Test
+    public void testFastLane() throws Exception {
+        // The MockPartitionExecutors don't have a SpecExecScheduler
+        this.hstore_conf.site.specexec_enable = false;
+        
+        // A single-partition txn should skip the lock queue
+        // if nobody else is waiting for its partition
+        final Long old_txn_id = this.idManager.getNextUniqueTransactionId();
+        final Long txn_id0 = this.idManager.getNextUniqueTransactionId();
+        final PartitionSet partitions0 = new PartitionSet(0);
+        final MockCallback inner_callback0 = new MockCallback();
+        final LocalTransaction txn0 = this.createTransaction(txn_id0, partitions0, inner_callback0);
+        assertTrue(txn0.isPredictSinglePartition());
+        assertTrue(this.queueManager.fastLaneInsert(txn0));
+        assertTrue("callback0", inner_callback0.lock.tryAcquire());
+        assertTrue(txn0.isMarkedReleased(0));
+        assertTrue(this.findTxnInQueues(txn0).isEmpty());
+        this.queueManager.lockQueueFinished(txn0, Status.OK, 0);
+        
+        // Any dtxn that is older than the txn that went through the fast lane
+        // has to be rejected at that partition
+        final MockCallback old_callback = new MockCallback();
+        final LocalTransaction old_txn = this.createTransaction(old_txn_id, catalogContext.getAllPartitionIds(), old_callback);
+        assertEquals(Status.ABORT_RESTART, this.queueManager.lockQueueInsert(old_txn, 0, old_callback));
+        assertTrue(old_callback.aborted);
+        assertTrue(this.findTxnInQueues(old_txn).isEmpty());
+        
+        // But once there is a dtxn waiting in the lock queue, then
+        // single-partition txns have to get in line behind it
+        final Long txn_id1 = this.idManager.getNextUniqueTransactionId();
+        final Long txn_id2 = this.idManager.getNextUniqueTransactionId();
+        final PartitionSet partitions1 = catalogContext.getAllPartitionIds();
+        final PartitionSet partitions2 = new PartitionSet(0);
+        final MockCallback inner_callback1 = new MockCallback();
+        final MockCallback inner_callback2 = new MockCallback();
+        final LocalTransaction txn1 = this.createTransaction(txn_id1, partitions1, inner_callback1);
+        final LocalTransaction txn2 = this.createTransaction(txn_id2, partitions2, inner_callback2);
+        for (int partition : partitions1) {
+            assertEquals(Status.OK, this.queueManager.lockQueueInsert(txn1, partition, inner_callback1));
+        } // FOR
+        assertFalse(this.queueManager.fastLaneInsert(txn2));
+        assertFalse("callback2", inner_callback2.lock.tryAcquire());
+        assertFalse(txn2.isMarkedReleased(0));
+        
+        // Distributed txns never go through the fast lane
+        assertFalse(this.queueManager.fastLaneInsert(txn1));
+    }
+    
     /**
      * Add two disjoint partitions and third that touches all partitions
      * Two come out right away and get marked as done
@@ -0,0 +1,283 @@
+/***************************************************************************
+ *   Copyright (C) 2012 by H-Store Project                                 *
+ *   Brown University                                                      *
+ *   Massachusetts Institute of Technology                                 *
+ *   Yale University                                                       *
+ *                                                                         *
+ *   Permission is hereby granted, free of charge, to any person obtaining *
+ *   a copy of this software and associated documentation files (the       *
+ *   "Software"), to deal in the Software without restriction, including   *
+ *   without limitation the rights to use, copy, modify, merge, publish,   *
+ *   distribute, sublicense, and/or sell copies of the Software, and to    *
+ *   permit persons to whom the Software is furnished to do so, subject to *
+ *   the following conditions:                                             *
+ *                                                                         *
+ *   The above copyright notice and this permission notice shall be        *
+ *   included in all copies or substantial portions of the Software.       *
+ *                                                                         *
+ *   THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       *
+ *   EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    *
+ *   MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*
+ *   IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR     *
+ *   OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, *
+ *   ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR *
+ *   OTHER DEALINGS IN THE SOFTWARE.                                       *
+ ***************************************************************************/
+package edu.brown.hstore.cmdlog;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+import org.voltdb.ClientResponseImpl;
+import org.voltdb.catalog.Procedure;
+import org.voltdb.catalog.Site;
+
+import com.google.protobuf.RpcCallback;
+
+import edu.brown.BaseTestCase;
+import edu.brown.benchmark.tm1.procedures.GetSubscriberData;
+import edu.brown.benchmark.tm1.procedures.UpdateLocation;
+import edu.brown.benchmark.tm1.procedures.UpdateSubscriberData;
+import edu.brown.hstore.HStoreConstants;
+import edu.brown.hstore.HStoreSite;
+import edu.brown.hstore.Hstoreservice.Status;
+import edu.brown.hstore.MockHStoreSite;
+import edu.brown.hstore.conf.HStoreConf;
+import edu.brown.hstore.txns.LocalTransaction;
+import edu.brown.utils.CollectionUtil;
+import edu.brown.utils.FileUtil;
+import edu.brown.utils.PartitionSet;
+import edu.brown.utils.ProjectType;
+
+/**
+ * Replays command logs that were written out by a CommandLogWriter
+ */
+public class TestCommandLogReplayer extends BaseTestCase {
+    
+    static final AtomicLong TXN_ID = new AtomicLong(1000);
+    static final int NUM_SITES = 2;
+    static final int NUM_TXNS = 500;
+    static final int BASE_PARTITION = 0;
+    
+    HStoreSite hstore_site;
+    CommandLogWriter logger;
+    File outputFile;
+    
+    Procedure spProc;
+    Procedure mpProc;
+    Procedure readOnlyProc;
+    Procedure sysProc;
+    Object localParams[];
+    Object remoteParams[];
+    
+    /**
+     * The txnIds of all of the entries in the log, in the order that they were written
+     */
+    final List<Long> logged = new ArrayList<Long>();
+    
+    /**
+     * The txnIds of the entries that should be replayed
+     */
+    final List<Long> expected = new ArrayList<Long>();
+    
+    /**
+     * The txnIds of the entries that should be replayed as barriers
+     */
+    final List<Long> expectedBarriers = new ArrayList<Long>();
+    
+    /**
+     * CommandLogReplayer that records the txns that it queues instead of
+     * executing them. Single-partition txns are finished asynchronously
+     * so that they are still outstanding when the next entry is dispatched.
+     */
+    class MockReplayer extends CommandLogReplayer {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final List<Long> queued = Collections.synchronizedList(new ArrayList<Long>());
+        final List<Long> barriers = Collections.synchronizedList(new ArrayList<Long>());
+        final AtomicInteger pending = new AtomicInteger(0);
+        final AtomicInteger violations = new AtomicInteger(0);
+        
+        MockReplayer(CommandLogReader reader, int num_threads) {
+            super(hstore_site, reader, num_threads);
+        }
+        MockReplayer(List<CommandLogReader> readers, int num_threads) {
+            super(hstore_site, readers, num_threads);
+        }
+        
+        @Override
+        protected void queue(final LogEntry entry, Procedure catalog_proc, int base_partition,
+                             boolean barrier, final RpcCallback<ClientResponseImpl> callback) {
+            assertTrue(hstore_site.isLocalPartition(base_partition));
+            this.queued.add(entry.getTransactionId());
+            final ClientResponseImpl cresponse = new ClientResponseImpl(entry.getTransactionId(),
+                                                                        0l,
+                                                                        base_partition,
+                                                                        Status.OK,
+                                                                        HStoreConstants.EMPTY_RESULT,
+                                                                        "");
+            if (barrier) {
+                // Nothing else can be running while a barrier executes
+                this.barriers.add(entry.getTransactionId());
+                if (this.pending.get() != 0) this.violations.incrementAndGet();
+                callback.run(cresponse);
+            } else {
+                this.pending.incrementAndGet();
+                this.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        pending.decrementAndGet();
+                        callback.run(cresponse);
+                    }
+                });
+            }
+        }
+        
+        void shutdown() throws Exception {
+            this.executor.shutdown();
+            assertTrue(this.executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+    }
+    
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp(ProjectType.TM1);
+        initializeCatalog(1, NUM_SITES, 1);
+        
+        HStoreConf hstore_conf = HStoreConf.singleton();
+        hstore_conf.site.commandlog_enable = false;
+        hstore_conf.site.commandlog_timeout = 1000;
+        
+        Site catalog_site = CollectionUtil.first(catalogContext.sites);
+        hstore_site = new MockHStoreSite(catalog_site.getId(), catalogContext, hstore_conf);
+        assertTrue(hstore_site.isLocalPartition(BASE_PARTITION));
+        assertEquals(1, hstore_site.getLocalPartitionIds().size());
+        
+        this.spProc = this.getProcedure(UpdateSubscriberData.class);
+        this.mpProc = this.getProcedure(UpdateLocation.class);
+        this.readOnlyProc = this.getProcedure(GetSubscriberData.class);
+        this.sysProc = catalogContext.procedures.getIgnoreCase("@NoOp");
+        assertTrue(this.spProc.getSinglepartition());
+        assertFalse(this.mpProc.getSinglepartition());
+        assertTrue(this.readOnlyProc.getReadonly());
+        assertTrue(this.sysProc.getSystemproc());
+        
+        // Find the subscriber ids that belong to the local and the remote partition
+        for (long s_id = 0; this.localParams == null || this.remoteParams == null; s_id++) {
+            Object params[] = { s_id, 1l, 2l, 3l };
+            int partition = hstore_site.getPartitionEstimator().getBasePartition(this.spProc, params);
+            if (hstore_site.isLocalPartition(partition)) {
+                if (this.localParams == null) this.localParams = params;
+            } else if (this.remoteParams == null) {
+                this.remoteParams = params;
+            }
+        } // FOR
+        
+        outputFile = FileUtil.getTempFile("log");
+        logger = new CommandLogWriter(hstore_site, outputFile);
+        Thread loggerThread = new Thread(this.logger);
+        loggerThread.setDaemon(true);
+        loggerThread.start();
+    }
+    
+    @Override
+    public void tearDown() throws Exception {
+        if (outputFile != null && outputFile.exists())
+            outputFile.delete();
+    }
+    
+    private void append(Procedure catalog_proc, Object params[]) {
+        LocalTransaction ts = new LocalTransaction(hstore_site);
+        long txnId = TXN_ID.incrementAndGet();
+        ts.testInit(txnId,
+                    BASE_PARTITION,
+                    new PartitionSet(BASE_PARTITION),
+                    catalog_proc,
+                    params);
+        ClientResponseImpl cresponse = new ClientResponseImpl(txnId,
+                                                              0l,
+                                                              BASE_PARTITION,
+                                                              Status.OK,
+                                                              HStoreConstants.EMPTY_RESULT,
+                                                              "");
+        assertFalse(logger.appendToLog(ts, cresponse));
+        this.logged.add(txnId);
+    }
+    
+    /**
+     * Write out a log with a mix of local single-partition txns, single-partition
+     * txns at a remote partition, multi-partition txns, sysprocs, and read-only txns
+     */
+    private void writeLog() throws Exception {
+        for (int i = 0; i < NUM_TXNS; i++) {
+            switch (i % 10) {
+                case 3:
+                    this.append(this.readOnlyProc, new Object[]{ this.localParams[0] });
+                    break;
+                case 5:
+                    this.append(this.mpProc, new Object[]{ 12345l, "ABCDEF" });
+                    this.expectedBarriers.add(TXN_ID.get());
+                    this.expected.add(TXN_ID.get());
+                    break;
+                case 7:
+                    this.append(this.spProc, this.remoteParams);
+                    this.expectedBarriers.add(TXN_ID.get());
+                    this.expected.add(TXN_ID.get());
+                    break;
+                case 9:
+                    this.append(this.sysProc, new Object[0]);
+                    this.expectedBarriers.add(TXN_ID.get());
+                    this.expected.add(TXN_ID.get());
+                    break;
+                default:
+                    this.append(this.spProc, this.localParams);
+                    this.expected.add(TXN_ID.get());
+            } // SWITCH
+        } // FOR
+        logger.flush();
+        logger.shutdown();
+    }
+    
+    private void checkReplay(int num_threads) throws Exception {
+        this.writeLog();
+        CommandLogReader reader = new CommandLogReader(outputFile.getAbsolutePath());
+        MockReplayer replayer = new MockReplayer(reader, num_threads);
+        int replayed = replayer.replay();
+        replayer.shutdown();
+        
+        // Read-only txns are skipped and everything else 
+        // is queued in the same order that it was logged
+        assertEquals(NUM_TXNS, this.logged.size());
+        assertEquals(NUM_TXNS, replayed);
+        assertEquals(this.expected, replayer.queued);
+        assertEquals(this.expectedBarriers, replayer.barriers);
+        assertEquals(0, replayer.violations.get());
+        assertEquals(0, replayer.pending.get());
+        assertEquals(this.expectedBarriers.size(), replayer.getBarrierCount());
+        assertEquals(this.expected.size() - this.expectedBarriers.size(), replayer.getSinglePartitionCount());
+        assertEquals(0, replayer.getFailureCount());
+    }
+    
+    /**
+     * testReplay
+     */
+    @Test
+    public void testReplay() throws Exception {
+        this.checkReplay(0);
+    }
+    
+    /**
+     * testReplayParallel
+     */
+    @Test
+    public void testReplayParallel() throws Exception {
+        this.checkReplay(2);
+    }
+}
@@ -0,0 +1,433 @@
+/***************************************************************************
+ *   Copyright (C) 2012 by H-Store Project                                 *
+ *   Brown University                                                      *
+ *   Massachusetts Institute of Technology                                 *
+ *   Yale University                                                       *
+ *                                                                         *
+ *   Permission is hereby granted, free of charge, to any person obtaining *
+ *   a copy of this software and associated documentation files (the       *
+ *   "Software"), to deal in the Software without restriction, including   *
+ *   without limitation the rights to use, copy, modify, merge, publish,   *
+ *   distribute, sublicense, and/or sell copies of the Software, and to    *
+ *   permit persons to whom the Software is furnished to do so, subject to *
+ *   the following conditions:                                             *
+ *                                                                         *
+ *   The above copyright notice and this permission notice shall be        *
+ *   included in all copies or substantial portions of the Software.       *
+ *                                                                         *
+ *   THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,       *
+ *   EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF    *
+ *   MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.*
+ *   IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR     *
+ *   OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, *
+ *   ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR *
+ *   OTHER DEALINGS IN THE SOFTWARE.                                       *
+ ***************************************************************************/
+package edu.brown.hstore.cmdlog;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+import org.voltdb.ClientResponseImpl;
+import org.voltdb.catalog.Procedure;
+import org.voltdb.catalog.Site;
+import org.voltdb.messaging.FastSerializer;
+import org.voltdb.utils.CompressionService;
+
+import com.google.protobuf.RpcCallback;
+
+import edu.brown.BaseTestCase;
+import edu.brown.benchmark.tm1.procedures.UpdateLocation;
+import edu.brown.benchmark.tm1.procedures.UpdateSubscriberData;
+import edu.brown.hstore.HStoreConstants;
+import edu.brown.hstore.HStoreSite;
+import edu.brown.hstore.Hstoreservice.Status;
+import edu.brown.hstore.MockHStoreSite;
+import edu.brown.hstore.conf.HStoreConf;
+import edu.brown.hstore.txns.LocalTransaction;
+import edu.brown.utils.CollectionUtil;
+import edu.brown.utils.FileUtil;
+import edu.brown.utils.PartitionSet;
+import edu.brown.utils.ProjectType;
+
+/**
+ * Per-partition command log streams and other command log tests that
+ * need a site with multiple local partitions.
+ */
+public class TestCommandLogStreams extends BaseTestCase {
+    
+    static final AtomicLong TXN_ID = new AtomicLong(1000);
+    static final int NUM_PARTITIONS = 2;
+    static final int BASE_PARTITION = 0;
+    
+    static final Object SP_PARAMS[] = { 666l, 777l, 888l, 999l };
+    static final Object MP_PARAMS[] = { 12345l, "ABCDEF" };
+    
+    HStoreSite hstore_site;
+    Procedure spProc;
+    Procedure mpProc;
+    final List<File> files = new ArrayList<File>();
+    
+    /**
+     * The txns whose ClientResponses were sent out by the HStoreSite
+     */
+    final List<Long> released = new ArrayList<Long>();
+    
+    /**
+     * CommandLogReplayer that records the txns that it queues 
+     * and finishes them right away
+     */
+    class MockReplayer extends CommandLogReplayer {
+        final List<Long> queued = new ArrayList<Long>();
+        
+        MockReplayer(List<CommandLogReader> readers, int num_threads) {
+            super(hstore_site, readers, num_threads);
+        }
+        
+        @Override
+        protected void queue(LogEntry entry, Procedure catalog_proc, int base_partition,
+                             boolean barrier, RpcCallback<ClientResponseImpl> callback) {
+            this.queued.add(entry.getTransactionId());
+            callback.run(new ClientResponseImpl(entry.getTransactionId(),
+                                                0l,
+                                                base_partition,
+                                                Status.OK,
+                                                HStoreConstants.EMPTY_RESULT,
+                                                ""));
+        }
+    }
+    
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp(ProjectType.TM1);
+        initializeCatalog(1, 1, NUM_PARTITIONS);
+        
+        HStoreConf hstore_conf = HStoreConf.singleton();
+        hstore_conf.site.commandlog_enable = false;
+        hstore_conf.site.commandlog_timeout = 1000;
+        
+        Site catalog_site = CollectionUtil.first(catalogContext.sites);
+        hstore_site = new MockHStoreSite(catalog_site.getId(), catalogContext, hstore_conf) {
+            @Override
+            public void responseSend(ClientResponseImpl cresponse,
+                                     RpcCallback<ClientResponseImpl> clientCallback,
+                                     long initiateTime,
+                                     int restartCounter) {
+                synchronized (released) {
+                    released.add(cresponse.getTransactionId());
+                } // SYNCH
+            }
+        };
+        assertEquals(NUM_PARTITIONS, hstore_site.getLocalPartitionIds().size());
+        
+        this.spProc = this.getProcedure(UpdateSubscriberData.class);
+        this.mpProc = this.getProcedure(UpdateLocation.class);
+    }
+    
+    @Override
+    public void tearDown() throws Exception {
+        for (File f : this.files) {
+            f.delete();
+        } // FOR
+    }
+    
+    private LocalTransaction makeTransaction(Procedure catalog_proc, int basePartition,
+                                             PartitionSet partitions, Object params[]) {
+        LocalTransaction ts = new LocalTransaction(hstore_site);
+        ts.testInit(TXN_ID.incrementAndGet(), basePartition, partitions, catalog_proc, params);
+        return (ts);
+    }
+    
+    /**
+     * Write out a stream file with a single group commit block
+     * that contains the given entries
+     */
+    private CommandLogReader writeStream(List<LogEntry> entries) throws Exception {
+        FastSerializer fs = new FastSerializer();
+        fs.writeByte(CommandLogWriter.HEADER_GROUP_COMMIT | CommandLogWriter.HEADER_STREAMS);
+        fs.writeInt(catalogContext.procedures.size());
+        for (Procedure catalog_proc : catalogContext.procedures.values()) {
+            fs.writeInt(catalog_proc.getId());
+            fs.writeString(catalog_proc.getName());
+        } // FOR
+        byte header[] = fs.getBytes();
+        
+        FastSerializer block = new FastSerializer(true, true);
+        for (LogEntry entry : entries) {
+            entry.writeExternal(block, true);
+        } // FOR
+        ByteBuffer compressed = CompressionService.compressBufferForMessaging(block.getBBContainer().b);
+        
+        File f = FileUtil.getTempFile("log");
+        this.files.add(f);
+        FileOutputStream out = new FileOutputStream(f, false);
+        try {
+            out.getChannel().write(ByteBuffer.wrap(header));
+            out.getChannel().write(compressed);
+        } finally {
+            out.close();
+        }
+        
+        CommandLogReader reader = new CommandLogReader(f.getAbsolutePath());
+        assertTrue(reader.hasStreams());
+        return (reader);
+    }
+    
+    /**
+     * testWithStreams
+     */
+    @Test
+    public void testWithStreams() throws Exception {
+        HStoreConf hstore_conf = HStoreConf.singleton();
+        hstore_conf.site.commandlog_stream_partitions = 1;
+        CommandLogWriter streams[] = null;
+        try {
+            File outputFile = FileUtil.getTempFile("log");
+            CommandLogWriter logger = new CommandLogWriter(hstore_site, outputFile);
+            streams = logger.getStreams();
+            assertNotNull(streams);
+            assertEquals(NUM_PARTITIONS, streams.length);
+            assertEquals(logger, streams[0]);
+            Thread loggerThread = new Thread(logger);
+            loggerThread.setDaemon(true);
+            loggerThread.start();
+            
+            // Every third txn is a multi-partition txn at partition 0 that 
+            // also needs to be recorded in the stream for partition 1
+            int num_txns = 300;
+            for (int i = 0; i < num_txns; i++) {
+                int basePartition = (i % 3 == 1 ? 1 : 0);
+                boolean mp = (i % 3 == 2);
+                PartitionSet partitions = (mp ? catalogContext.getAllPartitionIds() : new PartitionSet(basePartition));
+                LocalTransaction ts = this.makeTransaction((mp ? this.mpProc : this.spProc), basePartition, partitions,
+                                                           (mp ? MP_PARAMS : SP_PARAMS));
+                ClientResponseImpl cresponse = new ClientResponseImpl(ts.getTransactionId(), 0l, basePartition, Status.OK,
+                                                                      HStoreConstants.EMPTY_RESULT, "");
+                assertFalse(logger.appendToLog(ts, cresponse));
+            } // FOR
+            logger.flush();
+            logger.shutdown();
+            
+            int fullCounts[] = new int[streams.length];
+            int markerCounts[] = new int[streams.length];
+            for (int i = 0; i < streams.length; i++) {
+                CommandLogReader reader = new CommandLogReader(streams[i].getOutputFile().getAbsolutePath());
+                assertTrue(reader.hasStreams());
+                for (LogEntry entry : reader) {
+                    if (entry.isStreamMarker()) {
+                        assertEquals(2, entry.getStreamCount());
+                        assertNull(entry.getProcedureParams());
+                        markerCounts[i]++;
+                    } else {
+                        assertEquals((entry.getProcedureId() == this.mpProc.getId() ? 2 : 1), entry.getStreamCount());
+                        fullCounts[i]++;
+                    }
+                } // FOR
+            } // FOR
+            assertEquals(num_txns / 3 * 2, fullCounts[0]);
+            assertEquals(0, markerCounts[0]);
+            assertEquals(num_txns / 3, fullCounts[1]);
+            assertEquals(num_txns / 3, markerCounts[1]);
+        } finally {
+            hstore_conf.site.commandlog_stream_partitions = 0;
+            if (streams != null) {
+                for (CommandLogWriter stream : streams) {
+                    stream.getOutputFile().delete();
+                } // FOR
+            }
+        }
+    }
+    
+    private void checkReplayInterleaved(int num_threads) throws Exception {
+        File outputFile = FileUtil.getTempFile("log");
+        this.files.add(outputFile);
+        CommandLogWriter logger = new CommandLogWriter(hstore_site, outputFile);
+        assertNull(logger.getStreams());
+        
+        // Alternate between the two partitions and put a multi-partition txn
+        // in between them every few txns. These all go in the same group commit
+        // batch, but the writer serializes it one partition at a time
+        List<Long> txnIds = new ArrayList<Long>();
+        for (int i = 0; i < 30; i++) {
+            int basePartition = i % NUM_PARTITIONS;
+            boolean mp = (i % 5 == 2);
+            PartitionSet partitions = (mp ? catalogContext.getAllPartitionIds() : new PartitionSet(basePartition));
+            LocalTransaction ts = this.makeTransaction((mp ? this.mpProc : this.spProc), basePartition, partitions,
+                                                       (mp ? MP_PARAMS : SP_PARAMS));
+            ClientResponseImpl cresponse = new ClientResponseImpl(ts.getTransactionId(), 0l, basePartition, Status.OK,
+                                                                  HStoreConstants.EMPTY_RESULT, "");
+            assertFalse(logger.appendToLog(ts, cresponse));
+            txnIds.add(ts.getTransactionId());
+        } // FOR
+        assertEquals(txnIds.size(), logger.commitQueuedEntries());
+        logger.shutdown();
+        
+        // The multi-partition txns have to be replayed after every txn that came
+        // before them and before every txn that came after them
+        CommandLogReader reader = new CommandLogReader(outputFile.getAbsolutePath());
+        assertFalse(reader.hasStreams());
+        MockReplayer replayer = new MockReplayer(Collections.singletonList(reader), num_threads);
+        assertEquals(txnIds.size(), replayer.replay());
+        assertEquals(txnIds, replayer.queued);
+        assertEquals(0, replayer.getFailureCount());
+    }
+    
+    /**
+     * testReplayInterleaved
+     */
+    @Test
+    public void testReplayInterleaved() throws Exception {
+        this.checkReplayInterleaved(0);
+    }
+    
+    /**
+     * testReplayInterleavedParallel
+     */
+    @Test
+    public void testReplayInterleavedParallel() throws Exception {
+        this.checkReplayInterleaved(2);
+    }
+    
+    /**
+     * testReleaseAfterPartialMultiPartition
+     */
+    @Test
+    public void testReleaseAfterPartialMultiPartition() throws Exception {
+        HStoreConf hstore_conf = HStoreConf.singleton();
+        hstore_conf.site.commandlog_stream_partitions = 1;
+        CommandLogWriter streams[] = null;
+        try {
+            File outputFile = FileUtil.getTempFile("log");
+            CommandLogWriter logger = new CommandLogWriter(hstore_site, outputFile);
+            streams = logger.getStreams();
+            assertEquals(NUM_PARTITIONS, streams.length);
+            
+            // Single-partition txn A, multi-partition txn X that also needs to be
+            // recorded in the stream for partition 1, and then single-partition txn B
+            List<Long> txnIds = new ArrayList<Long>();
+            for (int i = 0; i < 3; i++) {
+                boolean mp = (i == 1);
+                PartitionSet partitions = (mp ? catalogContext.getAllPartitionIds() : new PartitionSet(BASE_PARTITION));
+                LocalTransaction ts = this.makeTransaction((mp ? this.mpProc : this.spProc), BASE_PARTITION, partitions,
+                                                           (mp ? MP_PARAMS : SP_PARAMS));
+                ClientResponseImpl cresponse = new ClientResponseImpl(ts.getTransactionId(), 0l, BASE_PARTITION, Status.OK,
+                                                                      HStoreConstants.EMPTY_RESULT, "");
+                assertFalse(logger.appendToLog(ts, cresponse));
+                txnIds.add(ts.getTransactionId());
+            } // FOR
+            
+            // Only the first stream gets written out before we crash. B is durable
+            // but recovery can't replay anything after X in that stream, so only A
+            // can be sent back to the client
+            assertEquals(3, streams[0].commitQueuedEntries());
+            assertEquals(txnIds.subList(0, 1), this.released);
+            
+            List<CommandLogReader> readers = new ArrayList<CommandLogReader>();
+            for (CommandLogWriter stream : streams) {
+                readers.add(new CommandLogReader(stream.getOutputFile().getAbsolutePath()));
+            } // FOR
+            MockReplayer replayer = new MockReplayer(readers, 0);
+            assertEquals(1, replayer.replay());
+            assertTrue(replayer.queued.containsAll(this.released));
+            
+            // Once the second stream is durable, both X and B can go out
+            assertEquals(1, streams[1].commitQueuedEntries());
+            assertEquals(txnIds, this.released);
+            logger.shutdown();
+        } finally {
+            hstore_conf.site.commandlog_stream_partitions = 0;
+            if (streams != null) {
+                for (CommandLogWriter stream : streams) {
+                    stream.getOutputFile().delete();
+                } // FOR
+            }
+        }
+    }
+    
+    private void checkReplayPartialMultiPartition(int num_threads) throws Exception {
+        List<List<LogEntry>> streams = new ArrayList<List<LogEntry>>();
+        for (int i = 0; i < 4; i++) {
+            streams.add(new ArrayList<LogEntry>());
+        } // FOR
+        PartitionSet allPartitions = catalogContext.getAllPartitionIds();
+        List<Long> expected = new ArrayList<Long>();
+        
+        // Stream #0 and #1 both have all of multi-partition txn Y
+        LocalTransaction ts = this.makeTransaction(this.spProc, 0, new PartitionSet(0), SP_PARAMS);
+        streams.get(0).add(new LogEntry().init(ts));
+        expected.add(ts.getTransactionId());
+        ts = this.makeTransaction(this.spProc, 1, new PartitionSet(1), SP_PARAMS);
+        streams.get(1).add(new LogEntry().init(ts));
+        expected.add(ts.getTransactionId());
+        ts = this.makeTransaction(this.mpProc, 0, allPartitions, MP_PARAMS);
+        streams.get(0).add(new LogEntry().init(ts).setStreams(2, false));
+        streams.get(1).add(new LogEntry().init(ts).setStreams(2, true));
+        expected.add(ts.getTransactionId());
+        ts = this.makeTransaction(this.spProc, 1, new PartitionSet(1), SP_PARAMS);
+        streams.get(1).add(new LogEntry().init(ts));
+        expected.add(ts.getTransactionId());
+        ts = this.makeTransaction(this.spProc, 0, new PartitionSet(0), SP_PARAMS);
+        streams.get(0).add(new LogEntry().init(ts));
+        expected.add(ts.getTransactionId());
+        
+        // Multi-partition txn X made it into stream #0, but stream #1 ends
+        // before its marker. Nothing from X onwards in stream #0 can be replayed
+        ts = this.makeTransaction(this.mpProc, 0, allPartitions, MP_PARAMS);
+        streams.get(0).add(new LogEntry().init(ts).setStreams(2, false));
+        ts = this.makeTransaction(this.spProc, 1, new PartitionSet(1), SP_PARAMS);
+        streams.get(2).add(new LogEntry().init(ts));
+        expected.add(ts.getTransactionId());
+        ts = this.makeTransaction(this.spProc, 0, new PartitionSet(0), SP_PARAMS);
+        streams.get(0).add(new LogEntry().init(ts));
+        ts = this.makeTransaction(this.spProc, 1, new PartitionSet(1), SP_PARAMS);
+        streams.get(2).add(new LogEntry().init(ts));
+        expected.add(ts.getTransactionId());
+        
+        // Stream #2 has the marker for multi-partition txn Z, but stream #0 
+        // ends before its full entry. Nothing from Z onwards in stream #2 can be replayed
+        ts = this.makeTransaction(this.mpProc, 0, allPartitions, MP_PARAMS);
+        streams.get(2).add(new LogEntry().init(ts).setStreams(2, true));
+        for (int i = 0; i < 2; i++) {
+            ts = this.makeTransaction(this.spProc, 1, new PartitionSet(1), SP_PARAMS);
+            streams.get(2).add(new LogEntry().init(ts));
+        } // FOR
+        
+        // Stream #3 does not have any of the incomplete txns, so all of it is replayed
+        for (int i = 0; i < 2; i++) {
+            ts = this.makeTransaction(this.spProc, 1, new PartitionSet(1), SP_PARAMS);
+            streams.get(3).add(new LogEntry().init(ts));
+            expected.add(ts.getTransactionId());
+        } // FOR
+        
+        List<CommandLogReader> readers = new ArrayList<CommandLogReader>();
+        for (List<LogEntry> entries : streams) {
+            readers.add(this.writeStream(entries));
+        } // FOR
+        MockReplayer replayer = new MockReplayer(readers, num_threads);
+        assertEquals(expected.size(), replayer.replay());
+        assertEquals(expected, replayer.queued);
+        assertEquals(0, replayer.getFailureCount());
+    }
+    
+    /**
+     * testReplayPartialMultiPartition
+     */
+    @Test
+    public void testReplayPartialMultiPartition() throws Exception {
+        this.checkReplayPartialMultiPartition(0);
+    }
+    
+    /**
+     * testReplayPartialMultiPartitionParallel
+     */
+    @Test
+    public void testReplayPartialMultiPartitionParallel() throws Exception {
+        this.checkReplayPartialMultiPartition(2);
+    }
+}
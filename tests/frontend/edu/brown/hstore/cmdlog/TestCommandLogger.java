@@ -26,6 +26,11 @@
 package edu.brown.hstore.cmdlog;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.Test;
@@ -33,6 +38,8 @@ import org.voltdb.ClientResponseImpl;
 import org.voltdb.VoltProcedure;
 import org.voltdb.catalog.Procedure;
 import org.voltdb.catalog.Site;
+import org.voltdb.messaging.FastSerializer;
+import org.voltdb.utils.CompressionService;
 
 import edu.brown.BaseTestCase;
 import edu.brown.benchmark.tm1.procedures.UpdateLocation;
@@ -106,8 +113,7 @@ public class TestCommandLogger extends BaseTestCase {
             outputFile.delete();
     }
     
-    @Test
-    public void testWithGroupCommit() throws Exception {
+    private long[] writeLog() throws Exception {
         // Write out a new txn invocation to the log
         int num_txns = 1000;
         long txnId[] = new long[num_txns];
@@ -131,12 +137,12 @@ public class TestCommandLogger extends BaseTestCase {
         }
         logger.flush(); //This makes sure everything is written to the file
         logger.shutdown(); // This closes the file
-        
-        // Now read in the file back in and check to see that we have two
-        // entries that have our expected information
-        CommandLogReader reader = new CommandLogReader(outputFile.getAbsolutePath());
+        return (txnId);
+    }
+    
+    private void checkLogEntries(long txnId[], Iterable<LogEntry> entries) throws Exception {
         int ctr = 0;
-        for (LogEntry entry : reader) {
+        for (LogEntry entry : entries) {
             assertNotNull(entry);
             assertEquals(txnId[ctr], entry.getTransactionId().longValue());
             assertEquals(catalog_procs[ctr % 2].getId(), entry.getProcedureId());
@@ -150,4 +156,267 @@ public class TestCommandLogger extends BaseTestCase {
         }
         assertEquals(txnId.length, ctr);
     }
+    
+    private void writeAndCheckLog() throws Exception {
+        long txnId[] = this.writeLog();
+        
+        // Now read in the file back in and check to see that we have two
+        // entries that have our expected information
+        CommandLogReader reader = new CommandLogReader(outputFile.getAbsolutePath());
+        assertFalse(reader.hasStreams());
+        this.checkLogEntries(txnId, reader);
+    }
+    
+    @Test
+    public void testWithGroupCommit() throws Exception {
+        this.writeAndCheckLog();
+    }
+    
+    @Test
+    public void testDecodeBlocks() throws Exception {
+        long txnId[] = this.writeLog();
+        
+        // Decode each of the group commit batches separately like
+        // the CommandLogReplayer does and make sure that we get back
+        // all of the entries in the right order
+        CommandLogReader reader = new CommandLogReader(outputFile.getAbsolutePath());
+        assertTrue(reader.isGroupCommit());
+        List<LogEntry> entries = new ArrayList<LogEntry>();
+        Iterator<byte[]> it = reader.blockIterator();
+        while (it.hasNext()) {
+            entries.addAll(CommandLogReader.decodeBlock(it.next()));
+        } // WHILE
+        this.checkLogEntries(txnId, entries);
+    }
+    
+    @Test
+    public void testWithPipelinedGroupCommit() throws Exception {
+        // Replace the default logger with one that pipelines its group commits
+        logger.shutdown();
+        outputFile.delete();
+        
+        HStoreConf hstore_conf = HStoreConf.singleton();
+        hstore_conf.site.commandlog_pipeline = true;
+        hstore_conf.site.commandlog_pipeline_depth = 3;
+        try {
+            outputFile = FileUtil.getTempFile("log");
+            logger = new CommandLogWriter(hstore_site, outputFile);
+            loggerThread = new Thread(this.logger);
+            loggerThread.setDaemon(true);
+            loggerThread.start();
+            this.writeAndCheckLog();
+        } finally {
+            hstore_conf.site.commandlog_pipeline = false;
+        }
+    }
+    
+    @Test
+    public void testWithSegments() throws Exception {
+        // Replace the default logger with one that writes out segment files
+        logger.shutdown();
+        outputFile.delete();
+        
+        HStoreConf hstore_conf = HStoreConf.singleton();
+        hstore_conf.site.commandlog_segments = true;
+        hstore_conf.site.commandlog_segment_size = 1;
+        hstore_conf.site.commandlog_segment_prealloc = 3;
+        try {
+            outputFile = FileUtil.getTempFile("log");
+            outputFile.delete();
+            logger = new CommandLogWriter(hstore_site, outputFile);
+            assertNotNull(logger.getSegmentManager());
+            assertFalse(outputFile.exists());
+            loggerThread = new Thread(this.logger);
+            loggerThread.setDaemon(true);
+            loggerThread.start();
+            this.writeAndCheckLog();
+        } finally {
+            hstore_conf.site.commandlog_segments = false;
+            for (File f : CommandLogSegmentManager.getSegmentFiles(outputFile)) {
+                f.delete();
+            } // FOR
+        }
+    }
+    
+    @Test
+    public void testSegmentRotation() throws Exception {
+        File baseFile = FileUtil.getTempFile("log");
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putLong(1234l);
+        header.flip();
+        
+        int segmentSize = 128;
+        CommandLogSegmentManager segments = new CommandLogSegmentManager(baseFile, segmentSize, 2, header);
+        try {
+            // Each block takes up a third of a segment, so every segment 
+            // should only be able to hold two of them
+            int num_blocks = 6;
+            for (int i = 0; i < num_blocks; i++) {
+                ByteBuffer block = ByteBuffer.allocate(segmentSize / 3);
+                block.putInt(block.capacity() - 4);
+                block.rewind();
+                segments.write(block, i);
+                segments.force();
+            } // FOR
+            assertEquals(2, segments.getClosedSegmentCount());
+            List<File> files = CommandLogSegmentManager.getSegmentFiles(baseFile);
+            assertEquals(3, files.size());
+            for (File f : files) {
+                assertEquals(segmentSize, f.length());
+            } // FOR
+            
+            // The first segment only has txns #0 and #1
+            assertEquals(0, segments.recycle(1));
+            assertEquals(1, segments.recycle(2));
+            assertEquals(1, segments.getClosedSegmentCount());
+            assertEquals(1, segments.getSpareSegmentCount());
+            assertFalse(files.get(0).exists());
+            assertEquals(2, CommandLogSegmentManager.getSegmentFiles(baseFile).size());
+        } finally {
+            segments.close();
+            for (File f : CommandLogSegmentManager.getSegmentFiles(baseFile)) {
+                f.delete();
+            } // FOR
+        }
+    }
+    
+    @Test
+    public void testStaleSegments() throws Exception {
+        File baseFile = FileUtil.getTempFile("log");
+        baseFile.delete();
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putLong(1234l);
+        header.flip();
+        
+        // Pretend that an earlier log left some segments behind. Only the
+        // segments after the gap in the sequence ids belong to the latest log
+        for (long seqId : new long[]{ 1, 3, 4 }) {
+            assertTrue(CommandLogSegmentManager.getSegmentFile(baseFile, seqId).createNewFile());
+        } // FOR
+        List<File> files = CommandLogSegmentManager.getCurrentSegmentFiles(baseFile);
+        assertEquals(2, files.size());
+        assertEquals(CommandLogSegmentManager.getSegmentFile(baseFile, 3), files.get(0));
+        assertEquals(CommandLogSegmentManager.getSegmentFile(baseFile, 4), files.get(1));
+        
+        // A new log for the same file has to get rid of all of them
+        CommandLogSegmentManager segments = new CommandLogSegmentManager(baseFile, 128, 2, header);
+        try {
+            files = CommandLogSegmentManager.getSegmentFiles(baseFile);
+            assertEquals(1, files.size());
+            assertEquals(segments.getCurrentSegmentFile(), files.get(0));
+            assertEquals(CommandLogSegmentManager.getSegmentFile(baseFile, 0), files.get(0));
+            assertEquals(files, CommandLogSegmentManager.getCurrentSegmentFiles(baseFile));
+        } finally {
+            segments.close();
+            for (File f : CommandLogSegmentManager.getSegmentFiles(baseFile)) {
+                f.delete();
+            } // FOR
+        }
+    }
+    
+    /**
+     * Serialize new LogEntries for the given number of txns into a single
+     * compressed block and append it to the given segments
+     * @return the txnIds of the entries in the block
+     */
+    private List<Long> writeSegmentBlock(CommandLogSegmentManager segments, int num_txns, Object params[]) throws Exception {
+        FastSerializer fs = new FastSerializer(true, true);
+        List<Long> txnIds = new ArrayList<Long>();
+        for (int i = 0; i < num_txns; i++) {
+            LocalTransaction ts = new LocalTransaction(hstore_site);
+            long txnId = TXN_ID.incrementAndGet();
+            ts.testInit(txnId,
+                        BASE_PARTITION,
+                        new PartitionSet(BASE_PARTITION),
+                        catalog_procs[0],
+                        params);
+            fs.writeObject(new LogEntry().init(ts));
+            txnIds.add(txnId);
+        } // FOR
+        ByteBuffer block = CompressionService.compressBufferForMessaging(fs.getBBContainer().b);
+        segments.write(block, txnIds.get(txnIds.size()-1));
+        segments.force();
+        return (txnIds);
+    }
+    
+    @Test
+    public void testSegmentRecyclingOrder() throws Exception {
+        File baseFile = FileUtil.getTempFile("log");
+        baseFile.delete();
+        
+        // The segments need a real log header so that we can read them back in
+        FastSerializer fs = new FastSerializer();
+        fs.writeBoolean(true);
+        fs.writeInt(catalog_procs.length);
+        for (Procedure catalog_proc : catalog_procs) {
+            fs.writeInt(catalog_proc.getId());
+            fs.writeString(catalog_proc.getName());
+        } // FOR
+        ByteBuffer header = ByteBuffer.wrap(fs.getBytes());
+        
+        // A random string does not compress well, so this block
+        // will not fit in a normal segment
+        Random rand = new Random(0);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 8192; i++) {
+            sb.append((char)('a' + rand.nextInt(26)));
+        } // FOR
+        Object largeParams[] = { 12345l, sb.toString() };
+        
+        int segmentSize = 2048;
+        CommandLogSegmentManager segments = new CommandLogSegmentManager(baseFile, segmentSize, 2, header);
+        List<Long> txnIds = new ArrayList<Long>();
+        try {
+            // Fill up a few segments and then recycle all of them
+            while (segments.getClosedSegmentCount() < 3) {
+                txnIds.addAll(this.writeSegmentBlock(segments, 5, TARGET_PARAMS[0]));
+            } // WHILE
+            long recycleTxnId = txnIds.get(txnIds.size()-1) + 1;
+            assertEquals(3, segments.recycle(recycleTxnId));
+            assertEquals(0, segments.getClosedSegmentCount());
+            int spares = segments.getSpareSegmentCount();
+            assertTrue(spares >= 2);
+            List<Long> expected = new ArrayList<Long>();
+            
+            // The oversized block should get its own segment and 
+            // leave the spare segments alone
+            expected.addAll(this.writeSegmentBlock(segments, 1, largeParams));
+            assertEquals(1, segments.getClosedSegmentCount());
+            assertEquals(spares, segments.getSpareSegmentCount());
+            assertTrue(segments.getCurrentSegmentFile().length() > segmentSize);
+            
+            // Then keep writing until we have used up all of the spares and
+            // rotated to a new segment. Even though the spares were created first,
+            // they have to be read back after the oversized block
+            while (segments.getSpareSegmentCount() > 0) {
+                expected.addAll(this.writeSegmentBlock(segments, 5, TARGET_PARAMS[0]));
+            } // WHILE
+            int closed = segments.getClosedSegmentCount();
+            while (segments.getClosedSegmentCount() == closed) {
+                expected.addAll(this.writeSegmentBlock(segments, 5, TARGET_PARAMS[0]));
+            } // WHILE
+            assertEquals(spares + 2, segments.getClosedSegmentCount());
+            segments.close();
+            
+            List<Long> actual = new ArrayList<Long>();
+            List<LogEntry> entries = new ArrayList<LogEntry>();
+            for (LogEntry entry : new CommandLogReader(baseFile.getAbsolutePath())) {
+                actual.add(entry.getTransactionId());
+                entries.add(entry);
+            } // FOR
+            
+            // The segment that we were writing to when we recycled the others
+            // still has the last txns from before the recycle
+            int offset = actual.size() - expected.size();
+            assertTrue(offset > 0);
+            assertEquals(txnIds.subList(txnIds.size() - offset, txnIds.size()), actual.subList(0, offset));
+            assertEquals(expected, actual.subList(offset, actual.size()));
+            assertEquals(largeParams[1], entries.get(offset).getProcedureParams().toArray()[1]);
+        } finally {
+            segments.close();
+            for (File f : CommandLogSegmentManager.getSegmentFiles(baseFile)) {
+                f.delete();
+            } // FOR
+        }
+    }
 }
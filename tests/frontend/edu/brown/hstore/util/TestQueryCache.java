@@ -44,6 +44,70 @@ public class TestQueryCache extends BaseTestCase {
         this.catalog_stmt = this.getStatement(catalog_proc, TARGET_STATEMENT);
     }
     
+    /**
+     * testGlobalCacheGet
+     */
+    public void testGlobalCacheGet() throws Exception {
+        long fragmentId = 2222;
+        int tableIds[] = { 1, 3 };
+        long expected = 9900;
+        VoltTable result = new VoltTable(TARGET_RESULT);
+        result.addRow(expected);
+        
+        ParameterSet params = new ParameterSet("Squirrels", 1981);
+        assertNull(this.cache.getGlobalQueryResult(fragmentId, params));
+        this.cache.addGlobalQueryResult(fragmentId, params, tableIds, result);
+        
+        // We should be able to get the result back with a different ParameterSet
+        // that has the same values. Each result should have its own row position
+        for (int i = 0; i < 2; i++) {
+            params = new ParameterSet("Squi" + "rrels", 1981);
+            VoltTable cacheResult = this.cache.getGlobalQueryResult(fragmentId, params);
+            assertNotNull(cacheResult);
+            assertEquals(1, cacheResult.getRowCount());
+            assertTrue(cacheResult.advanceRow());
+            assertEquals(expected, cacheResult.getLong(0));
+        } // FOR
+        assertNull(this.cache.getGlobalQueryResult(fragmentId, new ParameterSet("WuTang!", 1981)));
+        assertNull(this.cache.getGlobalQueryResult(fragmentId + 1, params));
+        
+        // Writing to a table that the query didn't read shouldn't invalidate it
+        this.cache.markTablesWritten(new int[]{ 2 });
+        assertNotNull(this.cache.getGlobalQueryResult(fragmentId, params));
+        
+        // But writing to one that it did read should
+        this.cache.markTablesWritten(new int[]{ 3 });
+        assertNull(this.cache.getGlobalQueryResult(fragmentId, params));
+        assertEquals(0, this.cache.getGlobalCacheSize());
+        
+        this.cache.addGlobalQueryResult(fragmentId, params, tableIds, result);
+        assertNotNull(this.cache.getGlobalQueryResult(fragmentId, params));
+        this.cache.clearGlobalCache();
+        assertNull(this.cache.getGlobalQueryResult(fragmentId, params));
+    }
+    
+    /**
+     * testGlobalCacheEviction
+     */
+    public void testGlobalCacheEviction() throws Exception {
+        int tableIds[] = { 1 };
+        VoltTable result = new VoltTable(TARGET_RESULT);
+        result.addRow(1l);
+        
+        for (int i = 0; i < globalBufferSize; i++) {
+            this.cache.addGlobalQueryResult(i, new ParameterSet(i), tableIds, result);
+        } // FOR
+        assertEquals(globalBufferSize, this.cache.getGlobalCacheSize());
+        
+        // Touch the first entry so that the second one is the least recently used
+        assertNotNull(this.cache.getGlobalQueryResult(0, new ParameterSet(0)));
+        this.cache.addGlobalQueryResult(globalBufferSize, new ParameterSet(globalBufferSize), tableIds, result);
+        assertEquals(globalBufferSize, this.cache.getGlobalCacheSize());
+        assertNotNull(this.cache.getGlobalQueryResult(0, new ParameterSet(0)));
+        assertNull(this.cache.getGlobalQueryResult(1, new ParameterSet(1)));
+        assertNotNull(this.cache.getGlobalQueryResult(globalBufferSize, new ParameterSet(globalBufferSize)));
+    }
+    
     /**
      * testTxnCacheGet
      */
@@ -0,0 +1,124 @@
+package edu.brown.markov;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.voltdb.VoltProcedure;
+import org.voltdb.benchmark.tpcc.procedures.neworder;
+import org.voltdb.catalog.Procedure;
+import org.voltdb.catalog.Statement;
+
+import edu.brown.BaseTestCase;
+import edu.brown.markov.containers.BinaryMarkovGraphsFile;
+import edu.brown.markov.containers.MarkovGraphsContainer;
+import edu.brown.markov.containers.MarkovGraphsContainerUtil;
+import edu.brown.utils.FileUtil;
+import edu.brown.utils.PartitionSet;
+import edu.brown.utils.ProjectType;
+
+public class TestBinaryMarkovGraphsFile extends BaseTestCase {
+
+    final Class<? extends VoltProcedure> TARGET_PROCEDURE = neworder.class;
+    final String TARGET_STATEMENT = "getWarehouseTaxRate";
+    Procedure catalog_proc;
+    File tempFile = null;
+
+    public void setUp() throws Exception {
+        super.setUp(ProjectType.TPCC);
+        this.addPartitions(10);
+        catalog_proc = this.getProcedure(TARGET_PROCEDURE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+
+        if (tempFile != null && tempFile.exists()) {
+            tempFile.delete();
+        }
+    }
+
+    private MarkovVertex findVertex(MarkovGraph markov, MarkovVertex v) {
+        if (v.isQueryVertex() == false) {
+            return (markov.getSpecialVertex(v.getType()));
+        }
+        return (markov.getVertex((Statement)v.getCatalogItem(), v.partitions, v.past_partitions, v.counter));
+    }
+
+    /**
+     * testSerialization
+     */
+    public void testSerialization() throws Exception {
+        Statement catalog_stmt = this.getStatement(catalog_proc, TARGET_STATEMENT);
+        MarkovGraphsContainer markovs = new MarkovGraphsContainer();
+        for (int p : catalogContext.getAllPartitionIds().values()) {
+            MarkovGraph markov = markovs.getOrCreate(p, catalog_proc, true);
+            PartitionSet partitions = PartitionSet.singleton(p);
+            MarkovVertex v = new MarkovVertex(catalog_stmt, MarkovVertex.Type.QUERY, 0, partitions, partitions);
+            v.totalhits = p + 1;
+            markov.addVertex(v);
+
+            // Every txn goes through the start vertex and commits, so their hits
+            // need to match the edges or calculateProbabilities() will complain
+            markov.getStartVertex().totalhits = p + 1;
+            markov.getCommitVertex().totalhits = p + 1;
+            markov.addToEdge(markov.getStartVertex(), v).totalhits = p + 1;
+            markov.addToEdge(v, markov.getCommitVertex()).totalhits = p + 1;
+            markov.calculateProbabilities(catalogContext.getAllPartitionIds());
+        } // FOR
+        Map<Integer, MarkovGraphsContainer> all_markovs = new HashMap<Integer, MarkovGraphsContainer>();
+        all_markovs.put(MarkovUtil.GLOBAL_MARKOV_CONTAINER_ID, markovs);
+
+        tempFile = FileUtil.getTempFile("markovs", false);
+        BinaryMarkovGraphsFile.save(all_markovs, tempFile);
+        assertTrue(BinaryMarkovGraphsFile.isBinaryFile(tempFile));
+
+        // Nothing should get deserialized until we ask for it
+        Map<Integer, MarkovGraphsContainer> clone_markovs = MarkovGraphsContainerUtil.load(catalogContext, tempFile);
+        assertEquals(1, clone_markovs.size());
+        MarkovGraphsContainer clone = clone_markovs.get(MarkovUtil.GLOBAL_MARKOV_CONTAINER_ID);
+        assertNotNull(clone);
+        assertEquals(0, clone.loadedSize());
+
+        for (Integer id : markovs.keySet()) {
+            MarkovGraph markov = markovs.get(id, catalog_proc);
+            MarkovGraph clone_m = clone.get(id, catalog_proc);
+            assertNotNull(clone_m);
+            assertEquals(markov.getGraphId(), clone_m.getGraphId());
+            assertEquals(markov.getVertexCount(), clone_m.getVertexCount());
+            assertEquals(markov.getEdgeCount(), clone_m.getEdgeCount());
+
+            for (MarkovVertex v : markov.getVertices()) {
+                MarkovVertex clone_v = this.findVertex(clone_m, v);
+                assertNotNull(v.toString(), clone_v);
+                assertEquals(v.getType(), clone_v.getType());
+                assertEquals(v.totalhits, clone_v.totalhits);
+                for (int i = 0; i < v.probabilities.length; i++) {
+                    assertEquals(v.probabilities[i].length, clone_v.probabilities[i].length);
+                    for (int j = 0; j < v.probabilities[i].length; j++) {
+                        assertEquals(v.probabilities[i][j], clone_v.probabilities[i][j], MarkovGraph.PROBABILITY_EPSILON);
+                    } // FOR
+                } // FOR
+            } // FOR
+            for (MarkovEdge e : markov.getEdges()) {
+                MarkovVertex v0 = markov.getSource(e);
+                MarkovVertex v1 = markov.getDest(e);
+                MarkovEdge clone_e = clone_m.findEdge(this.findVertex(clone_m, v0), this.findVertex(clone_m, v1));
+                assertNotNull(e.toString(), clone_e);
+                assertEquals(e.totalhits, clone_e.totalhits);
+                assertEquals(e.probability, clone_e.probability, MarkovGraph.PROBABILITY_EPSILON);
+            } // FOR
+        } // FOR
+        assertEquals(markovs.totalSize(), clone.totalSize());
+
+        // Methods that look at all of the graphs have to load the ones that
+        // have not been deserialized yet
+        clone = MarkovGraphsContainerUtil.load(catalogContext, tempFile).get(MarkovUtil.GLOBAL_MARKOV_CONTAINER_ID);
+        assertEquals(0, clone.loadedSize());
+        assertEquals(markovs.getAll().size(), clone.getAll().size());
+        assertEquals(markovs.totalSize(), clone.loadedSize());
+        assertEquals(markovs.size(), clone.size());
+    }
+
+}
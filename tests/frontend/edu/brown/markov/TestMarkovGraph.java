@@ -234,7 +234,152 @@ public class TestMarkovGraph extends BaseTestCase {
         testGraph.validate();
     }
 
+
+    /**
+     * testCompiledGraph
+     */
+    @Test
+    public void testCompiledGraph() throws Exception {
+        MarkovGraph markov = markovs.get(BASE_PARTITION, this.catalog_proc);
+        assertNotNull(markov);
+        CompiledMarkovGraph compiled = markov.getCurrentCompiledGraph();
+        assertNotNull(compiled);
+        assertSame(compiled, markov.getCompiledGraph());
+        assertEquals(markov.getVertexCount(), compiled.getVertexCount());
+        assertEquals(markov.getEdgeCount(), compiled.getEdgeCount());
+
+        // The CSR arrays should have the same successors as the graph
+        for (MarkovVertex v : markov.getVertices()) {
+            int id = compiled.getVertexId(v);
+            assertTrue(v.toString(), id >= 0);
+            assertSame(v, compiled.getVertex(id));
+            
+            Set<MarkovEdge> expected = new HashSet<MarkovEdge>(markov.getOutEdges(v));
+            Set<MarkovEdge> actual = new HashSet<MarkovEdge>();
+            for (int offset = compiled.getSuccessorStart(id); offset < compiled.getSuccessorEnd(id); offset++) {
+                MarkovEdge e = compiled.getSuccessorEdge(offset);
+                assertNotNull(e);
+                assertSame(markov.getDest(e), compiled.getSuccessor(offset));
+                if (v.isQueryVertex()) {
+                    MarkovVertex next = compiled.getSuccessor(offset);
+                    if (next.isQueryVertex()) {
+                        assertTrue(compiled.isStatement(compiled.getSuccessorId(offset),
+                                   (Statement)next.getCatalogItem(), next.getQueryCounter()));
+                    }
+                }
+                actual.add(e);
+            } // FOR
+            assertEquals(v.toString(), expected, actual);
+        } // FOR
+        
+        // Adding a new vertex should cause the graph to get recompiled
+        MarkovGraph testGraph = new MarkovGraph(this.catalog_proc);
+        testGraph.initialize();
+        compiled = testGraph.getCompiledGraph();
+        assertEquals(0, compiled.getEdgeCount());
+        MarkovVertex start = testGraph.getStartVertex();
+        int start_id = compiled.getVertexId(start);
+        assertTrue(compiled.isCurrent(start_id));
+        
+        Statement catalog_stmt = CollectionUtil.first(this.catalog_proc.getStatements());
+        MarkovVertex v = new MarkovVertex(catalog_stmt, MarkovVertex.Type.QUERY, 0,
+                                          PartitionSet.singleton(BASE_PARTITION), new PartitionSet());
+        testGraph.addVertex(v);
+        testGraph.addToEdge(start, v);
+        assertEquals(-1, compiled.getVertexId(v));
+        assertFalse(compiled.isCurrent(start_id));
+        CompiledMarkovGraph clone = testGraph.getCompiledGraph();
+        assertNotSame(compiled, clone);
+        assertTrue(clone.getVertexId(v) >= 0);
+        assertTrue(clone.isCurrent(clone.getVertexId(start)));
+        assertEquals(testGraph.getEdgeCount(), clone.getEdgeCount());
+        
+        // The old one still has to be able to find its own vertices
+        assertEquals(start_id, compiled.getVertexId(start));
+        assertSame(start, compiled.getVertex(start_id));
         
+        // But once the graph is large enough, a single new vertex is not
+        // enough to rebuild it. It will be in the graph's current one though.
+        for (int i = 1; i < 10; i++) {
+            v = new MarkovVertex(catalog_stmt, MarkovVertex.Type.QUERY, i,
+                                 PartitionSet.singleton(BASE_PARTITION), new PartitionSet());
+            testGraph.addVertex(v);
+            testGraph.addToEdge(start, v);
+        } // FOR
+        compiled = testGraph.getCurrentCompiledGraph();
+        assertEquals(testGraph.getVertexCount(), compiled.getVertexCount());
+        v = new MarkovVertex(catalog_stmt, MarkovVertex.Type.QUERY, 10,
+                             PartitionSet.singleton(BASE_PARTITION), new PartitionSet());
+        testGraph.addVertex(v);
+        assertSame(compiled, testGraph.getCompiledGraph());
+        assertEquals(-1, compiled.getVertexId(v));
+        clone = testGraph.getCurrentCompiledGraph();
+        assertNotSame(compiled, clone);
+        assertTrue(clone.getVertexId(v) >= 0);
+        assertSame(clone, testGraph.getCompiledGraph());
+    }
+
+    /**
+     * testCalculateShadowProbabilities
+     */
+    @Test
+    public void testCalculateShadowProbabilities() throws Exception {
+        PartitionSet partitions = catalogContext.getAllPartitionIds();
+        Statement catalog_stmt = CollectionUtil.first(this.catalog_proc.getStatements());
+
+        // Build two identical graphs where three txns commit and one aborts
+        MarkovGraph graphs[] = new MarkovGraph[2];
+        for (int i = 0; i < graphs.length; i++) {
+            graphs[i] = new MarkovGraph(this.catalog_proc).initialize();
+            MarkovVertex v = new MarkovVertex(catalog_stmt, MarkovVertex.Type.QUERY, 0,
+                                              PartitionSet.singleton(BASE_PARTITION), new PartitionSet());
+            graphs[i].addVertex(v);
+            for (int txn = 0; txn < 4; txn++) {
+                MarkovVertex path[] = { graphs[i].getStartVertex(), v,
+                                        (txn < 3 ? graphs[i].getCommitVertex() : graphs[i].getAbortVertex()) };
+                for (int j = 0; j < path.length; j++) {
+                    path[j].incrementInstanceHits();
+                    if (j > 0) graphs[i].addToEdge(path[j-1], path[j]).incrementInstanceHits();
+                } // FOR
+            } // FOR
+        } // FOR
+        // Recomputing the probabilities doesn't change the graph's structure,
+        // so we should still be able to use the same compiled graph
+        CompiledMarkovGraph compiled = graphs[0].getCurrentCompiledGraph();
+        graphs[0].calculateProbabilities(partitions);
+        graphs[1].calculateShadowProbabilities(partitions);
+        assertSame(compiled, graphs[0].getCompiledGraph());
+
+        // The shadow version should end up with the same counters and probabilities
+        Map<MarkovVertex, MarkovVertex> vertexXref = new HashMap<MarkovVertex, MarkovVertex>();
+        for (MarkovVertex v0 : graphs[0].getVertices()) {
+            MarkovVertex v1 = null;
+            if (v0.isQueryVertex()) {
+                v1 = graphs[1].getVertex(catalog_stmt, v0.partitions, v0.past_partitions, v0.counter);
+            } else {
+                v1 = graphs[1].getSpecialVertex(v0.getType());
+            }
+            assertNotNull(v0.toString(), v1);
+            assertEquals(0, v1.getInstanceHits());
+            assertEquals(v0.getTotalHits(), v1.getTotalHits());
+            for (int i = 0; i < v0.probabilities.length; i++) {
+                for (int j = 0; j < v0.probabilities[i].length; j++) {
+                    assertEquals(v0.toString(), v0.probabilities[i][j], v1.probabilities[i][j], MarkovGraph.PROBABILITY_EPSILON);
+                } // FOR
+            } // FOR
+            vertexXref.put(v0, v1);
+        } // FOR
+        for (MarkovEdge e0 : graphs[0].getEdges()) {
+            MarkovEdge e1 = graphs[1].findEdge(vertexXref.get(graphs[0].getSource(e0)),
+                                               vertexXref.get(graphs[0].getDest(e0)));
+            assertNotNull(e0.toString(), e1);
+            assertEquals(0, e1.getInstanceHits());
+            assertEquals(e0.getTotalHits(), e1.getTotalHits());
+            assertEquals(e0.getProbability(), e1.getProbability(), MarkovGraph.PROBABILITY_EPSILON);
+        } // FOR
+        assertEquals(1, graphs[1].getRecomputeCount());
+    }
+
      /**
      * testGraphSerialization
      */
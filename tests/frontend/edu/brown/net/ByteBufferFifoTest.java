@@ -3,8 +3,10 @@ package edu.brown.net;
 import static org.junit.Assert.*;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import org.junit.Test;
+import org.voltdb.utils.DBBPool;
 
 
 public class ByteBufferFifoTest {
@@ -62,4 +64,23 @@ public class ByteBufferFifoTest {
         // Try to read: nothing!
         assertNull(fifo.getReadBuffer());
     }
+
+    @Test
+    public void testClearReturnsBuffers() {
+        final long loaned = DBBPool.getBuffersLoanedGlobally();
+        ByteBuffer out = fifo.getWriteBuffer();
+        assertEquals(ByteOrder.nativeOrder(), out.order());
+        out.put(new byte[out.remaining()]);
+        fifo.getWriteBuffer().put((byte) 1);
+        assertEquals(loaned + 2, DBBPool.getBuffersLoanedGlobally());
+
+        fifo.clear();
+        assertEquals(loaned, DBBPool.getBuffersLoanedGlobally());
+        assertNull(fifo.getReadBuffer());
+
+        // The FIFO can still be used after it was cleared
+        fifo.getWriteBuffer().put((byte) 2);
+        assertEquals((byte) 2, fifo.getReadBuffer().get());
+        fifo.clear();
+    }
 }
@@ -0,0 +1,139 @@
+package edu.brown.protorpc;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MultiNIOEventLoopTest {
+    private static final int NUM_SHARDS = 2;
+    private static final int NUM_MESSAGES = 100;
+
+    protected MultiNIOEventLoop eventLoop;
+    protected ServerSocketChannel acceptSocket;
+    protected int serverPort;
+    protected Thread loopThread;
+
+    @Before
+    public void setUp() throws IOException {
+        eventLoop = new MultiNIOEventLoop(NUM_SHARDS);
+        acceptSocket = ServerSocketChannel.open();
+        acceptSocket.socket().bind(null);
+        serverPort = acceptSocket.socket().getLocalPort();
+        loopThread = new Thread() {
+            public void run() {
+                eventLoop.run();
+            }
+        };
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        eventLoop.exitLoop();
+        loopThread.join(1000);
+        acceptSocket.close();
+    }
+
+    /** Records every byte it reads along with the thread that read it. */
+    static final class ReadHandler extends AbstractEventHandler {
+        final List<Byte> values = new ArrayList<Byte>();
+        final CountDownLatch latch;
+        volatile Thread readThread;
+
+        public ReadHandler(int expected) {
+            this.latch = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void readCallback(SelectableChannel channel) {
+            if (readThread == null) readThread = Thread.currentThread();
+            assertSame(readThread, Thread.currentThread());
+            ByteBuffer b = ByteBuffer.allocate(64);
+            try {
+                int bytes = ((SocketChannel) channel).read(b);
+                if (bytes < 0) {
+                    channel.close();
+                    return;
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            b.flip();
+            while (b.hasRemaining()) {
+                values.add(b.get());
+                latch.countDown();
+            }
+        }
+    }
+
+    private SocketChannel connect() throws IOException {
+        return SocketChannel.open(new InetSocketAddress(InetAddress.getLocalHost(), serverPort));
+    }
+
+    @Test(timeout=5000)
+    public void testShardedReads() throws Exception {
+        loopThread.start();
+
+        SocketChannel clients[] = { connect(), connect() };
+        SocketChannel servers[] = { acceptSocket.accept(), acceptSocket.accept() };
+        ReadHandler handlers[] = new ReadHandler[servers.length];
+        for (int i = 0; i < servers.length; i++) {
+            servers[i].configureBlocking(false);
+            handlers[i] = new ReadHandler(NUM_MESSAGES);
+            eventLoop.registerRead(servers[i], handlers[i]);
+        }
+
+        // Each connection should see its bytes in the order they were sent
+        for (int j = 0; j < NUM_MESSAGES; j++) {
+            for (SocketChannel client : clients) {
+                client.write(ByteBuffer.wrap(new byte[]{ (byte)j }));
+            }
+        }
+        for (int i = 0; i < handlers.length; i++) {
+            assertTrue(handlers[i].latch.await(2, TimeUnit.SECONDS));
+            for (int j = 0; j < NUM_MESSAGES; j++) {
+                assertEquals(j, handlers[i].values.get(j).intValue());
+            }
+        }
+
+        // The connections were spread across different shard threads
+        assertNotSame(handlers[0].readThread, handlers[1].readThread);
+        assertNotSame(loopThread, handlers[0].readThread);
+        assertNotSame(loopThread, handlers[1].readThread);
+
+        for (SocketChannel client : clients) client.close();
+    }
+
+    @Test(timeout=5000)
+    public void testExitStopsShards() throws Exception {
+        loopThread.start();
+
+        SocketChannel client = connect();
+        SocketChannel server = acceptSocket.accept();
+        server.configureBlocking(false);
+        ReadHandler handler = new ReadHandler(1);
+        eventLoop.registerRead(server, handler);
+        client.write(ByteBuffer.wrap(new byte[]{ 1 }));
+        assertTrue(handler.latch.await(2, TimeUnit.SECONDS));
+
+        eventLoop.exitLoop();
+        loopThread.join();
+        assertFalse(handler.readThread.isAlive());
+
+        client.close();
+        server.close();
+    }
+}
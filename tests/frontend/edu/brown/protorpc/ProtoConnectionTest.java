@@ -49,6 +49,30 @@ public class ProtoConnectionTest {
         assertEquals(2, channel.lastWrites.size());
     }
 
+    @Test
+    public void testBufferWrite() throws IOException {
+        // Buffer multiple messages and make sure that they go out with one write
+        Counter.Value v0 = Counter.Value.newBuilder().setValue(42).build();
+        Counter.Value v1 = Counter.Value.newBuilder().setValue(99).build();
+        int bytes = connection.bufferWrite(v0);
+        assertEquals(v0.getSerializedSize() + 4, bytes);
+        bytes += connection.bufferWrite(v1);
+        assertTrue(channel.lastWrites.isEmpty());
+
+        assertFalse(connection.tryFlush());
+        assertEquals(1, channel.lastWrites.size());
+        assertEquals(bytes, channel.lastWrites.get(0).length);
+
+        CodedInputStream in = CodedInputStream.newInstance(channel.lastWrites.get(0));
+        for (Counter.Value v : new Counter.Value[]{ v0, v1 }) {
+            int length = in.readRawLittleEndian32();
+            int oldLimit = in.pushLimit(length);
+            assertEquals(v, Counter.Value.parseFrom(in));
+            in.popLimit(oldLimit);
+        }
+        assertTrue(in.isAtEnd());
+    }
+
     
     
     @Test
@@ -241,6 +241,13 @@ public class MockVoltClient implements Client {
 
     }
 
+    @Override
+    public boolean callProcedures(ProcedureCallback[] callbacks, String[] procNames, Object[][] parameters)
+            throws NoConnectionsException {
+        // TODO Auto-generated method stub
+        return false;
+    }
+
     @Override
     public int calculateInvocationSerializedSize(String procName,
             Object... parameters) {
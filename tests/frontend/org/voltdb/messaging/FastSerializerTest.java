@@ -51,6 +51,7 @@
 package org.voltdb.messaging;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.voltdb.messaging.FastSerializer;
 import org.voltdb.utils.DBBPool;
@@ -129,6 +130,26 @@ public class FastSerializerTest extends TestCase {
         assertEquals(4, bytes.length);
     }
 
+    public void testAppendObjectForMessaging() throws IOException {
+        testAppendObjectForMessagingP(heapOut);
+        testAppendObjectForMessagingP(directOut);
+        testAppendObjectForMessagingP(poolOut);
+    }
+
+    private void testAppendObjectForMessagingP(FastSerializer out) throws IOException {
+        // Write enough messages that the buffer has to grow
+        final int numMessages = FastSerializer.INITIAL_ALLOCATION;
+        for (int i = 0; i < numMessages; i++) {
+            out.appendObjectForMessaging(i % 2 == 0 ? new MockFastSerializable() : new MockFastSerializable.Other());
+        }
+        ByteBuffer b = out.getBBContainer().b;
+        assertEquals(numMessages * 5, b.remaining());
+        for (int i = 0; i < numMessages; i++) {
+            assertEquals(1, b.getInt());
+            assertEquals(i % 2 == 0 ? 42 : 99, b.get());
+        }
+    }
+
     public void testDirect() throws IOException {
         directOut = new FastSerializer(false, true);
         assertTrue(directOut.getBBContainer().b.isDirect());
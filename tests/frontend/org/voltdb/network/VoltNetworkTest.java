@@ -24,13 +24,20 @@
 package org.voltdb.network;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 import junit.framework.*;
 
 public class VoltNetworkTest extends TestCase {
@@ -236,6 +243,83 @@ public class VoltNetworkTest extends TestCase {
         }
     }
 
+    /** Records the thread that each message was handled in */
+    private static class ThreadRecordingHandler extends VoltProtocolHandler {
+        final CountDownLatch latch;
+        volatile Thread handlerThread;
+
+        ThreadRecordingHandler(CountDownLatch latch) {
+            this.latch = latch;
+        }
+        @Override
+        public int getMaxRead() {
+            return 1024;
+        }
+        @Override
+        public int getExpectedOutgoingMessageSize() {
+            return 2048;
+        }
+        @Override
+        public void handleMessage(ByteBuffer message, Connection c) {
+            handlerThread = Thread.currentThread();
+            latch.countDown();
+        }
+        @Override
+        public Runnable offBackPressure() {
+            return null;
+        }
+        @Override
+        public Runnable onBackPressure() {
+            return null;
+        }
+        @Override
+        public QueueMonitor writestreamMonitor() {
+            return null;
+        }
+    }
+
+    public void testShardedSelectors() throws Exception {
+        final int numConnections = 16;
+        VoltNetwork vn = new VoltNetwork(null, 2);
+        vn.start();
+
+        ServerSocketChannel acceptSocket = ServerSocketChannel.open();
+        acceptSocket.socket().bind(null);
+        InetSocketAddress addr = new InetSocketAddress(InetAddress.getLocalHost(), acceptSocket.socket().getLocalPort());
+
+        CountDownLatch latch = new CountDownLatch(numConnections);
+        SocketChannel clients[] = new SocketChannel[numConnections];
+        ThreadRecordingHandler handlers[] = new ThreadRecordingHandler[numConnections];
+        for (int i = 0; i < numConnections; i++) {
+            clients[i] = SocketChannel.open(addr);
+            handlers[i] = new ThreadRecordingHandler(latch);
+            vn.registerChannel(acceptSocket.accept(), handlers[i]);
+        }
+        for (SocketChannel client : clients) {
+            ByteBuffer message = ByteBuffer.allocate(5);
+            message.putInt(1).put((byte)1).flip();
+            client.write(message);
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        // Each connection was handled entirely by one of the selector threads
+        Set<Thread> threads = new HashSet<Thread>();
+        for (ThreadRecordingHandler handler : handlers) {
+            threads.add(handler.handlerThread);
+        }
+        assertEquals(2, threads.size());
+        assertEquals(3, vn.getThreadIds().size());
+
+        vn.shutdown();
+        for (Thread t : threads) {
+            assertFalse(t.isAlive());
+        }
+        for (SocketChannel client : clients) {
+            client.close();
+        }
+        acceptSocket.close();
+    }
+
     public void testInstallInterests() throws InterruptedException {
         new MockSelector();
         VoltNetwork vn = new VoltNetwork();
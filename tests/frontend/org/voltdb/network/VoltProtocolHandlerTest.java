@@ -0,0 +1,160 @@
+package org.voltdb.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.voltdb.utils.DBBPool;
+import org.voltdb.utils.DBBPool.BBContainer;
+
+public class VoltProtocolHandlerTest extends TestCase {
+
+    private static final int THRESHOLD = 1024;
+
+    private static class MockReadableByteChannel implements ReadableByteChannel {
+        private final ByteBuffer data;
+
+        public MockReadableByteChannel(ByteBuffer data) {
+            this.data = data;
+        }
+        public int read(ByteBuffer buffer) {
+            if (!data.hasRemaining()) return -1;
+            int length = Math.min(buffer.remaining(), data.remaining());
+            ByteBuffer slice = data.slice();
+            slice.limit(length);
+            buffer.put(slice);
+            data.position(data.position() + length);
+            return length;
+        }
+        public boolean isOpen() { return true; }
+        public void close() { }
+    }
+
+    private static class MockConnection implements Connection {
+        private final NIOReadStream readStream = new NIOReadStream();
+        public NIOWriteStream writeStream() { return null; }
+        public NIOReadStream readStream() { return readStream; }
+        public void disableReadSelection() { }
+        public void enableReadSelection() { }
+        public String getHostname() { return "localhost"; }
+        public void scheduleRunnable(Runnable r) { }
+        public void unregister() { }
+    }
+
+    private static class MockHandler extends VoltProtocolHandler {
+        public int getMaxRead() { return Integer.MAX_VALUE; }
+        public int getExpectedOutgoingMessageSize() { return 2048; }
+        public void handleMessage(ByteBuffer message, Connection c) { }
+        public Runnable onBackPressure() { return null; }
+        public Runnable offBackPressure() { return null; }
+        public QueueMonitor writestreamMonitor() { return null; }
+    }
+
+    private DBBPool pool;
+    private MockConnection connection;
+    private MockHandler handler;
+
+    @Override
+    public void setUp() {
+        pool = new DBBPool();
+        connection = new MockConnection();
+        handler = new MockHandler();
+    }
+
+    @Override
+    public void tearDown() {
+        connection.readStream().shutdown();
+        pool.clear();
+    }
+
+    private static byte[] makeMessage(int length, int seed) {
+        byte message[] = new byte[length];
+        for (int i = 0; i < length; i++) {
+            message[i] = (byte)((i / 64) + seed);
+        }
+        return message;
+    }
+
+    private static ByteBuffer frame(byte[]... messages) {
+        int size = 0;
+        for (byte[] m : messages) size += 4 + m.length;
+        ByteBuffer b = ByteBuffer.allocate(size);
+        for (byte[] m : messages) {
+            b.putInt(m.length);
+            b.put(m);
+        }
+        b.flip();
+        return b;
+    }
+
+    private void readAll(ByteBuffer data) throws IOException {
+        connection.readStream().read(new MockReadableByteChannel(data), Integer.MAX_VALUE, pool);
+    }
+
+    /**
+     * testCompressMessages
+     */
+    public void testCompressMessages() throws IOException {
+        byte small[] = makeMessage(THRESHOLD / 2, 1);
+        byte large[] = makeMessage(THRESHOLD * 8, 2);
+
+        // Small messages are left alone
+        BBContainer c = DBBPool.wrapBB(frame(small));
+        assertSame(c, VoltProtocolHandler.compressMessages(c, THRESHOLD));
+
+        // Large messages have the flag in their length prefix
+        ByteBuffer uncompressed = frame(large, large);
+        BBContainer compressed = VoltProtocolHandler.compressMessages(DBBPool.wrapBB(uncompressed.duplicate()), THRESHOLD);
+        assertTrue(compressed.b.remaining() < uncompressed.remaining());
+        int length = compressed.b.getInt(compressed.b.position());
+        assertTrue((length & VoltProtocolHandler.COMPRESSED_MESSAGE_FLAG) != 0);
+        assertEquals(compressed.b.remaining() - 4, length & ~VoltProtocolHandler.COMPRESSED_MESSAGE_FLAG);
+    }
+
+    /**
+     * testRetrieveCompressedMessages
+     */
+    public void testRetrieveCompressedMessages() throws IOException {
+        byte messages[][] = {
+            makeMessage(THRESHOLD * 4, 3),
+            makeMessage(THRESHOLD * 2, 4),
+            makeMessage(10, 5),
+        };
+        // The first two messages are compressed together in a single block
+        // and the last one is sent by itself uncompressed
+        BBContainer block = VoltProtocolHandler.compressMessages(DBBPool.wrapBB(frame(messages[0], messages[1])), THRESHOLD);
+        ByteBuffer last = frame(messages[2]);
+        ByteBuffer data = ByteBuffer.allocate(block.b.remaining() + last.remaining());
+        data.put(block.b).put(last).flip();
+        readAll(data);
+
+        handler.setCompression(true);
+        for (byte expected[] : messages) {
+            ByteBuffer message = handler.retrieveNextMessage(connection);
+            assertNotNull(message);
+            assertEquals(expected.length, message.capacity());
+            assertTrue(Arrays.equals(expected, message.array()));
+        }
+        assertNull(handler.retrieveNextMessage(connection));
+        assertEquals(messages.length, handler.sequenceId());
+    }
+
+    /**
+     * testCompressionNotNegotiated
+     */
+    public void testCompressionNotNegotiated() throws IOException {
+        // If the connection didn't agree to compression, then the
+        // flag in the length prefix is just a bad length
+        BBContainer block = VoltProtocolHandler.compressMessages(DBBPool.wrapBB(frame(makeMessage(THRESHOLD * 4, 6))), THRESHOLD);
+        readAll(block.b);
+        try {
+            handler.retrieveNextMessage(connection);
+            fail("Expected IOException");
+        } catch (IOException ex) {
+            // Expected
+        }
+    }
+}
@@ -65,6 +65,45 @@ public class DBBPoolTest extends TestCase {
         p2.clear();
     }
 
+    public void testGlobalLoanAccounting() {
+        DBBPool p1 = new DBBPool();
+        final long buffers = DBBPool.getBuffersLoanedGlobally();
+        final long bytes = DBBPool.getBytesLoanedGlobally();
+
+        BBContainer containers[] = p1.acquire(NUM_BUFFERS, INITIAL_ALLOCATION);
+        assertEquals(buffers + NUM_BUFFERS, DBBPool.getBuffersLoanedGlobally());
+        assertEquals(bytes + p1.bytesLoanedLocally(), DBBPool.getBytesLoanedGlobally());
+
+        // Allocations that are too big for the pool are not loaned
+        final long heapAllocations = DBBPool.getHeapAllocationsGlobally();
+        p1.acquire(DBBPool.MAX_ALLOCATION_SIZE + 1).discard();
+        assertEquals(heapAllocations + 1, DBBPool.getHeapAllocationsGlobally());
+        assertEquals(buffers + NUM_BUFFERS, DBBPool.getBuffersLoanedGlobally());
+
+        for (BBContainer c : containers) {
+            c.discard();
+        }
+        assertEquals(buffers, DBBPool.getBuffersLoanedGlobally());
+        assertEquals(bytes, DBBPool.getBytesLoanedGlobally());
+        p1.clear();
+    }
+
+    public void testThreadLocalPool() throws InterruptedException {
+        final DBBPool pool = DBBPool.getThreadLocalPool();
+        assertSame(pool, DBBPool.getThreadLocalPool());
+
+        final DBBPool other[] = new DBBPool[1];
+        Thread t = new Thread() {
+            public void run() {
+                other[0] = DBBPool.getThreadLocalPool();
+            }
+        };
+        t.start();
+        t.join();
+        assertNotNull(other[0]);
+        assertNotSame(pool, other[0]);
+    }
+
     public void testGrowingPool() {
         int bufsize = 8096;
         int bufsize2 = 80480;
@@ -5,8 +5,12 @@ import java.util.Random;
 import org.junit.Test;
 import org.voltdb.VoltTable;
 import org.voltdb.VoltType;
+import org.voltdb.messaging.FastDeserializer;
+import org.voltdb.messaging.FastSerializer;
 import org.voltdb.types.SortDirectionType;
 
+import com.google.protobuf.ByteString;
+
 import junit.framework.TestCase;
 
 /**
@@ -94,4 +98,35 @@ public class TestVoltTableUtil extends TestCase {
             } // WHILE
         } // FOR
     }
-}
\ No newline at end of file
+    
+    /**
+     * testToByteString
+     */
+    @Test
+    public void testToByteString() throws Exception {
+        ByteString bs = VoltTableUtil.toByteString(this.table);
+        assertNotNull(bs);
+        
+        // It should be the exact same bytes as the regular serialization
+        FastSerializer fs = new FastSerializer();
+        this.table.writeExternal(fs);
+        byte expected[] = fs.getBytes();
+        assertEquals(expected.length, bs.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(Integer.toString(i), expected[i], bs.byteAt(i));
+        } // FOR
+        
+        // And we should be able to deserialize it back
+        FastDeserializer fds = new FastDeserializer(bs.asReadOnlyByteBuffer());
+        VoltTable clone = fds.readObject(VoltTable.class);
+        assertEquals(this.table.getRowCount(), clone.getRowCount());
+        this.table.resetRowPosition();
+        while (this.table.advanceRow()) {
+            assertTrue(clone.advanceRow());
+            for (int i = 0; i < SCHEMA.length; i++) {
+                assertEquals(this.table.get(i), clone.get(i));
+            } // FOR
+        } // WHILE
+        assertFalse(clone.advanceRow());
+    }
+}